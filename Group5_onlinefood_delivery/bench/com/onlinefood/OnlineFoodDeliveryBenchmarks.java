@@ -0,0 +1,3193 @@
+package com.onlinefood;
+
+import com.onlinefood.OnlineFoodDeliverySystem.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntToLongFunction;
+
+// Micro-benchmarks for the service hot paths.
+// Run: java -cp bin com.onlinefood.OnlineFoodDeliveryBenchmarks [name ...]
+// Dataset sizes can be raised with system properties, e.g. -Dbench.orders=10000000 -Xmx16g
+// Every measurement also reports heap allocated per op and the collections it triggered;
+// -Dbench.json=results.json writes all of them, per benchmark and dataset, for comparing runs.
+public class OnlineFoodDeliveryBenchmarks {
+
+    static volatile long sink; // keeps results alive so the JIT cannot drop the work
+    private static final PrintStream console = System.out; // still the terminal while a benchmark silences System.out
+
+    public static void main(String[] args) {
+        Map<String, Runnable> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("orders-by-customer", OnlineFoodDeliveryBenchmarks::ordersByCustomer);
+        benchmarks.put("concurrent-checkout", OnlineFoodDeliveryBenchmarks::concurrentCheckout);
+        benchmarks.put("menu-lookup", OnlineFoodDeliveryBenchmarks::menuLookup);
+        benchmarks.put("journal-append", OnlineFoodDeliveryBenchmarks::journalAppend);
+        benchmarks.put("recovery", OnlineFoodDeliveryBenchmarks::recovery);
+        benchmarks.put("batch-load", OnlineFoodDeliveryBenchmarks::batchLoad);
+        benchmarks.put("cart", OnlineFoodDeliveryBenchmarks::cart);
+        benchmarks.put("dispatch-sim", OnlineFoodDeliveryBenchmarks::dispatchSimulation);
+        benchmarks.put("order-events", OnlineFoodDeliveryBenchmarks::orderEvents);
+        benchmarks.put("search", OnlineFoodDeliveryBenchmarks::search);
+        benchmarks.put("report", OnlineFoodDeliveryBenchmarks::report);
+        benchmarks.put("http-load", OnlineFoodDeliveryBenchmarks::httpLoad);
+        benchmarks.put("menu-cache", OnlineFoodDeliveryBenchmarks::menuCache);
+        benchmarks.put("order-archive", OnlineFoodDeliveryBenchmarks::orderArchive);
+        benchmarks.put("analytics", OnlineFoodDeliveryBenchmarks::analytics);
+        benchmarks.put("checkout-pipeline", OnlineFoodDeliveryBenchmarks::checkoutPipeline);
+        benchmarks.put("hot-paths", OnlineFoodDeliveryBenchmarks::hotPaths);
+        benchmarks.put("metrics", OnlineFoodDeliveryBenchmarks::metrics);
+        benchmarks.put("stock", OnlineFoodDeliveryBenchmarks::stock);
+        benchmarks.put("location-ingest", OnlineFoodDeliveryBenchmarks::locationIngest);
+        benchmarks.put("sharding", OnlineFoodDeliveryBenchmarks::sharding);
+        benchmarks.put("promotions", OnlineFoodDeliveryBenchmarks::promotions);
+        benchmarks.put("idempotency", OnlineFoodDeliveryBenchmarks::idempotency);
+        benchmarks.put("split-checkout", OnlineFoodDeliveryBenchmarks::splitCheckout);
+        benchmarks.put("kitchen-scheduler", OnlineFoodDeliveryBenchmarks::kitchenScheduler);
+        benchmarks.put("startup", OnlineFoodDeliveryBenchmarks::startup);
+
+        Set<String> selected = new LinkedHashSet<>(Arrays.asList(args));
+        for (Map.Entry<String, Runnable> e : benchmarks.entrySet()) {
+            if (selected.isEmpty() || selected.contains(e.getKey())) {
+                System.out.println("== " + e.getKey() + " ==");
+                group = e.getKey();
+                params = "";
+                Usage before = Usage.now();
+                e.getValue().run();
+                Usage used = Usage.now().since(before);
+                groups.put(group, used);
+                System.out.printf("  [%d ms, %.1f MB allocated, %d GCs / %d ms]%n",
+                        used.nanos / 1_000_000, used.allocatedBytes / 1e6, used.gcCount, used.gcMillis);
+            }
+        }
+        String json = System.getProperty("bench.json");
+        if (json != null) writeJson(Path.of(json));
+    }
+
+    // ====== Harness ======
+
+    // What each measure()/measureAllocation() call saw, keyed by benchmark, dataset and name
+    static final class Result {
+        final String group, params, name;
+        double nsPerOp = Double.NaN, bytesPerOp = Double.NaN;
+        long gcCount, gcMillis;
+
+        Result(String group, String params, String name) {
+            this.group = group;
+            this.params = params;
+            this.name = name;
+        }
+    }
+
+    // Wall time, heap allocated by all threads and collections between two points
+    static final class Usage {
+        final long nanos, allocatedBytes, gcCount, gcMillis;
+
+        Usage(long nanos, long allocatedBytes, long gcCount, long gcMillis) {
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        static Usage now() {
+            long count = 0, millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            return new Usage(System.nanoTime(), threads().getTotalThreadAllocatedBytes(), count, millis);
+        }
+
+        Usage since(Usage start) {
+            return new Usage(nanos - start.nanos, allocatedBytes - start.allocatedBytes,
+                    gcCount - start.gcCount, gcMillis - start.gcMillis);
+        }
+    }
+
+    private static final Map<String, Result> results = new LinkedHashMap<>();
+    private static final Map<String, Usage> groups = new LinkedHashMap<>();
+    private static String group = "", params = "";
+
+    // Labels the measurements that follow with the dataset they ran on
+    static void params(String description) {
+        params = description;
+        System.out.println("  -- " + description + " --");
+    }
+
+    private static Result result(String name) {
+        return results.computeIfAbsent(group + '\0' + params + '\0' + name, k -> new Result(group, params, name));
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    static void writeJson(Path file) {
+        try (ReportWriter w = new ReportWriter(Files.newBufferedWriter(file))) {
+            w.append("{\"jvm\":").appendJson(System.getProperty("java.vm.name") + " " + Runtime.version());
+            w.append(",\"gc\":").appendJson(String.join("+",
+                    ManagementFactory.getGarbageCollectorMXBeans().stream().map(GarbageCollectorMXBean::getName).toList()));
+            w.append(",\"cpus\":").appendLong(Runtime.getRuntime().availableProcessors());
+            w.append(",\"maxHeapBytes\":").appendLong(Runtime.getRuntime().maxMemory());
+            w.append(",\"properties\":{");
+            String sep = "";
+            for (String key : new TreeSet<>(System.getProperties().stringPropertyNames())) {
+                if (!key.startsWith("bench.")) continue;
+                w.append(sep).appendJson(key).append(':').appendJson(System.getProperty(key));
+                sep = ",";
+            }
+            w.append("},\"benchmarks\":[");
+            sep = "";
+            for (Map.Entry<String, Usage> e : groups.entrySet()) {
+                Usage u = e.getValue();
+                w.append(sep).newLine().append("{\"name\":").appendJson(e.getKey());
+                w.append(",\"millis\":").appendLong(u.nanos / 1_000_000);
+                w.append(",\"allocatedBytes\":").appendLong(u.allocatedBytes);
+                w.append(",\"gcCount\":").appendLong(u.gcCount).append(",\"gcMillis\":").appendLong(u.gcMillis).append('}');
+                sep = ",";
+            }
+            w.append("],\"results\":[");
+            sep = "";
+            for (Result r : results.values()) {
+                w.append(sep).newLine().append("{\"benchmark\":").appendJson(r.group);
+                w.append(",\"params\":").appendJson(r.params).append(",\"name\":").appendJson(r.name);
+                w.append(",\"nsPerOp\":").append(jsonNumber(r.nsPerOp));
+                w.append(",\"bytesPerOp\":").append(jsonNumber(r.bytesPerOp));
+                w.append(",\"gcCount\":").appendLong(r.gcCount).append(",\"gcMillis\":").appendLong(r.gcMillis).append('}');
+                sep = ",";
+            }
+            w.append("]}").newLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.println("wrote " + results.size() + " results to " + file);
+    }
+
+    private static String jsonNumber(double v) {
+        return Double.isNaN(v) ? "null" : String.format(Locale.ROOT, "%.2f", v);
+    }
+
+    static void check(boolean ok, String what) {
+        System.out.println((ok ? "  PASS " : "  FAIL ") + what);
+        if (!ok) throw new IllegalStateException("check failed: " + what);
+    }
+
+    // p in [0, 100] over an array sorted in place
+    static long percentile(long[] values, int count, double p) {
+        if (count == 0) return 0;
+        Arrays.sort(values, 0, count);
+        int idx = (int) Math.ceil(p / 100.0 * count) - 1;
+        return values[Math.max(0, Math.min(count - 1, idx))];
+    }
+
+    static String percentiles(long[] values, int count, double scale, String unit) {
+        return String.format("p50=%.1f%s p90=%.1f%s p99=%.1f%s max=%.1f%s",
+                percentile(values, count, 50) / scale, unit, percentile(values, count, 90) / scale, unit,
+                percentile(values, count, 99) / scale, unit, percentile(values, count, 100) / scale, unit);
+    }
+
+    static Path tempDir(String prefix) {
+        try {
+            return Files.createTempDirectory(prefix);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void deleteTree(Path dir) {
+        try (var files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static <T> long awaitAll(ExecutorService pool, List<Callable<T>> tasks) {
+        long t0 = System.nanoTime();
+        try {
+            for (Future<T> f : pool.invokeAll(tasks)) f.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            pool.shutdown();
+        }
+        return System.nanoTime() - t0;
+    }
+
+    // Runs op(i) for i in [0, ops) over a few warmup and measured rounds and prints the best ns/op,
+    // with the calling thread's allocation per op and the collections over the measured rounds
+    static double measure(String name, int ops, IntToLongFunction op) {
+        for (int w = 0; w < 5; w++) run(ops, op);
+        long allocated = threads().getCurrentThreadAllocatedBytes();
+        Usage before = Usage.now();
+        long best = Long.MAX_VALUE;
+        for (int m = 0; m < 5; m++) best = Math.min(best, run(ops, op));
+        Usage used = Usage.now().since(before);
+        Result r = result(name);
+        r.nsPerOp = (double) best / ops;
+        r.bytesPerOp = (double) (threads().getCurrentThreadAllocatedBytes() - allocated) / (5L * ops);
+        r.gcCount = used.gcCount;
+        r.gcMillis = used.gcMillis;
+        console.printf("%-40s %12.1f ns/op %10.1f B/op %4d GCs%n", name, r.nsPerOp, r.bytesPerOp, r.gcCount);
+        return r.nsPerOp;
+    }
+
+    // Heap bytes allocated per op on the calling thread (after warmup), like JMH's -prof gc
+    static double measureAllocation(String name, int ops, IntToLongFunction op) {
+        for (int w = 0; w < 5; w++) run(ops, op);
+        long before = threads().getCurrentThreadAllocatedBytes();
+        run(ops, op);
+        double bytesPerOp = (double) (threads().getCurrentThreadAllocatedBytes() - before) / ops;
+        result(name).bytesPerOp = bytesPerOp;
+        console.printf("%-40s %12.1f B/op%n", name, bytesPerOp);
+        return bytesPerOp;
+    }
+
+    // Heap in use after full collections; the difference between two calls approximates what the
+    // objects created in between retain (JOL's GraphLayout.totalSize(), without needing its agent)
+    static long retainedHeap() {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            used = Math.min(used, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    private static long run(int ops, IntToLongFunction op) {
+        long acc = 0;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) acc += op.applyAsLong(i);
+        long elapsed = System.nanoTime() - t0;
+        sink += acc;
+        return elapsed;
+    }
+
+    // ====== Data generator ======
+
+    // A deterministic synthetic dataset built through the services: restaurants with
+    // itemsPerRestaurant dishes each, customers, riders, and orders placed from carts, half of
+    // them with a rider assigned. Restaurant popularity is skewed (a few are busy), as in the
+    // analytics benchmark. fromProperties() sizes it from bench.restaurants, bench.itemsPerRestaurant,
+    // bench.customers, bench.riders and bench.orders times a scale factor, so one run can sweep sizes.
+    static final class Dataset {
+        final int restaurants, itemsPerRestaurant, customers, riders, orders;
+        final DataStore db;
+        final FoodService fs;
+        final CustomerService cs;
+        final OrderService os;
+        final FoodItem[][] menus; // [restaurantId][foodId]
+        final String[] addresses; // [customerId]
+        final long buildMillis;
+
+        Dataset(int restaurants, int itemsPerRestaurant, int customers, int riders, int orders, long seed, boolean concurrent) {
+            this.restaurants = restaurants;
+            this.itemsPerRestaurant = itemsPerRestaurant;
+            this.customers = customers;
+            this.riders = riders;
+            this.orders = orders;
+            long t0 = System.nanoTime();
+            db = new DataStore(concurrent);
+            fs = new FoodService(db);
+            cs = new CustomerService(db);
+            os = new OrderService(db);
+            menus = new FoodItem[restaurants + 1][itemsPerRestaurant + 1];
+            for (int r = 1; r <= restaurants; r++) {
+                fs.addRestaurant(r, "Kitchen " + r);
+                for (int f = 1; f <= itemsPerRestaurant; f++) {
+                    fs.addFoodItemToRestaurant(r, f, "Dish " + f, 40 + f * 10);
+                    menus[r][f] = fs.findFoodItem(r, f);
+                }
+            }
+            addresses = new String[customers + 1];
+            for (int c = 1; c <= customers; c++) {
+                cs.addCustomer(c, "customer" + c, 9000000000L + c);
+                addresses[c] = "House " + c + ", Street " + c % 997;
+            }
+            for (int d = 1; d <= riders; d++) os.addDeliveryPerson(d, "rider" + d, 8000000000L + d);
+
+            SplittableRandom rnd = new SplittableRandom(seed);
+            for (int i = 0; i < orders; i++) {
+                int cid = 1 + rnd.nextInt(customers);
+                FoodItem[] menu = menus[restaurant(rnd)];
+                for (int l = 0, lines = 1 + rnd.nextInt(3); l < lines; l++) {
+                    cs.addFoodToCart(cid, menu[1 + rnd.nextInt(itemsPerRestaurant)], 1 + rnd.nextInt(2));
+                }
+                int oid = os.placeOrder(cid, addresses[cid]);
+                if (riders > 0 && rnd.nextBoolean()) os.assignDeliveryPersonToOrder(oid, 1 + rnd.nextInt(riders));
+            }
+            buildMillis = (System.nanoTime() - t0) / 1_000_000;
+        }
+
+        static Dataset fromProperties(int scale, boolean concurrent) {
+            return new Dataset(Integer.getInteger("bench.restaurants", 1_000) * scale,
+                    Integer.getInteger("bench.itemsPerRestaurant", 20),
+                    Integer.getInteger("bench.customers", 20_000) * scale,
+                    Integer.getInteger("bench.riders", 1_000) * scale,
+                    Integer.getInteger("bench.orders", 100_000) * scale,
+                    Long.getLong("bench.seed", 42), concurrent);
+        }
+
+        // Skewed: the cube of a uniform draw puts most picks on the lowest ids
+        int restaurant(SplittableRandom rnd) {
+            return 1 + (int) (Math.pow(rnd.nextDouble(), 3) * restaurants);
+        }
+
+        @Override
+        public String toString() {
+            return "restaurants=" + restaurants + " items=" + restaurants * itemsPerRestaurant + " customers=" + customers
+                    + " riders=" + riders + " orders=" + orders;
+        }
+    }
+
+    // ====== Benchmarks ======
+
+    // "View Orders" for one customer: index lookup vs the old scan over every order
+    static void ordersByCustomer() {
+        for (int totalOrders : new int[]{10_000, 100_000, 1_000_000}) {
+            int customers = Math.max(1, totalOrders / 20);
+            DataStore db = new DataStore();
+            CustomerService cs = new CustomerService(db);
+            OrderService os = new OrderService(db);
+            FoodItem item = new FoodItem(1, "Dosa", 60.0);
+            for (int c = 1; c <= customers; c++) cs.addCustomer(c, "customer" + c, 9000000000L + c);
+            for (int i = 0; i < totalOrders; i++) {
+                int cid = 1 + (i % customers);
+                cs.addFoodToCart(cid, item, 1);
+                os.placeOrder(cid, "Street " + cid);
+            }
+            int ops = Math.max(10, 2_000_000 / totalOrders);
+            measure("linear scan, orders=" + totalOrders, ops, i -> {
+                int cid = 1 + (i * 7919) % customers;
+                long found = 0;
+                for (Order o : db.orders.values()) {
+                    if (o.getCustomer().getUserId() == cid) found += o.getOrderId();
+                }
+                return found;
+            });
+            measure("index page(0,20), orders=" + totalOrders, 100_000, i -> {
+                int cid = 1 + (i * 7919) % customers;
+                long found = 0;
+                for (Order o : os.findOrdersByCustomer(cid, 0, 20)) found += o.getOrderId();
+                return found;
+            });
+        }
+    }
+
+    // Stress: 1M orders from 64 threads over shared customers; ids must be unique and
+    // every quantity added to a cart must end up in exactly one order (or still be in the cart)
+    static void concurrentCheckout() {
+        int threads = 64, totalOrders = 1_000_000, customers = 4096;
+        DataStore db = new DataStore(true);
+        FoodService fs = new FoodService(db);
+        CustomerService cs = new CustomerService(db);
+        OrderService os = new OrderService(db);
+        fs.addRestaurant(1, "Stress Kitchen");
+        for (int f = 1; f <= 16; f++) fs.addFoodItemToRestaurant(1, f, "item" + f, 10.0 * f);
+        for (int c = 1; c <= customers; c++) cs.addCustomer(c, "customer" + c, 9000000000L + c);
+
+        LongAdder added = new LongAdder();
+        ConcurrentLinkedQueue<int[]> placed = new ConcurrentLinkedQueue<>();
+        AtomicInteger remaining = new AtomicInteger(totalOrders);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            tasks.add(() -> {
+                Random rnd = new Random(seed);
+                int[] ids = new int[totalOrders / threads + 1];
+                int n = 0;
+                while (remaining.get() > 0) {
+                    int cid = 1 + rnd.nextInt(customers);
+                    int qty = 1 + rnd.nextInt(3);
+                    cs.addFoodToCart(cid, fs.findFoodItem(1, 1 + rnd.nextInt(16)), qty);
+                    added.add(qty);
+                    if (remaining.getAndDecrement() <= 0) {
+                        remaining.incrementAndGet();
+                        break;
+                    }
+                    int oid = os.placeOrder(cid, "Address " + cid);
+                    if (oid > 0) {
+                        if (n == ids.length) ids = Arrays.copyOf(ids, n * 2);
+                        ids[n++] = oid;
+                    } else {
+                        remaining.incrementAndGet(); // another thread emptied the cart first
+                    }
+                }
+                placed.add(Arrays.copyOf(ids, n));
+                return null;
+            });
+        }
+        long elapsed = awaitAll(Executors.newFixedThreadPool(threads), tasks);
+
+        BitSet seen = new BitSet();
+        int returned = 0;
+        boolean unique = true;
+        for (int[] ids : placed) {
+            for (int oid : ids) {
+                if (seen.get(oid)) unique = false;
+                seen.set(oid);
+                returned++;
+            }
+        }
+        long inOrders = 0;
+        for (Order o : db.orders.values()) {
+            for (LineItem l : o.getLines()) inOrders += l.getQuantity();
+        }
+        long inCarts = 0;
+        for (Customer c : db.customers.values()) {
+            for (LineItem l : c.getCart().getLines()) inCarts += l.getQuantity();
+        }
+        System.out.printf("  %d orders from %d threads in %d ms (%.0f orders/s)%n",
+                returned, threads, elapsed / 1_000_000, returned * 1e9 / elapsed);
+        check(returned == totalOrders, "placed " + totalOrders + " orders");
+        check(unique && db.orders.size() == returned, "no duplicate order ids");
+        check(inOrders + inCarts == added.sum(), "no cart items lost (" + added.sum() + " added)");
+    }
+
+    // findFoodItem / addFoodItem against menu size; "list scan" is the old ArrayList lookup
+    static void menuLookup() {
+        for (int size : new int[]{10, 100, 1_000, 10_000, 100_000}) {
+            DataStore db = new DataStore();
+            FoodService fs = new FoodService(db);
+            fs.addRestaurant(1, "Chain");
+            List<FoodItem> list = new ArrayList<>(size);
+            for (int f = 0; f < size; f++) {
+                fs.addFoodItemToRestaurant(1, f, "item" + f, 100 + f % 400);
+                list.add(new FoodItem(f, "item" + f, 100 + f % 400));
+            }
+            int scanOps = Math.max(100, 10_000_000 / size);
+            measure("list scan findFoodItem, menu=" + size, scanOps, i -> {
+                int fid = (i * 7919) % size;
+                FoodItem fi = list.stream().filter(x -> x.getId() == fid).findFirst().orElse(null);
+                return fi == null ? 0 : fi.getId();
+            });
+            measure("findFoodItem, menu=" + size, 1_000_000, i -> {
+                FoodItem fi = fs.findFoodItem(1, (i * 7919) % size);
+                return fi == null ? 0 : fi.getId();
+            });
+            measure("addFoodItem (replace), menu=" + size, 200_000, i -> {
+                int fid = (i * 7919) % size;
+                return fs.addFoodItemToRestaurant(1, fid, "item" + fid, 120) ? 1 : 0;
+            });
+        }
+    }
+
+    // Journal appends: one thread with buffered commits, then 16 threads with fsync'd group commit
+    static void journalAppend() {
+        int orders = Integer.getInteger("bench.orders", 1_000_000);
+        Path dir = tempDir("journal-bench");
+        try {
+            DataStore db = new DataStore(true);
+            Persistence p = Persistence.open(dir, db);
+            CustomerService cs = new CustomerService(db);
+            OrderService os = new OrderService(db);
+            FoodItem item = new FoodItem(1, "Dosa", 60.0);
+            int customers = 10_000;
+            p.journal().durableCommits = false;
+            for (int c = 1; c <= customers; c++) cs.addCustomer(c, "customer" + c, 9000000000L + c);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < orders; i++) {
+                int cid = 1 + i % customers;
+                cs.addFoodToCart(cid, item, 1);
+                os.placeOrder(cid, "Street " + cid);
+            }
+            p.journal().sync();
+            long elapsed = System.nanoTime() - t0;
+            System.out.printf("  buffered: %d records in %d ms (%.0f records/s, %.1f MB)%n", 2L * orders,
+                    elapsed / 1_000_000, 2L * orders * 1e9 / elapsed, Files.size(dir.resolve("journal-0.log")) / 1e6);
+
+            p.journal().durableCommits = true;
+            int threads = 16, perThread = 5_000;
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int first = 1 + t * (customers / threads);
+                tasks.add(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        int cid = first + i % (customers / threads);
+                        cs.addFoodToCart(cid, item, 1);
+                        os.placeOrder(cid, "Street " + cid);
+                    }
+                    return null;
+                });
+            }
+            elapsed = awaitAll(Executors.newFixedThreadPool(threads), tasks);
+            long records = 2L * threads * perThread;
+            System.out.printf("  group commit (fsync, %d threads): %d records in %d ms (%.0f records/s)%n",
+                    threads, records, elapsed / 1_000_000, records * 1e9 / elapsed);
+            p.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // Recovery time from a snapshot alone, and from a snapshot plus a journal tail
+    static void recovery() {
+        int orders = Integer.getInteger("bench.orders", 1_000_000);
+        int tail = 200_000;
+        Path dir = tempDir("recovery-bench");
+        try {
+            DataStore db = new DataStore();
+            Persistence p = Persistence.open(dir, db);
+            p.journal().durableCommits = false;
+            FoodService fs = new FoodService(db);
+            CustomerService cs = new CustomerService(db);
+            OrderService os = new OrderService(db);
+            fs.addRestaurant(1, "Dosa Hut");
+            for (int f = 1; f <= 50; f++) fs.addFoodItemToRestaurant(1, f, "item" + f, 20.0 + f);
+            int customers = Math.max(1, orders / 10);
+            for (int c = 1; c <= customers; c++) cs.addCustomer(c, "customer" + c, 9000000000L + c);
+            for (int i = 0; i < orders; i++) {
+                int cid = 1 + i % customers;
+                cs.addFoodToCart(cid, fs.findFoodItem(1, 1 + i % 50), 1 + i % 3);
+                os.placeOrder(cid, "Street " + cid);
+            }
+            long t0 = System.nanoTime();
+            p.checkpoint();
+            System.out.printf("  snapshot of %d orders written in %d ms (%.1f MB)%n", orders,
+                    (System.nanoTime() - t0) / 1_000_000, Files.size(dir.resolve("snapshot.bin")) / 1e6);
+            p.close();
+
+            t0 = System.nanoTime();
+            DataStore recovered = new DataStore();
+            p = Persistence.open(dir, recovered);
+            System.out.printf("  recovered %d orders from snapshot in %d ms%n", recovered.orders.size(),
+                    (System.nanoTime() - t0) / 1_000_000);
+            p.journal().durableCommits = false;
+            cs = new CustomerService(recovered);
+            os = new OrderService(recovered);
+            fs = new FoodService(recovered);
+            for (int i = 0; i < tail; i++) {
+                int cid = 1 + i % customers;
+                cs.addFoodToCart(cid, fs.findFoodItem(1, 1 + i % 50), 1);
+                os.placeOrder(cid, "Street " + cid);
+            }
+            p.close();
+
+            t0 = System.nanoTime();
+            recovered = new DataStore();
+            p = Persistence.open(dir, recovered);
+            System.out.printf("  recovered %d orders from snapshot + %d journal records in %d ms%n",
+                    recovered.orders.size(), p.recoveredRecords, (System.nanoTime() - t0) / 1_000_000);
+            check(recovered.orders.size() == orders + tail, "every order recovered");
+            p.close();
+            journalFailure(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // A failed journal write stops the journal: the change it was for stands, the next change is
+    // refused, a restart recovers what was written before it, and a checkpoint starts a new journal
+    private static void journalFailure(Path dir) throws IOException {
+        for (boolean checkpointed : new boolean[]{false, true}) {
+            Path data = dir.resolve(checkpointed ? "checkpointed" : "stopped");
+            DataStore db = new DataStore(true);
+            Persistence p = Persistence.open(data, db);
+            FoodService fs = new FoodService(db);
+            CustomerService cs = new CustomerService(db);
+            OrderService os = new OrderService(db);
+            fs.addRestaurant(1, "Dosa Hut");
+            fs.addFoodItemToRestaurant(1, 1, "Masala Dosa", 60.0);
+            cs.addCustomer(1, "asha", 9000000001L);
+            cs.addFoodToCart(1, fs.findFoodItem(1, 1), 1);
+            p.journal().abandon(); // every write from here on fails
+            int oid = os.placeOrder(1, "Street 1");
+            boolean refused = false;
+            try {
+                fs.addRestaurant(2, "Tandoor");
+            } catch (IllegalStateException e) {
+                refused = true;
+            }
+            check(oid > 0 && db.getOrder(oid) != null && refused && db.restaurants.get(2) == null,
+                    "a failed journal write keeps the order it was for and refuses the next change");
+            if (!checkpointed) {
+                try (HttpApi api = new HttpApi(db, fs, cs, os, 0)) {
+                    api.start();
+                    HttpLoadClient client = new HttpLoadClient("localhost", api.port());
+                    int status = client.exchange(HttpLoadClient.post("/restaurants", "id=2&name=Tandoor"));
+                    check(status == 500 && client.body().equals("{\"error\":\"internal error\"}"),
+                            "the HTTP API answers a refused change with a 500 that does not echo the exception");
+                    client.disconnect();
+                }
+            }
+            if (checkpointed) {
+                p.checkpoint();
+                fs.addRestaurant(2, "Tandoor");
+                p.close();
+            } else {
+                try {
+                    p.close();
+                } catch (IOException expected) {
+                    // the stopped journal cannot write its tail
+                }
+            }
+            DataStore back = new DataStore(true);
+            Persistence.open(data, back).close();
+            if (checkpointed) {
+                check(back.getOrder(oid) != null && back.restaurants.get(2) != null,
+                        "a checkpoint after a failed write keeps every change, and the new journal takes the next one");
+            } else {
+                check(back.getOrder(oid) == null && back.restaurants.get(1) != null && !back.customers.get(1).getCart().isEmpty(),
+                        "a restart after a failed write recovers everything written before it");
+            }
+        }
+    }
+
+    // Bulk load through the --batch command stream: 50k restaurants with 20-item menus, then carts and orders
+    static void batchLoad() {
+        int restaurants = Integer.getInteger("bench.restaurants", 50_000);
+        int customers = 100_000, orders = 250_000;
+        Path dir = tempDir("batch-bench");
+        Path file = dir.resolve("commands.txt");
+        try {
+            try (BufferedWriter w = Files.newBufferedWriter(file)) {
+                for (int r = 1; r <= restaurants; r++) {
+                    w.write("add-restaurant " + r + " Restaurant " + r + "\n");
+                    for (int f = 1; f <= 20; f++) w.write("add-food " + r + " " + f + " " + (50 + f * 5) + ".5 Dish " + f + "\n");
+                }
+                for (int c = 1; c <= customers; c++) w.write("add-customer " + c + " " + (9000000000L + c) + " Customer " + c + "\n");
+                for (int o = 0; o < orders; o++) {
+                    int cid = 1 + o % customers;
+                    w.write("add-to-cart " + cid + " " + (1 + o % restaurants) + " " + (1 + o % 20) + " 2\n");
+                    w.write("add-to-cart " + cid + " " + (1 + o % restaurants) + " " + (1 + (o + 7) % 20) + " 1\n");
+                    w.write("place-order " + cid + " House " + o + ", Ring Road\n");
+                }
+            }
+            for (boolean journaled : new boolean[]{false, true}) {
+                DataStore db = new DataStore();
+                Persistence p = journaled ? Persistence.open(dir.resolve("data"), db) : null;
+                if (p != null) p.journal().durableCommits = false;
+                BatchRunner runner = new BatchRunner(new FoodService(db), new CustomerService(db), new OrderService(db), null);
+                String summary = runner.run(file);
+                if (p != null) p.close();
+                System.out.println(journaled ? "  -- with journal --" : "  -- in memory --");
+                System.out.println("  " + summary.lines().reduce((a, b) -> b).orElse(""));
+            }
+
+            // bad lines are rejected one by one and the lines after them still run
+            DataStore db = new DataStore();
+            BatchRunner runner = new BatchRunner(new FoodService(db), new CustomerService(db), new OrderService(db), null);
+            runner.run(new BufferedReader(new java.io.StringReader("add-restaurant 1 Tandoor\nadd-food 1 2\n"
+                    + "add-food 1 x 40 Naan\nadd-food 1 3 40 Naan\n")));
+            check(db.restaurants.get(1).getMenu().size() == 1, "a missing or bad field rejects its line and the batch goes on");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // Cart hot path: re-adding items already in the cart must not allocate
+    static void cart() {
+        FoodItem[] menu = new FoodItem[10];
+        for (int f = 0; f < menu.length; f++) menu[f] = new FoodItem(f, "item" + f, 49.99 + f);
+        Cart cart = new Cart();
+        Map<FoodItem, Integer> oldItems = new LinkedHashMap<>();
+        for (FoodItem fi : menu) {
+            cart.addItem(fi, 1);
+            oldItems.put(fi, 1);
+        }
+        measure("addItem (existing line)", 1_000_000, i -> {
+            cart.addItem(menu[i % menu.length], 1);
+            return cart.getTotalPaise();
+        });
+        measureAllocation("addItem (existing line)", 1_000_000, i -> {
+            cart.addItem(menu[i % menu.length], 1);
+            return cart.getTotalPaise();
+        });
+        measure("getTotalCost, old stream over 10 lines", 1_000_000, i -> (long) oldItems.entrySet().stream()
+                .mapToDouble(e -> e.getKey().getPrice() * e.getValue()).sum());
+        measure("getTotalCost, running total", 1_000_000, i -> (long) cart.getTotalCost());
+
+        DataStore db = new DataStore();
+        CustomerService cs = new CustomerService(db);
+        OrderService os = new OrderService(db);
+        cs.addCustomer(1, "Asha", 9000000001L);
+        measureAllocation("placeOrder, 3-line cart (incl. adds)", 100_000, i -> {
+            cs.addFoodToCart(1, menu[0], 1);
+            cs.addFoodToCart(1, menu[1], 2);
+            cs.addFoodToCart(1, menu[2], 1);
+            return os.placeOrder(1, "MG Road");
+        });
+    }
+
+    // One simulated hour: 100k orders/hour across a 20x20 km city served by 5k riders carrying up to
+    // 4 orders each. Ticks run every simulated second; a delivery takes travel time at 20 km/h plus 8 minutes.
+    static void dispatchSimulation() {
+        int ordersPerHour = Integer.getInteger("bench.ordersPerHour", 100_000);
+        int riders = Integer.getInteger("bench.riders", 5_000);
+        double lat0 = 18.42, lon0 = 73.76, span = 0.18; // ~20 km square
+        Random rnd = new Random(42);
+        DataStore db = new DataStore();
+        CustomerService cs = new CustomerService(db);
+        OrderService os = new OrderService(db);
+        DispatchEngine engine = new DispatchEngine(db, os);
+        FoodItem item = new FoodItem(1, "Thali", 180.0);
+        for (int d = 1; d <= riders; d++) {
+            os.addDeliveryPerson(d, "rider" + d, 8000000000L + d);
+            db.deliveryPeople.get(d).setCapacity(4);
+            engine.updateRiderLocation(d, lat0 + rnd.nextDouble() * span, lon0 + rnd.nextDouble() * span);
+        }
+        int customers = 20_000;
+        for (int c = 1; c <= customers; c++) cs.addCustomer(c, "customer" + c, 9000000000L + c);
+
+        PriorityQueue<long[]> deliveries = new PriorityQueue<>(Comparator.comparingLong(e -> e[0])); // {doneAt, orderId, riderId}
+        long[] tickNanos = new long[3600];
+        long[] perAssignmentNanos = new long[3600];
+        int busyTicks = 0;
+        long[] waits = new long[ordersPerHour * 2];
+        int waitCount = 0, placed = 0;
+        double perSecond = ordersPerHour / 3600.0, carry = 0;
+        for (int sec = 0; sec < 3600; sec++) {
+            long now = sec * 1000L;
+            while (!deliveries.isEmpty() && deliveries.peek()[0] <= now) {
+                long[] done = deliveries.poll();
+                engine.completeDelivery((int) done[1]);
+                engine.updateRiderLocation((int) done[2], lat0 + rnd.nextDouble() * span, lon0 + rnd.nextDouble() * span);
+            }
+            carry += perSecond;
+            for (; carry >= 1; carry--) {
+                int cid = 1 + rnd.nextInt(customers);
+                cs.addFoodToCart(cid, item, 1);
+                int oid = os.placeOrder(cid, "House " + placed);
+                engine.submit(oid, lat0 + rnd.nextDouble() * span, lon0 + rnd.nextDouble() * span, now);
+                placed++;
+            }
+            long t0 = System.nanoTime();
+            List<DispatchEngine.Assignment> made = engine.tick(now);
+            tickNanos[sec] = System.nanoTime() - t0;
+            if (!made.isEmpty()) perAssignmentNanos[busyTicks++] = tickNanos[sec] / made.size();
+            for (DispatchEngine.Assignment a : made) {
+                waits[waitCount++] = a.waitMillis;
+                long travelMillis = (long) (a.distanceKm / 20.0 * 3_600_000);
+                deliveries.add(new long[]{now + travelMillis + 8 * 60_000L, a.orderId, a.deliveryPersonId});
+            }
+        }
+        System.out.printf("  %d orders placed, %d assigned, %d still pending after 1 simulated hour%n",
+                placed, waitCount, engine.pendingCount());
+        System.out.println("  tick latency:       " + percentiles(tickNanos, tickNanos.length, 1e3, "us"));
+        System.out.println("  per assignment:     " + percentiles(perAssignmentNanos, busyTicks, 1e3, "us"));
+        System.out.println("  wait for a rider:   " + percentiles(waits, waitCount, 1e3, "s"));
+    }
+
+    // Status transitions through OrderService with three subscribers attached, one of them slow
+    static void orderEvents() {
+        int orders = 250_000, threads = 8;
+        OrderStatus[] path = {OrderStatus.ACCEPTED, OrderStatus.PREPARING, OrderStatus.PICKED_UP, OrderStatus.DELIVERED};
+        DataStore db = new DataStore(true);
+        CustomerService cs = new CustomerService(db);
+        OrderService os = new OrderService(db);
+        FoodItem item = new FoodItem(1, "Biryani", 220.0);
+        for (int c = 1; c <= 1000; c++) cs.addCustomer(c, "customer" + c, 9000000000L + c);
+
+        measure("placeOrder, no subscribers", 100_000, i -> {
+            cs.addFoodToCart(1 + i % 1000, item, 1);
+            return os.placeOrder(1 + i % 1000, "Street");
+        });
+
+        LongAdder[] perStatus = new LongAdder[OrderStatus.values().length];
+        for (int i = 0; i < perStatus.length; i++) perStatus[i] = new LongAdder();
+        long[] notified = new long[1];
+        var dashboard = db.events.subscribe("dashboard", (oid, from, to, ts) -> perStatus[to.ordinal()].increment(), 1 << 16);
+        var notifications = db.events.subscribe("notifications", (oid, from, to, ts) -> notified[0] += oid, 1 << 16);
+        var slowMetrics = db.events.subscribe("slow-metrics", (oid, from, to, ts) -> {
+            if (oid % 1000 == 0) LockSupport.parkNanos(1_000_000);
+        }, 8192);
+
+        measure("placeOrder, 3 subscribers", 100_000, i -> {
+            cs.addFoodToCart(1 + i % 1000, item, 1);
+            return os.placeOrder(1 + i % 1000, "Street");
+        });
+        measure("bus publish, 3 subscribers", 1_000_000, i -> {
+            db.events.publish(i, OrderStatus.PLACED, OrderStatus.ACCEPTED);
+            return i;
+        });
+
+        int firstOrder = db.nextOrderId.get();
+        for (int i = 0; i < orders; i++) {
+            cs.addFoodToCart(1 + i % 1000, item, 1);
+            os.placeOrder(1 + i % 1000, "Street");
+        }
+        long publishedBefore = db.events.published();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            tasks.add(() -> {
+                for (OrderStatus next : path) {
+                    for (int oid = firstOrder + offset; oid < firstOrder + orders; oid += threads) {
+                        if (!os.updateOrderStatus(oid, next)) throw new IllegalStateException("rejected " + oid + " -> " + next);
+                    }
+                }
+                return null;
+            });
+        }
+        long elapsed = awaitAll(Executors.newFixedThreadPool(threads), tasks);
+        long transitions = (long) orders * path.length;
+        System.out.printf("  %d transitions on %d threads in %d ms (%.2f M transitions/s)%n",
+                transitions, threads, elapsed / 1_000_000, transitions * 1e3 / elapsed);
+        check(!os.updateOrderStatus(firstOrder, OrderStatus.PLACED), "DELIVERED -> PLACED rejected");
+        check(db.events.published() - publishedBefore == transitions, "every transition published");
+
+        LockSupport.parkNanos(500_000_000L);
+        for (var sub : List.of(dashboard, notifications, slowMetrics)) {
+            System.out.printf("  subscriber %-13s delivered=%d dropped=%d lag=%d%n", sub.name, sub.delivered(), sub.dropped(), sub.lag());
+            sub.close();
+        }
+        check(perStatus[OrderStatus.DELIVERED.ordinal()].sum() == orders, "dashboard saw every delivery");
+    }
+
+    // Search over a generated catalogue (default 5M items, run with -Xmx4g): per-query latency
+    // for common, rare, multi-word and price-filtered queries, checked against a brute-force scan
+    static void search() {
+        int items = Integer.getInteger("bench.items", 5_000_000);
+        int perRestaurant = 50;
+        String[] adjectives = {"Spicy", "Crispy", "Classic", "Smoky", "Creamy", "Tandoori", "Masala", "Garlic",
+                "Butter", "Chilli", "Herbed", "Stuffed", "Grilled", "Fried", "Steamed", "Roasted"};
+        String[] dishes = {"Paneer", "Chicken", "Mutton", "Veg", "Egg", "Fish", "Prawn", "Mushroom", "Aloo", "Dal",
+                "Rajma", "Chole", "Gobi", "Corn", "Tofu", "Lamb", "Keema", "Soya", "Bhindi", "Palak"};
+        String[] styles = {"Biryani", "Tikka", "Curry", "Roll", "Pizza", "Burger", "Noodles", "Momos", "Kebab",
+                "Pulao", "Sandwich", "Wrap", "Thali", "Soup", "Salad", "Dosa", "Paratha", "Fry", "Korma", "Bowl"};
+        DataStore db = new DataStore();
+        FoodService fs = new FoodService(db);
+        Random rnd = new Random(7);
+        FoodItem[] all = new FoodItem[items];
+        int[] owner = new int[items];
+        long t0 = System.nanoTime();
+        for (int i = 0; i < items; i++) {
+            int rid = i / perRestaurant + 1;
+            if (i % perRestaurant == 0) fs.addRestaurant(rid, styles[rid % styles.length] + " House " + rid);
+            String name = adjectives[rnd.nextInt(adjectives.length)] + " " + dishes[rnd.nextInt(dishes.length)] + " "
+                    + styles[rnd.nextInt(styles.length)] + (rnd.nextInt(20) == 0 ? " Special" + rnd.nextInt(10_000) : "");
+            fs.addFoodItemToRestaurant(rid, i % perRestaurant, name, 40 + rnd.nextInt(96_000) / 100.0);
+            all[i] = fs.findFoodItem(rid, i % perRestaurant);
+            owner[i] = rid;
+        }
+        System.out.printf("  indexed %d items in %d restaurants in %d ms%n", items, items / perRestaurant,
+                (System.nanoTime() - t0) / 1_000_000);
+
+        String[][] workloads = {
+                {"one common word", "paneer", "chicken", "biryani", "spicy", "momos"},
+                {"two words", "paneer tikka", "chicken biryani", "garlic noodles", "veg momos", "butter chicken"},
+                {"three words", "spicy paneer tikka", "crispy corn soup", "tandoori chicken kebab"},
+                {"rare word", "special42", "special9001", "special777"},
+                {"no match", "house", "paneer house"},
+        };
+        int queries = 20_000;
+        long[] lat = new long[queries];
+        for (int round = 0; round < 2; round++) { // the first round merges any unsorted posting tails and warms up
+            for (String[] w : workloads) {
+                for (long[] band : new long[][]{{0, Long.MAX_VALUE}, {25_000, 26_000}}) {
+                    for (int q = 0; q < queries; q++) {
+                        String text = w[1 + q % (w.length - 1)];
+                        long s0 = System.nanoTime();
+                        List<SearchIndex.Hit> hits = db.search.searchFood(text, band[0], band[1], 10);
+                        lat[q] = System.nanoTime() - s0;
+                        sink += hits.size();
+                    }
+                    if (round == 1) {
+                        System.out.printf("  %-16s %-16s %s%n", w[0], band[1] == Long.MAX_VALUE ? "any price" : "Rs. 250-260",
+                                percentiles(lat, queries, 1e3, "us"));
+                    }
+                }
+            }
+        }
+        for (int q = 0; q < queries; q++) {
+            long s0 = System.nanoTime();
+            sink += db.search.suggest(q % 2 == 0 ? "ch" : "sp", 10).size();
+            lat[q] = System.nanoTime() - s0;
+        }
+        System.out.printf("  %-33s %s%n", "suggest top-10", percentiles(lat, queries, 1e3, "us"));
+
+        long s0 = System.nanoTime();
+        List<FoodItem> brute = bruteForce(all, "paneer tikka", 25_000, 26_000, 10);
+        System.out.printf("  brute-force scan of every item: %.1f ms/query%n", (System.nanoTime() - s0) / 1e6);
+        List<FoodItem> indexed = new ArrayList<>();
+        for (SearchIndex.Hit h : db.search.searchFood("Paneer TIKKA", 25_000, 26_000, 10)) indexed.add(h.getItem());
+        check(pricesOf(indexed).equals(pricesOf(brute)), "top-10 matches the brute-force scan");
+
+        // incremental updates: replace and remove items, then confirm queries see the changes
+        measure("addFoodItem (replace, reindex)", 2_000, i -> {
+            int idx = (int) ((i * 2654435761L) % items);
+            return fs.addFoodItemToRestaurant(owner[idx], idx % perRestaurant, "Mango Lassi Deluxe", 12.0) ? 1 : 0;
+        });
+        check(db.search.searchFood("mango lassi", 0, 1200, 10).size() == 10, "replaced items are searchable");
+        int removed = 0;
+        for (int idx = 0; idx < items; idx += 997) {
+            if (fs.removeFoodItemFromRestaurant(owner[idx], idx % perRestaurant)) removed++;
+        }
+        boolean stale = false;
+        for (String[] w : workloads) {
+            for (int k = 1; k < w.length; k++) {
+                for (SearchIndex.Hit h : db.search.searchFood(w[k], 0, Long.MAX_VALUE, 200)) {
+                    stale |= fs.findFoodItem(h.getRestaurantId(), h.getItem().getId()) != h.getItem();
+                }
+            }
+        }
+        check(removed > 0 && !stale, "removed and replaced items drop out of results");
+    }
+
+    private static List<FoodItem> bruteForce(FoodItem[] all, String query, long min, long max, int k) {
+        List<String> tokens = SearchIndex.tokenize(query);
+        List<FoodItem> out = new ArrayList<>();
+        for (FoodItem fi : all) {
+            long p = fi.getPricePaise();
+            if (p >= min && p <= max && SearchIndex.tokenize(fi.getName()).containsAll(tokens)) out.add(fi);
+        }
+        out.sort(Comparator.comparingLong(FoodItem::getPricePaise));
+        return out.subList(0, Math.min(k, out.size()));
+    }
+
+    private static List<Long> pricesOf(List<FoodItem> items) {
+        List<Long> prices = new ArrayList<>();
+        for (FoodItem fi : items) prices.add(fi.getPricePaise());
+        return prices;
+    }
+
+    // Dumping every order: the old System.out.println(order) loop against the streaming report
+    // writer, both into /dev/null through System.out-style streams, plus per-order allocation
+    static void report() {
+        int orders = Integer.getInteger("bench.orders", 1_000_000);
+        DataStore db = new DataStore();
+        CustomerService cs = new CustomerService(db);
+        OrderService os = new OrderService(db);
+        FoodItem dosa = new FoodItem(1, "Masala Dosa", 60.0);
+        FoodItem coffee = new FoodItem(2, "Filter Coffee", 25.5);
+        for (int c = 1; c <= 10_000; c++) cs.addCustomer(c, "customer" + c, 9000000000L + c);
+        for (int i = 0; i < orders; i++) {
+            int cid = 1 + i % 10_000;
+            cs.addFoodToCart(cid, dosa, 1 + i % 3);
+            cs.addFoodToCart(cid, coffee, 1);
+            os.placeOrder(cid, "12 MG Road, Bengaluru");
+        }
+
+        PrintStream console = System.out;
+        try (FileOutputStream devNull = new FileOutputStream("/dev/null")) {
+            long best = Long.MAX_VALUE;
+            PrintStream autoflush = new PrintStream(devNull, true, StandardCharsets.UTF_8);
+            for (int round = 0; round < 3; round++) {
+                System.setOut(autoflush);
+                long t0 = System.nanoTime();
+                for (Order o : db.orders.values()) System.out.println(o);
+                best = Math.min(best, System.nanoTime() - t0);
+                System.setOut(console);
+            }
+            System.out.printf("  %-34s %8d ms  (%.0f orders/s)%n", "println(order) loop", best / 1_000_000, orders * 1e9 / best);
+
+            for (ReportFormat format : ReportFormat.values()) {
+                best = Long.MAX_VALUE;
+                for (int round = 0; round < 3; round++) {
+                    long t0 = System.nanoTime();
+                    ReportWriter w = new ReportWriter(new OutputStreamWriter(autoflush, StandardCharsets.UTF_8), false, 1 << 16);
+                    os.writeOrders(w, new OrderReport(format), 0, Integer.MAX_VALUE);
+                    w.close();
+                    best = Math.min(best, System.nanoTime() - t0);
+                }
+                System.out.printf("  %-34s %8d ms  (%.0f orders/s)%n", "ReportWriter " + format, best / 1_000_000, orders * 1e9 / best);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            System.setOut(console);
+        }
+
+        PrintStream nullOut = new PrintStream(OutputStream.nullOutputStream(), false, StandardCharsets.UTF_8);
+        Order[] all = db.orders.values().toArray(new Order[0]);
+        measureAllocation("println(order), per order", 100_000, i -> {
+            nullOut.println(all[i % all.length]);
+            return i;
+        });
+        for (ReportFormat format : ReportFormat.values()) {
+            ReportWriter w = new ReportWriter(Writer.nullWriter(), false, 1 << 16);
+            OrderReport r = new OrderReport(format);
+            measureAllocation("ReportWriter " + format + ", per order", 100_000, i -> {
+                try {
+                    r.write(w, all[i % all.length]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return i;
+            });
+        }
+
+        ReportWriter nullWriter = new ReportWriter(Writer.nullWriter(), false, 1 << 16);
+        OrderReport csv = new OrderReport(ReportFormat.CSV, OrderReport.parseFields("orderId,total,status"));
+        measure("writeOrders page of 100 at offset 0", 1_000, i -> page(os, nullWriter, csv, 0));
+        measure("writeOrders page of 100 at offset " + (orders - 100), 10, i -> page(os, nullWriter, csv, orders - 100));
+    }
+
+    private static long page(OrderService os, ReportWriter w, OrderReport report, int offset) {
+        try {
+            return os.writeOrders(w, report, offset, 100);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Load generator for the HTTP API: bench.clients keep-alive connections (default 10k), each on
+    // its own virtual thread, sending a menu/search/cart/checkout mix for bench.seconds after a
+    // warmup. Starts an in-process server unless -Dbench.port points at a running --http instance
+    // (which must already hold the seeded ids, e.g. from a previous in-process run's data dir).
+    // Every connection needs one descriptor per side in-process: raise ulimit -n above 2x clients.
+    static void httpLoad() {
+        int clients = Integer.getInteger("bench.clients", 10_000);
+        int seconds = Integer.getInteger("bench.seconds", 10);
+        int restaurants = 1_000, itemsPerRestaurant = 20;
+        Integer externalPort = Integer.getInteger("bench.port");
+        // the JDK server closes keep-alive connections beyond this many idle ones (default 200)
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", String.valueOf(clients));
+        }
+        HttpApi api = null;
+        int port;
+        if (externalPort != null) {
+            port = externalPort;
+        } else {
+            DataStore db = new DataStore(true);
+            FoodService fs = new FoodService(db);
+            CustomerService cs = new CustomerService(db);
+            OrderService os = new OrderService(db);
+            String[] dishes = {"Paneer Tikka", "Chicken Biryani", "Masala Dosa", "Veg Momos", "Butter Naan"};
+            for (int r = 1; r <= restaurants; r++) {
+                fs.addRestaurant(r, "Kitchen " + r);
+                for (int f = 1; f <= itemsPerRestaurant; f++) fs.addFoodItemToRestaurant(r, f, dishes[f % dishes.length] + " " + f, 50 + f * 10);
+            }
+            for (int c = 1; c <= clients; c++) cs.addCustomer(c, "customer" + c, 9000000000L + c);
+            try {
+                api = new HttpApi(db, fs, cs, os, 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            api.start();
+            port = api.port();
+            HttpLoadClient probe = new HttpLoadClient("localhost", port);
+            try {
+                check(probe.exchange(HttpLoadClient.get("/restaurants?limit=-1")) == 400
+                        && probe.exchange(HttpLoadClient.get("/search?q=paneer&limit=0")) == 400, "a page limit below 1 is rejected");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                probe.disconnect();
+            }
+        }
+
+        long warmupEnd = System.nanoTime() + 3_000_000_000L;
+        long end = warmupEnd + seconds * 1_000_000_000L;
+        int samplesPerClient = 256;
+        long[][] samples = new long[clients][samplesPerClient];
+        long[] recorded = new long[clients];
+        LongAdder requests = new LongAdder(), failures = new LongAdder(), serverErrors = new LongAdder();
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                int client = c;
+                pool.submit(() -> {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    HttpLoadClient http = new HttpLoadClient("localhost", port);
+                    int customer = client + 1;
+                    while (true) {
+                        long t0 = System.nanoTime();
+                        if (t0 >= end) break;
+                        int dice = rnd.nextInt(100);
+                        int rid = 1 + rnd.nextInt(restaurants);
+                        String request;
+                        if (dice < 70) {
+                            request = HttpLoadClient.get("/restaurants/" + rid + "/menu");
+                        } else if (dice < 85) {
+                            request = HttpLoadClient.get("/search?q=" + (rnd.nextBoolean() ? "paneer" : "momos+" + rnd.nextInt(20)) + "&maxPrice=150&limit=10");
+                        } else if (dice < 95) {
+                            request = HttpLoadClient.post("/customers/" + customer + "/cart",
+                                    "restaurantId=" + rid + "&foodId=" + (1 + rnd.nextInt(itemsPerRestaurant)) + "&quantity=1");
+                        } else {
+                            request = HttpLoadClient.post("/customers/" + customer + "/orders", "address=12+MG+Road");
+                        }
+                        int status;
+                        try {
+                            status = http.exchange(request);
+                        } catch (IOException e) {
+                            failures.increment();
+                            http.disconnect();
+                            continue;
+                        }
+                        long t1 = System.nanoTime();
+                        if (status >= 500) serverErrors.increment();
+                        if (t0 < warmupEnd) continue;
+                        requests.increment();
+                        long n = recorded[client]++;
+                        if (n < samplesPerClient) {
+                            samples[client][(int) n] = t1 - t0;
+                        } else {
+                            long slot = rnd.nextLong(n + 1); // reservoir sampling keeps a uniform sample
+                            if (slot < samplesPerClient) samples[client][(int) slot] = t1 - t0;
+                        }
+                    }
+                    http.disconnect();
+                    return null;
+                });
+            }
+        } finally {
+            if (api != null) api.close();
+        }
+        int count = 0;
+        for (int c = 0; c < clients; c++) count += (int) Math.min(recorded[c], samplesPerClient);
+        long[] all = new long[count];
+        int k = 0;
+        for (int c = 0; c < clients; c++) {
+            int n = (int) Math.min(recorded[c], samplesPerClient);
+            System.arraycopy(samples[c], 0, all, k, n);
+            k += n;
+        }
+        System.out.printf("  %d clients, %d s: %d requests, %.0f req/s, %d connection failures, %d server errors%n",
+                clients, seconds, requests.sum(), requests.sum() / (double) seconds, failures.sum(), serverErrors.sum());
+        System.out.println("  latency " + percentiles(all, count, 1e6, "ms"));
+        check(serverErrors.sum() == 0, "no 5xx responses");
+    }
+
+    // Minimal HTTP/1.1 keep-alive client: one request at a time, Content-Length responses only
+    private static final class HttpLoadClient {
+        private final String host;
+        private final int port;
+        private final byte[] buf = new byte[64 * 1024];
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private int bodyStart, bodyEnd; // of the last response, in buf
+
+        HttpLoadClient(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        static String get(String path) {
+            return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        }
+
+        static String post(String path, String form) {
+            return "POST " + path + " HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/x-www-form-urlencoded\r\n"
+                    + "Content-Length: " + form.length() + "\r\n\r\n" + form;
+        }
+
+        // Sends one request and reads the whole response; returns the status code
+        int exchange(String request) throws IOException {
+            if (socket == null) {
+                socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, port), 30_000);
+                in = socket.getInputStream();
+                out = socket.getOutputStream();
+            }
+            out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            int n = 0, headerEnd;
+            while ((headerEnd = headerEnd(n)) < 0) n = fill(n);
+            int total = headerEnd + contentLength(headerEnd);
+            while (n < total) n = fill(n);
+            bodyStart = headerEnd;
+            bodyEnd = total;
+            return (buf[9] - '0') * 100 + (buf[10] - '0') * 10 + (buf[11] - '0');
+        }
+
+        String body() {
+            return new String(buf, bodyStart, bodyEnd - bodyStart, StandardCharsets.UTF_8);
+        }
+
+        void disconnect() {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException ignored) {
+                // already broken
+            }
+            socket = null;
+        }
+
+        private int fill(int n) throws IOException {
+            if (n == buf.length) throw new IOException("response larger than " + buf.length + " bytes");
+            int r = in.read(buf, n, buf.length - n);
+            if (r < 0) throw new EOFException("connection closed");
+            return n + r;
+        }
+
+        // Index just past the blank line ending the headers, or -1
+        private int headerEnd(int n) {
+            for (int i = 3; i < n; i++) {
+                if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r') return i + 1;
+            }
+            return -1;
+        }
+
+        private int contentLength(int headerEnd) {
+            String headers = new String(buf, 0, headerEnd, StandardCharsets.ISO_8859_1).toLowerCase(Locale.ROOT);
+            int at = headers.indexOf("content-length:");
+            if (at < 0) return 0;
+            int eol = headers.indexOf('\r', at);
+            return Integer.parseInt(headers.substring(at + "content-length:".length(), eol).trim());
+        }
+    }
+
+    // 99:1 menu reads to edits over 10k restaurants (20% of them get 80% of the traffic), rendering
+    // every read from scratch vs through MenuCache; cache sizes below and above the working set
+    static void menuCache() {
+        int restaurants = 10_000, items = 30, threads = 4, opsPerThread = 500_000;
+        DataStore db = new DataStore(true);
+        FoodService fs = new FoodService(db);
+        for (int r = 1; r <= restaurants; r++) {
+            fs.addRestaurant(r, "Kitchen " + r);
+            for (int f = 1; f <= items; f++) fs.addFoodItemToRestaurant(r, f, "Dish number " + f, 40 + f * 5);
+        }
+        Restaurant[] all = db.restaurants.values().toArray(new Restaurant[0]);
+
+        System.out.printf("  %-28s %10s %12s  %s%n", "", "ops/s", "read p99", "cache");
+        for (int cacheSize : new int[]{0, 1_000, 2_500, 10_000}) {
+            MenuCache cache = cacheSize == 0 ? null : new MenuCache(cacheSize);
+            long[][] readLatency = new long[threads][opsPerThread];
+            int[] reads = new int[threads];
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                tasks.add(() -> {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    ReportWriter w = new ReportWriter(Writer.nullWriter(), false, 1 << 14);
+                    MenuReport text = new MenuReport(ReportFormat.TEXT);
+                    for (int i = 0; i < opsPerThread; i++) {
+                        int idx = rnd.nextInt(5) < 4 ? rnd.nextInt(restaurants / 5) : rnd.nextInt(restaurants);
+                        Restaurant r = all[idx];
+                        if (rnd.nextInt(100) == 0) { // edit: a price change or a replaced dish
+                            if (rnd.nextBoolean()) {
+                                fs.setPrice(r.getId(), r.getMenu().iterator().next().getId(), 40 + rnd.nextInt(500));
+                            } else {
+                                int f = 1 + rnd.nextInt(items);
+                                fs.addFoodItemToRestaurant(r.getId(), f, "Dish number " + f, 40 + rnd.nextInt(500));
+                            }
+                            continue;
+                        }
+                        long t0 = System.nanoTime();
+                        if (cache == null) text.write(w, r);
+                        else w.append(cache.get(r, MenuCache.Form.TEXT));
+                        readLatency[id][reads[id]++] = System.nanoTime() - t0;
+                    }
+                    w.flush();
+                    return null;
+                });
+            }
+            long elapsed = awaitAll(Executors.newFixedThreadPool(threads), tasks);
+            int total = 0;
+            for (int r : reads) total += r;
+            long[] merged = new long[total];
+            int k = 0;
+            for (int t = 0; t < threads; t++) {
+                System.arraycopy(readLatency[t], 0, merged, k, reads[t]);
+                k += reads[t];
+            }
+            System.out.printf("  %-28s %10.0f %10.1fus  %s%n", cache == null ? "no cache (render each read)" : "MenuCache(" + cacheSize + ")",
+                    (double) threads * opsPerThread * 1e9 / elapsed, percentile(merged, total, 99) / 1e3,
+                    cache == null ? "" : cache.stats());
+        }
+
+        // read path alone, one thread, no edits
+        ReportWriter sinkWriter = new ReportWriter(Writer.nullWriter(), false, 1 << 14);
+        MenuReport text = new MenuReport(ReportFormat.TEXT);
+        MenuCache warm = new MenuCache(restaurants);
+        measure("render menu (30 items)", 1_000_000, i -> {
+            try {
+                text.write(sinkWriter, all[i % restaurants]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return i;
+        });
+        measure("MenuCache hit (30 items)", 1_000_000, i -> warm.get(all[i % restaurants], MenuCache.Form.TEXT).length());
+
+        // a read after an edit must never see the old menu
+        MenuCache cache = new MenuCache(100);
+        Restaurant r = all[0];
+        FoodItem first = r.getMenu().iterator().next();
+        String before = cache.get(r, MenuCache.Form.TEXT);
+        check(cache.get(r, MenuCache.Form.TEXT) == before, "repeat read is a hit");
+        fs.setPrice(r.getId(), first.getId(), first.getPrice() + 1);
+        check(cache.get(r, MenuCache.Form.TEXT).contains("Rs. " + Cart.formatRupees(first.getPricePaise())), "price change invalidates");
+        fs.removeFoodItemFromRestaurant(r.getId(), first.getId());
+        check(!cache.get(r, MenuCache.Form.JSON).contains("\"foodId\":" + first.getId() + ","), "removed item drops out of the JSON form");
+        for (Restaurant x : all) cache.get(x, MenuCache.Form.TEXT);
+        check(cache.size() <= 100, "cache stays within its bound");
+    }
+
+    // Heap retained per order while it is a live Order object vs once it is a row in the columnar
+    // archive, history lookups served from each, and a snapshot + journal round trip of the archive
+    static void orderArchive() {
+        int orders = Integer.getInteger("bench.orders", 1_000_000);
+        int customers = Math.max(1, orders / 20), riders = 500;
+        DataStore db = new DataStore();
+        FoodService fs = new FoodService(db);
+        CustomerService cs = new CustomerService(db);
+        OrderService os = new OrderService(db);
+        for (int r = 1; r <= 100; r++) {
+            fs.addRestaurant(r, "Kitchen " + r);
+            for (int f = 1; f <= 20; f++) fs.addFoodItemToRestaurant(r, r * 100 + f, "Dish " + f, 40 + f * 5);
+        }
+        for (int c = 1; c <= customers; c++) cs.addCustomer(c, "customer" + c, 9000000000L + c);
+        for (int d = 1; d <= riders; d++) os.addDeliveryPerson(d, "rider" + d, 8000000000L + d);
+
+        long base = retainedHeap();
+        for (int i = 0; i < orders; i++) {
+            int cid = 1 + i % customers, r = 1 + i % 100;
+            for (int l = 0; l <= i % 3; l++) cs.addFoodToCart(cid, fs.findFoodItem(r, r * 100 + 1 + (i + l * 7) % 20), 1 + l);
+            int oid = os.placeOrder(cid, "House " + cid + ", Street " + cid % 997);
+            os.assignDeliveryPersonToOrder(oid, 1 + i % riders);
+        }
+        long live = retainedHeap();
+        System.out.printf("  %-34s %8.1f B/order (%d orders, 1-3 lines each)%n", "live Order objects",
+                (double) (live - base) / orders, orders);
+
+        IntToLongFunction page = i -> {
+            long found = 0;
+            for (Order o : os.findOrdersByCustomer(1 + (i * 7919) % customers, 0, 20)) found += o.getTotalPaise();
+            return found;
+        };
+        measure("history page(0,20), live", 100_000, page);
+
+        // sample rows rendered before archiving, compared after (status aside)
+        OrderReport sameFields = new OrderReport(ReportFormat.JSONL, EnumSet.complementOf(EnumSet.of(OrderReport.Field.STATUS)));
+        int[] sample = new int[1000];
+        String[] before = new String[sample.length];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = 1 + (int) ((long) i * orders / sample.length);
+            before[i] = row(sameFields, db.getOrder(sample[i]));
+        }
+
+        OrderStatus[] path = {OrderStatus.ACCEPTED, OrderStatus.PREPARING, OrderStatus.PICKED_UP, OrderStatus.DELIVERED};
+        for (int oid = 1; oid <= orders; oid++) {
+            if (oid % 10 == 0) {
+                os.updateOrderStatus(oid, OrderStatus.CANCELLED);
+                continue;
+            }
+            for (OrderStatus next : path) os.updateOrderStatus(oid, next);
+        }
+        long archived = retainedHeap();
+        System.out.printf("  %-34s %8.1f B/order (live map now %d, archive %d)%n", "archived rows",
+                (double) (archived - base) / orders, db.orders.size(), db.archive.size());
+        measure("history page(0,20), archived", 100_000, page);
+        measure("getOrder, archived", 1_000_000, i -> db.getOrder(1 + (int) ((i * 7919L) % orders)).getTotalPaise());
+
+        boolean same = true;
+        for (int i = 0; i < sample.length; i++) same &= before[i].equals(row(sameFields, db.getOrder(sample[i])));
+        check(same, "archived orders read back with the same items, totals, rider and address");
+        check(db.orders.isEmpty() && db.archive.size() == orders, "every completed order left the live map");
+        check(os.countOrdersForCustomer(1) == orders / customers, "history still counts archived orders");
+        check(db.getOrder(10).getStatus() == OrderStatus.CANCELLED && db.getOrder(1).getStatus() == OrderStatus.DELIVERED,
+                "final status kept");
+        check(!os.updateOrderStatus(1, OrderStatus.CANCELLED), "archived order cannot change status");
+
+        // snapshot of archived orders, then more completions replayed from the journal
+        Path dir = tempDir("archive-bench");
+        try {
+            DataStore small = new DataStore();
+            Persistence p = Persistence.open(dir, small);
+            cs = new CustomerService(small);
+            OrderService sos = new OrderService(small);
+            new FoodService(small).addRestaurant(1, "Dosa Hut");
+            new FoodService(small).addFoodItemToRestaurant(1, 1, "Dosa", 60.0);
+            FoodItem dosa = small.foodItems.get(1, 1);
+            cs.addCustomer(1, "asha", 9000000001L);
+            for (int i = 0; i < 100; i++) {
+                cs.addFoodToCart(1, dosa, 1 + i % 2);
+                sos.placeOrder(1, "12 MG Road");
+            }
+            for (int oid = 1; oid <= 50; oid++) sos.updateOrderStatus(oid, OrderStatus.CANCELLED);
+            p.checkpoint();
+            for (int oid = 51; oid <= 60; oid++) sos.updateOrderStatus(oid, OrderStatus.CANCELLED);
+            long placedAt = small.getOrder(55).getPlacedAtMillis(), completedAt = small.getOrder(55).getCompletedAtMillis();
+            p.close();
+            DataStore back = new DataStore();
+            p = Persistence.open(dir, back);
+            p.close();
+            check(back.orderCount() == 100 && back.archive.size() == 60 && back.orders.size() == 40,
+                    "snapshot and journal restore both archived and live orders");
+            check(back.getOrder(55).getPlacedAtMillis() == placedAt && back.getOrder(55).getCompletedAtMillis() == completedAt,
+                    "placement and completion times survive recovery");
+            check(new OrderService(back).findOrdersByCustomer(1, 0, 100).size() == 100, "history spans live and archived orders");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    private static String row(OrderReport report, Order o) {
+        StringWriter sw = new StringWriter();
+        try (ReportWriter w = new ReportWriter(sw)) {
+            report.write(w, o);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sw.toString();
+    }
+
+    // Admin analytics over a synthetic month of history: a full recompute, sequential and split
+    // over fork-join segments, vs reading the counters LiveAnalytics keeps as orders come in.
+    // -Dbench.orders=50000000 needs roughly -Xmx8g.
+    static void analytics() {
+        int orders = Integer.getInteger("bench.orders", 10_000_000);
+        int restaurants = 1000, itemsPerRestaurant = 20, riders = 5000, customers = 100_000, live = 20_000;
+        Dataset ds = new Dataset(restaurants, itemsPerRestaurant, customers, riders, 0, 42, true);
+        DataStore db = ds.db;
+        FoodService fs = ds.fs;
+        CustomerService cs = ds.cs;
+        OrderService os = ds.os;
+        String[] addresses = ds.addresses;
+        FoodItem[][] menus = ds.menus;
+
+        // completed history goes in through addOrder, as snapshot recovery does, which also feeds the live counters;
+        // restaurants are skewed (a few are busy) and placements peak at lunch and dinner
+        SplittableRandom rnd = new SplittableRandom(42);
+        long monthAgo = System.currentTimeMillis() - 30 * Analytics.DAY_MILLIS;
+        long firstDay = monthAgo - Math.floorMod(monthAgo + Analytics.ZONE_OFFSET_MILLIS, Analytics.DAY_MILLIS);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < orders; i++) {
+            int cid = 1 + rnd.nextInt(customers);
+            Order o = syntheticOrder(db, rnd, db.customers.get(cid), addresses[cid], firstDay, menus, riders);
+            synchronized (db.customerLock(cid)) {
+                db.addOrder(o);
+            }
+        }
+        System.out.printf("  %d archived orders loaded in %d ms%n", orders, (System.nanoTime() - t0) / 1_000_000);
+        for (int i = 0; i < live; i++) {
+            int cid = 1 + i % customers, r = 1 + i % restaurants;
+            cs.addFoodToCart(cid, fs.findFoodItem(r, 1 + i % itemsPerRestaurant), 1 + i % 2);
+            int oid = os.placeOrder(cid, addresses[cid]);
+            if (i % 2 == 0) os.updateOrderStatus(oid, OrderStatus.ACCEPTED);
+        }
+
+        int workers = ForkJoinPool.commonPool().getParallelism();
+        String sequential = timeScan("recompute, sequential", orders + live, () -> Analytics.scan(db, false, 10));
+        String parallel = timeScan("recompute, fork-join x" + workers, orders + live, () -> Analytics.scan(db, true, 10));
+        String incremental = timeScan("live counters", orders + live, () -> db.analytics.summary(db, 10));
+        check(sequential.equals(parallel), "parallel recompute matches sequential");
+        check(sequential.equals(incremental), "live counters match a full recompute");
+
+        // what the live counters add to each order: one placement and one completion
+        LiveAnalytics counters = new LiveAnalytics();
+        Order sample = db.getOrder(1);
+        measure("LiveAnalytics placed + completed", 1_000_000, i -> {
+            counters.placed(sample);
+            counters.completed(sample);
+            return i;
+        });
+        measureAllocation("LiveAnalytics placed + completed", 100_000, i -> {
+            counters.placed(sample);
+            counters.completed(sample);
+            return i;
+        });
+        System.out.println(sequential.lines().limit(2).map(l -> "  " + l).reduce((a, b) -> a + "\n" + b).orElse(""));
+    }
+
+    private static final int[] PEAK_HOURS = {12, 13, 19, 20, 21};
+
+    private static Order syntheticOrder(DataStore db, SplittableRandom rnd, Customer c, String address, long firstDay,
+                                        FoodItem[][] menus, int riders) {
+        Order o = new Order(db.allocateOrderIds(1), c);
+        FoodItem[] menu = menus[1 + (int) (Math.pow(rnd.nextDouble(), 3) * (menus.length - 1))];
+        for (int l = 0, lines = 1 + rnd.nextInt(3); l < lines; l++) {
+            o.addItem(menu[1 + rnd.nextInt(menu.length - 1)], 1 + rnd.nextInt(2));
+        }
+        o.setDeliveryAddress(address);
+        int hour = rnd.nextInt(3) > 0 ? PEAK_HOURS[rnd.nextInt(PEAK_HOURS.length)] : rnd.nextInt(24);
+        long placed = firstDay + rnd.nextInt(30) * Analytics.DAY_MILLIS + hour * Analytics.HOUR_MILLIS + rnd.nextLong(Analytics.HOUR_MILLIS);
+        o.setPlacedAtMillis(placed);
+        if (rnd.nextInt(20) == 0) {
+            o.setStatus(OrderStatus.CANCELLED);
+            o.setCompletedAtMillis(placed + 5 * 60_000);
+        } else {
+            o.setDeliveryPerson(db.deliveryPeople.get(1 + rnd.nextInt(riders)));
+            o.setStatus(OrderStatus.DELIVERED);
+            o.setCompletedAtMillis(placed + (20 + rnd.nextInt(40)) * 60_000L);
+        }
+        return o;
+    }
+
+    // Best of five after two warmups; returns the rendered summary so the modes can be compared
+    private static String timeScan(String name, int orders, java.util.function.Supplier<AnalyticsSummary> scan) {
+        AnalyticsSummary last = null;
+        for (int w = 0; w < 2; w++) last = scan.get();
+        long best = Long.MAX_VALUE;
+        for (int m = 0; m < 5; m++) {
+            long t0 = System.nanoTime();
+            last = scan.get();
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        System.out.printf("  %-32s %10.2f ms  (%.0f M orders/s)%n", name, best / 1e6, orders * 1e3 / best);
+        StringWriter sw = new StringWriter();
+        try (ReportWriter w = new ReportWriter(sw)) {
+            last.write(w, 10);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sw.toString();
+    }
+
+    // Closed-loop checkout from bench.clients virtual threads (default 1024), each with its own
+    // customer, against a durable journal: placeOrder called directly (the journal's own group
+    // commit) vs CheckoutPipeline with maxBatch 1..1024
+    static void checkoutPipeline() {
+        int clients = Integer.getInteger("bench.clients", 1024);
+        long seconds = Long.getLong("bench.seconds", 3);
+        System.out.printf("  %-24s %10s %10s %10s %10s%n", "", "orders/s", "p50", "p99", "avg batch");
+        checkoutRound(clients, seconds, 0);
+        for (int batch = 1; batch <= 1024; batch *= 2) checkoutRound(clients, seconds, batch);
+        checkoutAfterJournalFailure();
+    }
+
+    // A failed journal commit stops the pipeline, but an order it already placed is never reported as failed
+    private static void checkoutAfterJournalFailure() {
+        Path dir = tempDir("checkout-failure");
+        try {
+            DataStore db = new DataStore(true);
+            Persistence.open(dir, db);
+            FoodService fs = new FoodService(db);
+            CustomerService cs = new CustomerService(db);
+            fs.addRestaurant(1, "Dosa Hut");
+            fs.addFoodItemToRestaurant(1, 1, "Masala Dosa", 60.0);
+            for (int c = 1; c <= 6; c++) {
+                cs.addCustomer(c, "customer" + c, 9000000000L + c);
+                cs.addFoodToCart(c, fs.findFoodItem(1, 1), 1);
+            }
+            try (CheckoutPipeline pipeline = new CheckoutPipeline(db, 8)) {
+                // an address too long to log fails its own checkout, and only that one. The assembler is
+                // held on customer 6's lock meanwhile, so the three queue up and make one batch.
+                CompletableFuture<Integer> first, tooLong, last;
+                synchronized (db.customerLock(6)) {
+                    pipeline.submit(6, "Street 6");
+                    LockSupport.parkNanos(100_000_000); // until the assembler has taken it
+                    first = pipeline.submit(3, "Street 3", "key-3");
+                    tooLong = pipeline.submit(4, "x".repeat(70_000));
+                    last = pipeline.submit(5, "Street 5");
+                }
+                boolean failed = false;
+                try {
+                    tooLong.join();
+                } catch (CompletionException e) {
+                    failed = e.getCause() instanceof IllegalArgumentException;
+                }
+                int a = first.join(), b = last.join();
+                check(failed && a > 0 && b > 0 && db.getOrder(a) != null && db.getOrder(b) != null
+                                && !db.customers.get(4).getCart().isEmpty() && pipeline.submit(3, "Street 3", "key-3").join() == a,
+                        "a checkout that throws fails alone, and the orders batched with it are placed");
+            }
+            db.journal.close(); // every later commit fails
+            try (CheckoutPipeline pipeline = new CheckoutPipeline(db, 8)) {
+                int placed = pipeline.submit(1, "Street 1").join();
+                boolean refused = false;
+                try {
+                    pipeline.submit(2, "Street 2").join();
+                } catch (CompletionException e) {
+                    refused = true;
+                }
+                check(placed > 0 && db.orders.get(placed) != null && pipeline.durabilityFailure() != null,
+                        "an order placed before a failed journal commit completes with its id");
+                check(refused && db.orderCount() == 4 && !db.customers.get(2).getCart().isEmpty(),
+                        "after a failed journal commit the pipeline refuses checkouts without placing them");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    private static void checkoutRound(int clients, long seconds, int maxBatch) {
+        Path dir = tempDir("checkout-bench");
+        try {
+            DataStore db = new DataStore(true);
+            Persistence p = Persistence.open(dir, db);
+            FoodService fs = new FoodService(db);
+            CustomerService cs = new CustomerService(db);
+            OrderService os = new OrderService(db);
+            fs.addRestaurant(1, "Dosa Hut");
+            fs.addFoodItemToRestaurant(1, 1, "Masala Dosa", 60.0);
+            FoodItem dosa = fs.findFoodItem(1, 1);
+            for (int c = 1; c <= clients; c++) cs.addCustomer(c, "customer" + c, 9000000000L + c);
+            CheckoutPipeline pipeline = maxBatch == 0 ? null : new CheckoutPipeline(db, maxBatch);
+
+            int cap = 1 << 13;
+            long[][] latency = new long[clients][cap];
+            int[] done = new int[clients];
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int c = 1; c <= clients; c++) {
+                int cid = c;
+                Customer customer = db.customers.get(cid);
+                tasks.add(() -> {
+                    int n = 0;
+                    while (System.nanoTime() < deadline) {
+                        // the cart is filled directly, unjournaled, so only checkout's own durability is measured
+                        synchronized (db.customerLock(cid)) {
+                            customer.getCart().addItem(dosa, 1);
+                        }
+                        long t0 = System.nanoTime();
+                        int oid = pipeline == null ? os.placeOrder(cid, "Street " + cid) : pipeline.submit(cid, "Street " + cid).join();
+                        if (oid < 0) throw new IllegalStateException("checkout rejected for customer " + cid);
+                        if (n < cap) latency[cid - 1][n] = System.nanoTime() - t0;
+                        n++;
+                    }
+                    done[cid - 1] = n;
+                    return null;
+                });
+            }
+            long elapsed = awaitAll(Executors.newVirtualThreadPerTaskExecutor(), tasks);
+            long total = 0;
+            int recorded = 0;
+            for (int n : done) {
+                total += n;
+                recorded += Math.min(n, cap);
+            }
+            long[] merged = new long[recorded];
+            for (int c = 0, k = 0; c < clients; c++) {
+                int n = Math.min(done[c], cap);
+                System.arraycopy(latency[c], 0, merged, k, n);
+                k += n;
+            }
+            String name = pipeline == null ? "placeOrder (direct)" : "pipeline, maxBatch " + maxBatch;
+            System.out.printf("  %-24s %10.0f %8.2fms %8.2fms %10s%n", name, total * 1e9 / elapsed,
+                    percentile(merged, recorded, 50) / 1e6, percentile(merged, recorded, 99) / 1e6,
+                    pipeline == null ? "-" : String.format("%.1f", pipeline.averageBatch()));
+            if (pipeline != null) pipeline.close();
+            check(db.orderCount() == total, name + ": every acknowledged order is in the store");
+            p.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // The calls behind the CLI screens, on generated datasets swept over bench.scales (default "1,10":
+    // 1k restaurants x 20 items, 20k customers, 1k riders and 100k orders, then ten times that).
+    // -Dbench.scales=1,10,100 -Xmx16g reaches 100k restaurants, 2M items, 2M customers and 10M orders.
+    static void hotPaths() {
+        for (String scale : System.getProperty("bench.scales", "1,10").split(",")) {
+            Dataset ds = Dataset.fromProperties(Integer.parseInt(scale.trim()), true);
+            params(ds.toString());
+            System.out.printf("  generated in %d ms%n", ds.buildMillis);
+
+            // keys are drawn up front so the random number generator stays out of the measurement
+            int mask = (1 << 16) - 1;
+            SplittableRandom rnd = new SplittableRandom(7);
+            int[] restaurants = new int[mask + 1], foods = new int[mask + 1], customers = new int[mask + 1];
+            int[] orders = new int[mask + 1], riders = new int[mask + 1];
+            for (int i = 0; i <= mask; i++) {
+                restaurants[i] = ds.restaurant(rnd);
+                foods[i] = 1 + rnd.nextInt(ds.itemsPerRestaurant);
+                customers[i] = 1 + rnd.nextInt(ds.customers);
+                orders[i] = 1 + rnd.nextInt(ds.orders);
+                riders[i] = 1 + rnd.nextInt(ds.riders);
+            }
+
+            measure("FoodService.findFoodItem", 1_000_000,
+                    i -> ds.fs.findFoodItem(restaurants[i & mask], foods[i & mask]).getId());
+
+            // a fresh cart every 4 adds, so new lines and repeats of an existing line are both covered
+            Cart[] cart = {new Cart()};
+            measure("Cart.addItem + getTotalCost", 1_000_000, i -> {
+                if ((i & 3) == 0) cart[0] = new Cart();
+                cart[0].addItem(ds.menus[restaurants[i >> 2 & mask]][foods[i & mask]], 1);
+                return (long) cart[0].getTotalCost();
+            });
+
+            // the cart is filled directly, so only checkout itself is timed
+            measure("OrderService.placeOrder", 20_000, i -> {
+                int cid = customers[i & mask];
+                synchronized (ds.db.customerLock(cid)) {
+                    ds.db.customers.get(cid).getCart().addItem(ds.menus[restaurants[i & mask]][foods[i & mask]], 1);
+                }
+                return ds.os.placeOrder(cid, ds.addresses[cid]);
+            });
+
+            measure("OrderService.assignDeliveryPersonToOrder", 100_000, i -> {
+                if (!ds.os.assignDeliveryPersonToOrder(orders[i & mask], riders[(i + 1) & mask])) {
+                    throw new IllegalStateException("order " + orders[i & mask] + " could not be assigned");
+                }
+                return i;
+            });
+
+            long[] bytes = new long[1];
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override public void write(int b) { bytes[0]++; }
+                @Override public void write(byte[] b, int off, int len) { bytes[0] += len; }
+            }));
+            try {
+                measure("OrderService.printOrdersForCustomer", 5_000, i -> {
+                    ds.os.printOrdersForCustomer(customers[i & mask]);
+                    return bytes[0];
+                });
+            } finally {
+                System.setOut(console);
+            }
+            check(ds.db.orderCount() > ds.orders && bytes[0] > 0, "every call did its work");
+        }
+    }
+
+    // What timing a service call costs: the plain services vs the Metered* ones on the same data,
+    // plus the histogram's accuracy and both exporters
+    static void metrics() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 1_000_000; v++) h.record(v * 1000); // 1 us .. 1 s, uniform
+        LatencyHistogram.Distribution d = h.snapshot();
+        boolean accurate = true;
+        for (double p : new double[]{50, 90, 99, 99.9, 100}) {
+            double exact = p * 10_000_000, reported = d.valueAt(p);
+            accurate &= reported >= exact && reported <= exact * 1.035;
+        }
+        check(d.getCount() == 1_000_000 && accurate, "percentiles within 3.5% of the exact values");
+
+        Dataset ds = new Dataset(1_000, 20, 20_000, 1_000, 100_000, 42, true);
+        Metrics metrics = new Metrics(ds.db);
+        FoodService meteredFood = new MeteredFoodService(ds.db, metrics);
+        CustomerService meteredCustomers = new MeteredCustomerService(ds.db, metrics);
+        OrderService meteredOrders = new MeteredOrderService(ds.db, metrics);
+        int mask = (1 << 16) - 1;
+        SplittableRandom rnd = new SplittableRandom(7);
+        int[] restaurants = new int[mask + 1], foods = new int[mask + 1], customers = new int[mask + 1];
+        int[] orders = new int[mask + 1], riders = new int[mask + 1];
+        for (int i = 0; i <= mask; i++) {
+            restaurants[i] = ds.restaurant(rnd);
+            foods[i] = 1 + rnd.nextInt(ds.itemsPerRestaurant);
+            customers[i] = 1 + rnd.nextInt(ds.customers);
+            orders[i] = 1 + rnd.nextInt(ds.orders);
+            riders[i] = 1 + rnd.nextInt(ds.riders);
+        }
+
+        OperationTimer every = new OperationTimer("every", "every call timed", 1);
+        OperationTimer sampled = new OperationTimer("sampled", "1 in 8 timed", 8);
+        measure("record, every call timed", 10_000_000, i -> {
+            every.record(every.start());
+            return i;
+        });
+        double record = measure("record, 1 in 8 timed", 10_000_000, i -> {
+            sampled.record(sampled.start());
+            return i;
+        });
+        double plainFind = measure("findFoodItem, plain", 1_000_000,
+                i -> ds.fs.findFoodItem(restaurants[i & mask], foods[i & mask]).getId());
+        double findBytes = measureAllocation("findFoodItem, plain", 1_000_000,
+                i -> ds.fs.findFoodItem(restaurants[i & mask], foods[i & mask]).getId());
+        check(findBytes < 1, "findFoodItem allocates nothing (was a boxed Long key per lookup)");
+        double meteredFind = measure("findFoodItem, metered", 1_000_000,
+                i -> meteredFood.findFoodItem(restaurants[i & mask], foods[i & mask]).getId());
+        // one restaurant's dishes only, so carts stop growing after their first 20 lines
+        double plainCart = measure("addFoodToCart, plain", 1_000_000, i -> {
+            ds.cs.addFoodToCart(customers[i & mask], ds.menus[1][foods[i & mask]], 1);
+            return i;
+        });
+        double meteredCart = measure("addFoodToCart, metered", 1_000_000, i -> {
+            meteredCustomers.addFoodToCart(customers[i & mask], ds.menus[1][foods[i & mask]], 1);
+            return i;
+        });
+        // every customer's cart is non-empty by now, so each call places an order
+        double plainPlace = measure("placeOrder, plain", 10_000, i -> {
+            int cid = customers[i & mask];
+            ds.cs.addFoodToCart(cid, ds.menus[1][1], 1);
+            return ds.os.placeOrder(cid, ds.addresses[cid]);
+        });
+        double meteredPlace = measure("placeOrder, metered", 10_000, i -> {
+            int cid = customers[i & mask];
+            ds.cs.addFoodToCart(cid, ds.menus[1][1], 1);
+            return meteredOrders.placeOrder(cid, ds.addresses[cid]);
+        });
+        double plainAssign = measure("assignDeliveryPersonToOrder, plain", 100_000,
+                i -> ds.os.assignDeliveryPersonToOrder(orders[i & mask], riders[(i + 1) & mask]) ? 1 : 0);
+        double meteredAssign = measure("assignDeliveryPersonToOrder, metered", 100_000,
+                i -> meteredOrders.assignDeliveryPersonToOrder(orders[i & mask], riders[(i + 1) & mask]) ? 1 : 0);
+        System.out.printf("  overhead per call: findFoodItem %.1f ns, addFoodToCart %.1f ns, placeOrder %.1f ns, assign %.1f ns%n",
+                meteredFind - plainFind, meteredCart - plainCart, meteredPlace - plainPlace, meteredAssign - plainAssign);
+        // the whole-call differences above are reported only: they move by more than the budget between
+        // runs. The budget is checked on each hot path's own timer, best of five rounds.
+        Metrics probe = new Metrics(ds.db); // a spare set, so these calls stay out of the table below
+        double worst = 0;
+        for (OperationTimer t : List.of(probe.findFoodItem, probe.addFoodToCart, probe.placeOrder,
+                probe.assignDeliveryPerson, probe.updateOrderStatus, probe.findOrdersByCustomer)) {
+            worst = Math.max(worst, measure("record, " + t.name, 10_000_000, i -> {
+                t.record(t.start());
+                return i;
+            }));
+        }
+        check(record < 50 && worst < 50, "a sampled timer, and the timer of every hot call, costs under 50 ns per call");
+
+        // checkouts through the pipeline, as the HTTP API places them, land in the same timer
+        long placed = metrics.placeOrder.calls.sum(), placeFailures = metrics.placeOrder.failures.sum();
+        try (CheckoutPipeline pipeline = new CheckoutPipeline(ds.db, 8, metrics.placeOrder)) {
+            int cid = customers[0];
+            ds.cs.addFoodToCart(cid, ds.menus[1][1], 1);
+            boolean ok = pipeline.submit(cid, ds.addresses[cid]).join() > 0;
+            ok &= pipeline.submit(cid, ds.addresses[cid]).join() == -1; // the cart is empty now
+            check(ok && metrics.placeOrder.calls.sum() == placed + 2 && metrics.placeOrder.failures.sum() == placeFailures + 1,
+                    "pipeline checkouts are timed into place_order, a refused one as failed");
+        }
+
+        StringWriter text = new StringWriter();
+        try (ReportWriter w = new ReportWriter(text)) {
+            metrics.write(w, MetricsFormat.TEXT);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.print(text.toString().lines().map(l -> l.isEmpty() ? "\n" : "  " + l + "\n").reduce("", String::concat));
+
+        Path dir = tempDir("metrics-bench");
+        try (HttpMetricsExporter http = new HttpMetricsExporter(metrics, 0)) {
+            FileMetricsExporter file = new FileMetricsExporter(metrics, dir.resolve("onlinefood.prom"), 60_000);
+            file.close();
+            String prom = Files.readString(dir.resolve("onlinefood.prom"));
+            String scraped;
+            try (InputStream in = java.net.URI.create("http://localhost:" + http.port() + "/metrics").toURL().openStream()) {
+                scraped = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            long finds = metrics.findFoodItem.calls.sum();
+            check(prom.contains("onlinefood_find_food_item_seconds_count " + finds)
+                    && scraped.contains("onlinefood_find_food_item_seconds_count " + finds)
+                    && scraped.contains("onlinefood_restaurants 1000"), "file and HTTP exporters publish the same counts");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // Flash sale: many buyers after one item. First the bare counter under contention (a lock,
+    // one CAS word, the striped Stock), then buyers through the services, checking that exactly
+    // the stocked portions sell, that stock is never seen below zero, and that expired holds return.
+    static void stock() {
+        int buyers = 10_000, takesPerBuyer = 100;
+        long portions = (long) buyers * takesPerBuyer / 2; // half the attempts sell out
+        Object lock = new Object();
+        long[] locked = {portions};
+        AtomicLong single = new AtomicLong(portions);
+        Stock striped = new Stock(1, 1);
+        striped.reset(portions);
+        Map<String, IntToLongFunction> counters = new LinkedHashMap<>();
+        counters.put("synchronized", q -> {
+            synchronized (lock) {
+                if (locked[0] < q) return 0;
+                locked[0] -= q;
+                return 1;
+            }
+        });
+        counters.put("AtomicLong CAS", q -> {
+            for (long v = single.get(); v >= q; v = single.get()) {
+                if (single.compareAndSet(v, v - q)) return 1;
+            }
+            return 0;
+        });
+        counters.put("striped Stock", q -> striped.take(q, false) ? 1 : 0);
+        for (Map.Entry<String, IntToLongFunction> e : counters.entrySet()) {
+            LongAdder sold = new LongAdder();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int b = 0; b < buyers; b++) {
+                tasks.add(() -> {
+                    long n = 0;
+                    for (int i = 0; i < takesPerBuyer; i++) {
+                        n += e.getValue().applyAsLong(1);
+                        if ((i & 15) == 15) Thread.yield(); // let other buyers in between takes
+                    }
+                    sold.add(n);
+                    return null;
+                });
+            }
+            long elapsed = awaitAll(Executors.newVirtualThreadPerTaskExecutor(), tasks);
+            long attempts = (long) buyers * takesPerBuyer;
+            Result r = result("stock take, " + e.getKey());
+            r.nsPerOp = (double) elapsed / attempts;
+            System.out.printf("  %-16s %d buyers, %d takes in %d ms (%.1f ns/take), sold %d%n",
+                    e.getKey(), buyers, attempts, elapsed / 1_000_000, r.nsPerOp, sold.sum());
+            check(sold.sum() == portions, e.getKey() + " sells exactly " + portions + " portions");
+        }
+        check(locked[0] == 0 && single.get() == 0 && striped.available() == 0, "every counter ends at zero");
+
+        DataStore db = new DataStore(true);
+        FoodService fs = new FoodService(db);
+        CustomerService cs = new CustomerService(db);
+        OrderService os = new OrderService(db);
+        fs.addRestaurant(1, "Flash Kitchen");
+        fs.addFoodItemToRestaurant(1, 1, "Limited Biryani", 199.0);
+        fs.addFoodItemToRestaurant(1, 2, "Raita", 30.0);
+        for (int c = 1; c <= buyers; c++) cs.addCustomer(c, "buyer" + c, 9000000000L + c);
+        int initial = buyers * 2;
+        fs.setStock(1, 1, initial);
+        FoodItem hot = fs.findFoodItem(1, 1), side = fs.findFoodItem(1, 2);
+        Stock stock = hot.getStock();
+
+        // a sampler reads the level throughout; no reading may be negative
+        AtomicLong lowest = new AtomicLong(Long.MAX_VALUE);
+        AtomicInteger samples = new AtomicInteger();
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                long v = stock.available();
+                if (v < lowest.get()) lowest.set(v);
+                samples.incrementAndGet();
+                Thread.onSpinWait();
+            }
+        });
+        sampler.start();
+        LongAdder ordered = new LongAdder(), refused = new LongAdder(), abandoned = new LongAdder();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int c = 1; c <= buyers; c++) {
+            int cid = c;
+            tasks.add(() -> {
+                SplittableRandom rnd = new SplittableRandom(cid);
+                for (int round = 0; round < 3; round++) {
+                    int qty = 1 + rnd.nextInt(3);
+                    if (!cs.addFoodToCart(cid, hot, qty)) {
+                        refused.increment();
+                        continue;
+                    }
+                    cs.addFoodToCart(cid, side, 1);
+                    Thread.yield();
+                    if (rnd.nextInt(4) == 0) {
+                        abandoned.add(qty); // walks away; the hold lapses later
+                        return null;
+                    }
+                    if (os.placeOrder(cid, "Flat " + cid) > 0) ordered.add(qty);
+                }
+                return null;
+            });
+        }
+        long elapsed = awaitAll(Executors.newVirtualThreadPerTaskExecutor(), tasks);
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+
+        long sold = 0, held = 0;
+        for (Order o : db.orders.values()) {
+            for (LineItem l : o.getLines()) if (l.getItem() == hot) sold += l.getQuantity();
+        }
+        for (Customer c : db.customers.values()) {
+            LineItem l = c.getCart().getLine(hot);
+            if (l != null) held += l.reserved;
+        }
+        System.out.printf("  %d buyers in %d ms: %d portions ordered, %d held in abandoned carts, %d left, %d adds refused%n",
+                buyers, elapsed / 1_000_000, sold, held, stock.available(), refused.sum());
+        check(sold == ordered.sum() && held == abandoned.sum(), "orders and carts account for every portion taken");
+        check(sold + held + stock.available() == initial, "sold + held + available == " + initial);
+        check(lowest.get() >= 0, "stock never read below zero (" + samples.get() + " samples)");
+        check(refused.sum() > 0 && stock.available() < 3, "the item sold out");
+
+        // the wheel returns abandoned holds once they lapse; drive it with a clock 15 minutes ahead
+        long t0 = System.nanoTime();
+        int expired = db.reservations.advance(System.currentTimeMillis() + db.holdMillis + 1000);
+        long expireMicros = (System.nanoTime() - t0) / 1000;
+        System.out.printf("  expired %d holds in %d us%n", expired, expireMicros);
+        check(stock.available() == initial - sold, "expired holds return their portions");
+        long stillHeld = 0;
+        for (Customer c : db.customers.values()) {
+            LineItem l = c.getCart().getLine(hot);
+            if (l != null) stillHeld += l.reserved;
+        }
+        check(stillHeld == 0, "no cart holds stock after expiry");
+    }
+
+    // Rider GPS at 1 fix/s from 50k riders: the position table on its own, producers feeding the
+    // single writer, readers checking they never see a torn fix, dispatch picking up only the riders
+    // that moved, and a recorded trace replayed as fast as possible and in real time.
+    static void locationIngest() {
+        int riders = Integer.getInteger("bench.riders", 50_000), seconds = 20;
+        PositionTable table = new PositionTable(riders);
+        measure("PositionTable.put", 1_000_000, i -> table.put(1 + i % riders, i, -i, i) ? 1 : 0);
+        Position pos = new Position();
+        measure("PositionTable.read", 1_000_000, i -> table.read(1 + i % riders, pos) ? pos.getAtMillis() : 0);
+        measureAllocation("PositionTable.put, heap per update", 1_000_000, i -> table.put(1 + i % riders, i, -i, i) ? 1 : 0);
+
+        // producers send a rider's k-th fix as (k, -k, k), so a reader can tell a torn copy from a whole one
+        int producers = 8;
+        long updates = (long) riders * seconds;
+        PositionTable live = new PositionTable(riders);
+        AtomicInteger torn = new AtomicInteger();
+        LongAdder reads = new LongAdder();
+        long elapsed;
+        long allocated;
+        LocationIngest ingest = new LocationIngest(live, 1 << 16);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            AtomicInteger producing = new AtomicInteger(producers);
+            for (int t = 0; t < producers; t++) {
+                int first = t;
+                tasks.add(() -> {
+                    for (int k = 1; k <= seconds; k++) {
+                        for (int r = 1 + first; r <= riders; r += producers) {
+                            while (!ingest.offer(r, k, -k, k)) Thread.yield(); // ring full: let the writer catch up
+                        }
+                    }
+                    producing.decrementAndGet();
+                    return null;
+                });
+            }
+            for (int t = 0; t < 2; t++) {
+                int seed = t;
+                tasks.add(() -> {
+                    SplittableRandom rnd = new SplittableRandom(seed);
+                    Position p = new Position();
+                    while (producing.get() > 0) {
+                        for (int n = 0; n < 1000; n++) {
+                            if (live.read(1 + rnd.nextInt(riders), p)
+                                    && (p.getLongitude() != -p.getLatitude() || p.getAtMillis() != (long) p.getLatitude())) {
+                                torn.incrementAndGet();
+                            }
+                        }
+                        reads.add(1000);
+                        live.forEachSince(0, (id, lat, lon, at) -> {
+                            if (lon != -lat || at != (long) lat) torn.incrementAndGet();
+                        });
+                        reads.add(riders);
+                        Thread.yield();
+                    }
+                    return null;
+                });
+            }
+            long before = threads().getTotalThreadAllocatedBytes();
+            elapsed = awaitAll(Executors.newFixedThreadPool(producers + 2), tasks);
+            check(ingest.awaitDrained(10_000), "writer drains the ring");
+            elapsed = Math.max(elapsed, 1);
+            allocated = threads().getTotalThreadAllocatedBytes() - before;
+        } finally {
+            ingest.close();
+        }
+        Result r = result("ingest, " + producers + " producers");
+        r.nsPerOp = (double) elapsed / updates;
+        System.out.printf("  %d updates for %d riders in %d ms: %.0f updates/s (%.0fx the 1 fix/s load), %d ring-full retries%n",
+                updates, riders, elapsed / 1_000_000, updates * 1e9 / elapsed, updates * 1e9 / elapsed / riders, ingest.refused());
+        System.out.printf("  %d concurrent reads, %.2f B allocated per update on all threads (readers' lambdas included)%n",
+                reads.sum(), (double) allocated / updates);
+        check(ingest.applied() == updates && live.size() == riders, "every update applied, " + riders + " riders tracked");
+        check(torn.get() == 0, "readers never saw a torn fix");
+        check(updates * 1e9 / elapsed > riders, "ingest keeps up with 1 fix/s from every rider");
+
+        // dispatch moves only the riders whose fix changed since its last refresh
+        DataStore db = new DataStore(true);
+        OrderService os = new OrderService(db);
+        for (int id = 1; id <= riders; id++) os.addDeliveryPerson(id, "rider" + id, 8000000000L + id);
+        DispatchEngine dispatch = new DispatchEngine(db, os);
+        PositionTable city = new PositionTable(riders);
+        SplittableRandom rnd = new SplittableRandom(3);
+        for (int id = 1; id <= riders; id++) city.put(id, 12.9 + rnd.nextDouble() * 0.2, 77.5 + rnd.nextDouble() * 0.2, 1);
+        long t0 = System.nanoTime();
+        int movedAll = dispatch.refreshLocations(city);
+        long fullMicros = (System.nanoTime() - t0) / 1000;
+        int movedSome = 0;
+        long deltaMicros = Long.MAX_VALUE;
+        for (int round = 2; round < 12; round++) { // best of ten, the first ones run before the JIT catches up
+            for (int id = round; id <= riders; id += 100) city.put(id, 12.9 + rnd.nextDouble() * 0.2, 77.5 + rnd.nextDouble() * 0.2, round);
+            t0 = System.nanoTime();
+            movedSome = dispatch.refreshLocations(city);
+            deltaMicros = Math.min(deltaMicros, (System.nanoTime() - t0) / 1000);
+        }
+        System.out.printf("  dispatch refresh: %d riders in %d us, then %d changed riders in %d us%n", movedAll, fullMicros, movedSome, deltaMicros);
+        check(movedAll == riders && movedSome == riders / 100, "dispatch refresh picks up exactly the riders that moved");
+
+        // trace replay: 10 s of fixes from every rider
+        Path dir = tempDir("trace-bench");
+        try {
+            Path trace = dir.resolve("riders.trace");
+            int traceSeconds = 10;
+            long start = 1_700_000_000_000L;
+            try (BufferedWriter out = Files.newBufferedWriter(trace)) {
+                out.write("# epochMillis riderId latitude longitude\n");
+                SplittableRandom walk = new SplittableRandom(5);
+                for (int sec = 0; sec < traceSeconds; sec++) {
+                    for (int id = 1; id <= riders; id++) {
+                        long at = start + sec * 1000L + id % 1000;
+                        out.write(at + " " + id + " " + (12.9 + walk.nextDouble() * 0.2) + " " + (77.5 + walk.nextDouble() * 0.2) + "\n");
+                    }
+                }
+            }
+            long traceFixes = (long) riders * traceSeconds;
+            try (LocationIngest replayIngest = new LocationIngest(new PositionTable(riders), 1 << 16)) {
+                TraceReplay replay = new TraceReplay(replayIngest, 0);
+                String summary = replay.run(trace);
+                System.out.print(summary.lines().map(l -> "  " + l + "\n").reduce("", String::concat));
+                check(replay.fixes == traceFixes && replayIngest.applied() + replayIngest.rejected() == traceFixes
+                        && replayIngest.table().size() == riders, "replay delivers every fix in the trace");
+            }
+            // real time for the first 2 s of the trace: should take about 2 s and drop nothing
+            Path slice = dir.resolve("slice.trace");
+            try (var lines = Files.lines(trace)) {
+                Files.write(slice, (Iterable<String>) lines.limit(1 + 2L * riders)::iterator);
+            }
+            try (LocationIngest replayIngest = new LocationIngest(new PositionTable(riders), 1 << 16)) {
+                TraceReplay replay = new TraceReplay(replayIngest, 1);
+                long r0 = System.nanoTime();
+                replay.run(slice);
+                long ms = (System.nanoTime() - r0) / 1_000_000;
+                System.out.printf("  real-time replay of %d fixes took %d ms%n", replay.fixes, ms);
+                check(replayIngest.refused() == 0 && ms >= 1900 && ms < 3000, "real-time replay keeps pace and drops nothing");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // Checkout throughput of the sharded store as shards are added (bench.shards, default
+    // 1,2,4,8,16,32). Each client is a customer who fills a cart at a random restaurant, checks
+    // out and has the restaurant accept the order: four routed calls. Ideal scaling multiplies
+    // throughput by min(shards, cores), so on a box with fewer cores than shards the curve flattens
+    // at the core count; what it must not do is fall as shards are added. The speedup is reported,
+    // not checked: timings on a loaded or single-core machine say nothing about the code.
+    static void sharding() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int restaurants = 10_000, clients = 256, checkouts = Integer.getInteger("bench.checkouts", 100_000);
+        int[] shardCounts = Arrays.stream(System.getProperty("bench.shards", "1,2,4,8,16,32").split(","))
+                .mapToInt(v -> Integer.parseInt(v.trim())).toArray();
+        // a shard that refuses its part of a checkout must leave the cart reachable by the next one
+        try (ShardedStore store = new ShardedStore(2)) {
+            store.addRestaurant(1, "Tandoor").join();
+            store.addFoodItemToRestaurant(1, 1, "Naan", 40).join();
+            store.setStock(1, 1, 1).join();
+            store.addCustomer(1, "asha", 9000000001L).join();
+            store.addCustomer(2, "ravi", 9000000002L).join();
+            store.addFoodToCart(1, 1, 1, 1).join();
+            ShardedStore.Shard s = store.shardForRestaurant(1);
+            s.call(() -> s.db.reservations.advance(System.currentTimeMillis() + s.db.holdMillis + 60_000)).join(); // the hold lapses
+            store.addFoodToCart(2, 1, 1, 1).join();
+            boolean soldOut = store.placeOrder(2, "addr").join().length == 1 && store.placeOrder(1, "addr").join().length == 0;
+            store.setStock(1, 1, 1).join();
+            check(soldOut && store.placeOrder(1, "addr").join().length == 1,
+                    "a cart refused at checkout (its hold lapsed and the item sold out) checks out once restocked");
+        }
+
+        params("restaurants=" + restaurants + " clients=" + clients + " checkouts=" + checkouts + " cores=" + cores);
+        shardedCheckouts(shardCounts[0], restaurants, clients, checkouts / 2); // warmup, so the first count is not measured cold
+        double base = 0;
+        for (int n : shardCounts) {
+            try (ShardedStore store = new ShardedStore(n)) {
+                int[][] placed = new int[clients + 1][];
+                Usage before = Usage.now();
+                long elapsed = shardedCheckouts(store, restaurants, clients, checkouts, placed);
+                Usage used = Usage.now().since(before);
+                double perSecond = checkouts * 1e9 / elapsed;
+                if (base == 0) base = perSecond * 1 / Math.min(n, cores);
+                Result r = result("sharded checkout, " + n + " shards");
+                r.nsPerOp = (double) elapsed / checkouts;
+                r.gcCount = used.gcCount;
+                r.gcMillis = used.gcMillis;
+                double speedup = perSecond / base, ideal = Math.min(n, cores);
+                System.out.printf("  %2d shards: %8.0f checkouts/s (%5.0f routed calls/s)  speedup %.2f of ideal %.0f  %d GCs%n",
+                        n, perSecond, perSecond * 4, speedup, ideal, used.gcCount);
+
+                BitSet seen = new BitSet();
+                boolean unique = true, inRange = true;
+                int total = 0;
+                for (int c = 1; c <= clients; c++) {
+                    for (int oid : placed[c]) {
+                        unique &= !seen.get(oid);
+                        seen.set(oid);
+                        total++;
+                        inRange &= store.shardForOrder(oid) != null;
+                    }
+                }
+                check(total == checkouts && total == store.orderCount().join(), n + " shards: " + checkouts + " orders placed");
+                check(unique && inRange, n + " shards: order ids unique and each owned by one shard");
+                List<Order> history = store.findOrdersByCustomer(7, 0, Integer.MAX_VALUE).join();
+                List<Order> page = store.findOrdersByCustomer(7, 3, 5).join();
+                boolean sorted = true;
+                for (int i = 1; i < history.size(); i++) {
+                    Order a = history.get(i - 1), b = history.get(i);
+                    sorted &= a.getPlacedAtMillis() < b.getPlacedAtMillis()
+                            || (a.getPlacedAtMillis() == b.getPlacedAtMillis() && a.getOrderId() < b.getOrderId());
+                }
+                check(history.size() == placed[7].length && sorted && page.equals(history.subList(3, 8)),
+                        n + " shards: customer history merged across shards, oldest first, and paged");
+            }
+        }
+    }
+
+    private static void shardedCheckouts(int shards, int restaurants, int clients, int checkouts) {
+        try (ShardedStore store = new ShardedStore(shards)) {
+            shardedCheckouts(store, restaurants, clients, checkouts, new int[clients + 1][]);
+        }
+    }
+
+    // Loads the catalog and customers, then runs the checkout clients; returns the clients' wall time
+    // and leaves each client's order ids in placed[customerId]
+    private static long shardedCheckouts(ShardedStore store, int restaurants, int clients, int checkouts, int[][] placed) {
+        for (int r = 1; r <= restaurants; r++) {
+            store.addRestaurant(r, "Restaurant " + r);
+            for (int f = 1; f <= 4; f++) store.addFoodItemToRestaurant(r, f, "dish" + f, 50.0 * f);
+        }
+        for (int c = 1; c <= clients; c++) store.addCustomer(c, "customer" + c, 9000000000L + c);
+        store.addDeliveryPerson(1, "rider", 8000000000L).join();
+
+        AtomicInteger remaining = new AtomicInteger(checkouts);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int c = 1; c <= clients; c++) {
+            int cid = c;
+            tasks.add(() -> {
+                SplittableRandom rnd = new SplittableRandom(cid);
+                IntList mine = new IntList();
+                while (remaining.getAndDecrement() > 0) {
+                    int rid = 1 + rnd.nextInt(restaurants);
+                    store.addFoodToCart(cid, rid, 1 + rnd.nextInt(4), 1).join();
+                    store.addFoodToCart(cid, rid, 1 + rnd.nextInt(4), 2).join();
+                    int[] oids = store.placeOrder(cid, "Flat " + cid).join();
+                    for (int oid : oids) {
+                        store.updateOrderStatus(oid, OrderStatus.ACCEPTED).join();
+                        mine.add(oid);
+                    }
+                }
+                placed[cid] = mine.toArray();
+                return null;
+            });
+        }
+        return awaitAll(Executors.newVirtualThreadPerTaskExecutor(), tasks);
+    }
+
+    // Cart pricing against 0 to 100k promotions (bench.rules) and carts of 1 to 50 lines: the
+    // incremental price of one add, and the full re-price checkout does. Rules are spread over
+    // 10k restaurants of 20 dishes, a mix of item and restaurant-wide discounts, happy hours and surge.
+    static void promotions() {
+        int restaurants = 10_000, dishes = 20;
+        DataStore db = new DataStore(false);
+        FoodService fs = new FoodService(db);
+        for (int r = 1; r <= restaurants; r++) {
+            fs.addRestaurant(r, "Restaurant " + r);
+            for (int f = 1; f <= dishes; f++) fs.addFoodItemToRestaurant(r, f, "dish" + f, 40.0 + f * 7.5);
+        }
+        long now = System.currentTimeMillis();
+
+        // exact amounts on one restaurant first
+        FoodItem a = fs.findFoodItem(1, 1), b = fs.findFoodItem(1, 2), c = fs.findFoodItem(2, 3);
+        PromotionEngine engine = new PromotionEngine();
+        engine.setPromotions(List.of(
+                Promotion.percentOff(1, 1, 1, 10),
+                Promotion.amountOff(2, 1, 1, 4), // Rs. 8 on two, loses to 10% of Rs. 95
+                Promotion.buyXGetY(3, 1, 2, 1, 1),
+                Promotion.surge(4, 2, Promotion.ANY_ITEM, 20),
+                Promotion.percentOff(5, 2, 3, 50).validBetween(now - 2000, now - 1000), // expired
+                Promotion.couponPercent(6, "save20", 20, 30).minimumOrder(100)));
+        Cart cart = new Cart();
+        LineItem la = cart.addItem(a, 2, a.getPricePaise() * 2);
+        engine.priceLine(cart, la, now);
+        LineItem lb = cart.addItem(b, 3, b.getPricePaise() * 3);
+        engine.priceLine(cart, lb, now);
+        LineItem lc = cart.addItem(c, 1, c.getPricePaise());
+        engine.priceLine(cart, lc, now);
+        check(la.discountPaise == 950 && lb.discountPaise == 5500 && lc.discountPaise == -1250,
+                "10% off, buy-1-get-1 on 3 units and 20% surge price as expected");
+        cart.setCoupon(engine.coupon("SAVE20", now));
+        long afterLines = cart.getTotalPaise() - (950 + 5500 - 1250);
+        check(cart.getDiscountPaise() == 950 + 5500 - 1250 + Math.min(3000, afterLines * 2000 / 10_000),
+                "coupon takes 20% of the discounted subtotal, capped at Rs. 30");
+        check(engine.priceCart(cart, now + 60_000) == cart.getDiscountPaise()
+                && engine.coupon("nope", now) == null, "a full re-price agrees with the incremental one");
+
+        int[] ruleCounts = Arrays.stream(System.getProperty("bench.rules", "0,1000,10000,100000").split(","))
+                .mapToInt(v -> Integer.parseInt(v.trim())).toArray();
+        int[] cartSizes = {1, 10, 50};
+        double worstAdd = 0, worstCart = 0;
+        for (int rules : ruleCounts) {
+            SplittableRandom rnd = new SplittableRandom(rules);
+            List<Promotion> promos = new ArrayList<>(rules);
+            for (int id = 1; id <= rules; id++) {
+                int r = 1 + rnd.nextInt(restaurants);
+                int item = rnd.nextInt(8) == 0 ? Promotion.ANY_ITEM : 1 + rnd.nextInt(dishes);
+                Promotion p = switch (rnd.nextInt(5)) {
+                    case 0 -> Promotion.percentOff(id, r, item, 5 + rnd.nextInt(30));
+                    case 1 -> Promotion.amountOff(id, r, item, 1 + rnd.nextInt(20));
+                    case 2 -> Promotion.buyXGetY(id, r, item, 1 + rnd.nextInt(3), 1);
+                    case 3 -> Promotion.surge(id, r, Promotion.ANY_ITEM, 5 + rnd.nextInt(25));
+                    default -> Promotion.couponPercent(id, "CODE" + id, 10, 100);
+                };
+                if (rnd.nextInt(3) == 0) p.daily(rnd.nextInt(24 * 60), rnd.nextInt(24 * 60)); // happy hours
+                promos.add(p);
+            }
+            long t0 = System.nanoTime();
+            engine.setPromotions(promos);
+            System.out.printf("  %d rules compiled in %.1f ms%n", rules, (System.nanoTime() - t0) / 1e6);
+            for (int size : cartSizes) {
+                // items from 100 restaurants spread over the id range, as a real cart mix would be
+                FoodItem[] items = new FoodItem[size];
+                for (int i = 0; i < size; i++) items[i] = fs.findFoodItem(1 + rnd.nextInt(100) * 97, 1 + rnd.nextInt(dishes));
+                Cart priced = new Cart();
+                LineItem[] lines = new LineItem[size];
+                for (int i = 0; i < size; i++) {
+                    lines[i] = priced.addItem(items[i], 1, items[i].getPricePaise());
+                    engine.priceLine(priced, lines[i], now);
+                }
+                String label = rules + " rules, " + size + "-line cart";
+                double add = measure("add + price line, " + label, 1_000_000, i -> {
+                    FoodItem fi = items[i % size];
+                    LineItem l = priced.addItem(fi, 1, fi.getPricePaise());
+                    engine.priceLine(priced, l, now);
+                    return priced.getPayablePaise();
+                });
+                double full = measure("checkout re-price, " + label, 200_000, i -> engine.priceCart(priced, now));
+                if (rules == ruleCounts[ruleCounts.length - 1]) {
+                    worstAdd = Math.max(worstAdd, add);
+                    worstCart = Math.max(worstCart, full);
+                }
+                Cart check = new Cart();
+                for (LineItem l : priced.getLines()) check.addItem(l.getItem(), l.getQuantity(), l.getAmountPaise());
+                if (engine.priceCart(check, now) != engine.priceCart(priced, now)) throw new IllegalStateException("re-price mismatch");
+            }
+        }
+        check(worstAdd < 1000, "one add is priced in under 1 us with the most rules");
+        // re-pricing is one rule lookup per line, so the bound is per line
+        check(worstCart / cartSizes[cartSizes.length - 1] < 100, "a whole cart is re-priced in under 100 ns a line with the most rules");
+    }
+
+    // Idempotent checkout: the key cache at 10M keys an hour (memory, lookups, expiry, eviction),
+    // then retries racing each other through OrderService, the checkout pipeline and HTTP, and
+    // keys surviving a restart
+    static void idempotency() {
+        keyCache(Integer.getInteger("bench.keysPerHour", 10_000_000));
+        retries();
+    }
+
+    private static void keyCache(int perHour) {
+        long hour = 3_600_000;
+        params(perHour + " keys/hour, 1 h ttl");
+        // every tenth key is kept for the lookups; the first 100k are real UUID strings
+        int sample = perHour / 10, named = 100_000;
+        int[] sampleCustomer = new int[sample];
+        long[] sampleHash = new long[sample];
+        String[] keys = new String[named];
+        for (int i = 0; i < named; i++) keys[i] = UUID.randomUUID().toString();
+        SplittableRandom rnd = new SplittableRandom(22);
+        long before = retainedHeap();
+        IdempotencyCache cache = new IdempotencyCache(hour, 1 << 24);
+        long start = System.currentTimeMillis();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < perHour; i++) {
+            int cid = 1 + rnd.nextInt(1_000_000);
+            long hash = i < named ? IdempotencyCache.keyHash(keys[i]) : rnd.nextLong() | 1;
+            cache.remember(cid, hash, 1 + i, start + i * hour / perHour);
+            if (i % 10 == 0) {
+                sampleCustomer[i / 10] = cid;
+                sampleHash[i / 10] = hash;
+            }
+        }
+        long fill = System.nanoTime() - t0;
+        long bytes = retainedHeap() - before;
+        result("remember, 1st hour").nsPerOp = (double) fill / perHour;
+        System.out.printf("  remembered %d keys in %d ms (%.0f ns/key), %d MB retained, %.1f bytes/key%n",
+                perHour, fill / 1_000_000, (double) fill / perHour, bytes >> 20, (double) bytes / perHour);
+        check(cache.size() == perHour && cache.evicted() == 0, "an hour of keys is held whole");
+
+        long mid = start + hour / 2;
+        int smask = Integer.highestOneBit(sample) - 1, kmask = Integer.highestOneBit(named / 10) - 1;
+        measure("get, hit", 1_000_000, i -> cache.get(sampleCustomer[i & smask], sampleHash[i & smask], mid));
+        measure("get, miss", 1_000_000, i -> cache.get(sampleCustomer[i & smask], ~sampleHash[i & smask], mid));
+        measure("keyHash + get, 36-char key", 1_000_000,
+                i -> cache.get(sampleCustomer[i & kmask], IdempotencyCache.keyHash(keys[(i & kmask) * 10]), mid));
+        int hits = 0;
+        for (int i = 0; i < named; i += 10) if (cache.get(sampleCustomer[i / 10], IdempotencyCache.keyHash(keys[i]), mid) == 1 + i) hits++;
+        check(hits == named / 10, "every sampled key finds its order");
+        check(cache.get(sampleCustomer[0], sampleHash[0], start + hour + 2000) < 0, "a key is forgotten once its ttl has passed");
+
+        // a second hour: expiry pops the first hour's keys as the new ones arrive, so the cache stays the same size
+        t0 = System.nanoTime();
+        for (int i = 0; i < perHour; i++) {
+            cache.remember(1 + rnd.nextInt(1_000_000), rnd.nextLong() | 1, perHour + 1 + i, start + hour + i * hour / perHour);
+        }
+        fill = System.nanoTime() - t0;
+        long steady = retainedHeap() - before;
+        result("remember, steady state").nsPerOp = (double) fill / perHour;
+        System.out.printf("  second hour: %.0f ns/key, %d keys held, %d MB retained, %d evicted%n",
+                (double) fill / perHour, cache.size(), steady >> 20, cache.evicted());
+        check(cache.size() <= perHour + perHour / 1000 && cache.evicted() == 0, "expiry keeps the cache at one hour of keys");
+        check(steady <= bytes * 3 / 2, "steady-state memory stays near the first hour's");
+
+        IdempotencyCache small = new IdempotencyCache(hour, 6400);
+        for (int i = 0; i < 10_000; i++) small.remember(i, i + 1, i + 1, start);
+        check(small.size() <= 6400 && small.size() + small.evicted() == 10_000 && small.get(9_999, 10_000, start) == 10_000,
+                "a full cache evicts its oldest keys and keeps the newest");
+    }
+
+    private static void retries() {
+        params("1000 customers, 8 retries each");
+        DataStore db = new DataStore(true);
+        FoodService fs = new FoodService(db);
+        CustomerService cs = new CustomerService(db);
+        OrderService os = new OrderService(db);
+        fs.addRestaurant(1, "Retry Kitchen");
+        fs.addFoodItemToRestaurant(1, 1, "Thali", 150.0);
+        FoodItem thali = fs.findFoodItem(1, 1);
+        int customers = 1000, retries = 8;
+        for (int c = 1; c <= customers; c++) {
+            cs.addCustomer(c, "retrier" + c, 9000000000L + c);
+            cs.addFoodToCart(c, thali, 1);
+        }
+        int[][] seen = new int[customers + 1][retries];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        CountDownLatch go = new CountDownLatch(1);
+        for (int c = 1; c <= customers; c++) {
+            for (int r = 0; r < retries; r++) {
+                int cid = c, attempt = r;
+                tasks.add(() -> {
+                    go.await();
+                    seen[cid][attempt] = os.placeOrder(cid, "addr " + cid, "checkout-" + cid);
+                    return null;
+                });
+            }
+        }
+        ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
+        List<Future<Void>> started = new ArrayList<>();
+        for (Callable<Void> task : tasks) started.add(pool.submit(task));
+        go.countDown();
+        awaitAll(pool, List.of(() -> {
+            for (Future<Void> f : started) f.get();
+            return null;
+        }));
+        boolean agree = true;
+        for (int c = 1; c <= customers; c++) {
+            for (int r = 0; r < retries; r++) agree &= seen[c][r] > 0 && seen[c][r] == seen[c][0];
+        }
+        check(agree && db.orderCount() == customers, customers + " customers x " + retries + " racing retries place "
+                + customers + " orders, and every retry sees its customer's order");
+        check(os.placeOrder(1, "addr 1", "checkout-1") == seen[1][0] && os.placeOrder(1, "addr 1", "another") < 0,
+                "a later retry still gets the order; a new key checks out the (now empty) cart");
+
+        try (CheckoutPipeline pipeline = new CheckoutPipeline(db, 64)) {
+            for (int c = 1; c <= customers; c++) cs.addFoodToCart(c, thali, 1);
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int r = 0; r < retries; r++) {
+                for (int c = 1; c <= customers; c++) futures.add(pipeline.submit(c, "addr " + c, "pipeline-" + c));
+            }
+            boolean same = true;
+            for (int i = 0; i < futures.size(); i++) same &= futures.get(i).join().equals(futures.get(i % customers).join());
+            check(same && db.orderCount() == 2 * customers, "the checkout pipeline places one order per key, in or across batches");
+        }
+
+        try (HttpApi api = new HttpApi(db, fs, cs, os, 0)) {
+            api.start();
+            cs.addFoodToCart(1, thali, 2);
+            HttpLoadClient client = new HttpLoadClient("localhost", api.port());
+            String form = "address=12+Retry+Road";
+            String request = "POST /customers/1/orders HTTP/1.1\r\nHost: localhost\r\nIdempotency-Key: http-1\r\n"
+                    + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: " + form.length() + "\r\n\r\n" + form;
+            int first = client.exchange(request), second = client.exchange(request);
+            client.disconnect();
+            check(first == 201 && second == 201 && db.orderCount() == 2 * customers + 1,
+                    "a POST retried with the same Idempotency-Key places one order");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // keys come back from the journal, then from a snapshot
+        Path dir = tempDir("idempotency");
+        try {
+            int placed = -1;
+            for (int round = 0; round < 3; round++) {
+                DataStore store = new DataStore(true);
+                try (Persistence p = Persistence.open(dir, store)) {
+                    OrderService orders = new OrderService(store);
+                    if (round == 0) {
+                        new FoodService(store).addRestaurant(1, "Retry Kitchen");
+                        new FoodService(store).addFoodItemToRestaurant(1, 1, "Thali", 150.0);
+                        new CustomerService(store).addCustomer(1, "retrier", 9000000001L);
+                        new CustomerService(store).addFoodToCart(1, new FoodService(store).findFoodItem(1, 1), 1);
+                        placed = orders.placeOrder(1, "addr", "restart-key");
+                    } else {
+                        check(placed > 0 && orders.placeOrder(1, "addr", "restart-key") == placed && store.orderCount() == 1,
+                                round == 1 ? "a retry after a restart finds its order through the journal"
+                                        : "a retry after a checkpoint finds its order through the snapshot");
+                        if (round == 1) p.checkpoint();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteTree(dir);
+        }
+
+        // what the key costs a checkout; keys are never reused across rounds, except by the retry
+        String[] fresh = new String[400_000];
+        for (int i = 0; i < fresh.length; i++) fresh[i] = "order-" + i;
+        int[] next = {0};
+        Map<String, IntToLongFunction> variants = new LinkedHashMap<>();
+        variants.put("placeOrder, no key", i -> os.placeOrder(1 + (i % customers), "addr"));
+        variants.put("placeOrder, new key", i -> os.placeOrder(1 + (i % customers), "addr", fresh[next[0]++]));
+        Map<String, IntToLongFunction> checkouts = new LinkedHashMap<>();
+        variants.forEach((name, place) -> checkouts.put(name, i -> {
+            int cid = 1 + (i % customers);
+            synchronized (db.customerLock(cid)) {
+                db.customers.get(cid).getCart().addItem(thali, 1);
+            }
+            return place.applyAsLong(i);
+        }));
+        // both are warmed before either is measured, so the first does not pay for the shared code's warmup
+        for (IntToLongFunction checkout : checkouts.values()) run(100_000, checkout);
+        checkouts.forEach((name, checkout) -> measure(name, 20_000, checkout));
+        String[] retried = new String[customers];
+        for (int c = 0; c < customers; c++) retried[c] = "checkout-" + (c + 1);
+        measure("placeOrder, retry", 1_000_000, i -> os.placeOrder(1 + (i % customers), "addr", retried[i % customers]));
+    }
+
+    // Checkout of carts spanning 1-10 restaurants: what splitting costs with no one listening, then
+    // checkout latency when telling each restaurant takes bench.kitchenMillis (default 1 ms), fanned
+    // out in parallel vs told one after another
+    static void splitCheckout() {
+        int restaurants = 1000, customers = 10_000;
+        long kitchenMillis = Long.getLong("bench.kitchenMillis", 1);
+        DataStore db = new DataStore(true);
+        FoodService fs = new FoodService(db);
+        CustomerService cs = new CustomerService(db);
+        OrderService os = new OrderService(db);
+        for (int r = 1; r <= restaurants; r++) {
+            fs.addRestaurant(r, "Kitchen " + r);
+            for (int f = 1; f <= 5; f++) fs.addFoodItemToRestaurant(r, f, "Dish " + f, 50 + 10 * f);
+        }
+        for (int c = 1; c <= customers; c++) cs.addCustomer(c, "customer" + c, 9000000000L + c);
+        SplittableRandom rnd = new SplittableRandom(23);
+
+        // every restaurant serves item ids 1-5: the cart must keep them apart and the split must find them
+        cs.addFoodToCart(1, fs.findFoodItem(1, 1), 1);
+        cs.addFoodToCart(1, fs.findFoodItem(2, 1), 2);
+        check(cs.getCustomer(1).getCart().getLines().size() == 2, "the same item id from two restaurants makes two cart lines");
+        int parent = os.placeOrder(1, "addr");
+        List<Order> subs = os.getSubOrders(parent);
+        check(db.getOrder(parent) == null && subs.size() == 2 && subs.get(0).getRestaurant().getId() == 1
+                        && subs.get(1).getRestaurant().getId() == 2 && subs.get(1).getTotalPaise() == 2 * 6000,
+                "a two-restaurant cart becomes two sub-orders under one parent");
+        check(db.kitchens.waiting(1).contains(subs.get(0).getOrderId()) && db.kitchens.waiting(2).contains(subs.get(1).getOrderId()),
+                "each sub-order waits in its restaurant's queue");
+        os.updateOrderStatus(subs.get(0).getOrderId(), OrderStatus.ACCEPTED);
+        check(db.kitchens.waiting(1).isEmpty(), "an accepted order leaves the queue");
+
+        Map<Integer, IntToLongFunction> checkouts = new LinkedHashMap<>();
+        int[] next = {1};
+        for (int span : new int[] {1, 2, 5, 10}) {
+            checkouts.put(span, i -> {
+                int cid = next[0] = next[0] % customers + 1;
+                int first = 1 + rnd.nextInt(restaurants - span + 1);
+                synchronized (db.customerLock(cid)) {
+                    Cart cart = db.customers.get(cid).getCart();
+                    for (int k = 0; k < span; k++) cart.addItem(fs.findFoodItem(first + k, 1 + (k % 5)), 1);
+                }
+                return os.placeOrder(cid, "addr");
+            });
+        }
+        // all spans share the checkout code, so all are warmed before any is measured
+        for (IntToLongFunction checkout : checkouts.values()) run(20_000, checkout);
+        checkouts.forEach((span, checkout) -> {
+            params(span + " restaurants per cart");
+            measure("fill cart + placeOrder", 5_000, checkout);
+        });
+
+        params("kitchens told in " + kitchenMillis + " ms each");
+        KitchenListener kitchen = o -> LockSupport.parkNanos(kitchenMillis * 1_000_000);
+        int samples = 200;
+        long[] parallel = new long[samples], sequential = new long[samples];
+        for (int span : new int[] {1, 2, 5, 10}) {
+            for (int mode = 0; mode < 2; mode++) {
+                db.kitchens.setListener(mode == 0 ? kitchen : null);
+                long[] times = mode == 0 ? parallel : sequential;
+                for (int s = -20; s < samples; s++) { // the first 20 warm up
+                    int cid = 1 + (s + 20) % customers;
+                    int first = 1 + rnd.nextInt(restaurants - span + 1);
+                    for (int k = 0; k < span; k++) cs.addFoodToCart(cid, fs.findFoodItem(first + k, 1), 1);
+                    long t0 = System.nanoTime();
+                    int oid = os.placeOrder(cid, "addr");
+                    if (mode == 1) { // the same restaurants told one after another
+                        if (span == 1) kitchen.onOrder(db.getOrder(oid));
+                        else for (Order o : os.getSubOrders(oid)) kitchen.onOrder(o);
+                    }
+                    if (s >= 0) times[s] = System.nanoTime() - t0;
+                }
+            }
+            Result r = result(span + " restaurants, parallel fan-out");
+            r.nsPerOp = percentile(parallel, samples, 50);
+            result(span + " restaurants, one after another").nsPerOp = percentile(sequential, samples, 50);
+            System.out.printf("  %2d restaurants  parallel: %s%n", span, percentiles(parallel, samples, 1e6, "ms"));
+            System.out.printf("  %2d restaurants  in turn:  %s%n", span, percentiles(sequential, samples, 1e6, "ms"));
+            if (span > 1) {
+                check(percentile(parallel, samples, 50) < percentile(sequential, samples, 50),
+                        span + "-restaurant checkout is faster with the restaurants told in parallel");
+            }
+        }
+        db.kitchens.setListener(null);
+        check(db.kitchens.failedAnnouncements() == 0, "every restaurant was told");
+
+        // the checkout pipeline splits the same way, and the sub-orders and queues come back from the
+        // journal and then from a snapshot
+        Path dir = tempDir("split-checkout");
+        try {
+            int[] parents = new int[100];
+            for (int round = 0; round < 3; round++) {
+                DataStore store = new DataStore(true);
+                try (Persistence p = Persistence.open(dir, store)) {
+                    FoodService food = new FoodService(store);
+                    CustomerService cust = new CustomerService(store);
+                    OrderService ord = new OrderService(store);
+                    if (round == 0) {
+                        for (int r = 1; r <= 10; r++) {
+                            food.addRestaurant(r, "Kitchen " + r);
+                            food.addFoodItemToRestaurant(r, 1, "Dish", 100);
+                        }
+                        try (CheckoutPipeline pipeline = new CheckoutPipeline(store, 32)) {
+                            List<CompletableFuture<Integer>> placed = new ArrayList<>();
+                            for (int c = 1; c <= parents.length; c++) {
+                                cust.addCustomer(c, "c" + c, 9000000000L + c);
+                                for (int r = 1; r <= 1 + c % 10; r++) cust.addFoodToCart(c, food.findFoodItem(r, 1), 1);
+                                placed.add(pipeline.submit(c, "addr " + c));
+                            }
+                            for (int c = 0; c < parents.length; c++) parents[c] = placed.get(c).join();
+                        }
+                    }
+                    int orders = 0, queued = 0;
+                    boolean shaped = true;
+                    for (int c = 1; c <= parents.length; c++) {
+                        int span = 1 + c % 10;
+                        List<Order> parts = span == 1 ? List.of(store.getOrder(parents[c - 1])) : ord.getSubOrders(parents[c - 1]);
+                        shaped &= parts.size() == span;
+                        for (int k = 0; k < parts.size(); k++) shaped &= parts.get(k).getRestaurant().getId() == k + 1;
+                        orders += parts.size();
+                    }
+                    for (int r = 1; r <= 10; r++) queued += store.kitchens.waiting(r).size();
+                    check(shaped && orders == store.orderCount() && queued == orders,
+                            (round == 0 ? "the checkout pipeline places " : round == 1 ? "after a restart there are still "
+                                    : "after a checkpoint and restart there are still ") + orders
+                                    + " sub-orders, one per restaurant in each cart, all queued at their kitchens");
+                    if (round == 1) p.checkpoint();
+                }
+            }
+
+            // a cart line holding an item repriced before it was added is still that restaurant's on
+            // replay, so the split, and every id after it, comes back as it was logged
+            Path stale = dir.resolve("stale");
+            DataStore store = new DataStore(true);
+            Persistence p = Persistence.open(stale, store);
+            FoodService food = new FoodService(store);
+            CustomerService cust = new CustomerService(store);
+            OrderService ord = new OrderService(store);
+            food.addRestaurant(1, "Tandoor");
+            food.addRestaurant(2, "Dosa Hut");
+            food.addFoodItemToRestaurant(1, 1, "Naan", 40);
+            food.addFoodItemToRestaurant(1, 2, "Dal", 90);
+            food.addFoodItemToRestaurant(2, 1, "Dosa", 60);
+            ord.addDeliveryPerson(1, "rider", 9000000009L);
+            cust.addCustomer(1, "asha", 9000000001L);
+            FoodItem naan = food.findFoodItem(1, 1);
+            food.addFoodItemToRestaurant(1, 1, "Naan", 45);
+            cust.addFoodToCart(1, naan, 1);
+            cust.addFoodToCart(1, food.findFoodItem(1, 2), 1);
+            cust.addFoodToCart(1, food.findFoodItem(2, 1), 1);
+            int split = ord.placeOrder(1, "addr");
+            ord.assignDeliveryPersonToOrder(ord.getSubOrders(split).get(1).getOrderId(), 1);
+            p.close();
+            DataStore back = new DataStore(true);
+            Persistence.open(stale, back).close();
+            List<Order> parts = new OrderService(back).getSubOrders(split);
+            check(back.orderCount() == 2 && parts.size() == 2 && parts.get(0).getRestaurant().getId() == 1
+                            && parts.get(0).getLines().size() == 2 && parts.get(1).getRestaurant().getId() == 2
+                            && parts.get(1).getDeliveryPerson() != null,
+                    "after a restart a split holding a repriced item has the same sub-orders, and its rider the same one");
+
+            // wide splits in batch mode, where records pile up in the buffer until it fills: each
+            // record must fit wherever in the buffer it starts
+            Path wide = dir.resolve("wide");
+            store = new DataStore(true);
+            p = Persistence.open(wide, store);
+            p.journal().durableCommits = false;
+            food = new FoodService(store);
+            cust = new CustomerService(store);
+            ord = new OrderService(store);
+            int width = 25, rounds = 2_000;
+            for (int r = 1; r <= width; r++) {
+                food.addRestaurant(r, "Stall " + r);
+                food.addFoodItemToRestaurant(r, 1, "Snack " + r, 20 + r);
+            }
+            cust.addCustomer(1, "asha", 9000000001L);
+            boolean placedAll = true;
+            for (int i = 0; i < rounds; i++) {
+                for (int r = 1; r <= width; r++) cust.addFoodToCart(1, food.findFoodItem(r, 1), 1);
+                placedAll &= ord.getSubOrders(ord.placeOrder(1, "House " + i + ", Ring Road")).size() == width;
+            }
+            p.close();
+            back = new DataStore(true);
+            Persistence.open(wide, back).close();
+            check(placedAll && back.orderCount() == rounds * width,
+                    rounds + " checkouts of " + width + " restaurants each are placed, logged and replayed whole");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // A dinner rush over 10k restaurants (-Dbench.restaurants) through the real checkout on a
+    // simulated clock: three hours, demand peaking mid-way, customers favouring the popular kitchens.
+    // Each kitchen is simulated a second time with the actual prep times, which run 30% either side
+    // of the menu's, to see how far the quoted ETAs drift. Run once with customers ordering wherever
+    // they like and once choosing among the restaurants the listing still shows.
+    static void kitchenScheduler() {
+        int restaurants = Integer.getInteger("bench.restaurants", 10_000);
+        int rushOrders = Integer.getInteger("bench.rushOrders", 150_000);
+        long minute = 60_000L, t0 = 1_700_000_000_000L;
+
+        // exact bookings on one kitchen with two stations, 10 and 20 minute dishes
+        DataStore db = new DataStore(true);
+        FoodService fs = new FoodService(db);
+        CustomerService cs = new CustomerService(db);
+        OrderService os = new OrderService(db);
+        fs.addRestaurant(1, "Tandoor");
+        fs.addFoodItemToRestaurant(1, 1, "Naan", 40);
+        fs.addFoodItemToRestaurant(1, 2, "Biryani", 250);
+        fs.setPrepTime(1, 1, 10 * 60);
+        fs.setPrepTime(1, 2, 20 * 60);
+        for (int c = 1; c <= 4; c++) cs.addCustomer(c, "customer" + c, 9000000000L + c);
+        int[] dishes = {1, 2, 1, 1};
+        long[] placedAt = {t0, t0, t0, t0 + minute};
+        long[] expected = {t0 + 10 * minute, t0 + 20 * minute, t0 + 20 * minute, t0 + 30 * minute};
+        boolean exact = true, quoted = true;
+        for (int i = 0; i < 4; i++) {
+            cs.addFoodToCart(i + 1, fs.findFoodItem(1, dishes[i]), 1);
+            long quote;
+            synchronized (db.customerLock(i + 1)) {
+                quote = KitchenQueues.quote(db.customers.get(i + 1).getCart(), placedAt[i]);
+            }
+            int oid = os.placeOrder(i + 1, "addr", placedAt[i], 0);
+            exact &= db.getOrder(oid).getReadyAtMillis() == expected[i];
+            quoted &= quote == expected[i];
+        }
+        check(exact, "two stations take the first two orders at once and the next when one comes free");
+        check(quoted, "the checkout quote is the ready time the order is then booked for");
+        cs.addFoodToCart(1, fs.findFoodItem(1, 1), 1);
+        cs.addFoodToCart(1, fs.findFoodItem(1, 2), 1);
+        int both = os.placeOrder(1, "addr", t0 + minute, 0);
+        check(db.getOrder(both).getReadyAtMillis() == t0 + 40 * minute, "an order takes as long as its slowest dish");
+
+        // a full kitchen drops out of the listing until its stations come free
+        long now = System.currentTimeMillis();
+        fs.addRestaurant(2, "Quick Bites");
+        fs.addFoodItemToRestaurant(2, 1, "Samosa", 20);
+        fs.setKitchenCapacity(2, 1, 30);
+        fs.setPrepTime(2, 1, 40 * 60);
+        cs.addFoodToCart(2, fs.findFoodItem(2, 1), 1);
+        os.placeOrder(2, "addr", now, 0);
+        check(!db.restaurants.get(2).getKitchen().isAccepting(now), "a kitchen booked past its max wait is full");
+        java.io.ByteArrayOutputStream listing = new java.io.ByteArrayOutputStream();
+        System.setOut(new PrintStream(listing, true, StandardCharsets.UTF_8));
+        try {
+            fs.printRestaurantsAndMenus();
+        } finally {
+            System.setOut(console);
+        }
+        String shown = listing.toString(StandardCharsets.UTF_8);
+        check(!shown.contains("Quick Bites") && shown.contains("1 restaurant is too busy"), "the listing hides the full kitchen");
+        check(db.restaurants.get(2).getKitchen().isAccepting(now + 10 * minute + 1), "it is listed again once it can start an order within its max wait");
+
+        // booking is a sift through the stations' heap, a quote one read
+        for (int stations : new int[] {1, 4, 16, 64}) {
+            KitchenSchedule k = new KitchenSchedule();
+            k.configure(stations, KitchenSchedule.DEFAULT_MAX_WAIT_MILLIS);
+            SplittableRandom prep = new SplittableRandom(stations);
+            params(stations + " stations");
+            measure("book an order", 1_000_000, i -> k.book(t0 + i * 1000L, (5 + prep.nextInt(26)) * minute));
+            measure("quote an order", 1_000_000, i -> k.quote(t0 + i * 1000L, 15 * minute));
+        }
+
+        // the rush
+        double[] weights = new double[180];
+        double weightSum = 0;
+        for (int m = 0; m < weights.length; m++) weightSum += weights[m] = 0.2 + Math.exp(-Math.pow((m - 90) / 40.0, 2));
+        double[] popularity = new double[restaurants]; // cumulative, Zipf(0.6) over a shuffled ranking
+        for (int r = 0; r < restaurants; r++) popularity[r] = (r == 0 ? 0 : popularity[r - 1]) + Math.pow(1 + (r * 7919L) % restaurants, -0.6);
+        long[] promised = new long[rushOrders * 2], drift = new long[rushOrders * 2];
+        long openP99 = 0; // without backpressure
+        for (int mode = 0; mode < 2; mode++) {
+            boolean backpressure = mode == 1;
+            DataStore store = new DataStore(true);
+            FoodService food = new FoodService(store);
+            CustomerService cust = new CustomerService(store);
+            OrderService ord = new OrderService(store);
+            SplittableRandom rnd = new SplittableRandom(24);
+            KitchenSchedule[] actual = new KitchenSchedule[restaurants + 1];
+            for (int r = 1; r <= restaurants; r++) {
+                food.addRestaurant(r, "Kitchen " + r);
+                for (int f = 1; f <= 5; f++) {
+                    food.addFoodItemToRestaurant(r, f, "Dish " + f, 80 + 20 * f);
+                    food.setPrepTime(r, f, (5 + rnd.nextInt(26)) * 60);
+                }
+                int stations = 1 + r % 4;
+                food.setKitchenCapacity(r, stations, 45);
+                actual[r] = new KitchenSchedule();
+                actual[r].configure(stations, KitchenSchedule.DEFAULT_MAX_WAIT_MILLIS);
+            }
+            int customers = 50_000;
+            for (int c = 1; c <= customers; c++) cust.addCustomer(c, "customer" + c, 9000000000L + c);
+
+            int placed = 0, diverted = 0, lost = 0, peakHidden = 0;
+            long checkoutNanos = 0;
+            for (int m = 0; m < weights.length; m++) {
+                long minuteStart = t0 + m * minute;
+                if (m % 10 == 0) {
+                    int hidden = 0;
+                    for (int r = 1; r <= restaurants; r++) if (!store.restaurants.get(r).getKitchen().isAccepting(minuteStart)) hidden++;
+                    peakHidden = Math.max(peakHidden, hidden);
+                }
+                int arrivals = (int) Math.round(rushOrders * weights[m] / weightSum);
+                for (int a = 0; a < arrivals; a++) {
+                    long at = minuteStart + a * minute / arrivals;
+                    int r = pick(popularity, rnd), tries = 1;
+                    while (backpressure && !store.restaurants.get(r).getKitchen().isAccepting(at) && tries < 5) {
+                        r = pick(popularity, rnd);
+                        tries++;
+                    }
+                    if (backpressure && !store.restaurants.get(r).getKitchen().isAccepting(at)) {
+                        lost++;
+                        continue;
+                    }
+                    if (tries > 1) diverted++;
+                    int cid = 1 + (placed + lost) % customers;
+                    for (int d = 1 + rnd.nextInt(3); d > 0; d--) cust.addFoodToCart(cid, food.findFoodItem(r, 1 + rnd.nextInt(5)), 1);
+                    long s = System.nanoTime();
+                    int oid = ord.placeOrder(cid, "addr", at, 0);
+                    checkoutNanos += System.nanoTime() - s;
+                    Order o = store.getOrder(oid);
+                    long done = actual[r].book(at, (long) (o.getPrepMillis() * (0.7 + 0.6 * rnd.nextDouble())));
+                    promised[placed] = o.getReadyAtMillis() - at;
+                    drift[placed] = Math.abs(done - o.getReadyAtMillis());
+                    placed++;
+                }
+            }
+            params(restaurants + " restaurants, " + (backpressure ? "full kitchens hidden" : "no backpressure"));
+            result("checkout with ETA").nsPerOp = (double) checkoutNanos / placed;
+            System.out.printf("  %d orders placed (%d sent elsewhere by a full kitchen, %d found nothing open), "
+                            + "%.1f us per checkout, at most %d kitchens (%.1f%%) full at once%n",
+                    placed, diverted, lost, checkoutNanos / 1e3 / placed, peakHidden, 100.0 * peakHidden / restaurants);
+            System.out.println("  promised wait:     " + percentiles(promised, placed, minute, " min"));
+            System.out.println("  ETA error:         " + percentiles(drift, placed, minute, " min"));
+            long p99 = percentile(promised, placed, 99), worst = percentile(promised, placed, 100);
+            if (backpressure) {
+                check(worst <= 75 * minute, "with full kitchens hidden no order waits more than max wait plus its prep time");
+                check(p99 < openP99, "hiding full kitchens cuts the p99 promised wait");
+            }
+            openP99 = p99;
+        }
+
+        // prep times, capacities and the ETAs they give come back from the journal and then from a snapshot
+        Path dir = tempDir("kitchen-scheduler");
+        try {
+            long[] ready = new long[200];
+            for (int round = 0; round < 3; round++) {
+                DataStore store = new DataStore(true);
+                try (Persistence p = Persistence.open(dir, store)) {
+                    FoodService food = new FoodService(store);
+                    CustomerService cust = new CustomerService(store);
+                    OrderService ord = new OrderService(store);
+                    if (round == 0) {
+                        for (int r = 1; r <= 5; r++) {
+                            food.addRestaurant(r, "Kitchen " + r);
+                            food.addFoodItemToRestaurant(r, 1, "Dish", 100);
+                            food.setPrepTime(r, 1, r * 300);
+                            food.setKitchenCapacity(r, r, 20);
+                        }
+                        for (int c = 1; c <= ready.length; c++) {
+                            cust.addCustomer(c, "c" + c, 9000000000L + c);
+                            cust.addFoodToCart(c, food.findFoodItem(1 + c % 5, 1), 1);
+                            ready[c - 1] = store.getOrder(ord.placeOrder(c, "addr", t0 + c * 1000L, 0)).getReadyAtMillis();
+                        }
+                        // accepted orders keep their stations; cancelled ones keep their bookings
+                        for (int oid = 1; oid <= 20; oid++) ord.updateOrderStatus(oid, OrderStatus.ACCEPTED);
+                        for (int oid = 21; oid <= 30; oid++) ord.updateOrderStatus(oid, OrderStatus.CANCELLED);
+                    }
+                    boolean same = true;
+                    for (int oid = 31; oid <= ready.length; oid++) same &= store.getOrder(oid).getReadyAtMillis() == ready[oid - 1];
+                    KitchenSchedule k = store.restaurants.get(3).getKitchen();
+                    same &= k.getStations() == 3 && k.getMaxWaitMillis() == 20 * minute && food.findFoodItem(3, 1).getPrepSeconds() == 900;
+                    if (round > 0) {
+                        check(same, (round == 1 ? "after a restart" : "after a checkpoint and restart")
+                                + " prep times, capacities and live orders' ETAs are as they were");
+                    }
+                    if (round == 1) p.checkpoint();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // Index of a restaurant (from 1) drawn by its share of the cumulative weights
+    private static int pick(double[] cumulative, SplittableRandom rnd) {
+        double x = rnd.nextDouble() * cumulative[cumulative.length - 1];
+        int i = Arrays.binarySearch(cumulative, x);
+        return 1 + (i >= 0 ? i : -i - 1);
+    }
+
+    // Start-up from a checkpoint of 1M restaurants (-Dbench.restaurants) with 5 dishes each (-Dbench.dishes):
+    // reading every menu (eager) against reading the restaurant index and each menu on first use (lazy).
+    // Timed first inside this JVM, then as a fresh server process from launch to its first answered
+    // menu request, with and without an AppCDS archive of the classes a start loads.
+    static void startup() {
+        int restaurants = Integer.getInteger("bench.restaurants", 1_000_000);
+        int dishes = Integer.getInteger("bench.dishes", 5);
+        int launches = Integer.getInteger("bench.launches", 3);
+        Path dir = tempDir("startup-bench");
+        try {
+            lazyCatalogChecks(dir.resolve("checks"));
+
+            Path data = dir.resolve("data");
+            DataStore db = new DataStore(true);
+            FoodService fs = new FoodService(db);
+            for (int r = 1; r <= restaurants; r++) {
+                fs.addRestaurant(r, "Restaurant " + r);
+                for (int f = 1; f <= dishes; f++) fs.addFoodItemToRestaurant(r, f, "Dish " + (r + f) % 997, 50 + (r * 31 + f * 17) % 400);
+            }
+            long t0 = System.nanoTime();
+            try (Persistence p = Persistence.open(data, db)) {
+                p.checkpoint();
+            }
+            long catalogBytes = 0;
+            try (var files = Files.newDirectoryStream(data, "catalog-*.bin")) {
+                for (Path f : files) catalogBytes += Files.size(f);
+            }
+            System.out.printf("  checkpoint of %d restaurants x %d dishes in %d ms (catalog %.1f MB, snapshot %.1f KB)%n",
+                    restaurants, dishes, (System.nanoTime() - t0) / 1_000_000, catalogBytes / 1e6,
+                    Files.size(data.resolve("snapshot.bin")) / 1e3);
+            db = null;
+            fs = null;
+
+            params(restaurants + " restaurants, in process");
+            long[] openNanos = new long[2], heap = new long[2];
+            for (int mode = 0; mode < 2; mode++) {
+                boolean lazy = mode == 1;
+                long before = retainedHeap();
+                DataStore store = new DataStore(true);
+                long s = System.nanoTime();
+                Persistence p = Persistence.open(data, store, lazy);
+                openNanos[mode] = System.nanoTime() - s;
+                heap[mode] = retainedHeap() - before;
+                FoodService food = new FoodService(store);
+                s = System.nanoTime();
+                FoodItem first = food.findFoodItem(restaurants / 2, 1);
+                long menuNanos = System.nanoTime() - s;
+                s = System.nanoTime();
+                int hits = food.searchFood("dish", 0, Double.MAX_VALUE, 10).size();
+                long searchNanos = System.nanoTime() - s;
+                p.close();
+                check(first != null && hits == 10, (lazy ? "lazy" : "eager") + " start serves menus and search");
+                result((lazy ? "lazy" : "eager") + " open").nsPerOp = openNanos[mode];
+                System.out.printf("  %-5s opened in %5d ms, %6.1f MB retained; first menu lookup %8.1f us, first search %6d ms%n",
+                        lazy ? "lazy" : "eager", openNanos[mode] / 1_000_000, heap[mode] / 1e6, menuNanos / 1e3, searchNanos / 1_000_000);
+            }
+            check(openNanos[1] * 3 < openNanos[0], "a lazy start opens at least 3x sooner than an eager one");
+            check(heap[1] * 2 < heap[0], "a lazy start holds under half the heap of an eager one");
+
+            // fresh processes, timed from launch to the first menu request answered
+            List<String> java = new ArrayList<>(List.of(ProcessHandle.current().info().command().orElse("java"), "-Xmx3g"));
+            String classPath = packClassPath(dir.resolve("ofd.jar"));
+            Path archive = dir.resolve("ofd.jsa");
+            List<String> create = new ArrayList<>(java);
+            create.addAll(List.of("-cp", classPath, OnlineFoodDeliverySystem.class.getName(), "--create-cds-archive", archive.toString()));
+            Process training = new ProcessBuilder(create).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            check(training.waitFor() == 0 && Files.exists(archive), "the training run writes an AppCDS archive");
+
+            params(restaurants + " restaurants, fresh process");
+            long[][] firstResponse = new long[2][2]; // [lazy][cds], median of the launches
+            for (int cds = 0; cds < 2; cds++) {
+                for (int mode = 0; mode < 2; mode++) {
+                    List<String> command = new ArrayList<>(java);
+                    if (cds == 1) command.add("-XX:SharedArchiveFile=" + archive);
+                    command.addAll(List.of("-cp", classPath, OnlineFoodDeliverySystem.class.getName(), "--data-dir", data.toString(),
+                            "--catalog", mode == 1 ? "lazy" : "eager", "--http", "0"));
+                    long[] nanos = new long[launches];
+                    for (int i = 0; i < launches; i++) nanos[i] = firstResponseNanos(command, 1 + (i * 7919) % restaurants);
+                    Arrays.sort(nanos);
+                    firstResponse[mode][cds] = nanos[launches / 2];
+                    String name = (mode == 1 ? "lazy" : "eager") + (cds == 1 ? " + AppCDS" : "");
+                    result(name + " launch to first response").nsPerOp = firstResponse[mode][cds];
+                    System.out.printf("  %-16s launch to first menu response: median %6d ms (best %d ms, %d launches)%n",
+                            name, firstResponse[mode][cds] / 1_000_000, nanos[0] / 1_000_000, launches);
+                }
+            }
+            check(firstResponse[1][0] * 3 < firstResponse[0][0], "a lazy server answers its first request at least 3x sooner");
+            check(firstResponse[1][1] < firstResponse[1][0], "the AppCDS archive shortens a lazy start");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // Lazy and eager starts from the same checkpoint must look the same to the services, and a
+    // lazily started store must checkpoint and replay its journal as an eager one would
+    private static void lazyCatalogChecks(Path dir) throws IOException {
+        int n = 2_000;
+        DataStore db = new DataStore(true);
+        try (Persistence p = Persistence.open(dir, db)) {
+            FoodService fs = new FoodService(db);
+            CustomerService cs = new CustomerService(db);
+            OrderService os = new OrderService(db);
+            for (int r = 1; r <= n; r++) {
+                fs.addRestaurant(r, "Kitchen " + r);
+                for (int f = 1; f <= 5; f++) fs.addFoodItemToRestaurant(r, f, "Thali " + f, 100 + r % 50 + f);
+                if (r % 7 == 0) fs.setStock(r, 1, r);
+                if (r % 11 == 0) fs.setPrepTime(r, 2, 600 + r);
+                if (r % 13 == 0) fs.setKitchenCapacity(r, 1 + r % 5, 30);
+            }
+            cs.addCustomer(1, "asha", 9000000001L);
+            cs.addFoodToCart(1, fs.findFoodItem(14, 1), 2); // holds 2 of restaurant 14's 14 portions
+            cs.addCustomer(2, "ravi", 9000000002L);
+            cs.addFoodToCart(2, fs.findFoodItem(20, 3), 1);
+            os.placeOrder(2, "MG Road");
+            fs.addFoodItemToRestaurant(20, 3, "Thali 3", 150); // the order keeps the old price
+            p.checkpoint();
+        }
+
+        DataStore eager = new DataStore(true), lazy = new DataStore(true);
+        Persistence.open(dir, eager).close();
+        Persistence.open(dir, lazy, true).close();
+        int loaded = 0;
+        for (Restaurant r : lazy.restaurants.values()) if (r.isMenuLoaded()) loaded++;
+        check(loaded == 1 && lazy.restaurants.get(14).isMenuLoaded(), "a lazy start reads only the menus that carts and orders hold items of");
+        FoodItem unread = new FoodService(lazy).findFoodItem(500, 3);
+        check(unread != null && unread.getPrice() == eager.restaurants.get(500).getFoodItem(3).getPrice(), "an item on an unread menu is found by id");
+        boolean same = true;
+        for (int r = 1; r <= n; r++) same &= sameMenu(eager.restaurants.get(r), lazy.restaurants.get(r));
+        same &= lazy.getOrder(1).getLines().iterator().next().getItem().getPrice() == eager.getOrder(1).getLines().iterator().next().getItem().getPrice();
+        check(same, "lazy and eager starts have the same menus, stock, prep times, kitchens and orders");
+
+        DataStore searched = new DataStore(true);
+        Persistence.open(dir, searched, true).close();
+        FoodService food = new FoodService(searched);
+        check(food.searchFood("thali", 0, Double.MAX_VALUE, Integer.MAX_VALUE).size() == n * 5
+                && food.searchRestaurants("kitchen", Integer.MAX_VALUE).size() == n, "the first search after a lazy start sees every menu");
+
+        DataStore copied = new DataStore(true);
+        try (Persistence p = Persistence.open(dir, copied, true)) {
+            new FoodService(copied).addFoodItemToRestaurant(700, 2, "Thali 2", 999);
+            p.checkpoint();
+        }
+        int catalogs = 0;
+        try (var files = Files.newDirectoryStream(dir, "catalog-*.bin")) {
+            for (Path ignored : files) catalogs++;
+        }
+        DataStore reread = new DataStore(true);
+        Persistence.open(dir, reread).close();
+        same = catalogs == 1 && sameMenu(eager.restaurants.get(900), copied.restaurants.get(900));
+        for (int r = 1; r <= n; r++) {
+            if (r != 700) same &= sameMenu(eager.restaurants.get(r), reread.restaurants.get(r));
+        }
+        same &= reread.restaurants.get(700).getFoodItem(2).getPrice() == 999 && reread.restaurants.get(700).getMenu().size() == 5;
+        check(same, "a checkpoint after a lazy start carries the unread menus over as they were");
+
+        DataStore edited = new DataStore(true);
+        Persistence journaled = Persistence.open(dir, edited, true);
+        FoodService fs = new FoodService(edited);
+        fs.setStock(800, 1, 5);
+        fs.addFoodItemToRestaurant(801, 6, "Thali 6", 180);
+        fs.removeFoodItemFromRestaurant(802, 5);
+        fs.setPrepTime(803, 1, 1200);
+        fs.setPrice(804, 1, 321);
+        List<SearchIndex.Hit> live = fs.searchFood("thali", 300, 400, 10);
+        journaled.close();
+        DataStore replayed = new DataStore(true);
+        Persistence.open(dir, replayed, true).close();
+        fs = new FoodService(replayed);
+        check(fs.findFoodItem(800, 1).getStock().available() == 5 && fs.findFoodItem(801, 6) != null
+                        && replayed.restaurants.get(801).getMenu().size() == 6 && fs.findFoodItem(802, 5) == null
+                        && replayed.restaurants.get(802).getMenu().size() == 4 && fs.findFoodItem(803, 1).getPrepSeconds() == 1200
+                        && fs.findFoodItem(804, 1).getPrice() == 321,
+                "journaled edits to unread menus replay on top of the catalog");
+        List<SearchIndex.Hit> back = fs.searchFood("thali", 300, 400, 10);
+        check(live.size() == 1 && live.get(0).getRestaurantId() == 804 && back.size() == 1 && back.get(0).getItem().getId() == 1
+                        && fs.searchFood("thali", 105, 105, 1000).stream().noneMatch(h -> h.getRestaurantId() == 804),
+                "a repriced item is searched by its new price, before and after a restart");
+    }
+
+    private static boolean sameMenu(Restaurant a, Restaurant b) {
+        KitchenSchedule ka = a.getKitchen(), kb = b.getKitchen();
+        if (!a.getName().equals(b.getName()) || ka.getStations() != kb.getStations() || ka.getMaxWaitMillis() != kb.getMaxWaitMillis()) return false;
+        List<FoodItem> ma = new ArrayList<>(a.getMenu()), mb = new ArrayList<>(b.getMenu());
+        if (ma.size() != mb.size()) return false;
+        for (int i = 0; i < ma.size(); i++) {
+            FoodItem x = ma.get(i), y = mb.get(i);
+            long sx = x.getStock() == null ? -1 : x.getStock().available(), sy = y.getStock() == null ? -1 : y.getStock().available();
+            if (x.getId() != y.getId() || !x.getName().equals(y.getName()) || x.getPrice() != y.getPrice()
+                    || x.getPrepSeconds() != y.getPrepSeconds() || sx != sy) return false;
+        }
+        return true;
+    }
+
+    // Launches a server and returns the nanoseconds from launch until it has answered one menu request
+    private static long firstResponseNanos(List<String> command, int restaurantId) throws IOException, InterruptedException {
+        long t0 = System.nanoTime();
+        Process server = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try {
+            BufferedReader out = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+            String prefix = "HTTP API listening on port ", line;
+            int port = -1;
+            while (port < 0 && (line = out.readLine()) != null) {
+                if (line.startsWith(prefix)) port = Integer.parseInt(line.substring(prefix.length()).trim());
+            }
+            if (port < 0) throw new IllegalStateException("server exited before listening: " + command);
+            String menu;
+            try (InputStream in = java.net.URI.create("http://localhost:" + port + "/restaurants/" + restaurantId + "/menu").toURL().openStream()) {
+                menu = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            long elapsed = System.nanoTime() - t0;
+            if (!menu.contains("Dish")) throw new IllegalStateException("unexpected menu: " + menu);
+            return elapsed;
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    // The class path with its directories packed into one jar, since CDS archives classes from jars only
+    private static String packClassPath(Path jar) throws IOException {
+        List<String> entries = new ArrayList<>();
+        entries.add(jar.toString());
+        try (java.util.jar.JarOutputStream out = new java.util.jar.JarOutputStream(Files.newOutputStream(jar))) {
+            for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                Path root = Path.of(entry);
+                if (!Files.isDirectory(root)) {
+                    entries.add(entry);
+                    continue;
+                }
+                List<Path> classes;
+                try (var files = Files.walk(root)) {
+                    classes = files.filter(Files::isRegularFile).sorted().toList();
+                }
+                for (Path f : classes) {
+                    out.putNextEntry(new java.util.jar.JarEntry(root.relativize(f).toString().replace(File.separatorChar, '/')));
+                    Files.copy(f, out);
+                    out.closeEntry();
+                }
+            }
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+}
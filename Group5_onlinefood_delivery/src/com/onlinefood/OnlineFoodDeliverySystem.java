@@ -1,6 +1,52 @@
 package com.onlinefood;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.VarHandle;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 public class OnlineFoodDeliverySystem {
 
@@ -8,40 +54,67 @@ public class OnlineFoodDeliverySystem {
 
     // 1. FoodItem
     static class FoodItem {
+        static final int DEFAULT_PREP_SECONDS = 15 * 60;
+
         private int id;
         private String name;
         private double price;
+        private long pricePaise; // exact price used for all money arithmetic
+        // menu this item was made for, null if none; fixed at construction because equality depends on it.
+        // That menu's version moves with the price.
+        private final Restaurant owner;
+        private volatile Stock stock; // null = unlimited; set by FoodService.setStock
+        private int prepSeconds = DEFAULT_PREP_SECONDS; // kitchen time; set by FoodService.setPrepTime
 
         public FoodItem(int id, String name, double price) {
+            this(null, id, name, price);
+        }
+
+        // An item of owner's menu; only that restaurant will take it
+        FoodItem(Restaurant owner, int id, String name, double price) {
+            this.owner = owner;
             this.id = id;
             this.name = name;
-            this.price = price;
+            setPrice(price);
         }
 
         public int getId() { return id; }
         public String getName() { return name; }
         public double getPrice() { return price; }
+        public long getPricePaise() { return pricePaise; }
+        public Stock getStock() { return stock; }
+        public int getPrepSeconds() { return prepSeconds; }
+
+        void setStock(Stock stock) { this.stock = stock; }
+        void setPrepSeconds(int prepSeconds) { this.prepSeconds = prepSeconds; }
 
         public void setId(int id) { this.id = id; }
         public void setName(String name) { this.name = name; }
-        public void setPrice(double price) { this.price = price; }
+        // Through FoodService.setPrice, which also moves the item in the search index and journals it
+        void setPrice(double price) {
+            this.price = price;
+            this.pricePaise = Math.round(price * 100);
+            if (owner != null) owner.menuChanged(); // after the write, so a cached render can only be stale
+        }
 
         @Override
         public String toString() {
             return "FoodItem{id=" + id + ", name='" + name + "', price=" + price + "}";
         }
 
-        // Needed because FoodItem is used as a key in Map
+        // Needed because FoodItem is used as a key in Map; the same id on two menus is two items
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             FoodItem foodItem = (FoodItem) o;
-            return id == foodItem.id;
+            return id == foodItem.id && restaurantId() == foodItem.restaurantId();
         }
 
         @Override
-        public int hashCode() { return Objects.hash(id); }
+        public int hashCode() { return 31 * id + restaurantId(); }
+
+        private int restaurantId() { return owner == null ? -1 : owner.getId(); }
     }
 
     // 2. User (Base Class)
@@ -72,42 +145,103 @@ public class OnlineFoodDeliverySystem {
 
     // 3. Cart
     static class Cart {
-        private Map<FoodItem, Integer> items = new LinkedHashMap<>();
+        private Map<FoodItem, LineItem> lines = new LinkedHashMap<>();
+        private long totalPaise; // running total, kept in step with every add/remove
+        private long lineDiscountPaise; // running sum of the lines' promotion discounts
+        private Promotion coupon; // taken off what the lines come to, at checkout
 
         public void addItem(FoodItem foodItem, int quantity) {
             if (foodItem == null || quantity <= 0) return;
-            items.merge(foodItem, quantity, Integer::sum);
+            addItem(foodItem, quantity, foodItem.getPricePaise() * quantity);
+        }
+
+        // Items already in the cart are updated in place, without allocating
+        LineItem addItem(FoodItem foodItem, int quantity, long amountPaise) {
+            LineItem line = lines.get(foodItem);
+            if (line == null) {
+                line = new LineItem(foodItem);
+                lines.put(foodItem, line);
+            }
+            line.add(quantity, amountPaise);
+            totalPaise += amountPaise;
+            return line;
         }
 
+        LineItem getLine(FoodItem foodItem) { return lines.get(foodItem); }
+
         public void removeItem(FoodItem foodItem) {
             if (foodItem == null) return;
-            items.remove(foodItem);
+            LineItem line = lines.remove(foodItem);
+            if (line != null) {
+                totalPaise -= line.getAmountPaise();
+                lineDiscountPaise -= line.discountPaise;
+            }
+        }
+
+        // Set by PromotionEngine whenever it prices the line
+        void setLineDiscount(LineItem line, long discountPaise) {
+            lineDiscountPaise += discountPaise - line.discountPaise;
+            line.discountPaise = discountPaise;
         }
 
-        public Map<FoodItem, Integer> getItems() { return items; }
+        Promotion getCoupon() { return coupon; }
+        void setCoupon(Promotion coupon) { this.coupon = coupon; }
 
-        public double getTotalCost() {
-            return items.entrySet().stream()
-                    .mapToDouble(e -> e.getKey().getPrice() * e.getValue())
-                    .sum();
+        public boolean isEmpty() { return lines.isEmpty(); }
+        public Collection<LineItem> getLines() { return Collections.unmodifiableCollection(lines.values()); }
+
+        // Copy of the item quantities; use getLines() on hot paths
+        public Map<FoodItem, Integer> getItems() { return LineItem.quantities(lines.values()); }
+
+        // Before promotions; see getPayablePaise
+        public long getTotalPaise() { return totalPaise; }
+
+        // Line promotions plus the coupon; negative when surge pricing outweighs the discounts
+        public long getDiscountPaise() {
+            long afterLines = totalPaise - lineDiscountPaise;
+            return lineDiscountPaise + (coupon == null ? 0 : coupon.couponDiscount(afterLines));
+        }
+
+        public long getPayablePaise() { return totalPaise - getDiscountPaise(); }
+        public double getTotalCost() { return getPayablePaise() / 100.0; }
+
+        // Hands the lines over to an order and leaves the cart empty
+        Map<FoodItem, LineItem> drainLines() {
+            Map<FoodItem, LineItem> drained = lines;
+            lines = new LinkedHashMap<>();
+            totalPaise = 0;
+            lineDiscountPaise = 0;
+            coupon = null;
+            return drained;
+        }
+
+        static String formatRupees(long paise) {
+            long abs = Math.abs(paise);
+            return (paise < 0 ? "-" : "") + abs / 100 + "." + (abs % 100 < 10 ? "0" : "") + abs % 100;
         }
 
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
-            if (items.isEmpty()) {
+            if (lines.isEmpty()) {
                 sb.append("Cart is empty\n");
             } else {
-                for (Map.Entry<FoodItem, Integer> e : items.entrySet()) {
-                    FoodItem fi = e.getKey();
-                    int qty = e.getValue();
-                    double cost = fi.getPrice() * qty;
-                    sb.append("Food Item: ").append(fi.getName())
-                      .append(", Quantity: ").append(qty)
-                      .append(", Cost: Rs. ").append(cost)
-                      .append("\n");
+                for (LineItem line : lines.values()) {
+                    sb.append("Food Item: ").append(line.getItem().getName())
+                      .append(", Quantity: ").append(line.getQuantity())
+                      .append(", Cost: Rs. ").append(formatRupees(line.getAmountPaise()));
+                    if (line.discountPaise > 0) sb.append(" (offer: -Rs. ").append(formatRupees(line.discountPaise)).append(")");
+                    else if (line.discountPaise < 0) sb.append(" (surge: +Rs. ").append(formatRupees(-line.discountPaise)).append(")");
+                    sb.append("\n");
                 }
-                sb.append("Total Cost: Rs. ").append(getTotalCost()).append("\n");
+                long discount = getDiscountPaise();
+                if (discount != 0) {
+                    sb.append("Subtotal: Rs. ").append(formatRupees(totalPaise)).append("\n");
+                    sb.append(discount > 0 ? "Discounts: -Rs. " : "Surge: +Rs. ").append(formatRupees(Math.abs(discount)));
+                    if (coupon != null) sb.append(" (coupon ").append(coupon.getCode()).append(")");
+                    sb.append("\n");
+                }
+                sb.append("Total Cost: Rs. ").append(formatRupees(totalPaise - discount)).append("\n");
             }
             return sb.toString();
         }
@@ -129,6 +263,11 @@ public class OnlineFoodDeliverySystem {
         private int deliveryPersonId;
         private String name;
         private long contactNo;
+        // dispatch state, owned by DispatchEngine
+        private double latitude, longitude;
+        private int capacity = 1;  // orders carried at once
+        private int activeOrders;
+        private boolean available = true;
 
         public DeliveryPerson(int deliveryPersonId, String name, long contactNo) {
             this.deliveryPersonId = deliveryPersonId;
@@ -136,259 +275,6959 @@ public class OnlineFoodDeliverySystem {
             this.contactNo = contactNo;
         }
 
-        public int getDeliveryPersonId() { return deliveryPersonId; }
-        public String getName() { return name; }
-        public long getContactNo() { return contactNo; }
+        public int getDeliveryPersonId() { return deliveryPersonId; }
+        public String getName() { return name; }
+        public long getContactNo() { return contactNo; }
+        public double getLatitude() { return latitude; }
+        public double getLongitude() { return longitude; }
+        public int getCapacity() { return capacity; }
+        public int getActiveOrders() { return activeOrders; }
+        public boolean isAvailable() { return available; }
+
+        public void setLocation(double latitude, double longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+        public void setCapacity(int capacity) { this.capacity = capacity; }
+        public void setActiveOrders(int activeOrders) { this.activeOrders = activeOrders; }
+        public void setAvailable(boolean available) { this.available = available; }
+
+        @Override
+        public String toString() {
+            return "DeliveryPerson{" +
+                    "deliveryPersonId=" + deliveryPersonId +
+                    ", name='" + name + '\'' +
+                    ", contactNo=" + contactNo +
+                    '}';
+        }
+    }
+
+    // 6. Restaurant
+    static class Restaurant {
+        private int id;
+        private String name;
+        private Map<Integer, FoodItem> menu = new LinkedHashMap<>(); // keyed by food id, display order; edited under this
+        private volatile List<FoodItem> menuSnapshot = List.of(); // immutable copy for readers; null after an edit
+        private final AtomicLong menuVersion = new AtomicLong(); // bumped by every menu or price change
+        private final KitchenSchedule kitchen = new KitchenSchedule();
+        private volatile CatalogFile catalog; // set while the menu is still only in the catalog; see loadMenu
+        private long menuOffset;
+        private int menuLength;
+
+        public Restaurant(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        // A restaurant whose menu stays in the catalog until it is first used
+        Restaurant(int id, String name, CatalogFile catalog, long menuOffset, int menuLength) {
+            this(id, name);
+            this.catalog = catalog;
+            this.menuOffset = menuOffset;
+            this.menuLength = menuLength;
+            menuSnapshot = null;
+        }
+
+        public int getId() { return id; }
+        public String getName() { return name; }
+        public FoodItem getFoodItem(int foodItemId) {
+            loadMenu();
+            return menu.get(foodItemId);
+        }
+        public long getMenuVersion() { return menuVersion.get(); }
+        public KitchenSchedule getKitchen() { return kitchen; }
+
+        // Immutable and safe to read without the lock; copied at most once per edit
+        public Collection<FoodItem> getMenu() {
+            List<FoodItem> snapshot = menuSnapshot;
+            if (snapshot == null) {
+                loadMenu();
+                synchronized (this) {
+                    snapshot = menuSnapshot;
+                    if (snapshot == null) menuSnapshot = snapshot = List.copyOf(menu.values());
+                }
+            }
+            return snapshot;
+        }
+
+        public synchronized void addFoodItem(FoodItem item) {
+            if (item.owner != this) throw new IllegalArgumentException("food item " + item.getId() + " was not made for this menu");
+            loadMenu();
+            // replace if same id exists (the replacement moves to the end, as before)
+            menu.remove(item.getId());
+            menu.put(item.getId(), item);
+            menuSnapshot = null;
+            menuChanged();
+        }
+
+        public synchronized boolean removeFoodItem(int foodItemId) {
+            loadMenu();
+            if (menu.remove(foodItemId) == null) return false;
+            menuSnapshot = null;
+            menuChanged();
+            return true;
+        }
+
+        void menuChanged() { menuVersion.incrementAndGet(); }
+
+        boolean isMenuLoaded() { return catalog == null; }
+
+        // Reads the menu out of the catalog the first time anything needs it
+        void loadMenu() {
+            if (catalog == null) return;
+            synchronized (this) {
+                CatalogFile c = catalog;
+                if (c == null) return;
+                c.readMenu(this, menuOffset);
+                catalog = null;
+            }
+        }
+
+        // Adds an item read from the catalog; caller holds the lock
+        void putCatalogItem(FoodItem item) {
+            menu.put(item.getId(), item);
+        }
+
+        // The catalog this menu still sits in and where, for a snapshot to copy it as it is; caller holds the lock
+        CatalogFile catalog() { return catalog; }
+        long menuOffset() { return menuOffset; }
+        int menuLength() { return menuLength; }
+
+        // Points a menu nobody has read yet at its copy in a newer catalog; caller holds the lock
+        void moveMenu(CatalogFile catalog, long menuOffset) {
+            this.menuOffset = menuOffset;
+            this.catalog = catalog;
+        }
+
+        @Override
+        public String toString() {
+            loadMenu();
+            return "Restaurant{" +
+                    "id=" + id +
+                    ", name='" + name + '\'' +
+                    ", menuSize=" + menu.size() +
+                    '}';
+        }
+    }
+
+    // 7. Order
+    static class Order {
+        private int orderId;
+        private Customer customer;
+        private Map<FoodItem, LineItem> lines;
+        private long totalPaise;
+        private OrderStatus status = OrderStatus.PLACED; // default - PLACED
+        private DeliveryPerson deliveryPerson; // can be null
+        private String deliveryAddress;
+        private long placedAtMillis;
+        private long completedAtMillis; // 0 until the order reaches a terminal status
+        private long discountPaise; // promotions and coupon at checkout; totalPaise stays the list price
+        private int parentOrderId; // the checkout this sub-order was split from, 0 if it was not split
+        private long readyAtMillis; // kitchen's estimate, booked when the order is placed; 0 if it has none
+
+        public Order(int orderId, Customer customer) {
+            this(orderId, customer, new LinkedHashMap<>(), 0);
+        }
+
+        // Takes ownership of lines drained from a cart; nothing is copied
+        Order(int orderId, Customer customer, Map<FoodItem, LineItem> lines, long totalPaise) {
+            this.orderId = orderId;
+            this.customer = customer;
+            this.lines = lines;
+            this.totalPaise = totalPaise;
+        }
+
+        public int getOrderId() { return orderId; }
+        public Customer getCustomer() { return customer; }
+        public Collection<LineItem> getLines() { return Collections.unmodifiableCollection(lines.values()); }
+        public Map<FoodItem, Integer> getItems() { return LineItem.quantities(lines.values()); }
+        public long getTotalPaise() { return totalPaise; }
+        public OrderStatus getStatus() { return status; }
+        public DeliveryPerson getDeliveryPerson() { return deliveryPerson; }
+        public String getDeliveryAddress() { return deliveryAddress; }
+        public long getPlacedAtMillis() { return placedAtMillis; }
+        public long getCompletedAtMillis() { return completedAtMillis; }
+        public long getDiscountPaise() { return discountPaise; }
+        public long getPayablePaise() { return totalPaise - discountPaise; }
+        public int getParentOrderId() { return parentOrderId; }
+        public long getReadyAtMillis() { return readyAtMillis; }
+
+        // Checkout splits carts so that every line of an order comes from one restaurant; null if
+        // the items are on no menu
+        public Restaurant getRestaurant() {
+            for (LineItem l : lines.values()) return l.getItem().owner;
+            return null;
+        }
+
+        public void setStatus(OrderStatus status) { this.status = status; }
+        public void setDeliveryPerson(DeliveryPerson deliveryPerson) { this.deliveryPerson = deliveryPerson; }
+        public void setDeliveryAddress(String deliveryAddress) { this.deliveryAddress = deliveryAddress; }
+        public void setPlacedAtMillis(long placedAtMillis) { this.placedAtMillis = placedAtMillis; }
+        public void setCompletedAtMillis(long completedAtMillis) { this.completedAtMillis = completedAtMillis; }
+        public void setDiscountPaise(long discountPaise) { this.discountPaise = discountPaise; }
+        public void setParentOrderId(int parentOrderId) { this.parentOrderId = parentOrderId; }
+        void setReadyAtMillis(long readyAtMillis) { this.readyAtMillis = readyAtMillis; }
+
+        // The dishes are cooked side by side, so the order takes as long as the slowest one
+        public long getPrepMillis() {
+            int seconds = 0;
+            for (LineItem l : lines.values()) seconds = Math.max(seconds, l.getItem().getPrepSeconds());
+            return seconds * 1000L;
+        }
+
+        public void addItem(FoodItem item, int qty) {
+            if (item == null || qty <= 0) return;
+            addItem(item, qty, item.getPricePaise() * qty);
+        }
+
+        void addItem(FoodItem item, int qty, long amountPaise) {
+            lines.computeIfAbsent(item, LineItem::new).add(qty, amountPaise);
+            totalPaise += amountPaise;
+        }
+
+        // Takes over a line drained from a cart as-is
+        void addLine(LineItem line) {
+            lines.put(line.getItem(), line);
+            totalPaise += line.getAmountPaise();
+        }
+
+        @Override
+        public String toString() {
+            String dp = (deliveryPerson == null) ? "Not Assigned" : deliveryPerson.getName();
+            Restaurant r = getRestaurant();
+            return "Order{" +
+                    "orderId=" + orderId +
+                    (parentOrderId > 0 ? ", parentOrderId=" + parentOrderId : "") +
+                    ", customer=" + customer.getUsername() +
+                    ", restaurant=" + (r == null ? "Unknown" : r.getName()) +
+                    ", items=" + getItems() +
+                    ", total=Rs. " + Cart.formatRupees(totalPaise) +
+                    (discountPaise != 0 ? ", payable=Rs. " + Cart.formatRupees(totalPaise - discountPaise) : "") +
+                    ", status='" + status + '\'' +
+                    ", deliveryPerson=" + dp +
+                    '}';
+        }
+    }
+
+    // 8. LineItem (one food item and its quantity inside a cart or order)
+    static class LineItem {
+        private final FoodItem item;
+        private int quantity;
+        private long amountPaise; // sum of the prices in effect when each unit was added
+        // stock held for this cart line and the hold that releases it; guarded by the customer's lock
+        int reserved;
+        volatile Reservation reservation;
+        // promotions on this line as last priced, negative under surge pricing; carts only
+        long discountPaise;
+
+        LineItem(FoodItem item) { this.item = item; }
+
+        public FoodItem getItem() { return item; }
+        public int getQuantity() { return quantity; }
+        public long getAmountPaise() { return amountPaise; }
+
+        void add(int qty, long amount) {
+            quantity += qty;
+            amountPaise += amount;
+        }
+
+        static Map<FoodItem, Integer> quantities(Collection<LineItem> lines) {
+            Map<FoodItem, Integer> m = new LinkedHashMap<>();
+            for (LineItem l : lines) m.put(l.getItem(), l.getQuantity());
+            return m;
+        }
+    }
+
+    // 9. OrderStatus (order lifecycle; OrderService only moves an order along these edges)
+    enum OrderStatus {
+        PLACED, ACCEPTED, PREPARING, PICKED_UP, DELIVERED, CANCELLED;
+
+        private static final OrderStatus[] VALUES = values();
+
+        static OrderStatus of(int ordinal) { return VALUES[ordinal]; }
+
+        boolean canTransitionTo(OrderStatus next) {
+            return switch (this) {
+                case PLACED -> next == ACCEPTED || next == CANCELLED;
+                case ACCEPTED -> next == PREPARING || next == CANCELLED;
+                case PREPARING -> next == PICKED_UP || next == CANCELLED;
+                case PICKED_UP -> next == DELIVERED;
+                case DELIVERED, CANCELLED -> false;
+            };
+        }
+
+        boolean isTerminal() { return this == DELIVERED || this == CANCELLED; }
+    }
+
+    // ====== DATA STORE (in-memory) ======
+    // Every menu item by (restaurantId, foodId), open-addressed on DataStore.foodKey so a lookup boxes
+    // nothing. Writers serialize on the table; readers take no lock. A slot's key is written once,
+    // before its item is released, and stays; a removed item leaves REMOVED behind so probe chains
+    // stay whole. Growing rehashes the live items into a new Slots and publishes it in one write.
+    static class FoodItemIndex {
+        private static final FoodItem REMOVED = new FoodItem(-1, "", 0);
+
+        private static final class Slots {
+            final int mask;
+            final long[] keys;
+            final AtomicReferenceArray<FoodItem> items; // null = never used
+
+            Slots(int capacity) {
+                mask = capacity - 1;
+                keys = new long[capacity];
+                items = new AtomicReferenceArray<>(capacity);
+            }
+        }
+
+        private volatile Slots slots = new Slots(64);
+        private volatile int size;
+        private int used; // slots holding a key, removed ones included
+
+        int size() { return size; }
+
+        FoodItem get(int restaurantId, int foodId) { return get(DataStore.foodKey(restaurantId, foodId)); }
+
+        FoodItem get(long key) {
+            Slots t = slots;
+            for (int i = slot(key, t.mask); ; i = (i + 1) & t.mask) {
+                FoodItem item = t.items.getAcquire(i);
+                if (item == null) return null;
+                if (t.keys[i] == key) return item == REMOVED ? null : item;
+            }
+        }
+
+        synchronized void put(int restaurantId, int foodId, FoodItem item) {
+            long key = DataStore.foodKey(restaurantId, foodId);
+            Slots t = slots;
+            int i = slot(key, t.mask);
+            for (FoodItem held; (held = t.items.getPlain(i)) != null; i = (i + 1) & t.mask) {
+                if (t.keys[i] == key) {
+                    if (held == REMOVED) size++;
+                    t.items.setRelease(i, item);
+                    return;
+                }
+            }
+            t.keys[i] = key; // published by the release below
+            t.items.setRelease(i, item);
+            size++;
+            if (++used * 2 > t.keys.length) grow();
+        }
+
+        synchronized void remove(int restaurantId, int foodId) {
+            long key = DataStore.foodKey(restaurantId, foodId);
+            Slots t = slots;
+            for (int i = slot(key, t.mask); ; i = (i + 1) & t.mask) {
+                FoodItem held = t.items.getPlain(i);
+                if (held == null) return;
+                if (t.keys[i] == key) {
+                    if (held != REMOVED) {
+                        t.items.setRelease(i, REMOVED);
+                        size--;
+                    }
+                    return;
+                }
+            }
+        }
+
+        // Load factor <= 0.5 counting removed slots; they are dropped here
+        private void grow() {
+            Slots t = slots;
+            Slots bigger = new Slots(size * 2 > t.keys.length / 2 ? t.keys.length * 2 : t.keys.length);
+            for (int j = 0; j < t.keys.length; j++) {
+                FoodItem item = t.items.getPlain(j);
+                if (item == null || item == REMOVED) continue;
+                int i = slot(t.keys[j], bigger.mask);
+                while (bigger.items.getPlain(i) != null) i = (i + 1) & bigger.mask;
+                bigger.keys[i] = t.keys[j];
+                bigger.items.setPlain(i, item);
+            }
+            used = size;
+            slots = bigger; // volatile write publishes the filled table
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+
+    // concurrent = true swaps in concurrent maps so the services can be called from many threads
+    static class DataStore {
+        private static final int LOCK_STRIPES = 1024; // power of two
+
+        final boolean concurrent;
+        final Map<Integer, Restaurant> restaurants;
+        final Map<Integer, Customer> customers;
+        final Map<Integer, DeliveryPerson> deliveryPeople;
+        final Map<Integer, Order> orders; // live orders; delivered and cancelled ones move to the archive
+        final OrderArchive archive;
+        final AtomicInteger nextOrderId = new AtomicInteger(1);
+
+        // (restaurantId, foodId) -> FoodItem across all menus, kept in sync by FoodService; menus still
+        // in a lazily loaded catalog join it when they are read (see findFoodItem)
+        final FoodItemIndex foodItems;
+
+        // name search over restaurants and menus, also kept in sync by FoodService
+        final SearchIndex search = new SearchIndex();
+
+        // the catalog some menus are still waiting in after a lazy start; null once every menu is read
+        volatile CatalogFile catalog;
+
+        // admin figures kept current by addOrder and archiveOrder
+        final LiveAnalytics analytics = new LiveAnalytics();
+
+        // rendered menus, invalidated by each restaurant's menu version
+        final MenuCache menuCache = new MenuCache(10_000);
+
+        // promotion rules that carts are priced against
+        final PromotionEngine promotions = new PromotionEngine();
+
+        // orders placed under an idempotency key in the last hour (at most 16M keys)
+        final IdempotencyCache idempotency = new IdempotencyCache(60 * 60_000, 1 << 24);
+
+        // expiry of the stock that carts hold: 1 s ticks, 1024 slots (one rotation outlasts a hold)
+        final ReservationWheel reservations = new ReservationWheel(1000, 1024, System.currentTimeMillis(), this::expireHold);
+        long holdMillis = 15 * 60_000;
+        // set while Persistence replays the journal: stock is then taken without checking, since the
+        // log may order a take just before the release that made room for it
+        volatile boolean recovering;
+
+        // secondary indexes over orders (order ids, in placement order)
+        // a customer's id list covers archived orders too and is only touched under that customer's lock;
+        // the delivery person and status indexes cover live orders only
+        final Map<Integer, IntList> ordersByCustomer;
+        final Map<Integer, Set<Integer>> ordersByDeliveryPerson;
+        final Map<OrderStatus, Set<Integer>> ordersByStatus = new EnumMap<>(OrderStatus.class); // fixed keys, filled up front
+
+        // every status transition (including placement) is published here
+        final OrderEventBus events = new OrderEventBus(1 << 16);
+
+        // placed orders waiting at each restaurant; kept in step by addOrder, setStatus and archiveOrder
+        final KitchenQueues kitchens;
+
+        // per-customer striped locks guarding the cart and the customer's order index
+        private final Object[] customerLocks;
+
+        // every service mutation is appended here; attached by Persistence.open
+        Journal journal = Journal.DISABLED;
+
+        public DataStore() { this(false); }
+
+        public DataStore(boolean concurrent) {
+            this.concurrent = concurrent;
+            restaurants = newMap();
+            customers = newMap();
+            deliveryPeople = newMap();
+            orders = concurrent ? new ConcurrentSkipListMap<>() : new LinkedHashMap<>();
+            archive = new OrderArchive(customers, deliveryPeople);
+            foodItems = new FoodItemIndex();
+            ordersByCustomer = newMap();
+            ordersByDeliveryPerson = newMap();
+            for (OrderStatus st : OrderStatus.values()) ordersByStatus.put(st, newIdSet());
+            kitchens = new KitchenQueues(concurrent);
+            customerLocks = new Object[concurrent ? LOCK_STRIPES : 1];
+            for (int i = 0; i < customerLocks.length; i++) customerLocks[i] = new Object();
+        }
+
+        private <K, V> Map<K, V> newMap() {
+            return concurrent ? new ConcurrentHashMap<>() : new LinkedHashMap<>();
+        }
+
+        private Set<Integer> newIdSet() {
+            return concurrent ? ConcurrentHashMap.newKeySet() : new LinkedHashSet<>();
+        }
+
+        static long foodKey(int restaurantId, int foodId) {
+            return ((long) restaurantId << 32) | (foodId & 0xFFFFFFFFL);
+        }
+
+        Object customerLock(int customerId) {
+            int h = customerId * 0x9E3779B9; // spread consecutive ids across stripes
+            return customerLocks[(h ^ (h >>> 16)) & (customerLocks.length - 1)];
+        }
+
+        // Reserves count consecutive order ids and returns the first one
+        int allocateOrderIds(int count) {
+            return nextOrderId.getAndAdd(count);
+        }
+
+        // Adds quantity to the portions the line holds and restarts its hold. Caller holds the customer's lock.
+        void hold(int customerId, LineItem line, int quantity) {
+            line.reserved += quantity;
+            Reservation r = new Reservation(customerId, line, System.currentTimeMillis() + holdMillis);
+            line.reservation = r;
+            reservations.schedule(r);
+        }
+
+        // Returns the line's held portions to stock. Caller holds the customer's lock.
+        void releaseHold(LineItem line) {
+            if (line.reserved > 0) line.getItem().getStock().add(line.reserved);
+            line.reserved = 0;
+            line.reservation = null;
+        }
+
+        // At checkout: held portions become sales and lines whose hold expired take theirs now.
+        // False, with nothing taken, if one of those has sold out. Caller holds the customer's lock.
+        boolean confirmStock(Cart cart) {
+            int taken = 0;
+            for (LineItem l : cart.getLines()) {
+                Stock s = l.getItem().getStock();
+                int missing = l.getQuantity() - l.reserved;
+                if (s != null && missing > 0 && !s.take(missing, recovering)) {
+                    for (LineItem back : cart.getLines()) {
+                        if (taken-- == 0) break;
+                        Stock bs = back.getItem().getStock();
+                        if (bs != null && back.getQuantity() > back.reserved) bs.add(back.getQuantity() - back.reserved);
+                    }
+                    return false;
+                }
+                taken++;
+            }
+            for (LineItem l : cart.getLines()) {
+                l.reserved = 0;
+                l.reservation = null;
+            }
+            return true;
+        }
+
+        // Called by the reservation wheel; the line stays in the cart and takes its portions again at checkout
+        private void expireHold(Reservation r) {
+            long seq;
+            synchronized (customerLock(r.customerId)) {
+                if (r.line.reservation != r) return;
+                Stock s = r.line.getItem().getStock();
+                releaseHold(r.line);
+                seq = journal.logReleaseHold(r.customerId, s.restaurantId, s.foodId);
+            }
+            journal.commitApplied(seq);
+        }
+
+        // Restaurants a cart's lines come from; items on no menu count as one more. Caller holds the customer's lock.
+        static int restaurantCount(Cart cart) {
+            List<Restaurant> seen = null; // only for carts that turn out to span restaurants
+            Restaurant first = null;
+            boolean any = false;
+            for (LineItem l : cart.getLines()) {
+                Restaurant r = l.getItem().owner;
+                if (!any) {
+                    first = r;
+                    any = true;
+                } else if (r != first) {
+                    if (seen == null) {
+                        seen = new ArrayList<>();
+                        seen.add(first);
+                    }
+                    if (!seen.contains(r)) seen.add(r);
+                }
+            }
+            return seen == null ? 1 : seen.size();
+        }
+
+        // Moves the cart's lines into the orders placed from it: a single order with id firstId, or for
+        // a cart from several restaurants one sub-order per restaurant (in the order the cart met them)
+        // with the ids after the parent id firstId. Line promotions stay with their lines; the coupon is
+        // shared in proportion to what each sub-order comes to after them, the rounding going to the
+        // last. Replay passes split, the logged restaurant of each sub-order, and gets those sub-orders
+        // whatever the cart holds now. Caller holds the customer's lock.
+        Order[] drainCart(Customer c, int restaurants, int[] split, int firstId, long discountPaise, String address,
+                long placedAtMillis) {
+            Cart cart = c.getCart();
+            long total = cart.getTotalPaise();
+            Map<FoodItem, LineItem> drained = cart.drainLines();
+            if (restaurants == 1) {
+                Order o = new Order(firstId, c, drained, total);
+                stamp(o, discountPaise, address, placedAtMillis);
+                return new Order[] {o};
+            }
+            Order[] subs = new Order[restaurants];
+            List<Restaurant> owners = new ArrayList<>(restaurants);
+            if (split != null) {
+                for (int g = 0; g < restaurants; g++) {
+                    owners.add(split[g] < 0 ? null : this.restaurants.get(split[g]));
+                    subs[g] = new Order(firstId + 1 + g, c);
+                    subs[g].setParentOrderId(firstId);
+                }
+            }
+            long[] lineDiscounts = new long[restaurants];
+            long lineDiscountTotal = 0;
+            for (LineItem l : drained.values()) {
+                Restaurant r = l.getItem().owner;
+                int g = owners.indexOf(r);
+                if (g < 0 && owners.size() == restaurants) {
+                    g = restaurants - 1; // a replayed cart holding a restaurant its logged split did not
+                } else if (g < 0) {
+                    g = owners.size();
+                    owners.add(r);
+                    subs[g] = new Order(firstId + 1 + g, c);
+                    subs[g].setParentOrderId(firstId);
+                }
+                subs[g].addLine(l);
+                lineDiscounts[g] += l.discountPaise;
+                lineDiscountTotal += l.discountPaise;
+            }
+            long coupon = discountPaise - lineDiscountTotal, afterLines = total - lineDiscountTotal, shared = 0;
+            for (int g = 0; g < restaurants; g++) {
+                long share = g == restaurants - 1 ? coupon - shared
+                        : afterLines == 0 ? 0 : coupon * (subs[g].getTotalPaise() - lineDiscounts[g]) / afterLines;
+                shared += share;
+                stamp(subs[g], lineDiscounts[g] + share, address, placedAtMillis);
+            }
+            return subs;
+        }
+
+        private static void stamp(Order o, long discountPaise, String address, long placedAtMillis) {
+            o.setDeliveryAddress(address);
+            o.setPlacedAtMillis(placedAtMillis);
+            o.setDiscountPaise(discountPaise);
+        }
+
+        // A menu item, reading its restaurant's menu from the catalog first if it has not been yet
+        FoodItem findFoodItem(int restaurantId, int foodId) {
+            FoodItem item = foodItems.get(restaurantId, foodId);
+            if (item != null || catalog == null) return item;
+            Restaurant r = restaurants.get(restaurantId);
+            return r == null ? null : r.getFoodItem(foodId);
+        }
+
+        // Reads every menu still in the catalog, for the things that need all of them, such as search
+        void loadCatalog() {
+            CatalogFile c = catalog;
+            if (c == null) return;
+            for (Restaurant r : restaurants.values()) r.loadMenu();
+            catalog = null;
+        }
+
+        // Caller must hold customerLock(o.getCustomer().getUserId())
+        void addOrder(Order o) {
+            int oid = o.getOrderId();
+            ordersByCustomer.computeIfAbsent(o.getCustomer().getUserId(), k -> new IntList()).add(oid);
+            analytics.placed(o);
+            // every order was booked on its kitchen when it was placed, so a snapshot's orders are booked
+            // again in id order, finished ones too, and later ETAs come out as they did before the restart
+            if (o.getStatus() != OrderStatus.PLACED) kitchens.book(o);
+            if (o.getStatus().isTerminal()) {
+                archive.append(o);
+                analytics.completed(o);
+                return;
+            }
+            orders.put(oid, o);
+            ordersByStatus.get(o.getStatus()).add(oid);
+            if (o.getStatus() == OrderStatus.PLACED) kitchens.enqueue(o);
+            if (o.getDeliveryPerson() != null) {
+                ordersByDeliveryPerson.computeIfAbsent(o.getDeliveryPerson().getDeliveryPersonId(), k -> newIdSet()).add(oid);
+            }
+        }
+
+        // addOrder for a batch of just-placed orders: the status index and order map take the whole
+        // batch first, then each customer's index under its lock, so an id in a customer's history
+        // always resolves
+        void addPlacedOrders(Order[] batch, int count) {
+            Set<Integer> placed = ordersByStatus.get(OrderStatus.PLACED);
+            for (int i = 0; i < count; i++) {
+                Order o = batch[i];
+                placed.add(o.getOrderId());
+                orders.put(o.getOrderId(), o);
+                kitchens.enqueue(o);
+                analytics.placed(o);
+            }
+            for (int i = 0; i < count; i++) {
+                Order o = batch[i];
+                int cid = o.getCustomer().getUserId();
+                synchronized (customerLock(cid)) {
+                    ordersByCustomer.computeIfAbsent(cid, k -> new IntList()).add(o.getOrderId());
+                }
+                events.publish(o.getOrderId(), null, OrderStatus.PLACED);
+            }
+        }
+
+        // False if the order was archived in the meantime
+        boolean setDeliveryPerson(Order o, DeliveryPerson dp) {
+            synchronized (o) {
+                int oid = o.getOrderId();
+                if (orders.get(oid) != o) return false;
+                DeliveryPerson old = o.getDeliveryPerson();
+                if (old != null) {
+                    Set<Integer> ids = ordersByDeliveryPerson.get(old.getDeliveryPersonId());
+                    if (ids != null) ids.remove(oid);
+                }
+                o.setDeliveryPerson(dp);
+                ordersByDeliveryPerson.computeIfAbsent(dp.getDeliveryPersonId(), k -> newIdSet()).add(oid);
+                return true;
+            }
+        }
+
+        void setStatus(Order o, OrderStatus status) {
+            synchronized (o) {
+                int oid = o.getOrderId();
+                ordersByStatus.get(o.getStatus()).remove(oid);
+                if (o.getStatus() == OrderStatus.PLACED) kitchens.remove(o);
+                o.setStatus(status);
+                ordersByStatus.get(status).add(oid);
+            }
+        }
+
+        // Moves an order that just reached a terminal status out of the live map and indexes into
+        // the archive. Caller holds the order's lock. It is appended before it leaves the live map,
+        // so getOrder always finds it in one or the other.
+        void archiveOrder(Order o, OrderStatus status, long completedAtMillis) {
+            int oid = o.getOrderId();
+            ordersByStatus.get(o.getStatus()).remove(oid);
+            if (o.getStatus() == OrderStatus.PLACED) kitchens.remove(o);
+            o.setStatus(status);
+            o.setCompletedAtMillis(completedAtMillis);
+            archive.append(o);
+            orders.remove(oid);
+            analytics.completed(o);
+            DeliveryPerson dp = o.getDeliveryPerson();
+            if (dp != null) {
+                Set<Integer> ids = ordersByDeliveryPerson.get(dp.getDeliveryPersonId());
+                if (ids != null) ids.remove(oid);
+            }
+        }
+
+        // A live order, or an archived one rebuilt from its row (a new object on every call)
+        Order getOrder(int orderId) {
+            Order o = orders.get(orderId);
+            return o != null ? o : archive.get(orderId);
+        }
+
+        boolean hasOrder(int orderId) {
+            return orders.containsKey(orderId) || archive.contains(orderId);
+        }
+
+        int orderCount() {
+            return orders.size() + archive.size();
+        }
+    }
+
+    // Growable int array, for id lists that would otherwise box every element
+    static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int v) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        int get(int i) {
+            if (i >= size) throw new IndexOutOfBoundsException(i);
+            return values[i];
+        }
+
+        int size() { return size; }
+
+        int[] toArray() { return Arrays.copyOf(values, size); }
+    }
+
+    // ====== STOCK ======
+
+    // Portions of one menu item left to sell. The count is split over padded stripes so buyers on
+    // different threads update different cache lines instead of queueing on one lock or one CAS
+    // word. A stripe only ever moves down by qty from a value >= qty, so neither a stripe nor the
+    // total can drop below zero. A buyer tries its own stripe, then any stripe that covers the
+    // whole quantity, and only then gathers from several, handing back what it took if the total
+    // falls short. Portions held in carts are not counted here.
+    static class Stock {
+        private static final int STRIPES = 16; // power of two
+        private static final int PAD = 16; // longs between stripes: 128 bytes, clear of adjacent-line prefetch
+
+        final int restaurantId, foodId;
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+        Stock(int restaurantId, int foodId) {
+            this.restaurantId = restaurantId;
+            this.foodId = foodId;
+        }
+
+        long available() {
+            long sum = 0;
+            for (int s = 0; s < STRIPES; s++) sum += cells.get(s * PAD);
+            return sum;
+        }
+
+        // Takes qty portions, or nothing if fewer are left. force takes them regardless, for journal
+        // replay, where an order logged just before the release that made room for it must still apply.
+        boolean take(int qty, boolean force) {
+            if (force) {
+                if (!take(qty, false)) cells.getAndAdd(0, -qty);
+                return true;
+            }
+            int home = home();
+            for (int i = 0; i < STRIPES; i++) {
+                if (takeAll((home + i) & (STRIPES - 1), qty)) return true;
+            }
+            long taken = 0;
+            long[] parts = new long[STRIPES];
+            for (int i = 0; i < STRIPES && taken < qty; i++) {
+                int s = (home + i) & (STRIPES - 1);
+                parts[s] = takeUpTo(s, qty - taken);
+                taken += parts[s];
+            }
+            if (taken == qty) return true;
+            for (int s = 0; s < STRIPES; s++) {
+                if (parts[s] > 0) cells.getAndAdd(s * PAD, parts[s]);
+            }
+            return false;
+        }
+
+        // Returns portions (an expired hold, a cancelled take) to this thread's stripe
+        void add(long portions) {
+            cells.getAndAdd(home() * PAD, portions);
+        }
+
+        // Sets the portions left to sell, spread evenly over the stripes, and returns the change
+        long reset(long portions) {
+            long drained = 0;
+            for (int s = 0; s < STRIPES; s++) drained += cells.getAndSet(s * PAD, 0);
+            for (int s = 0; s < STRIPES; s++) cells.getAndAdd(s * PAD, portions / STRIPES + (s < portions % STRIPES ? 1 : 0));
+            return portions - drained;
+        }
+
+        private boolean takeAll(int stripe, int qty) {
+            int i = stripe * PAD;
+            for (long v = cells.get(i); v >= qty; v = cells.get(i)) {
+                if (cells.compareAndSet(i, v, v - qty)) return true;
+            }
+            return false;
+        }
+
+        private long takeUpTo(int stripe, long qty) {
+            int i = stripe * PAD;
+            for (long v = cells.get(i); v > 0; v = cells.get(i)) {
+                long n = Math.min(v, qty);
+                if (cells.compareAndSet(i, v, v - n)) return n;
+            }
+            return 0;
+        }
+
+        private static int home() {
+            int h = (int) Thread.currentThread().threadId() * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (STRIPES - 1);
+        }
+    }
+
+    // Portions a cart line holds until deadlineMillis. Holding the line again supersedes it;
+    // checkout or expiry clears the line's reference, which is how a stale entry is recognized.
+    static final class Reservation {
+        final int customerId;
+        final LineItem line;
+        final long deadlineMillis;
+
+        Reservation(int customerId, LineItem line, long deadlineMillis) {
+            this.customerId = customerId;
+            this.line = line;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+    // Hashed timing wheel for cart holds: one slot per tick, and a slot keeps every hold due in that
+    // tick of any rotation. schedule() is a lock-free queue offer from the buyer's thread; a daemon
+    // thread, started with the first hold, sweeps one slot per tick and expires what is due, so an
+    // abandoned cart costs nothing until its slot comes round. Superseded holds are dropped then too.
+    static class ReservationWheel {
+        private final long tickMillis;
+        private final int mask;
+        private final List<Queue<Reservation>> slots = new ArrayList<>();
+        private final Consumer<Reservation> expire;
+        private volatile long sweptTick; // every tick up to this one has been swept
+        private volatile Thread sweeper;
+        private volatile boolean sweptElsewhere; // set by sweepOn: no sweeper thread of its own
+
+        ReservationWheel(long tickMillis, int slotCount, long startMillis, Consumer<Reservation> expire) {
+            if (Integer.bitCount(slotCount) != 1) throw new IllegalArgumentException("slotCount must be a power of two");
+            this.tickMillis = tickMillis;
+            this.mask = slotCount - 1;
+            this.expire = expire;
+            for (int i = 0; i < slotCount; i++) slots.add(new ConcurrentLinkedQueue<>());
+            sweptTick = startMillis / tickMillis;
+        }
+
+        void schedule(Reservation r) {
+            // a deadline in an already swept tick goes into the next one to be swept
+            long tick = Math.max(r.deadlineMillis / tickMillis, sweptTick + 1);
+            slots.get((int) (tick & mask)).offer(r);
+            if (sweeper == null && !sweptElsewhere) startSweeper();
+        }
+
+        // For stores confined to one thread: sweeps run every tick as tasks on that thread's loop
+        synchronized void sweepOn(ScheduledExecutorService loop) {
+            if (sweeper != null) throw new IllegalStateException("already swept by " + sweeper.getName());
+            sweptElsewhere = true;
+            loop.scheduleWithFixedDelay(() -> advance(System.currentTimeMillis()), tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // Sweeps every tick up to nowMillis and hands the holds that are due to the expire callback.
+        // Called by the sweeper thread; callers may also drive it with their own clock.
+        int advance(long nowMillis) {
+            List<Reservation> due = new ArrayList<>();
+            synchronized (this) {
+                long target = nowMillis / tickMillis;
+                long from = Math.max(sweptTick + 1, target - mask); // each slot at most once per call
+                List<Reservation> later = new ArrayList<>();
+                for (long t = from; t <= target; t++) {
+                    Queue<Reservation> slot = slots.get((int) (t & mask));
+                    for (Reservation r; (r = slot.poll()) != null; ) {
+                        if (r.line.reservation != r) continue; // confirmed, expired or held again since
+                        if (r.deadlineMillis <= nowMillis) due.add(r);
+                        else later.add(r);
+                    }
+                    for (Reservation r : later) slot.offer(r);
+                    later.clear();
+                }
+                if (target > sweptTick) sweptTick = target;
+            }
+            for (Reservation r : due) expire.accept(r);
+            return due.size();
+        }
+
+        private synchronized void startSweeper() {
+            if (sweeper != null) return;
+            Thread t = new Thread(() -> {
+                while (true) {
+                    LockSupport.parkNanos(this, tickMillis * 1_000_000);
+                    try {
+                        advance(System.currentTimeMillis());
+                    } catch (RuntimeException e) {
+                        System.err.println("Expiring cart holds failed: " + e);
+                    }
+                }
+            }, "reservation-sweeper");
+            t.setDaemon(true);
+            t.start();
+            sweeper = t;
+        }
+    }
+
+    // ====== PROMOTIONS ======
+
+    // One pricing rule. Item rules (percent or amount off, buy X get Y free, surge) apply to one
+    // menu item, or with ANY_ITEM to every item of a restaurant; coupons apply to a whole cart once
+    // the customer enters their code. Each rule can be limited to a validity period and to a daily
+    // window (happy hour; a window ending before it starts runs past midnight). Rules are read by
+    // the pricing thread without locks, so set everything before handing a rule to the engine.
+    static class Promotion {
+        enum Kind { PERCENT_OFF, AMOUNT_OFF, BUY_X_GET_Y, SURGE, COUPON_PERCENT, COUPON_AMOUNT }
+
+        static final int ANY_ITEM = -1;
+
+        private final int id;
+        private final Kind kind;
+        private final int restaurantId, foodId;
+        private final String code; // coupons only
+        private final long value; // basis points for the percentage kinds, paise for the amount kinds
+        private final int buy, free;
+        private long minSubtotalPaise;
+        private long maxDiscountPaise = Long.MAX_VALUE;
+        private long validFromMillis = Long.MIN_VALUE, validUntilMillis = Long.MAX_VALUE;
+        private int dailyFromMinute = 0, dailyUntilMinute = 24 * 60;
+
+        private Promotion(int id, Kind kind, int restaurantId, int foodId, String code, long value, int buy, int free) {
+            this.id = id;
+            this.kind = kind;
+            this.restaurantId = restaurantId;
+            this.foodId = foodId;
+            this.code = code;
+            this.value = value;
+            this.buy = buy;
+            this.free = free;
+        }
+
+        static Promotion percentOff(int id, int restaurantId, int foodId, double percent) {
+            return new Promotion(id, Kind.PERCENT_OFF, restaurantId, foodId, null, basisPoints(percent), 0, 0);
+        }
+
+        // rupees off every unit, never below zero
+        static Promotion amountOff(int id, int restaurantId, int foodId, double rupeesPerUnit) {
+            return new Promotion(id, Kind.AMOUNT_OFF, restaurantId, foodId, null, Math.round(rupeesPerUnit * 100), 0, 0);
+        }
+
+        // every buy + free units, the price of free of them is taken off
+        static Promotion buyXGetY(int id, int restaurantId, int foodId, int buy, int free) {
+            if (buy <= 0 || free <= 0) throw new IllegalArgumentException("buy and free must be positive");
+            return new Promotion(id, Kind.BUY_X_GET_Y, restaurantId, foodId, null, 0, buy, free);
+        }
+
+        // a surcharge, added on top of whichever discount the line gets
+        static Promotion surge(int id, int restaurantId, int foodId, double percent) {
+            return new Promotion(id, Kind.SURGE, restaurantId, foodId, null, basisPoints(percent), 0, 0);
+        }
+
+        static Promotion couponPercent(int id, String code, double percent, double maxOffRupees) {
+            Promotion p = new Promotion(id, Kind.COUPON_PERCENT, 0, ANY_ITEM, normalize(code), basisPoints(percent), 0, 0);
+            p.maxDiscountPaise = Math.round(maxOffRupees * 100);
+            return p;
+        }
+
+        static Promotion couponAmount(int id, String code, double rupeesOff) {
+            return new Promotion(id, Kind.COUPON_AMOUNT, 0, ANY_ITEM, normalize(code), Math.round(rupeesOff * 100), 0, 0);
+        }
+
+        public int getId() { return id; }
+        public Kind getKind() { return kind; }
+        public int getRestaurantId() { return restaurantId; }
+        public int getFoodId() { return foodId; }
+        public String getCode() { return code; }
+        boolean isCoupon() { return code != null; }
+
+        // Coupons: the least the cart must come to, after item discounts, for the coupon to apply
+        Promotion minimumOrder(double rupees) {
+            minSubtotalPaise = Math.round(rupees * 100);
+            return this;
+        }
+
+        Promotion validBetween(long fromMillis, long untilMillis) {
+            validFromMillis = fromMillis;
+            validUntilMillis = untilMillis;
+            return this;
+        }
+
+        // minutes of the local day, e.g. daily(17 * 60, 19 * 60) for 5-7 pm
+        Promotion daily(int fromMinute, int untilMinute) {
+            dailyFromMinute = fromMinute;
+            dailyUntilMinute = untilMinute;
+            return this;
+        }
+
+        boolean activeAt(long nowMillis, int minuteOfDay) {
+            if (nowMillis < validFromMillis || nowMillis >= validUntilMillis) return false;
+            return dailyFromMinute <= dailyUntilMinute
+                    ? minuteOfDay >= dailyFromMinute && minuteOfDay < dailyUntilMinute
+                    : minuteOfDay >= dailyFromMinute || minuteOfDay < dailyUntilMinute;
+        }
+
+        // What this item rule takes off a line of quantity units costing amountPaise; negative for surge
+        long lineDiscount(int quantity, long amountPaise) {
+            return switch (kind) {
+                case PERCENT_OFF -> amountPaise * value / 10_000;
+                case AMOUNT_OFF -> Math.min(amountPaise, value * quantity);
+                case BUY_X_GET_Y -> quantity == 0 ? 0 : amountPaise * (quantity / (buy + free) * free) / quantity;
+                case SURGE -> -(amountPaise * value / 10_000);
+                default -> 0;
+            };
+        }
+
+        // What this coupon takes off a cart coming to subtotalPaise after item discounts
+        long couponDiscount(long subtotalPaise) {
+            if (subtotalPaise < minSubtotalPaise) return 0;
+            long off = kind == Kind.COUPON_PERCENT ? subtotalPaise * value / 10_000 : value;
+            return Math.max(0, Math.min(Math.min(off, maxDiscountPaise), subtotalPaise));
+        }
+
+        private static long basisPoints(double percent) {
+            if (percent < 0 || percent > 100) throw new IllegalArgumentException("percent must be 0..100");
+            return Math.round(percent * 100);
+        }
+
+        static String normalize(String code) { return code.trim().toUpperCase(Locale.ROOT); }
+
+        @Override
+        public String toString() {
+            return "Promotion{id=" + id + ", kind=" + kind + (code != null ? ", code=" + code
+                    : ", restaurant=" + restaurantId + ", item=" + (foodId == ANY_ITEM ? "any" : Integer.toString(foodId))) + "}";
+        }
+    }
+
+    // Item rules compiled into one flat array grouped by (restaurant, item) key, plus an
+    // open-addressing table from key to its group, so pricing a line is two probes (the item's key
+    // and its restaurant's ANY_ITEM key) however many rules there are. Immutable once built.
+    static final class RuleSet {
+        static final RuleSet EMPTY = compile(List.of());
+
+        private final long[] slotKeys;
+        private final int[] slotStart, slotEnd; // group bounds in rules; slotEnd 0 marks a free slot
+        private final Promotion[] rules;
+        private final Map<String, Promotion> coupons;
+        final int size;
+
+        private RuleSet(long[] slotKeys, int[] slotStart, int[] slotEnd, Promotion[] rules, Map<String, Promotion> coupons) {
+            this.slotKeys = slotKeys;
+            this.slotStart = slotStart;
+            this.slotEnd = slotEnd;
+            this.rules = rules;
+            this.coupons = coupons;
+            this.size = rules.length + coupons.size();
+        }
+
+        static RuleSet compile(Collection<Promotion> promotions) {
+            Map<String, Promotion> coupons = new HashMap<>();
+            List<Promotion> items = new ArrayList<>();
+            for (Promotion p : promotions) {
+                if (p.isCoupon()) coupons.put(p.getCode(), p);
+                else items.add(p);
+            }
+            items.sort(Comparator.comparingLong(p -> DataStore.foodKey(p.getRestaurantId(), p.getFoodId())));
+            Promotion[] rules = items.toArray(new Promotion[0]);
+            int slots = Integer.highestOneBit(Math.max(2, rules.length) * 2 - 1) << 1;
+            long[] keys = new long[slots];
+            int[] start = new int[slots], end = new int[slots];
+            for (int i = 0; i < rules.length; ) {
+                long key = DataStore.foodKey(rules[i].getRestaurantId(), rules[i].getFoodId());
+                int j = i + 1;
+                while (j < rules.length && DataStore.foodKey(rules[j].getRestaurantId(), rules[j].getFoodId()) == key) j++;
+                int s = slot(key, slots - 1);
+                while (end[s] != 0) s = (s + 1) & (slots - 1);
+                keys[s] = key;
+                start[s] = i;
+                end[s] = j;
+                i = j;
+            }
+            return new RuleSet(keys, start, end, rules, coupons);
+        }
+
+        Promotion coupon(String code) { return coupons.get(Promotion.normalize(code)); }
+
+        // Best discount among the active rules for the item and its restaurant, less any surcharge
+        long lineDiscount(int restaurantId, int foodId, int quantity, long amountPaise, long nowMillis, int minuteOfDay) {
+            long best = 0, surge = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                int s = find(DataStore.foodKey(restaurantId, pass == 0 ? foodId : Promotion.ANY_ITEM));
+                if (s < 0) continue;
+                for (int i = slotStart[s]; i < slotEnd[s]; i++) {
+                    Promotion p = rules[i];
+                    if (!p.activeAt(nowMillis, minuteOfDay)) continue;
+                    long d = p.lineDiscount(quantity, amountPaise);
+                    if (d > best) best = d;
+                    else if (d < surge) surge = d;
+                }
+            }
+            return best + surge;
+        }
+
+        private int find(long key) {
+            int mask = slotKeys.length - 1;
+            for (int s = slot(key, mask); slotEnd[s] != 0; s = (s + 1) & mask) {
+                if (slotKeys[s] == key) return s;
+            }
+            return -1;
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+
+    // Prices carts against the current RuleSet. A cart is priced incrementally: each change
+    // re-prices only the line it touched and the cart keeps a running discount, so the cost of an
+    // add depends on neither the cart size nor the number of rules. Checkout re-prices every line
+    // at the time of the order, so a discount that lapsed while the cart waited is not given.
+    // setPromotions compiles a new RuleSet and swaps it in; pricing never waits for it.
+    static class PromotionEngine {
+        private volatile RuleSet rules = RuleSet.EMPTY;
+        private final long zoneOffsetMillis = TimeZone.getDefault().getOffset(System.currentTimeMillis());
+
+        void setPromotions(Collection<Promotion> promotions) { rules = RuleSet.compile(promotions); }
+
+        int size() { return rules.size; }
+
+        // The coupon with this code, if it is active now
+        Promotion coupon(String code, long nowMillis) {
+            Promotion p = rules.coupon(code);
+            return p != null && p.activeAt(nowMillis, minuteOfDay(nowMillis)) ? p : null;
+        }
+
+        // Re-prices one line after it changed. Caller holds the cart's customer lock.
+        void priceLine(Cart cart, LineItem line, long nowMillis) {
+            cart.setLineDiscount(line, lineDiscount(rules, line, nowMillis, minuteOfDay(nowMillis)));
+        }
+
+        // Re-prices every line and drops a coupon that is no longer active; returns the cart's
+        // discount. Caller holds the cart's customer lock.
+        long priceCart(Cart cart, long nowMillis) {
+            RuleSet current = rules;
+            int minute = minuteOfDay(nowMillis);
+            for (LineItem l : cart.getLines()) cart.setLineDiscount(l, lineDiscount(current, l, nowMillis, minute));
+            Promotion coupon = cart.getCoupon();
+            if (coupon != null && (current.coupon(coupon.getCode()) != coupon || !coupon.activeAt(nowMillis, minute))) {
+                cart.setCoupon(null);
+            }
+            return cart.getDiscountPaise();
+        }
+
+        private static long lineDiscount(RuleSet rules, LineItem line, long nowMillis, int minute) {
+            Restaurant owner = line.getItem().owner;
+            if (owner == null) return 0; // not a menu item, so no restaurant to match rules on
+            return rules.lineDiscount(owner.getId(), line.getItem().getId(), line.getQuantity(), line.getAmountPaise(), nowMillis, minute);
+        }
+
+        private int minuteOfDay(long nowMillis) {
+            return Math.floorMod((nowMillis + zoneOffsetMillis) / 60_000, 24 * 60);
+        }
+    }
+
+    // ====== IDEMPOTENCY ======
+
+    // Remembers which order each recent idempotency key produced, so a retried checkout gets that
+    // order back instead of placing another. A key counts per customer and is kept as a 64-bit hash,
+    // never as the string; two keys would have to collide for the same customer to be confused.
+    // Each stripe keeps its entries in a ring in arrival order, so expiry pops from the oldest end and
+    // a full ring evicts its oldest entry early. Rings grow on demand: an unused cache costs nothing.
+    static class IdempotencyCache {
+        private static final int STRIPES = 64; // power of two
+        private static final int MIN_RING = 16;
+
+        interface Visitor {
+            void visit(int customerId, long keyHash, int orderId, long expiresAtMillis) throws IOException;
+        }
+
+        private final long ttlMillis;
+        private final long baseMillis; // entry deadlines are seconds from here
+        private final int limit; // entries per stripe
+        private final Stripe[] stripes = new Stripe[STRIPES];
+
+        IdempotencyCache(long ttlMillis, int maxKeys) {
+            if (ttlMillis < 1000) throw new IllegalArgumentException("ttl must be at least a second");
+            if (maxKeys <= 0) throw new IllegalArgumentException("maxKeys must be positive");
+            this.ttlMillis = ttlMillis;
+            this.baseMillis = System.currentTimeMillis();
+            this.limit = Math.max(MIN_RING, (maxKeys + STRIPES - 1) / STRIPES);
+            for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+        }
+
+        // 64-bit hash of a client's key; 0 stands for "no key" and is never returned for one
+        static long keyHash(String key) {
+            if (key == null) return 0;
+            long h = 0x9E3779B97F4A7C15L ^ key.length();
+            for (int i = 0; i < key.length(); i++) {
+                h = (h ^ key.charAt(i)) * 0xBF58476D1CE4E5B9L;
+                h ^= h >>> 31;
+            }
+            h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+            h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+            h ^= h >>> 33;
+            return h == 0 ? 1 : h;
+        }
+
+        long ttlMillis() { return ttlMillis; }
+
+        // The order the key produced, or -1 if it is unknown or has expired
+        int get(int customerId, long keyHash, long nowMillis) {
+            long mix = mix(customerId, keyHash);
+            Stripe s = stripes[stripe(mix)];
+            synchronized (s) {
+                return s.get(customerId, keyHash, (int) mix, seconds(nowMillis));
+            }
+        }
+
+        void remember(int customerId, long keyHash, int orderId, long placedAtMillis) {
+            restore(customerId, keyHash, orderId, placedAtMillis + ttlMillis, placedAtMillis);
+        }
+
+        // Snapshot loading puts entries back with the deadline they had
+        void restore(int customerId, long keyHash, int orderId, long expiresAtMillis, long nowMillis) {
+            long mix = mix(customerId, keyHash);
+            Stripe s = stripes[stripe(mix)];
+            synchronized (s) {
+                // the deadline rounds up, so a key is never forgotten before its ttl is over
+                s.put(customerId, keyHash, (int) mix, orderId, seconds(expiresAtMillis + 999), seconds(nowMillis), limit);
+            }
+        }
+
+        // Entries not yet popped, including ones that have expired since
+        int size() {
+            int n = 0;
+            for (Stripe s : stripes) {
+                synchronized (s) {
+                    n += s.count;
+                }
+            }
+            return n;
+        }
+
+        // Entries pushed out by a full ring before their ttl ran out
+        long evicted() {
+            long n = 0;
+            for (Stripe s : stripes) {
+                synchronized (s) {
+                    n += s.evicted;
+                }
+            }
+            return n;
+        }
+
+        // Oldest first within each stripe, which is the order restore needs
+        void forEach(Visitor v) throws IOException {
+            for (Stripe s : stripes) {
+                synchronized (s) {
+                    for (int i = 0, pos = s.tail; i < s.count; i++, pos = s.next(pos)) {
+                        v.visit(s.customers[pos], s.hashes[pos], s.orderIds[pos], baseMillis + s.expires[pos] * 1000L);
+                    }
+                }
+            }
+        }
+
+        private int seconds(long millis) {
+            return (int) Math.floorDiv(millis - baseMillis, 1000);
+        }
+
+        private static long mix(int customerId, long keyHash) {
+            long h = (keyHash ^ (customerId * 0x9E3779B97F4A7C15L)) * 0xD6E8FEB86659FD93L;
+            return h ^ (h >>> 32);
+        }
+
+        private static int stripe(long mix) {
+            return (int) (mix >>> 58) & (STRIPES - 1);
+        }
+
+        // One ring of entries plus an open-addressing index from (customer, key) to ring position
+        private static final class Stripe {
+            int[] customers, orderIds, expires;
+            long[] hashes;
+            int[] index; // ring position + 1 per slot, 0 = empty; linear probing, at most 2/3 full
+            int tail, count; // oldest entry and number of entries
+            long evicted;
+
+            int next(int pos) {
+                return ++pos == customers.length ? 0 : pos;
+            }
+
+            int get(int customerId, long keyHash, int slot, int nowSec) {
+                int pos = find(customerId, keyHash, slot);
+                return pos < 0 || expires[pos] - nowSec <= 0 ? -1 : orderIds[pos];
+            }
+
+            void put(int customerId, long keyHash, int slot, int orderId, int expiresSec, int nowSec, int limit) {
+                while (count > 0 && expires[tail] - nowSec <= 0) pop();
+                int pos = find(customerId, keyHash, slot);
+                if (pos >= 0) { // an expired key reused before its entry was popped
+                    orderIds[pos] = orderId;
+                    expires[pos] = expiresSec;
+                    return;
+                }
+                if (count == limit) {
+                    pop();
+                    evicted++;
+                } else if (customers == null || count == customers.length) {
+                    grow(limit);
+                }
+                pos = tail + count;
+                if (pos >= customers.length) pos -= customers.length;
+                customers[pos] = customerId;
+                hashes[pos] = keyHash;
+                orderIds[pos] = orderId;
+                expires[pos] = expiresSec;
+                count++;
+                link(pos, slot);
+            }
+
+            private int find(int customerId, long keyHash, int slot) {
+                if (index == null) return -1;
+                int m = index.length - 1;
+                for (int i = slot & m; ; i = (i + 1) & m) {
+                    int e = index[i];
+                    if (e == 0) return -1;
+                    if (hashes[e - 1] == keyHash && customers[e - 1] == customerId) return e - 1;
+                }
+            }
+
+            private int slotOf(int pos) {
+                return (int) mix(customers[pos], hashes[pos]);
+            }
+
+            private void link(int pos, int slot) {
+                int m = index.length - 1;
+                int i = slot & m;
+                while (index[i] != 0) i = (i + 1) & m;
+                index[i] = pos + 1;
+            }
+
+            private void pop() {
+                int m = index.length - 1;
+                int hole = slotOf(tail) & m;
+                while (index[hole] != tail + 1) hole = (hole + 1) & m;
+                // backward-shift deletion: later entries whose probe path crosses the hole move into it
+                for (int i = (hole + 1) & m; index[i] != 0; i = (i + 1) & m) {
+                    int home = slotOf(index[i] - 1) & m;
+                    if (((i - home) & m) >= ((i - hole) & m)) {
+                        index[hole] = index[i];
+                        hole = i;
+                    }
+                }
+                index[hole] = 0;
+                tail = next(tail);
+                count--;
+            }
+
+            private void grow(int limit) {
+                int cap = customers == null ? MIN_RING : (int) Math.min(limit, customers.length + (long) (customers.length >> 1));
+                int[] c = new int[cap], o = new int[cap], x = new int[cap];
+                long[] h = new long[cap];
+                for (int i = 0, pos = tail; i < count; i++, pos = next(pos)) {
+                    c[i] = customers[pos];
+                    h[i] = hashes[pos];
+                    o[i] = orderIds[pos];
+                    x[i] = expires[pos];
+                }
+                customers = c;
+                hashes = h;
+                orderIds = o;
+                expires = x;
+                tail = 0;
+                index = new int[Integer.highestOneBit(cap * 3 / 2 - 1) << 1];
+                for (int i = 0; i < count; i++) link(i, slotOf(i));
+            }
+        }
+    }
+
+    // ====== ORDER ARCHIVE ======
+
+    // Delivered and cancelled orders, stored column by column instead of as Order objects: each
+    // order is one slot in a set of primitive arrays, its line items are packed into parallel
+    // arrays between lineStart[row] and lineStart[row + 1], and restaurants, riders, food items and
+    // addresses are dictionary-encoded as dense refs (0, 1, 2, ...) so each distinct one is held
+    // once and scans can aggregate into plain arrays indexed by ref. Rows are append-only, in
+    // completion order. A history lookup rebuilds a short-lived Order from its row.
+    static class OrderArchive {
+        private final Map<Integer, Customer> customers;
+        private final Map<Integer, DeliveryPerson> deliveryPeople;
+
+        private int rows;
+        private int[] orderIds = new int[16];
+        private int[] customerIds = new int[16];
+        private int[] restaurantRefs = new int[16]; // restaurant of the first line, -1 if unknown
+        private int[] riderRefs = new int[16]; // -1 if never assigned
+        private int[] addressRefs = new int[16]; // -1 for no address
+        private byte[] statuses = new byte[16];
+        private long[] placedAt = new long[16];
+        private long[] completedAt = new long[16];
+        private long[] totals = new long[16];
+        private long[] discounts = new long[16];
+        private int[] parentIds = new int[16]; // 0 unless the order is part of a split checkout
+        private int[] lineStart = new int[17];
+
+        private int lines;
+        private int[] lineItems = new int[64];
+        private int[] lineQuantities = new int[64];
+        private long[] lineAmounts = new long[64];
+
+        private final Map<FoodItem, Integer> itemRefs = new IdentityHashMap<>();
+        private final List<FoodItem> itemTable = new ArrayList<>();
+        private int[] itemRestaurantRefs = new int[16]; // item ref -> restaurant ref, -1 if the item has no menu
+        private final Map<Integer, Integer> restaurantRefsById = new HashMap<>();
+        private final IntList restaurantTable = new IntList(); // restaurant ref -> id
+        private final Map<Integer, Integer> riderRefsById = new HashMap<>();
+        private final IntList riderTable = new IntList(); // rider ref -> id
+        private final Map<String, Integer> addressIds = new HashMap<>();
+        private final List<String> addressTable = new ArrayList<>();
+
+        // orderId -> row, open addressing with linear probing; rowBySlot holds row + 1 so 0 marks a free slot
+        private int[] slotOrderIds = new int[32];
+        private int[] rowBySlot = new int[32];
+
+        OrderArchive(Map<Integer, Customer> customers, Map<Integer, DeliveryPerson> deliveryPeople) {
+            this.customers = customers;
+            this.deliveryPeople = deliveryPeople;
+        }
+
+        synchronized void append(Order o) {
+            Collection<LineItem> ls = o.getLines();
+            if (rows == orderIds.length) growRows();
+            if (lines + ls.size() > lineItems.length) growLines(lines + ls.size());
+            int row = rows;
+            DeliveryPerson dp = o.getDeliveryPerson();
+            String address = o.getDeliveryAddress();
+            orderIds[row] = o.getOrderId();
+            customerIds[row] = o.getCustomer().getUserId();
+            riderRefs[row] = dp == null ? -1 : ref(dp.getDeliveryPersonId(), riderRefsById, riderTable);
+            addressRefs[row] = address == null ? -1 : addressIds.computeIfAbsent(address, a -> {
+                addressTable.add(a);
+                return addressTable.size() - 1;
+            });
+            statuses[row] = (byte) o.getStatus().ordinal();
+            placedAt[row] = o.getPlacedAtMillis();
+            completedAt[row] = o.getCompletedAtMillis();
+            totals[row] = o.getTotalPaise();
+            discounts[row] = o.getDiscountPaise();
+            parentIds[row] = o.getParentOrderId();
+            int restaurantRef = -1;
+            for (LineItem l : ls) {
+                FoodItem fi = l.getItem();
+                Integer ref = itemRefs.get(fi);
+                if (ref == null) {
+                    ref = itemTable.size();
+                    itemRefs.put(fi, ref);
+                    itemTable.add(fi);
+                    if (ref == itemRestaurantRefs.length) itemRestaurantRefs = Arrays.copyOf(itemRestaurantRefs, ref * 2);
+                    itemRestaurantRefs[ref] = fi.owner == null ? -1 : ref(fi.owner.getId(), restaurantRefsById, restaurantTable);
+                }
+                if (restaurantRef < 0) restaurantRef = itemRestaurantRefs[ref];
+                lineItems[lines] = ref;
+                lineQuantities[lines] = l.getQuantity();
+                lineAmounts[lines++] = l.getAmountPaise();
+            }
+            restaurantRefs[row] = restaurantRef;
+            lineStart[row + 1] = lines;
+            rows++;
+            index(o.getOrderId(), row);
+        }
+
+        synchronized int size() { return rows; }
+
+        // Read-only view of the rows appended so far. Rows are never modified once written and
+        // growth copies into new arrays, so the view stays valid while appends continue.
+        static final class Columns {
+            final int rows;
+            final byte[] statuses;
+            final long[] placedAt, completedAt, totals, lineAmounts;
+            final int[] restaurantRefs, riderRefs, lineStart, lineItems, lineQuantities, itemRestaurantRefs;
+            final FoodItem[] items; // item ref -> item
+            final int[] restaurantIds; // restaurant ref -> id
+            final int[] riderIds; // rider ref -> id
+
+            private Columns(OrderArchive a) {
+                rows = a.rows;
+                statuses = a.statuses;
+                placedAt = a.placedAt;
+                completedAt = a.completedAt;
+                totals = a.totals;
+                lineAmounts = a.lineAmounts;
+                restaurantRefs = a.restaurantRefs;
+                riderRefs = a.riderRefs;
+                lineStart = a.lineStart;
+                lineItems = a.lineItems;
+                lineQuantities = a.lineQuantities;
+                itemRestaurantRefs = a.itemRestaurantRefs;
+                items = a.itemTable.toArray(new FoodItem[0]);
+                restaurantIds = a.restaurantTable.toArray();
+                riderIds = a.riderTable.toArray();
+            }
+        }
+
+        synchronized Columns columns() { return new Columns(this); }
+
+        synchronized boolean contains(int orderId) { return rowOf(orderId) >= 0; }
+
+        // Row of an archived order, or -1; a Columns view covers it if the row is below its rows
+        synchronized int row(int orderId) { return rowOf(orderId); }
+
+        // The archived order rebuilt as a new Order, or null if it is not here
+        synchronized Order get(int orderId) {
+            int row = rowOf(orderId);
+            return row < 0 ? null : materialize(row);
+        }
+
+        private Order materialize(int row) {
+            Order o = new Order(orderIds[row], customers.get(customerIds[row]));
+            if (riderRefs[row] >= 0) o.setDeliveryPerson(deliveryPeople.get(riderTable.get(riderRefs[row])));
+            o.setStatus(OrderStatus.of(statuses[row]));
+            o.setDeliveryAddress(addressRefs[row] < 0 ? null : addressTable.get(addressRefs[row]));
+            o.setPlacedAtMillis(placedAt[row]);
+            o.setCompletedAtMillis(completedAt[row]);
+            o.setDiscountPaise(discounts[row]);
+            o.setParentOrderId(parentIds[row]);
+            for (int i = lineStart[row]; i < lineStart[row + 1]; i++) {
+                o.addItem(itemTable.get(lineItems[i]), lineQuantities[i], lineAmounts[i]);
+            }
+            return o;
+        }
+
+        private static int ref(int id, Map<Integer, Integer> refs, IntList table) {
+            Integer ref = refs.get(id);
+            if (ref == null) {
+                ref = table.size();
+                refs.put(id, ref);
+                table.add(id);
+            }
+            return ref;
+        }
+
+        private int rowOf(int orderId) {
+            int mask = slotOrderIds.length - 1;
+            for (int s = slot(orderId, mask); rowBySlot[s] != 0; s = (s + 1) & mask) {
+                if (slotOrderIds[s] == orderId) return rowBySlot[s] - 1;
+            }
+            return -1;
+        }
+
+        private void index(int orderId, int row) {
+            if (rows * 2 > slotOrderIds.length) { // keep the table at most half full
+                int[] oldIds = slotOrderIds, oldRows = rowBySlot;
+                slotOrderIds = new int[oldIds.length * 2];
+                rowBySlot = new int[oldIds.length * 2];
+                for (int s = 0; s < oldIds.length; s++) {
+                    if (oldRows[s] != 0) insert(oldIds[s], oldRows[s]);
+                }
+            }
+            insert(orderId, row + 1);
+        }
+
+        private void insert(int orderId, int rowPlusOne) {
+            int mask = slotOrderIds.length - 1;
+            int s = slot(orderId, mask);
+            while (rowBySlot[s] != 0) s = (s + 1) & mask;
+            slotOrderIds[s] = orderId;
+            rowBySlot[s] = rowPlusOne;
+        }
+
+        private static int slot(int orderId, int mask) {
+            int h = orderId * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void growRows() {
+            int n = orderIds.length * 2;
+            orderIds = Arrays.copyOf(orderIds, n);
+            customerIds = Arrays.copyOf(customerIds, n);
+            restaurantRefs = Arrays.copyOf(restaurantRefs, n);
+            riderRefs = Arrays.copyOf(riderRefs, n);
+            addressRefs = Arrays.copyOf(addressRefs, n);
+            statuses = Arrays.copyOf(statuses, n);
+            placedAt = Arrays.copyOf(placedAt, n);
+            completedAt = Arrays.copyOf(completedAt, n);
+            totals = Arrays.copyOf(totals, n);
+            discounts = Arrays.copyOf(discounts, n);
+            parentIds = Arrays.copyOf(parentIds, n);
+            lineStart = Arrays.copyOf(lineStart, n + 1);
+        }
+
+        private void growLines(int needed) {
+            int n = Math.max(lineItems.length * 2, needed);
+            lineItems = Arrays.copyOf(lineItems, n);
+            lineQuantities = Arrays.copyOf(lineQuantities, n);
+            lineAmounts = Arrays.copyOf(lineAmounts, n);
+        }
+    }
+
+    // ====== ANALYTICS ======
+
+    // Admin figures over the whole order history, live and archived. Two ways to get them:
+    // Analytics.scan() recomputes from the archive's columns into primitive arrays indexed by the
+    // archive's dense refs, optionally split into row segments across a fork-join pool, while
+    // LiveAnalytics keeps the same figures as counters bumped on every placement and completion,
+    // so reading it costs nothing proportional to history. Both count revenue and units sold over
+    // orders that were not cancelled, basket size over every order placed, and a rider's busy time
+    // as placement to delivery.
+    static class AnalyticsSummary {
+        long orders, delivered, cancelled, itemsOrdered, basketPaise;
+        long firstPlacedAt = Long.MAX_VALUE, lastCompletedAt;
+        final long[] ordersByHour = new long[24]; // hour of day the order was placed, local time
+        final Map<Integer, Long> revenueByRestaurant = new TreeMap<>(); // restaurant id (-1 = no menu) -> paise
+        final Map<Integer, long[]> riders = new TreeMap<>(); // rider id -> {deliveries, busy millis}
+        List<ItemCount> topItems = new ArrayList<>();
+
+        static class ItemCount {
+            final int restaurantId, foodId;
+            final String name;
+            final long units;
+
+            ItemCount(int restaurantId, int foodId, String name, long units) {
+                this.restaurantId = restaurantId;
+                this.foodId = foodId;
+                this.name = name;
+                this.units = units;
+            }
+
+            public int getRestaurantId() { return restaurantId; }
+            public int getFoodId() { return foodId; }
+            public String getName() { return name; }
+            public long getUnits() { return units; }
+        }
+
+        public long getOrders() { return orders; }
+        public long getDelivered() { return delivered; }
+        public long getCancelled() { return cancelled; }
+        public long[] getOrdersByHour() { return ordersByHour.clone(); }
+        public Map<Integer, Long> getRevenueByRestaurant() { return Collections.unmodifiableMap(revenueByRestaurant); }
+        public List<ItemCount> getTopItems() { return Collections.unmodifiableList(topItems); }
+
+        public double getAverageBasketItems() { return orders == 0 ? 0 : (double) itemsOrdered / orders; }
+        public long getAverageBasketPaise() { return orders == 0 ? 0 : basketPaise / orders; }
+
+        // Share of the observed window (first placement to last completion) the rider spent on deliveries
+        public double getRiderUtilization(int riderId) {
+            long[] r = riders.get(riderId);
+            long window = lastCompletedAt - firstPlacedAt;
+            return r == null || window <= 0 ? 0 : (double) r[1] / window;
+        }
+
+        void addRevenue(int restaurantId, long paise) {
+            if (paise != 0) revenueByRestaurant.merge(restaurantId, paise, Long::sum);
+        }
+
+        void addRider(int riderId, long deliveries, long busyMillis) {
+            if (deliveries == 0) return;
+            long[] r = riders.computeIfAbsent(riderId, k -> new long[2]);
+            r[0] += deliveries;
+            r[1] += busyMillis;
+        }
+
+        // Keeps the n items with the most units, ties broken by restaurant then food id
+        void setTopItems(Map<Long, Long> unitsByFood, Map<Long, FoodItem> itemsByKey, FoodItemIndex menus, int n) {
+            PriorityQueue<Map.Entry<Long, Long>> top = new PriorityQueue<>(Math.max(1, n), TOP_ORDER.reversed());
+            for (Map.Entry<Long, Long> e : unitsByFood.entrySet()) {
+                if (e.getValue() <= 0) continue;
+                top.add(e);
+                if (top.size() > n) top.poll();
+            }
+            List<Map.Entry<Long, Long>> sorted = new ArrayList<>(top);
+            sorted.sort(TOP_ORDER);
+            topItems = new ArrayList<>(sorted.size());
+            for (Map.Entry<Long, Long> e : sorted) {
+                long key = e.getKey();
+                FoodItem current = menus.get(key);
+                String name = (current != null ? current : itemsByKey.get(key)).getName();
+                topItems.add(new ItemCount((int) (key >> 32), (int) key, name, e.getValue()));
+            }
+        }
+
+        private static final Comparator<Map.Entry<Long, Long>> TOP_ORDER =
+                Comparator.comparing((Map.Entry<Long, Long> e) -> e.getValue()).reversed().thenComparing(Map.Entry::getKey);
+
+        // The admin "View Analytics" screen; restaurants and riders are limited to the top n
+        void write(ReportWriter w, int n) throws IOException {
+            w.append("Orders: ").appendLong(orders).append(" (delivered ").appendLong(delivered)
+                    .append(", cancelled ").appendLong(cancelled).append(')').newLine();
+            w.append("Average basket: ").append(String.format("%.2f", getAverageBasketItems()))
+                    .append(" items, Rs. ").appendRupees(getAverageBasketPaise()).newLine();
+
+            w.append("Orders per hour of day:").newLine();
+            for (int h = 0; h < 24; h++) {
+                if (ordersByHour[h] == 0) continue;
+                w.append("  ").append((char) ('0' + h / 10)).append((char) ('0' + h % 10)).append(":00  ")
+                        .appendLong(ordersByHour[h]).newLine();
+            }
+
+            w.append("Revenue by restaurant (top ").appendLong(n).append("):").newLine();
+            List<Map.Entry<Integer, Long>> revenue = new ArrayList<>(revenueByRestaurant.entrySet());
+            revenue.sort(Map.Entry.<Integer, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+            for (Map.Entry<Integer, Long> e : revenue.subList(0, Math.min(n, revenue.size()))) {
+                w.append("  ").append(e.getKey() < 0 ? "(no menu)" : "Restaurant " + e.getKey())
+                        .append(": Rs. ").appendRupees(e.getValue()).newLine();
+            }
+
+            w.append("Top food items:").newLine();
+            for (ItemCount c : topItems) {
+                w.append("  ").append(c.name).append(" (restaurant ").appendLong(c.restaurantId).append(", item ")
+                        .appendLong(c.foodId).append("): ").appendLong(c.units).append(" sold").newLine();
+            }
+
+            w.append("Rider utilization (top ").appendLong(n).append("):").newLine();
+            List<Map.Entry<Integer, long[]>> load = new ArrayList<>(riders.entrySet());
+            load.sort(Comparator.comparing((Map.Entry<Integer, long[]> e) -> e.getValue()[1]).reversed()
+                    .thenComparing(Map.Entry::getKey));
+            for (Map.Entry<Integer, long[]> e : load.subList(0, Math.min(n, load.size()))) {
+                w.append("  Rider ").appendLong(e.getKey()).append(": ").appendLong(e.getValue()[0]).append(" deliveries, ")
+                        .append(String.format("%.1f%%", 100 * getRiderUtilization(e.getKey()))).append(" busy").newLine();
+            }
+        }
+    }
+
+    static class Analytics {
+        static final long HOUR_MILLIS = 3_600_000L, DAY_MILLIS = 24 * HOUR_MILLIS;
+        // fixed once so a scan and the live counters bucket the same order into the same hour
+        static final long ZONE_OFFSET_MILLIS =
+                java.time.ZoneId.systemDefault().getRules().getOffset(java.time.Instant.now()).getTotalSeconds() * 1000L;
+
+        private static final int SEGMENT_ROWS = 1 << 18;
+        private static final byte DELIVERED = (byte) OrderStatus.DELIVERED.ordinal();
+        private static final byte CANCELLED = (byte) OrderStatus.CANCELLED.ordinal();
+
+        static int hourOfDay(long millis) {
+            return (int) (Math.floorMod(millis + ZONE_OFFSET_MILLIS, DAY_MILLIS) / HOUR_MILLIS);
+        }
+
+        // Recomputes everything from history: the archive's columns (in parallel segments if asked),
+        // then the live orders one by one
+        static AnalyticsSummary scan(DataStore db, boolean parallel, int topN) {
+            // live orders are listed first: one archived in between is then either in the columns
+            // (and skipped below) or still counted from its live copy
+            List<Order> live = new ArrayList<>(db.orders.values());
+            OrderArchive.Columns c = db.archive.columns();
+            Tally t;
+            if (parallel && c.rows > SEGMENT_ROWS) {
+                t = ForkJoinPool.commonPool().invoke(new Segment(c, 0, c.rows));
+            } else {
+                t = new Tally(c);
+                for (int from = 0; from < c.rows; from += SEGMENT_ROWS) t.add(c, from, Math.min(c.rows, from + SEGMENT_ROWS));
+            }
+
+            AnalyticsSummary s = new AnalyticsSummary();
+            s.orders = t.orders;
+            s.delivered = t.delivered;
+            s.cancelled = t.cancelled;
+            s.itemsOrdered = t.itemsOrdered;
+            s.basketPaise = t.basketPaise;
+            s.firstPlacedAt = t.firstPlacedAt;
+            s.lastCompletedAt = t.lastCompletedAt;
+            System.arraycopy(t.ordersByHour, 0, s.ordersByHour, 0, 24);
+            for (int r = 0; r < c.restaurantIds.length; r++) s.addRevenue(c.restaurantIds[r], t.revenue[r]);
+            s.addRevenue(-1, t.revenue[c.restaurantIds.length]);
+            for (int r = 0; r < c.riderIds.length; r++) s.addRider(c.riderIds[r], t.deliveries[r], t.busyMillis[r]);
+
+            // items are grouped by (restaurant, food id): a replaced menu item is a new object with the same key
+            Map<Long, Long> unitsByFood = new HashMap<>();
+            Map<Long, FoodItem> itemsByKey = new HashMap<>();
+            for (int i = 0; i < c.items.length; i++) {
+                if (t.units[i] == 0) continue;
+                int rr = c.itemRestaurantRefs[i];
+                long key = DataStore.foodKey(rr < 0 ? -1 : c.restaurantIds[rr], c.items[i].getId());
+                unitsByFood.merge(key, t.units[i], Long::sum);
+                itemsByKey.putIfAbsent(key, c.items[i]);
+            }
+
+            for (Order o : live) {
+                int row = db.archive.row(o.getOrderId());
+                if (row >= 0 && row < c.rows) continue;
+                OrderStatus status = o.getStatus();
+                boolean counted = status != OrderStatus.CANCELLED;
+                long placed = o.getPlacedAtMillis();
+                s.orders++;
+                s.basketPaise += o.getTotalPaise();
+                s.firstPlacedAt = Math.min(s.firstPlacedAt, placed);
+                s.lastCompletedAt = Math.max(s.lastCompletedAt, o.getCompletedAtMillis());
+                s.ordersByHour[hourOfDay(placed)]++;
+                for (LineItem l : o.getLines()) {
+                    s.itemsOrdered += l.getQuantity();
+                    if (!counted) continue;
+                    FoodItem fi = l.getItem();
+                    int restaurantId = fi.owner == null ? -1 : fi.owner.getId();
+                    long key = DataStore.foodKey(restaurantId, fi.getId());
+                    s.addRevenue(restaurantId, l.getAmountPaise());
+                    unitsByFood.merge(key, (long) l.getQuantity(), Long::sum);
+                    itemsByKey.putIfAbsent(key, fi);
+                }
+                DeliveryPerson dp = o.getDeliveryPerson();
+                if (status == OrderStatus.DELIVERED) {
+                    s.delivered++;
+                    if (dp != null) s.addRider(dp.getDeliveryPersonId(), 1, o.getCompletedAtMillis() - placed);
+                } else if (!counted) {
+                    s.cancelled++;
+                }
+            }
+            s.setTopItems(unitsByFood, itemsByKey, db.foodItems, topN);
+            return s;
+        }
+
+        // Primitive accumulators over a range of archive rows, indexed by the archive's refs
+        private static final class Tally {
+            long orders, delivered, cancelled, itemsOrdered, basketPaise;
+            long firstPlacedAt = Long.MAX_VALUE, lastCompletedAt;
+            final long[] ordersByHour = new long[24];
+            final long[] revenue; // restaurant ref -> paise; the last slot is items with no menu
+            final long[] units; // item ref -> units
+            final long[] deliveries, busyMillis; // rider ref
+
+            Tally(OrderArchive.Columns c) {
+                revenue = new long[c.restaurantIds.length + 1];
+                units = new long[c.items.length];
+                deliveries = new long[c.riderIds.length];
+                busyMillis = new long[c.riderIds.length];
+            }
+
+            Tally add(OrderArchive.Columns c, int from, int to) {
+                int noMenu = revenue.length - 1;
+                for (int row = from; row < to; row++) {
+                    long placed = c.placedAt[row];
+                    byte status = c.statuses[row];
+                    boolean counted = status != CANCELLED;
+                    orders++;
+                    basketPaise += c.totals[row];
+                    ordersByHour[hourOfDay(placed)]++;
+                    if (placed < firstPlacedAt) firstPlacedAt = placed;
+                    if (c.completedAt[row] > lastCompletedAt) lastCompletedAt = c.completedAt[row];
+                    for (int i = c.lineStart[row], end = c.lineStart[row + 1]; i < end; i++) {
+                        int qty = c.lineQuantities[i];
+                        itemsOrdered += qty;
+                        if (!counted) continue;
+                        int item = c.lineItems[i];
+                        int rr = c.itemRestaurantRefs[item];
+                        units[item] += qty;
+                        revenue[rr < 0 ? noMenu : rr] += c.lineAmounts[i];
+                    }
+                    if (status == DELIVERED) {
+                        delivered++;
+                        int rider = c.riderRefs[row];
+                        if (rider >= 0) {
+                            deliveries[rider]++;
+                            busyMillis[rider] += c.completedAt[row] - placed;
+                        }
+                    } else if (!counted) {
+                        cancelled++;
+                    }
+                }
+                return this;
+            }
+
+            Tally merge(Tally o) {
+                orders += o.orders;
+                delivered += o.delivered;
+                cancelled += o.cancelled;
+                itemsOrdered += o.itemsOrdered;
+                basketPaise += o.basketPaise;
+                firstPlacedAt = Math.min(firstPlacedAt, o.firstPlacedAt);
+                lastCompletedAt = Math.max(lastCompletedAt, o.lastCompletedAt);
+                addAll(ordersByHour, o.ordersByHour);
+                addAll(revenue, o.revenue);
+                addAll(units, o.units);
+                addAll(deliveries, o.deliveries);
+                addAll(busyMillis, o.busyMillis);
+                return this;
+            }
+
+            private static void addAll(long[] into, long[] from) {
+                for (int i = 0; i < into.length; i++) into[i] += from[i];
+            }
+        }
+
+        // Halves the row range until it is one segment; each segment fills its own Tally
+        private static final class Segment extends RecursiveTask<Tally> {
+            private static final long serialVersionUID = 1L;
+
+            private final transient OrderArchive.Columns c; // never serialized: segments only run in this pool
+            private final int from, to;
+
+            Segment(OrderArchive.Columns c, int from, int to) {
+                this.c = c;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected Tally compute() {
+                if (to - from <= SEGMENT_ROWS) return new Tally(c).add(c, from, to);
+                int mid = (from + to) >>> 1;
+                Segment left = new Segment(c, from, mid);
+                left.fork();
+                Tally right = new Segment(c, mid, to).compute();
+                return left.join().merge(right);
+            }
+        }
+    }
+
+    // The same figures as Analytics.scan, kept up to date by DataStore as orders are placed and
+    // completed. Updates are LongAdder increments, so concurrent checkouts do not contend on them.
+    static class LiveAnalytics {
+        private static final class ItemTally {
+            final FoodItem item;
+            final LongAdder units = new LongAdder();
+
+            ItemTally(FoodItem item) { this.item = item; }
+        }
+
+        // Keyed by restaurant, then food id: Long keys built like DataStore.foodKey hash to
+        // restaurantId ^ foodId, which piles small ids into a handful of bins
+        private static final class RestaurantTally {
+            final LongAdder revenuePaise = new LongAdder();
+            final Map<Integer, ItemTally> units = new ConcurrentHashMap<>();
+        }
+
+        private final LongAdder orders = new LongAdder();
+        private final LongAdder delivered = new LongAdder();
+        private final LongAdder cancelled = new LongAdder();
+        private final LongAdder itemsOrdered = new LongAdder();
+        private final LongAdder basketPaise = new LongAdder();
+        private final LongAccumulator firstPlacedAt = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator lastCompletedAt = new LongAccumulator(Math::max, 0);
+        private final LongAdder[] ordersByHour = new LongAdder[24];
+        private final Map<Integer, RestaurantTally> restaurants = new ConcurrentHashMap<>();
+        private final Map<Integer, LongAdder[]> riders = new ConcurrentHashMap<>(); // {deliveries, busy millis}
+
+        LiveAnalytics() {
+            for (int h = 0; h < 24; h++) ordersByHour[h] = new LongAdder();
+        }
+
+        void placed(Order o) {
+            orders.increment();
+            basketPaise.add(o.getTotalPaise());
+            firstPlacedAt.accumulate(o.getPlacedAtMillis());
+            ordersByHour[Analytics.hourOfDay(o.getPlacedAtMillis())].increment();
+            for (LineItem l : o.getLines()) {
+                itemsOrdered.add(l.getQuantity());
+                countLine(l, 1);
+            }
+        }
+
+        // Called once, when the order reaches DELIVERED or CANCELLED
+        void completed(Order o) {
+            lastCompletedAt.accumulate(o.getCompletedAtMillis());
+            if (o.getStatus() == OrderStatus.CANCELLED) {
+                cancelled.increment();
+                for (LineItem l : o.getLines()) countLine(l, -1);
+                return;
+            }
+            delivered.increment();
+            DeliveryPerson dp = o.getDeliveryPerson();
+            if (dp != null) {
+                LongAdder[] r = riders.computeIfAbsent(dp.getDeliveryPersonId(), k -> new LongAdder[]{new LongAdder(), new LongAdder()});
+                r[0].increment();
+                r[1].add(o.getCompletedAtMillis() - o.getPlacedAtMillis());
+            }
+        }
+
+        private void countLine(LineItem l, int sign) {
+            FoodItem fi = l.getItem();
+            int restaurantId = fi.owner == null ? -1 : fi.owner.getId();
+            RestaurantTally r = restaurants.get(restaurantId);
+            if (r == null) r = restaurants.computeIfAbsent(restaurantId, k -> new RestaurantTally());
+            r.revenuePaise.add(sign * l.getAmountPaise());
+            ItemTally t = r.units.get(fi.getId());
+            if (t == null) t = r.units.computeIfAbsent(fi.getId(), k -> new ItemTally(fi));
+            t.units.add(sign * l.getQuantity());
+        }
+
+        AnalyticsSummary summary(DataStore db, int topN) {
+            AnalyticsSummary s = new AnalyticsSummary();
+            s.orders = orders.sum();
+            s.delivered = delivered.sum();
+            s.cancelled = cancelled.sum();
+            s.itemsOrdered = itemsOrdered.sum();
+            s.basketPaise = basketPaise.sum();
+            s.firstPlacedAt = firstPlacedAt.get();
+            s.lastCompletedAt = lastCompletedAt.get();
+            for (int h = 0; h < 24; h++) s.ordersByHour[h] = ordersByHour[h].sum();
+            riders.forEach((id, r) -> s.addRider(id, r[0].sum(), r[1].sum()));
+            Map<Long, Long> units = new HashMap<>();
+            Map<Long, FoodItem> items = new HashMap<>();
+            restaurants.forEach((restaurantId, r) -> {
+                s.addRevenue(restaurantId, r.revenuePaise.sum());
+                r.units.forEach((foodId, t) -> {
+                    long key = DataStore.foodKey(restaurantId, foodId);
+                    units.put(key, t.units.sum());
+                    items.put(key, t.item);
+                });
+            });
+            s.setTopItems(units, items, db.foodItems, topN);
+            return s;
+        }
+    }
+
+    // ====== ORDER EVENTS ======
+
+    // Receives order status transitions on the subscriber's own thread; from is null for a new order
+    interface OrderEventListener {
+        void onEvent(int orderId, OrderStatus from, OrderStatus to, long timestampNanos);
+    }
+
+    // Lock-free multi-producer ring buffer of status transitions. Producers claim a sequence with
+    // one atomic increment and never wait: a subscriber that falls more than its maxLag behind
+    // (at most the ring capacity) skips ahead and counts the skipped events as dropped.
+    // Each slot's stamp is written last by the producer and checked by readers before and after
+    // copying the fields, so a slot overwritten mid-read is detected rather than delivered torn.
+    static class OrderEventBus {
+        private static final long EMPTY = -1; // stamp of a never-written slot; -(seq + 2) while seq is being written
+
+        private final int capacity;
+        private final int mask;
+        private final AtomicLong claimed = new AtomicLong();
+        private final AtomicLongArray stamps;
+        private final int[] orderIds;
+        private final byte[] fromStatus, toStatus;
+        private final long[] timestamps;
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+        private volatile boolean hasSubscribers;
+
+        OrderEventBus(int capacity) {
+            if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            stamps = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) stamps.set(i, EMPTY);
+            orderIds = new int[capacity];
+            fromStatus = new byte[capacity];
+            toStatus = new byte[capacity];
+            timestamps = new long[capacity];
+        }
+
+        // Never blocks; skipped entirely while nobody is subscribed
+        void publish(int orderId, OrderStatus from, OrderStatus to) {
+            if (!hasSubscribers) return;
+            long seq = claimed.getAndIncrement();
+            int i = (int) seq & mask;
+            stamps.set(i, -(seq + 2));
+            // a volatile store does not keep the plain stores after it from moving ahead of it; without
+            // this a reader could see new fields while both its stamp reads still show the last lap
+            VarHandle.storeStoreFence();
+            orderIds[i] = orderId;
+            fromStatus[i] = (byte) (from == null ? -1 : from.ordinal());
+            toStatus[i] = (byte) to.ordinal();
+            timestamps[i] = System.nanoTime();
+            stamps.lazySet(i, seq); // release: the fields above become visible with the stamp
+        }
+
+        long published() { return claimed.get(); }
+
+        // Starts a daemon thread delivering events published from now on
+        Subscription subscribe(String name, OrderEventListener listener, int maxLag) {
+            Subscription sub = new Subscription(name, listener, Math.min(maxLag, capacity), claimed.get());
+            subscriptions.add(sub);
+            hasSubscribers = true;
+            sub.thread.start();
+            return sub;
+        }
+
+        class Subscription implements AutoCloseable {
+            final String name;
+            private final OrderEventListener listener;
+            private final int maxLag;
+            private final Thread thread;
+            private volatile boolean running = true;
+            private volatile long cursor;
+            private final AtomicLong delivered = new AtomicLong();
+            private final AtomicLong dropped = new AtomicLong();
+
+            private Subscription(String name, OrderEventListener listener, int maxLag, long start) {
+                this.name = name;
+                this.listener = listener;
+                this.maxLag = maxLag;
+                this.cursor = start;
+                thread = new Thread(this::run, "order-events-" + name);
+                thread.setDaemon(true);
+            }
+
+            long delivered() { return delivered.get(); }
+            long dropped() { return dropped.get(); }
+            long lag() { return claimed.get() - cursor; }
+
+            private void run() {
+                long seq = cursor;
+                int idleSpins = 0;
+                while (running) {
+                    long head = claimed.get();
+                    if (head - seq > maxLag) { // fell behind: drop the oldest events, keep the newest maxLag
+                        dropped.addAndGet(head - maxLag - seq);
+                        seq = head - maxLag;
+                    }
+                    boolean progressed = false;
+                    while (seq < head) {
+                        int i = (int) seq & mask;
+                        long stamp = stamps.get(i);
+                        if (stamp == seq) {
+                            int orderId = orderIds[i];
+                            int from = fromStatus[i], to = toStatus[i];
+                            long ts = timestamps[i];
+                            VarHandle.acquireFence();
+                            if (stamps.get(i) == seq) {
+                                listener.onEvent(orderId, from < 0 ? null : OrderStatus.of(from), OrderStatus.of(to), ts);
+                                delivered.incrementAndGet();
+                                seq++;
+                                progressed = true;
+                                continue;
+                            }
+                            stamp = stamps.get(i);
+                        }
+                        long writing = stamp >= 0 ? stamp : (stamp == EMPTY ? -1 : -stamp - 2);
+                        if (writing > seq) { // overwritten by a later lap
+                            long oldest = Math.max(seq + 1, claimed.get() - capacity + 1);
+                            dropped.addAndGet(oldest - seq);
+                            seq = oldest;
+                            continue;
+                        }
+                        break; // claimed but not yet published
+                    }
+                    cursor = seq;
+                    if (progressed) {
+                        idleSpins = 0;
+                    } else if (++idleSpins > 100) {
+                        LockSupport.parkNanos(100_000);
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                running = false;
+                subscriptions.remove(this);
+                hasSubscribers = !subscriptions.isEmpty();
+                try {
+                    thread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    // ====== KITCHEN QUEUES ======
+
+    // Told about each order placed at its restaurant, e.g. to put it on the kitchen's screen.
+    // Called on a virtual thread; the sub-orders of a split checkout are announced at the same time.
+    interface KitchenListener {
+        void onOrder(Order order);
+    }
+
+    // Placed orders waiting at each restaurant for the kitchen to accept them, oldest first. DataStore
+    // keeps the queues in step as orders are placed, accepted or cancelled, so recovery rebuilds them
+    // like any other index; each order is booked on its restaurant's KitchenSchedule on the way in,
+    // which gives it its ready time. announce() is the fan-out that tells the restaurants after checkout.
+    static class KitchenQueues {
+        private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+        private final boolean concurrent;
+        private final Map<Integer, NavigableSet<Integer>> waiting; // restaurant id -> order ids
+        private volatile KitchenListener listener;
+        private ExecutorService fanOut; // started with the first listener
+        private final LongAdder failed = new LongAdder();
+
+        KitchenQueues(boolean concurrent) {
+            this.concurrent = concurrent;
+            waiting = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+        }
+
+        void enqueue(Order o) {
+            Restaurant r = o.getRestaurant();
+            if (r == null) return;
+            book(r, o);
+            waiting.computeIfAbsent(r.getId(), k -> concurrent ? new ConcurrentSkipListSet<>() : new TreeSet<>()).add(o.getOrderId());
+        }
+
+        // Books an order that is not waiting for the kitchen any more
+        void book(Order o) {
+            Restaurant r = o.getRestaurant();
+            if (r != null) book(r, o);
+        }
+
+        private static void book(Restaurant r, Order o) {
+            o.setReadyAtMillis(r.getKitchen().book(o.getPlacedAtMillis(), o.getPrepMillis()));
+        }
+
+        // When the cart would be ready if it were ordered now: the last of its restaurants to finish,
+        // each starting on its slowest dish when a station comes free. Items on no menu take their prep
+        // time from now. Nothing is booked. Caller holds the customer's lock.
+        static long quote(Cart cart, long nowMillis) {
+            long ready = nowMillis;
+            for (LineItem l : cart.getLines()) {
+                Restaurant r = l.getItem().owner;
+                long prep = l.getItem().getPrepSeconds() * 1000L;
+                ready = Math.max(ready, r == null ? nowMillis + prep : r.getKitchen().quote(nowMillis, prep));
+            }
+            return ready;
+        }
+
+        void remove(Order o) {
+            Restaurant r = o.getRestaurant();
+            NavigableSet<Integer> ids = r == null ? null : waiting.get(r.getId());
+            if (ids != null) ids.remove(o.getOrderId());
+        }
+
+        // Live read-only view of the order ids waiting at a restaurant, oldest first
+        NavigableSet<Integer> waiting(int restaurantId) {
+            NavigableSet<Integer> ids = waiting.get(restaurantId);
+            return ids == null ? Collections.emptyNavigableSet() : Collections.unmodifiableNavigableSet(ids);
+        }
+
+        synchronized void setListener(KitchenListener l) {
+            if (l != null && fanOut == null) fanOut = Executors.newVirtualThreadPerTaskExecutor();
+            listener = l;
+        }
+
+        // Listener calls that threw; the orders they were about stay placed
+        long failedAnnouncements() { return failed.sum(); }
+
+        // Tells every order's restaurant about it, all of them at once, and completes when each call has
+        // returned; straight away if nobody listens
+        CompletableFuture<Void> announce(Order[] orders, int count) {
+            KitchenListener l = listener;
+            if (l == null || count == 0) return DONE;
+            if (count == 1) { // nothing to overlap
+                tell(l, orders[0]);
+                return DONE;
+            }
+            CompletableFuture<?>[] calls = new CompletableFuture<?>[count];
+            for (int i = 0; i < count; i++) {
+                Order o = orders[i];
+                calls[i] = CompletableFuture.runAsync(() -> tell(l, o), fanOut);
+            }
+            return CompletableFuture.allOf(calls);
+        }
+
+        private void tell(KitchenListener l, Order o) {
+            try {
+                l.onOrder(o);
+            } catch (RuntimeException e) {
+                failed.increment();
+            }
+        }
+    }
+
+    // A restaurant's kitchen as stations that cook orders side by side. Each order goes to the station
+    // that comes free first and holds it for its prep time from then, or from when it was placed if
+    // the station is idle. The stations' free times form a min-heap, so booking is O(log stations)
+    // however long the queue, and a quote only reads the earliest. The clock frees stations; the
+    // kitchen does not report progress, and a cancelled order keeps its booking, so estimates err late.
+    // A kitchen whose next station is more than maxWait away is full: the menu listing hides it
+    // until it catches up.
+    static class KitchenSchedule {
+        static final int DEFAULT_STATIONS = 2;
+        static final long DEFAULT_MAX_WAIT_MILLIS = 45 * 60_000L;
+
+        private long[] freeAt = new long[DEFAULT_STATIONS]; // min-heap of when each station comes free
+        private volatile long nextFree; // freeAt[0], for readers that do not lock
+        private volatile long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+
+        public synchronized int getStations() { return freeAt.length; }
+        public long getMaxWaitMillis() { return maxWaitMillis; }
+
+        // Fewer stations keep the latest bookings, as if the removed stations' orders finish on the
+        // ones left; added stations start idle
+        synchronized void configure(int stations, long maxWaitMillis) {
+            long[] sorted = freeAt.clone();
+            Arrays.sort(sorted);
+            long[] heap = new long[stations]; // ascending, which is a valid heap
+            for (int i = 1; i <= Math.min(stations, sorted.length); i++) heap[stations - i] = sorted[sorted.length - i];
+            freeAt = heap;
+            nextFree = heap[0];
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        // Books an order placed at placedAtMillis that takes prepMillis; returns when it will be ready
+        synchronized long book(long placedAtMillis, long prepMillis) {
+            long[] h = freeAt;
+            long ready = Math.max(placedAtMillis, h[0]) + prepMillis;
+            // the earliest station now comes free at ready: sift it down to its place
+            int i = 0;
+            for (int child = 1; child < h.length; child = 2 * i + 1) {
+                if (child + 1 < h.length && h[child + 1] < h[child]) child++;
+                if (h[child] >= ready) break;
+                h[i] = h[child];
+                i = child;
+            }
+            h[i] = ready;
+            nextFree = h[0];
+            return ready;
+        }
+
+        // When an order taking prepMillis would be ready if it were placed now; books nothing
+        long quote(long nowMillis, long prepMillis) { return Math.max(nowMillis, nextFree) + prepMillis; }
+
+        // False while the queue is full
+        boolean isAccepting(long nowMillis) { return nextFree - nowMillis <= maxWaitMillis; }
+    }
+
+    // ====== SEARCH ======
+
+    // In-memory full-text index over restaurant and food item names, kept in step by FoodService.
+    // Food postings hold one long per (token, item): price in paise in the high half and a slot
+    // number in the low half, so a posting sorted as plain longs is already in price order, a
+    // price filter is a binary search, and an item has the same key in every posting it is in,
+    // which lets multi-word queries intersect postings without touching the items.
+    // Appends go to an unsorted tail that the next query merges.
+    // Autocomplete walks a sorted vocabulary (every token with the number of names using it).
+    static class SearchIndex {
+        private static final long MAX_INDEXED_PAISE = Integer.MAX_VALUE;
+
+        static class Hit {
+            private final int restaurantId;
+            private final FoodItem item;
+
+            Hit(int restaurantId, FoodItem item) {
+                this.restaurantId = restaurantId;
+                this.item = item;
+            }
+
+            public int getRestaurantId() { return restaurantId; }
+            public FoodItem getItem() { return item; }
+        }
+
+        // Token -> keys of the items whose name contains it; every method runs under the posting's lock
+        private static final class Postings {
+            long[] keys = new long[4];
+            int size;
+            int sorted; // keys[0, sorted) are in order, the rest were appended since
+
+            void add(long key) {
+                if (size == keys.length) keys = Arrays.copyOf(keys, size * 2);
+                keys[size++] = key;
+                if (sorted == size - 1 && (sorted == 0 || keys[sorted - 1] <= key)) sorted = size;
+            }
+
+            void ensureSorted() {
+                if (sorted == size) return;
+                Arrays.sort(keys, sorted, size);
+                if (sorted > 0 && keys[sorted - 1] > keys[sorted]) {
+                    // merge the sorted tail back in from the right; only entries above its minimum move
+                    long[] tail = Arrays.copyOfRange(keys, sorted, size);
+                    int i = sorted - 1, j = tail.length - 1, k = size - 1;
+                    while (j >= 0) keys[k--] = (i >= 0 && keys[i] > tail[j]) ? keys[i--] : tail[j--];
+                }
+                sorted = size;
+            }
+
+            int lowerBound(long key) {
+                return lowerBound(0, size, key);
+            }
+
+            // First index at or after from whose key is >= key, galloping ahead before the binary search
+            int seek(int from, long key) {
+                int step = 1, hi = from;
+                while (hi < size && keys[hi] < key) {
+                    from = hi + 1;
+                    hi += step;
+                    step <<= 1;
+                }
+                return lowerBound(from, Math.min(hi, size), key);
+            }
+
+            private int lowerBound(int lo, int hi, long key) {
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (keys[mid] < key) lo = mid + 1; else hi = mid;
+                }
+                return lo;
+            }
+
+            // Removes the key for item and returns its slot, or -1
+            int remove(long pricePaise, FoodItem item, Hit[] slots) {
+                ensureSorted();
+                int i = lowerBound(pricePaise << 32);
+                for (; i < size && (keys[i] >>> 32) == pricePaise; i++) {
+                    if (slots[(int) keys[i]].item == item) return removeAt(i);
+                }
+                // the price was changed behind the index's back; fall back to a scan
+                for (i = 0; i < size; i++) {
+                    if (slots[(int) keys[i]].item == item) return removeAt(i);
+                }
+                return -1;
+            }
+
+            private int removeAt(int i) {
+                int slot = (int) keys[i];
+                System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+                size--;
+                sorted--;
+                return slot;
+            }
+        }
+
+        private final Map<String, Postings> foodPostings = new ConcurrentHashMap<>();
+        private final Map<String, NavigableMap<Integer, Restaurant>> restaurantPostings = new ConcurrentHashMap<>();
+        private final NavigableMap<String, Integer> vocabulary = new ConcurrentSkipListMap<>();
+
+        // slot -> indexed item; written under this, read by queries through the volatile array
+        private volatile Hit[] slots = new Hit[1024];
+        private int slotCount;
+        private int[] freeSlots = new int[16];
+        private int freeCount;
+
+        void addRestaurant(Restaurant r) {
+            for (String t : tokenize(r.getName())) {
+                restaurantPostings.computeIfAbsent(t, k -> new ConcurrentSkipListMap<>()).put(r.getId(), r);
+                vocabulary.merge(t, 1, Integer::sum);
+            }
+        }
+
+        void addFoodItem(int restaurantId, FoodItem item) {
+            List<String> tokens = tokenize(item.getName());
+            if (tokens.isEmpty()) return;
+            long key = (priceKey(item) << 32) | allocateSlot(new Hit(restaurantId, item));
+            for (String t : tokens) {
+                Postings p = foodPostings.computeIfAbsent(t, k -> new Postings());
+                synchronized (p) {
+                    p.add(key);
+                }
+                vocabulary.merge(t, 1, Integer::sum);
+            }
+        }
+
+        void removeFoodItem(FoodItem item) {
+            int slot = -1;
+            for (String t : tokenize(item.getName())) {
+                Postings p = foodPostings.get(t);
+                if (p == null) continue;
+                synchronized (p) {
+                    int s = p.remove(priceKey(item), item, slots);
+                    if (s >= 0) slot = s;
+                }
+                vocabulary.computeIfPresent(t, (k, n) -> n == 1 ? null : n - 1);
+            }
+            if (slot >= 0) freeSlot(slot);
+        }
+
+        // Up to limit items whose name contains every query token, cheapest first
+        List<Hit> searchFood(String query, long minPaise, long maxPaise, int limit) {
+            List<String> tokens = tokenize(query);
+            List<Hit> hits = new ArrayList<>();
+            if (tokens.isEmpty() || limit <= 0 || minPaise > maxPaise) return hits;
+            tokens.sort(null); // postings are locked in token order so concurrent queries cannot deadlock
+            Postings[] ps = new Postings[tokens.size()];
+            for (int i = 0; i < ps.length; i++) {
+                ps[i] = foodPostings.get(tokens.get(i));
+                if (ps[i] == null) return hits;
+            }
+            long minKey = Math.max(minPaise, 0) << 32;
+            intersect(ps, 0, minKey, Math.min(maxPaise, MAX_INDEXED_PAISE), limit, hits);
+            return hits;
+        }
+
+        // Leapfrog join: every posting seeks to the largest key seen so far until they all agree
+        private void intersect(Postings[] ps, int locked, long minKey, long maxPaise, int limit, List<Hit> hits) {
+            if (locked < ps.length) {
+                synchronized (ps[locked]) {
+                    ps[locked].ensureSorted();
+                    intersect(ps, locked + 1, minKey, maxPaise, limit, hits);
+                }
+                return;
+            }
+            Hit[] s = slots;
+            int[] pos = new int[ps.length];
+            long key = minKey;
+            while (true) {
+                boolean agreed = true;
+                for (int i = 0; i < ps.length; i++) {
+                    Postings p = ps[i];
+                    pos[i] = p.seek(pos[i], key);
+                    if (pos[i] == p.size) return;
+                    if (p.keys[pos[i]] != key) {
+                        key = p.keys[pos[i]];
+                        agreed = i == 0;
+                    }
+                }
+                if ((key >>> 32) > maxPaise) return;
+                if (agreed) {
+                    hits.add(s[(int) key]);
+                    if (hits.size() == limit) return;
+                    key++;
+                }
+            }
+        }
+
+        // Up to limit restaurants whose name contains every query token, by id
+        List<Restaurant> searchRestaurants(String query, int limit) {
+            List<String> tokens = tokenize(query);
+            List<Restaurant> hits = new ArrayList<>();
+            if (tokens.isEmpty() || limit <= 0) return hits;
+            NavigableMap<Integer, Restaurant> driver = null;
+            for (String t : tokens) {
+                NavigableMap<Integer, Restaurant> p = restaurantPostings.get(t);
+                if (p == null) return hits;
+                if (driver == null || p.size() < driver.size()) driver = p;
+            }
+            for (Restaurant r : driver.values()) {
+                if (tokens.size() == 1 || containsAllTokens(r.getName(), tokens)) {
+                    hits.add(r);
+                    if (hits.size() == limit) break;
+                }
+            }
+            return hits;
+        }
+
+        // Up to limit indexed words starting with prefix, in alphabetical order
+        List<String> suggest(String prefix, int limit) {
+            List<String> out = new ArrayList<>();
+            List<String> tokens = tokenize(prefix);
+            if (tokens.isEmpty() || limit <= 0) return out;
+            String p = tokens.get(tokens.size() - 1);
+            for (String term : vocabulary.subMap(p, true, p + Character.MAX_VALUE, false).keySet()) {
+                out.add(term);
+                if (out.size() == limit) break;
+            }
+            return out;
+        }
+
+        private synchronized int allocateSlot(Hit h) {
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                if (slotCount == slots.length) slots = Arrays.copyOf(slots, slotCount * 2);
+                slot = slotCount++;
+            }
+            slots[slot] = h;
+            return slot;
+        }
+
+        private synchronized void freeSlot(int slot) {
+            slots[slot] = null;
+            if (freeCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            freeSlots[freeCount++] = slot;
+        }
+
+        private static long priceKey(FoodItem item) {
+            return Math.max(0, Math.min(item.getPricePaise(), MAX_INDEXED_PAISE));
+        }
+
+        // Lower-cased words (runs of letters and digits), without duplicates
+        static List<String> tokenize(String text) {
+            List<String> tokens = new ArrayList<>(4);
+            if (text == null) return tokens;
+            int n = text.length();
+            for (int i = 0; i < n; ) {
+                while (i < n && !Character.isLetterOrDigit(text.charAt(i))) i++;
+                int start = i;
+                while (i < n && Character.isLetterOrDigit(text.charAt(i))) i++;
+                if (i > start) {
+                    String t = text.substring(start, i).toLowerCase(Locale.ROOT);
+                    if (!tokens.contains(t)) tokens.add(t);
+                }
+            }
+            return tokens;
+        }
+
+        // Same word split as tokenize(), compared in place so candidates cost no allocation
+        private static boolean containsAllTokens(String name, List<String> tokens) {
+            for (String t : tokens) {
+                if (!containsToken(name, t)) return false;
+            }
+            return true;
+        }
+
+        private static boolean containsToken(String name, String token) {
+            int n = name.length();
+            for (int i = 0; i < n; ) {
+                while (i < n && !Character.isLetterOrDigit(name.charAt(i))) i++;
+                int start = i;
+                while (i < n && Character.isLetterOrDigit(name.charAt(i))) i++;
+                if (i - start == token.length() && name.regionMatches(true, start, token, 0, token.length())) return true;
+            }
+            return false;
+        }
+    }
+
+    // ====== REPORTING ======
+
+    enum ReportFormat { TEXT, CSV, JSONL }
+
+    // Appends rows straight into one char buffer that is handed to the underlying Writer in
+    // large chunks: numbers and money are written digit by digit and strings are escaped in
+    // place, so a row costs no intermediate Strings and the console lock is taken once per chunk.
+    static class ReportWriter implements Closeable {
+        private final Writer out;
+        private final boolean closeOut;
+        private final char[] buf;
+        private int pos;
+
+        ReportWriter(Writer out) { this(out, true, 1 << 16); }
+
+        ReportWriter(Writer out, boolean closeOut, int bufferChars) {
+            this.out = out;
+            this.closeOut = closeOut;
+            this.buf = new char[bufferChars];
+        }
+
+        // Writes to System.out; close() flushes but leaves System.out open
+        static ReportWriter console() {
+            return new ReportWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), false, 1 << 16);
+        }
+
+        ReportWriter append(char c) throws IOException {
+            if (pos == buf.length) drain();
+            buf[pos++] = c;
+            return this;
+        }
+
+        ReportWriter append(String s) throws IOException {
+            if (s == null) s = "null";
+            int n = s.length();
+            for (int i = 0; i < n; ) {
+                if (pos == buf.length) drain();
+                int chunk = Math.min(n - i, buf.length - pos);
+                s.getChars(i, i + chunk, buf, pos);
+                pos += chunk;
+                i += chunk;
+            }
+            return this;
+        }
+
+        ReportWriter appendLong(long v) throws IOException {
+            if (buf.length - pos < 20) drain();
+            if (v == Long.MIN_VALUE) return append("-9223372036854775808");
+            if (v < 0) {
+                buf[pos++] = '-';
+                v = -v;
+            }
+            int end = pos + digits(v);
+            for (int i = end - 1; i >= pos; i--) {
+                buf[i] = (char) ('0' + v % 10);
+                v /= 10;
+            }
+            pos = end;
+            return this;
+        }
+
+        // Money as rupees with two decimals, same as Cart.formatRupees
+        ReportWriter appendRupees(long paise) throws IOException {
+            if (paise < 0) append('-');
+            long abs = Math.abs(paise);
+            appendLong(abs / 100).append('.');
+            return append((char) ('0' + abs % 100 / 10)).append((char) ('0' + abs % 10));
+        }
+
+        // RFC 4180: quoted only when the value contains a separator, quote or line break
+        ReportWriter appendCsv(String s) throws IOException {
+            if (s == null) return this;
+            boolean quote = false;
+            for (int i = 0; i < s.length() && !quote; i++) {
+                char c = s.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) return append(s);
+            append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"') append('"');
+                append(c);
+            }
+            return append('"');
+        }
+
+        ReportWriter appendJson(String s) throws IOException {
+            if (s == null) return append("null");
+            append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"' -> append('\\').append('"');
+                    case '\\' -> append('\\').append('\\');
+                    case '\n' -> append('\\').append('n');
+                    case '\r' -> append('\\').append('r');
+                    case '\t' -> append('\\').append('t');
+                    default -> {
+                        if (c < 0x20) {
+                            append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                        } else {
+                            append(c);
+                        }
+                    }
+                }
+            }
+            return append('"');
+        }
+
+        ReportWriter newLine() throws IOException { return append('\n'); }
+
+        void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            if (closeOut) out.close();
+        }
+
+        private void drain() throws IOException {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private static int digits(long v) {
+            int d = 1;
+            while (v >= 10) {
+                v /= 10;
+                d++;
+            }
+            return d;
+        }
+    }
+
+    // Order rows in the chosen format; fields are written in declaration order
+    static class OrderReport {
+        enum Field {
+            ORDER_ID("orderId"), PARENT_ORDER("parentOrderId"), CUSTOMER("customer"), RESTAURANT("restaurant"),
+            ITEMS("items"), TOTAL("total"), STATUS("status"), DELIVERY_PERSON("deliveryPerson"), ADDRESS("address");
+
+            final String label;
+
+            Field(String label) { this.label = label; }
+        }
+
+        private final ReportFormat format;
+        private final Field[] fields;
+
+        OrderReport(ReportFormat format) { this(format, EnumSet.allOf(Field.class)); }
+
+        OrderReport(ReportFormat format, Set<Field> fields) {
+            this.format = format;
+            this.fields = fields.isEmpty() ? Field.values() : EnumSet.copyOf(fields).toArray(new Field[0]);
+        }
+
+        void writeHeader(ReportWriter w) throws IOException {
+            if (format != ReportFormat.CSV) return;
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) w.append(',');
+                w.append(fields[i].label);
+            }
+            w.newLine();
+        }
+
+        void write(ReportWriter w, Order o) throws IOException {
+            OrderStatus status = o.getStatus();
+            DeliveryPerson dp = o.getDeliveryPerson();
+            if (format == ReportFormat.TEXT) w.append("Order{");
+            if (format == ReportFormat.JSONL) w.append('{');
+            for (int i = 0; i < fields.length; i++) {
+                Field f = fields[i];
+                if (i > 0) w.append(format == ReportFormat.TEXT ? ", " : ",");
+                if (format == ReportFormat.TEXT) w.append(f.label).append('=');
+                if (format == ReportFormat.JSONL) w.append('"').append(f.label).append("\":");
+                switch (f) {
+                    case ORDER_ID -> w.appendLong(o.getOrderId());
+                    case PARENT_ORDER -> {
+                        if (o.getParentOrderId() > 0) w.appendLong(o.getParentOrderId());
+                        else if (format == ReportFormat.TEXT) w.append("None");
+                        else if (format == ReportFormat.JSONL) w.append("null");
+                    }
+                    case CUSTOMER -> string(w, o.getCustomer().getUsername());
+                    case RESTAURANT -> {
+                        Restaurant r = o.getRestaurant();
+                        if (r == null && format == ReportFormat.TEXT) w.append("Unknown");
+                        else string(w, r == null ? null : r.getName());
+                    }
+                    case ITEMS -> items(w, o.getLines());
+                    case TOTAL -> {
+                        if (format == ReportFormat.TEXT) w.append("Rs. ");
+                        w.appendRupees(o.getTotalPaise());
+                    }
+                    case STATUS -> {
+                        if (format == ReportFormat.TEXT) w.append('\'').append(status.name()).append('\'');
+                        else string(w, status.name());
+                    }
+                    case DELIVERY_PERSON -> {
+                        if (dp == null && format == ReportFormat.TEXT) w.append("Not Assigned");
+                        else string(w, dp == null ? null : dp.getName());
+                    }
+                    case ADDRESS -> string(w, o.getDeliveryAddress());
+                }
+            }
+            if (format != ReportFormat.CSV) w.append('}');
+            w.newLine();
+        }
+
+        private void string(ReportWriter w, String s) throws IOException {
+            switch (format) {
+                case TEXT -> w.append(s);
+                case CSV -> w.appendCsv(s);
+                case JSONL -> w.appendJson(s);
+            }
+        }
+
+        // TEXT: {name x2, ...}; CSV: one quoted cell "name x2; ..."; JSONL: an array of line objects
+        private void items(ReportWriter w, Collection<LineItem> lines) throws IOException {
+            if (format == ReportFormat.JSONL) {
+                w.append('[');
+                boolean first = true;
+                for (LineItem l : lines) {
+                    if (!first) w.append(',');
+                    first = false;
+                    w.append("{\"foodId\":").appendLong(l.getItem().getId()).append(",\"name\":").appendJson(l.getItem().getName())
+                            .append(",\"quantity\":").appendLong(l.getQuantity()).append(",\"amount\":").appendRupees(l.getAmountPaise()).append('}');
+                }
+                w.append(']');
+                return;
+            }
+            boolean csv = format == ReportFormat.CSV;
+            w.append(csv ? '"' : '{');
+            boolean first = true;
+            for (LineItem l : lines) {
+                if (!first) w.append(csv ? "; " : ", ");
+                first = false;
+                String name = l.getItem().getName();
+                if (csv) {
+                    for (int i = 0; i < name.length(); i++) {
+                        char c = name.charAt(i);
+                        if (c == '"') w.append('"');
+                        w.append(c);
+                    }
+                } else {
+                    w.append(name);
+                }
+                w.append(" x").appendLong(l.getQuantity());
+            }
+            w.append(csv ? '"' : '}');
+        }
+
+        // Comma-separated labels (e.g. "orderId,total"); blank means every field
+        static Set<Field> parseFields(String spec) {
+            Set<Field> out = EnumSet.noneOf(Field.class);
+            if (spec == null || spec.isBlank()) return out;
+            for (String name : spec.split(",")) {
+                String n = name.trim();
+                Field match = null;
+                for (Field f : Field.values()) {
+                    if (f.label.equalsIgnoreCase(n) || f.name().equalsIgnoreCase(n)) match = f;
+                }
+                if (match == null) throw new IllegalArgumentException("unknown order field: " + n);
+                out.add(match);
+            }
+            return out;
+        }
+    }
+
+    // Restaurant menus: TEXT keeps the grouped "View Restaurants and Menus" layout,
+    // CSV and JSONL write one row per food item
+    static class MenuReport {
+        enum Field {
+            RESTAURANT_ID("restaurantId"), RESTAURANT_NAME("restaurantName"), FOOD_ID("foodId"),
+            FOOD_NAME("foodName"), PRICE("price");
+
+            final String label;
+
+            Field(String label) { this.label = label; }
+        }
+
+        private final ReportFormat format;
+        private final Field[] fields;
+
+        MenuReport(ReportFormat format) { this(format, EnumSet.allOf(Field.class)); }
+
+        MenuReport(ReportFormat format, Set<Field> fields) {
+            this.format = format;
+            this.fields = fields.isEmpty() ? Field.values() : EnumSet.copyOf(fields).toArray(new Field[0]);
+        }
+
+        void writeHeader(ReportWriter w) throws IOException {
+            if (format == ReportFormat.TEXT) {
+                w.append("Restaurants and Menus:").newLine();
+            } else if (format == ReportFormat.CSV) {
+                for (int i = 0; i < fields.length; i++) {
+                    if (i > 0) w.append(',');
+                    w.append(fields[i].label);
+                }
+                w.newLine();
+            }
+        }
+
+        boolean isText() { return format == ReportFormat.TEXT; }
+
+        void write(ReportWriter w, Restaurant r) throws IOException {
+            if (format == ReportFormat.TEXT) {
+                w.append("Restaurant ID: ").appendLong(r.getId()).append(", Name: ").append(r.getName()).newLine();
+                for (FoodItem fi : r.getMenu()) {
+                    w.append("- Food Item ID: ").appendLong(fi.getId()).append(", Name: ").append(fi.getName())
+                            .append(", Price: Rs. ").appendRupees(fi.getPricePaise()).newLine();
+                }
+                return;
+            }
+            boolean json = format == ReportFormat.JSONL;
+            for (FoodItem fi : r.getMenu()) {
+                if (json) w.append('{');
+                for (int i = 0; i < fields.length; i++) {
+                    if (i > 0) w.append(',');
+                    if (json) w.append('"').append(fields[i].label).append("\":");
+                    switch (fields[i]) {
+                        case RESTAURANT_ID -> w.appendLong(r.getId());
+                        case RESTAURANT_NAME -> { if (json) w.appendJson(r.getName()); else w.appendCsv(r.getName()); }
+                        case FOOD_ID -> w.appendLong(fi.getId());
+                        case FOOD_NAME -> { if (json) w.appendJson(fi.getName()); else w.appendCsv(fi.getName()); }
+                        case PRICE -> w.appendRupees(fi.getPricePaise());
+                    }
+                }
+                if (json) w.append('}');
+                w.newLine();
+            }
+        }
+
+        // One JSON object for the whole menu, as served by the HTTP API
+        static void writeJson(ReportWriter w, Restaurant r) throws IOException {
+            w.append("{\"restaurantId\":").appendLong(r.getId()).append(",\"name\":").appendJson(r.getName()).append(",\"items\":[");
+            boolean first = true;
+            for (FoodItem fi : r.getMenu()) {
+                if (!first) w.append(',');
+                first = false;
+                foodFields(w.append('{'), fi).append('}');
+            }
+            w.append("]}");
+        }
+
+        static ReportWriter foodFields(ReportWriter w, FoodItem fi) throws IOException {
+            return w.append("\"foodId\":").appendLong(fi.getId()).append(",\"name\":").appendJson(fi.getName())
+                    .append(",\"price\":").appendRupees(fi.getPricePaise());
+        }
+
+        static Set<Field> parseFields(String spec) {
+            Set<Field> out = EnumSet.noneOf(Field.class);
+            if (spec == null || spec.isBlank()) return out;
+            for (String name : spec.split(",")) {
+                String n = name.trim();
+                Field match = null;
+                for (Field f : Field.values()) {
+                    if (f.label.equalsIgnoreCase(n) || f.name().equalsIgnoreCase(n)) match = f;
+                }
+                if (match == null) throw new IllegalArgumentException("unknown menu field: " + n);
+                out.add(match);
+            }
+            return out;
+        }
+    }
+
+    // ====== MENU CACHE ======
+
+    // Rendered menus per restaurant, tagged with the restaurant's menu version at render time.
+    // A hit is one map lookup plus a version compare and never touches the restaurant's lock, so
+    // readers never hold up menu edits; an edit just bumps the version and the stale entry is
+    // re-rendered on its next read. Bounded to maxEntries with CLOCK (second-chance) eviction:
+    // a hit sets the entry's referenced bit, and the eviction hand spares referenced entries once.
+    static class MenuCache {
+        enum Form { TEXT, JSON }
+
+        private static final class Entry {
+            final long version;
+            final String text;
+            volatile String json; // rendered on first JSON read of this version
+            volatile boolean referenced;
+
+            Entry(long version, String text) {
+                this.version = version;
+                this.text = text;
+            }
+        }
+
+        private final int maxEntries;
+        private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+        private final Queue<Integer> clock = new ConcurrentLinkedQueue<>(); // restaurant ids, oldest first
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder stale = new LongAdder(); // misses caused by an edit since the render
+        private final LongAdder evictions = new LongAdder();
+
+        MenuCache(int maxEntries) {
+            if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive");
+            this.maxEntries = maxEntries;
+        }
+
+        // The restaurant's menu as MenuReport TEXT, or as the JSON object served by the HTTP API
+        String get(Restaurant r, Form form) {
+            long version = r.getMenuVersion(); // read before rendering so a concurrent edit can only make the entry stale
+            Entry e = entries.get(r.getId());
+            if (e != null && e.version == version) {
+                if (!e.referenced) e.referenced = true;
+                String s = form == Form.TEXT ? e.text : e.json;
+                if (s != null) {
+                    hits.increment();
+                    return s;
+                }
+                misses.increment();
+                return e.json = render(r, Form.JSON);
+            }
+            misses.increment();
+            if (e != null) stale.increment();
+            Entry fresh = new Entry(version, render(r, Form.TEXT));
+            if (form == Form.JSON) fresh.json = render(r, Form.JSON);
+            if (entries.put(r.getId(), fresh) == null) {
+                clock.add(r.getId());
+                evict();
+            }
+            return form == Form.TEXT ? fresh.text : fresh.json;
+        }
+
+        int size() { return entries.size(); }
+        long hits() { return hits.sum(); }
+        long misses() { return misses.sum(); }
+        long evictions() { return evictions.sum(); }
+
+        String stats() {
+            long h = hits.sum(), m = misses.sum();
+            return String.format("entries=%d/%d hits=%d misses=%d (stale=%d) evictions=%d hitRatio=%.1f%%",
+                    entries.size(), maxEntries, h, m, stale.sum(), evictions.sum(), h + m == 0 ? 0.0 : 100.0 * h / (h + m));
+        }
+
+        private void evict() {
+            while (entries.size() > maxEntries) {
+                Integer id = clock.poll();
+                if (id == null) return;
+                Entry e = entries.get(id);
+                if (e == null) continue;
+                if (e.referenced) {
+                    e.referenced = false;
+                    clock.add(id);
+                } else if (entries.remove(id, e)) {
+                    evictions.increment();
+                } else {
+                    clock.add(id); // re-rendered meanwhile; keep it on the clock
+                }
+            }
+        }
+
+        private static String render(Restaurant r, Form form) {
+            StringWriter sw = new StringWriter(256);
+            try (ReportWriter w = new ReportWriter(sw, false, 1024)) {
+                if (form == Form.TEXT) new MenuReport(ReportFormat.TEXT).write(w, r);
+                else MenuReport.writeJson(w, r);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // StringWriter does not throw
+            }
+            return sw.toString();
+        }
+    }
+
+    // ====== HTTP API ======
+
+    // JSON over HTTP on the JDK's built-in server, one virtual thread per request. Parameters come
+    // from the query string or an application/x-www-form-urlencoded body; every response is a JSON
+    // object. Needs a concurrent DataStore. Routes:
+    //   GET    /restaurants?offset=&limit=              POST /restaurants (id, name)
+    //   GET    /restaurants/{rid}/menu                  POST /restaurants/{rid}/menu (foodId, name, price)
+    //   DELETE /restaurants/{rid}/menu/{foodId}         GET  /search?q=&minPrice=&maxPrice=&limit=
+    //   POST   /restaurants/{rid}/menu/{foodId}/stock (portions)
+    //   POST   /restaurants/{rid}/menu/{foodId}/prep-time (seconds)
+    //   POST   /restaurants/{rid}/kitchen (stations, maxWaitMinutes)
+    //   POST   /customers (id, name, contact)           GET  /customers/{cid}/cart
+    //   GET    /customers/{cid}/eta (when the cart would be ready if ordered now)
+    //   POST   /customers/{cid}/cart (restaurantId, foodId, quantity)
+    //   GET    /customers/{cid}/orders?offset=&limit=   POST /customers/{cid}/orders (address)
+    //          (an Idempotency-Key header makes a retried POST answer with the order it placed the first time)
+    //   GET    /orders/{oid} (a split checkout's parent id lists its sub-orders)
+    //   POST   /orders/{oid}/status (status)
+    //   POST   /orders/{oid}/assign (deliveryPersonId)  POST /delivery-people (id, name, contact)
+    static class HttpApi implements Closeable {
+        private static final int DEFAULT_PAGE = 50;
+        private static final int MAX_PAGE = 1000;
+        private static final int CHECKOUT_BATCH = 256;
+
+        private final DataStore db;
+        private final FoodService foodService;
+        private final CustomerService customerService;
+        private final OrderService orderService;
+        private final HttpServer server;
+        private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        private final CheckoutPipeline checkout;
+        private final LocationIngest locations = new LocationIngest(new PositionTable(TRACKED_RIDERS), LOCATION_QUEUE);
+
+        HttpApi(DataStore db, FoodService foodService, CustomerService customerService, OrderService orderService,
+                int port) throws IOException {
+            this(db, foodService, customerService, orderService, null, port);
+        }
+
+        // With metrics, checkouts are timed into place_order as the Metered* services time the rest
+        HttpApi(DataStore db, FoodService foodService, CustomerService customerService, OrderService orderService,
+                Metrics metrics, int port) throws IOException {
+            if (!db.concurrent) throw new IllegalArgumentException("the HTTP API needs a concurrent DataStore");
+            this.db = db;
+            this.foodService = foodService;
+            this.customerService = customerService;
+            this.orderService = orderService;
+            this.checkout = new CheckoutPipeline(db, CHECKOUT_BATCH, metrics == null ? null : metrics.placeOrder);
+            // the server writes headers and body separately; without TCP_NODELAY small responses
+            // stall ~40 ms on Nagle + delayed ACK. Read once when the first server is created.
+            if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+            server = HttpServer.create(new InetSocketAddress(port), 4096);
+            server.createContext("/", this::handle);
+            server.setExecutor(executor);
+        }
+
+        void start() { server.start(); }
+
+        int port() { return server.getAddress().getPort(); }
+
+        @Override
+        public void close() {
+            server.stop(0);
+            executor.close();
+            checkout.close();
+            locations.close();
+        }
+
+        // Thrown by handlers to answer with an error status
+        private static class ApiException extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            final int status;
+
+            ApiException(int status, String message) {
+                super(message, null, false, false);
+                this.status = status;
+            }
+        }
+
+        private void handle(HttpExchange ex) throws IOException {
+            Utf8Buffer body = new Utf8Buffer(256);
+            ReportWriter w = new ReportWriter(body, false, 256);
+            int status;
+            try {
+                Map<String, String> params = new HashMap<>();
+                parseForm(ex.getRequestURI().getRawQuery(), params);
+                if (ex.getRequestMethod().equals("POST")) {
+                    parseForm(new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), params);
+                }
+                String key = ex.getRequestHeaders().getFirst("Idempotency-Key");
+                if (key != null) params.put("idempotencyKey", key);
+                status = route(ex.getRequestMethod(), ex.getRequestURI().getRawPath().split("/"), params, w);
+            } catch (ApiException e) {
+                status = e.status;
+                body.reset();
+                w = new ReportWriter(body, false, 256);
+                w.append("{\"error\":").appendJson(e.getMessage()).append('}');
+            } catch (IllegalArgumentException e) { // includes NumberFormatException
+                status = 400;
+                body.reset();
+                w = new ReportWriter(body, false, 256);
+                w.append("{\"error\":").appendJson(e.getMessage() == null ? "bad request" : e.getMessage()).append('}');
+            } catch (RuntimeException e) { // e.g. a checkout after the journal failed
+                // the details stay in the server's log: they can name files and journal state
+                System.err.println("HTTP " + ex.getRequestMethod() + " " + ex.getRequestURI().getRawPath() + " failed:");
+                e.printStackTrace();
+                status = 500;
+                body.reset();
+                w = new ReportWriter(body, false, 256);
+                w.append("{\"error\":\"internal error\"}");
+            }
+            w.flush();
+            ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            ex.sendResponseHeaders(status, body.size());
+            try (OutputStream out = ex.getResponseBody()) {
+                body.writeTo(out);
+            }
+        }
+
+        // path[0] is the empty string before the leading slash
+        private int route(String method, String[] path, Map<String, String> p, ReportWriter w) throws IOException {
+            String resource = path.length > 1 ? path[1] : "";
+            boolean get = method.equals("GET"), post = method.equals("POST");
+            switch (resource) {
+                case "restaurants" -> {
+                    if (path.length == 2 && get) return listRestaurants(p, w);
+                    if (path.length == 2 && post) {
+                        int id = intParam(p, "id");
+                        if (!foodService.addRestaurant(id, required(p, "name"))) throw new ApiException(409, "restaurant exists");
+                        w.append("{\"id\":").appendLong(id).append('}');
+                        return 201;
+                    }
+                    if (path.length == 4 && path[3].equals("kitchen") && post) {
+                        int rid = Integer.parseInt(path[2]);
+                        int stations = intParam(p, "stations");
+                        int maxWait = intParam(p, "maxWaitMinutes", (int) (KitchenSchedule.DEFAULT_MAX_WAIT_MILLIS / 60_000));
+                        if (stations <= 0 || maxWait < 0) throw new ApiException(400, "stations must be positive and maxWaitMinutes not negative");
+                        if (!foodService.setKitchenCapacity(rid, stations, maxWait)) throw new ApiException(404, "restaurant not found");
+                        w.append("{\"restaurantId\":").appendLong(rid).append(",\"stations\":").appendLong(stations)
+                                .append(",\"maxWaitMinutes\":").appendLong(maxWait).append('}');
+                        return 200;
+                    }
+                    if (path.length >= 4 && path[3].equals("menu")) {
+                        int rid = Integer.parseInt(path[2]);
+                        if (path.length == 4 && get) return menu(rid, w);
+                        if (path.length == 4 && post) {
+                            int fid = intParam(p, "foodId");
+                            double price = Double.parseDouble(required(p, "price"));
+                            if (!foodService.addFoodItemToRestaurant(rid, fid, required(p, "name"), price)) {
+                                throw new ApiException(404, "restaurant not found");
+                            }
+                            w.append("{\"restaurantId\":").appendLong(rid).append(",\"foodId\":").appendLong(fid).append('}');
+                            return 201;
+                        }
+                        if (path.length == 6 && path[5].equals("stock") && post) {
+                            int fid = Integer.parseInt(path[4]);
+                            long portions = Long.parseLong(required(p, "portions"));
+                            if (portions < 0) throw new ApiException(400, "portions must not be negative");
+                            if (!foodService.setStock(rid, fid, portions)) throw new ApiException(404, "food item not found");
+                            w.append("{\"restaurantId\":").appendLong(rid).append(",\"foodId\":").appendLong(fid)
+                                    .append(",\"portions\":").appendLong(portions).append('}');
+                            return 200;
+                        }
+                        if (path.length == 6 && path[5].equals("prep-time") && post) {
+                            int fid = Integer.parseInt(path[4]);
+                            int seconds = intParam(p, "seconds");
+                            if (seconds <= 0) throw new ApiException(400, "seconds must be positive");
+                            if (!foodService.setPrepTime(rid, fid, seconds)) throw new ApiException(404, "food item not found");
+                            w.append("{\"restaurantId\":").appendLong(rid).append(",\"foodId\":").appendLong(fid)
+                                    .append(",\"seconds\":").appendLong(seconds).append('}');
+                            return 200;
+                        }
+                        if (path.length == 5 && method.equals("DELETE")) {
+                            int fid = Integer.parseInt(path[4]);
+                            if (!foodService.removeFoodItemFromRestaurant(rid, fid)) throw new ApiException(404, "food item not found");
+                            w.append("{\"removed\":true}");
+                            return 200;
+                        }
+                    }
+                }
+                case "search" -> {
+                    if (path.length == 2 && get) return search(p, w);
+                }
+                case "customers" -> {
+                    if (path.length == 2 && post) {
+                        int id = intParam(p, "id");
+                        if (!customerService.addCustomer(id, required(p, "name"), Long.parseLong(required(p, "contact")))) {
+                            throw new ApiException(409, "customer exists");
+                        }
+                        w.append("{\"id\":").appendLong(id).append('}');
+                        return 201;
+                    }
+                    if (path.length == 4) {
+                        int cid = Integer.parseInt(path[2]);
+                        if (path[3].equals("cart") && get) return cart(cid, w);
+                        if (path[3].equals("cart") && post) {
+                            FoodItem item = foodService.findFoodItem(intParam(p, "restaurantId"), intParam(p, "foodId"));
+                            if (customerService.getCustomer(cid) == null) throw new ApiException(404, "customer not found");
+                            if (item == null) throw new ApiException(404, "food item not found");
+                            int qty = intParam(p, "quantity");
+                            if (qty <= 0) throw new ApiException(400, "quantity must be positive");
+                            if (!customerService.addFoodToCart(cid, item, qty)) throw new ApiException(409, "not enough stock left");
+                            return cart(cid, w);
+                        }
+                        if (path[3].equals("coupon") && post) {
+                            if (customerService.getCustomer(cid) == null) throw new ApiException(404, "customer not found");
+                            if (!customerService.applyCoupon(cid, required(p, "code"))) throw new ApiException(404, "no such coupon");
+                            return cart(cid, w);
+                        }
+                        if (path[3].equals("eta") && get) {
+                            long ready = orderService.estimateReadyAt(cid);
+                            if (ready < 0) throw new ApiException(404, "customer not found or cart is empty");
+                            w.append("{\"readyAt\":").appendLong(ready).append('}');
+                            return 200;
+                        }
+                        if (path[3].equals("orders") && get) return customerOrders(cid, p, w);
+                        if (path[3].equals("orders") && post) {
+                            String key = p.get("idempotencyKey");
+                            if (key != null && (key.isEmpty() || key.length() > 255)) throw new ApiException(400, "idempotency key must be 1 to 255 characters");
+                            int oid = checkout.submit(cid, required(p, "address"), key).join();
+                            if (oid < 0) throw new ApiException(409, "customer not found, cart is empty or an item has sold out");
+                            w.append("{\"orderId\":").appendLong(oid).append(",\"readyAt\":").appendLong(orderService.getReadyAtMillis(oid));
+                            List<Order> subs = orderService.getSubOrders(oid);
+                            if (!subs.isEmpty()) {
+                                w.append(",\"subOrders\":[");
+                                for (int i = 0; i < subs.size(); i++) {
+                                    if (i > 0) w.append(',');
+                                    w.appendLong(subs.get(i).getOrderId());
+                                }
+                                w.append(']');
+                            }
+                            w.append('}');
+                            return 201;
+                        }
+                    }
+                }
+                case "orders" -> {
+                    if (path.length >= 3) {
+                        int oid = Integer.parseInt(path[2]);
+                        if (path.length == 3 && get) {
+                            Order o = db.getOrder(oid);
+                            if (o != null) {
+                                new OrderReport(ReportFormat.JSONL).write(w, o);
+                                return 200;
+                            }
+                            List<Order> subs = orderService.getSubOrders(oid);
+                            if (subs.isEmpty()) throw new ApiException(404, "order not found");
+                            OrderReport report = new OrderReport(ReportFormat.JSONL);
+                            w.append("{\"orderId\":").appendLong(oid).append(",\"subOrders\":[");
+                            for (int i = 0; i < subs.size(); i++) {
+                                if (i > 0) w.append(',');
+                                report.write(w, subs.get(i));
+                            }
+                            w.append("]}");
+                            return 200;
+                        }
+                        if (path.length == 4 && path[3].equals("status") && post) {
+                            OrderStatus next = OrderStatus.valueOf(required(p, "status").toUpperCase(Locale.ROOT));
+                            if (!db.hasOrder(oid)) throw new ApiException(404, "order not found");
+                            if (!orderService.updateOrderStatus(oid, next)) throw new ApiException(409, "status change not allowed");
+                            w.append("{\"orderId\":").appendLong(oid).append(",\"status\":").appendJson(next.name()).append('}');
+                            return 200;
+                        }
+                        if (path.length == 4 && path[3].equals("tracking") && get) {
+                            Order o = db.getOrder(oid);
+                            if (o == null) throw new ApiException(404, "order not found");
+                            DeliveryPerson dp = o.getDeliveryPerson();
+                            if (dp == null) throw new ApiException(409, "no delivery person assigned yet");
+                            return location(dp.getDeliveryPersonId(), w);
+                        }
+                        if (path.length == 4 && path[3].equals("assign") && post) {
+                            int dpId = intParam(p, "deliveryPersonId");
+                            if (!orderService.assignDeliveryPersonToOrder(oid, dpId)) {
+                                throw new ApiException(404, "order or delivery person not found");
+                            }
+                            w.append("{\"orderId\":").appendLong(oid).append(",\"deliveryPersonId\":").appendLong(dpId).append('}');
+                            return 200;
+                        }
+                    }
+                }
+                case "delivery-people" -> {
+                    if (path.length == 2 && post) {
+                        int id = intParam(p, "id");
+                        if (!orderService.addDeliveryPerson(id, required(p, "name"), Long.parseLong(required(p, "contact")))) {
+                            throw new ApiException(409, "delivery person exists");
+                        }
+                        w.append("{\"id\":").appendLong(id).append('}');
+                        return 201;
+                    }
+                    if (path.length == 4 && path[3].equals("location")) {
+                        int id = Integer.parseInt(path[2]);
+                        if (get) return location(id, w);
+                        if (post) {
+                            if (!db.deliveryPeople.containsKey(id)) throw new ApiException(404, "delivery person not found");
+                            double lat = Double.parseDouble(required(p, "latitude"));
+                            double lon = Double.parseDouble(required(p, "longitude"));
+                            if (Math.abs(lat) > 90 || Math.abs(lon) > 180) throw new ApiException(400, "coordinates out of range");
+                            long at = p.containsKey("at") ? Long.parseLong(p.get("at")) : System.currentTimeMillis();
+                            if (!locations.offer(id, lat, lon, at)) throw new ApiException(503, "location updates backed up, retry");
+                            w.append("{\"accepted\":true}");
+                            return 202;
+                        }
+                    }
+                }
+                default -> { }
+            }
+            throw new ApiException(404, "no route for " + method + " " + String.join("/", path));
+        }
+
+        private int location(int deliveryPersonId, ReportWriter w) throws IOException {
+            Position pos = locations.table().get(deliveryPersonId);
+            if (pos == null) throw new ApiException(404, "no location reported yet");
+            w.append("{\"deliveryPersonId\":").appendLong(deliveryPersonId)
+                    .append(",\"latitude\":").append(Double.toString(pos.getLatitude()))
+                    .append(",\"longitude\":").append(Double.toString(pos.getLongitude()))
+                    .append(",\"at\":").appendLong(pos.getAtMillis()).append('}');
+            return 200;
+        }
+
+        private int listRestaurants(Map<String, String> p, ReportWriter w) throws IOException {
+            int offset = Math.max(0, intParam(p, "offset", 0));
+            int limit = limitParam(p, DEFAULT_PAGE);
+            w.append("{\"restaurants\":[");
+            long now = System.currentTimeMillis();
+            int skipped = 0, written = 0;
+            for (Restaurant r : db.restaurants.values()) {
+                if (written == limit) break;
+                if (skipped++ < offset) continue;
+                if (written++ > 0) w.append(',');
+                w.append("{\"id\":").appendLong(r.getId()).append(",\"name\":").appendJson(r.getName())
+                        .append(",\"menuSize\":").appendLong(r.getMenu().size())
+                        .append(",\"accepting\":").append(r.getKitchen().isAccepting(now) ? "true" : "false").append('}');
+            }
+            w.append("]}");
+            return 200;
+        }
+
+        private int menu(int rid, ReportWriter w) throws IOException {
+            Restaurant r = db.restaurants.get(rid);
+            if (r == null) throw new ApiException(404, "restaurant not found");
+            w.append(db.menuCache.get(r, MenuCache.Form.JSON));
+            return 200;
+        }
+
+        private int search(Map<String, String> p, ReportWriter w) throws IOException {
+            String q = required(p, "q");
+            int limit = limitParam(p, 20);
+            double min = p.containsKey("minPrice") ? Double.parseDouble(p.get("minPrice")) : 0;
+            double max = p.containsKey("maxPrice") ? Double.parseDouble(p.get("maxPrice")) : Double.MAX_VALUE;
+            w.append("{\"restaurants\":[");
+            boolean first = true;
+            for (Restaurant r : foodService.searchRestaurants(q, limit)) {
+                if (!first) w.append(',');
+                first = false;
+                w.append("{\"id\":").appendLong(r.getId()).append(",\"name\":").appendJson(r.getName()).append('}');
+            }
+            w.append("],\"items\":[");
+            first = true;
+            for (SearchIndex.Hit h : foodService.searchFood(q, min, max, limit)) {
+                if (!first) w.append(',');
+                first = false;
+                w.append("{\"restaurantId\":").appendLong(h.getRestaurantId()).append(',');
+                MenuReport.foodFields(w, h.getItem()).append('}');
+            }
+            w.append("]}");
+            return 200;
+        }
+
+        private int cart(int cid, ReportWriter w) throws IOException {
+            Customer c = customerService.getCustomer(cid);
+            if (c == null) throw new ApiException(404, "customer not found");
+            w.append("{\"customerId\":").appendLong(cid).append(",\"lines\":[");
+            synchronized (db.customerLock(cid)) {
+                Cart cart = c.getCart();
+                boolean first = true;
+                for (LineItem l : cart.getLines()) {
+                    if (!first) w.append(',');
+                    first = false;
+                    w.append("{\"foodId\":").appendLong(l.getItem().getId()).append(",\"name\":").appendJson(l.getItem().getName())
+                            .append(",\"quantity\":").appendLong(l.getQuantity()).append(",\"amount\":").appendRupees(l.getAmountPaise())
+                            .append(",\"discount\":").appendRupees(l.discountPaise).append('}');
+                }
+                Promotion coupon = cart.getCoupon();
+                w.append("],\"total\":").appendRupees(cart.getTotalPaise()).append(",\"discount\":").appendRupees(cart.getDiscountPaise())
+                        .append(",\"payable\":").appendRupees(cart.getPayablePaise());
+                if (coupon != null) w.append(",\"coupon\":").appendJson(coupon.getCode());
+                w.append('}');
+            }
+            return 200;
+        }
+
+        private int customerOrders(int cid, Map<String, String> p, ReportWriter w) throws IOException {
+            if (customerService.getCustomer(cid) == null) throw new ApiException(404, "customer not found");
+            int offset = intParam(p, "offset", 0);
+            int limit = limitParam(p, DEFAULT_PAGE);
+            OrderReport report = new OrderReport(ReportFormat.JSONL);
+            w.append("{\"total\":").appendLong(orderService.countOrdersForCustomer(cid)).append(",\"orders\":[");
+            boolean first = true;
+            for (Order o : orderService.findOrdersByCustomer(cid, offset, limit)) {
+                if (!first) w.append(',');
+                first = false;
+                report.write(w, o);
+            }
+            w.append("]}");
+            return 200;
+        }
+
+        private static String required(Map<String, String> p, String name) {
+            String v = p.get(name);
+            if (v == null || v.isEmpty()) throw new ApiException(400, "missing parameter: " + name);
+            return v;
+        }
+
+        private static int intParam(Map<String, String> p, String name) {
+            return Integer.parseInt(required(p, name));
+        }
+
+        private static int intParam(Map<String, String> p, String name, int defaultValue) {
+            String v = p.get(name);
+            return v == null || v.isEmpty() ? defaultValue : Integer.parseInt(v);
+        }
+
+        // Page size: at most MAX_PAGE; anything below 1 is rejected rather than read as "no limit"
+        private static int limitParam(Map<String, String> p, int defaultValue) {
+            int limit = intParam(p, "limit", defaultValue);
+            if (limit < 1) throw new ApiException(400, "limit must be at least 1");
+            return Math.min(MAX_PAGE, limit);
+        }
+
+        private static void parseForm(String form, Map<String, String> into) {
+            if (form == null || form.isEmpty()) return;
+            for (String pair : form.split("&")) {
+                int eq = pair.indexOf('=');
+                String key = eq < 0 ? pair : pair.substring(0, eq);
+                String value = eq < 0 ? "" : pair.substring(eq + 1);
+                into.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    // Growable UTF-8 byte buffer behind a ReportWriter, so a response is encoded once and sent
+    // with its exact Content-Length
+    static class Utf8Buffer extends Writer {
+        private byte[] bytes;
+        private int size;
+        private char pendingHigh; // high surrogate that ended the previous write
+
+        Utf8Buffer(int initialCapacity) { bytes = new byte[initialCapacity]; }
+
+        int size() { return size; }
+
+        void reset() {
+            size = 0;
+            pendingHigh = 0;
+        }
+
+        void writeTo(OutputStream out) throws IOException { out.write(bytes, 0, size); }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            ensure(len * 3 + 4);
+            int end = off + len;
+            if (pendingHigh != 0 && len > 0) {
+                char high = pendingHigh;
+                pendingHigh = 0;
+                if (Character.isLowSurrogate(cbuf[off])) {
+                    putCodePoint(Character.toCodePoint(high, cbuf[off++]));
+                } else {
+                    put3(high);
+                }
+            }
+            for (int i = off; i < end; i++) {
+                char c = cbuf[i];
+                if (c < 0x80) {
+                    bytes[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[size++] = (byte) (0xC0 | c >> 6);
+                    bytes[size++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 == end) {
+                    pendingHigh = c;
+                } else if (Character.isHighSurrogate(c) && Character.isLowSurrogate(cbuf[i + 1])) {
+                    putCodePoint(Character.toCodePoint(c, cbuf[++i]));
+                } else {
+                    put3(c);
+                }
+            }
+        }
+
+        private void put3(char c) {
+            bytes[size++] = (byte) (0xE0 | c >> 12);
+            bytes[size++] = (byte) (0x80 | c >> 6 & 0x3F);
+            bytes[size++] = (byte) (0x80 | c & 0x3F);
+        }
+
+        private void putCodePoint(int cp) {
+            bytes[size++] = (byte) (0xF0 | cp >> 18);
+            bytes[size++] = (byte) (0x80 | cp >> 12 & 0x3F);
+            bytes[size++] = (byte) (0x80 | cp >> 6 & 0x3F);
+            bytes[size++] = (byte) (0x80 | cp & 0x3F);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() { }
+    }
+
+    // ====== PERSISTENCE (write-ahead journal + snapshots) ======
+
+    // Append-only binary log of service mutations. Record layout:
+    // [int payloadLength][int crc32c(payload)][byte type][fields...]
+    // Appends land in an in-memory buffer; commit() makes them durable with group commit:
+    // whichever caller finds no flush in progress writes and fsyncs everything buffered so far,
+    // and the callers that queued up behind it are released by that one force().
+    // A failed write or force stops the journal: the file is cut back to the end of the last good
+    // write and every later commit throws, until Persistence starts a new journal at its next checkpoint.
+    static class Journal implements Closeable {
+        static final byte ADD_RESTAURANT = 1, ADD_FOOD_ITEM = 2, REMOVE_FOOD_ITEM = 3, ADD_CUSTOMER = 4,
+                ADD_TO_CART = 5, PLACE_ORDER = 6, ADD_DELIVERY_PERSON = 7, ASSIGN_DELIVERY_PERSON = 8,
+                UPDATE_ORDER_STATUS = 9, ADD_MENU_ITEM_TO_CART = 10, RELEASE_HOLD = 11, ADJUST_STOCK = 12,
+                PLACE_DISCOUNTED_ORDER = 13, PLACE_KEYED_ORDER = 14, PLACE_SPLIT_ORDER = 15, SET_PREP_TIME = 16,
+                SET_KITCHEN_CAPACITY = 17, SET_PRICE = 18;
+
+        static final Journal DISABLED = disabled();
+
+        private static final int HEADER = 8;
+        private static final int FLUSH_THRESHOLD = 4 << 20;
+
+        private final FileChannel channel;
+        private ByteBuffer pending = ByteBuffer.allocate(64 << 10);
+        private ByteBuffer spare = ByteBuffer.allocate(64 << 10);
+        private final java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+        private int recordStart;
+        private long appendedSeq;
+        private long writtenSeq;
+        private long forcedSeq;
+        private boolean flushing;
+        private volatile int pendingBytes;
+        private long goodSize; // file length after the last write that succeeded
+        private IOException failure; // the write that stopped the journal, null while it is running
+
+        // false = fsync only when the buffer fills or on sync(); used by bulk loads
+        volatile boolean durableCommits = true;
+
+        Journal(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.goodSize = channel == null ? 0 : channel.size();
+        }
+
+        boolean isEnabled() { return channel != null; }
+
+        synchronized IOException failure() { return failure; }
+
+        // Called by the services before a change: once the journal has stopped, a change could be
+        // made but not logged, so it is refused instead
+        void checkRunning() {
+            IOException f = failure();
+            if (f != null) throw new IllegalStateException("journal stopped after a failed write", f);
+        }
+
+        // For a change that is already made and visible: a failed commit has stopped the journal and
+        // been reported, and the change stands, so the caller must not report it as not made
+        void commitApplied(long seq) {
+            try {
+                commit(seq);
+            } catch (UncheckedIOException e) {
+                // reported once by stop(); the next change is refused by checkRunning
+            }
+        }
+
+        synchronized long appendedSeq() { return appendedSeq; }
+
+        long logAddRestaurant(int id, String name) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(ADD_RESTAURANT);
+                pending.putInt(id);
+                putString(name);
+                return end();
+            }
+        }
+
+        long logAddFoodItem(int restaurantId, int foodId, String name, double price) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(ADD_FOOD_ITEM);
+                pending.putInt(restaurantId).putInt(foodId).putDouble(price);
+                putString(name);
+                return end();
+            }
+        }
+
+        long logRemoveFoodItem(int restaurantId, int foodId) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(REMOVE_FOOD_ITEM);
+                pending.putInt(restaurantId).putInt(foodId);
+                return end();
+            }
+        }
+
+        long logAddCustomer(int userId, String username, long contactNo) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(ADD_CUSTOMER);
+                pending.putInt(userId).putLong(contactNo);
+                putString(username);
+                return end();
+            }
+        }
+
+        // Items on a menu are logged with their restaurant so replay puts the menu item itself (and
+        // its stock) back in the cart; anything else is rebuilt from its id, name and price
+        long logAddToCart(int customerId, FoodItem item, int quantity) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                if (item.owner != null) {
+                    begin(ADD_MENU_ITEM_TO_CART);
+                    pending.putInt(customerId).putInt(quantity).putInt(item.owner.getId());
+                } else {
+                    begin(ADD_TO_CART);
+                    pending.putInt(customerId).putInt(quantity);
+                }
+                pending.putInt(item.getId()).putDouble(item.getPrice());
+                putString(item.getName());
+                return end();
+            }
+        }
+
+        long logReleaseHold(int customerId, int restaurantId, int foodId) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(RELEASE_HOLD);
+                pending.putInt(customerId).putInt(restaurantId).putInt(foodId);
+                return end();
+            }
+        }
+
+        // delta rather than the new level, so records that land out of order still add up
+        long logAdjustStock(int restaurantId, int foodId, long delta) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(ADJUST_STOCK);
+                pending.putInt(restaurantId).putInt(foodId).putLong(delta);
+                return end();
+            }
+        }
+
+        long logSetPrepTime(int restaurantId, int foodId, int seconds) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(SET_PREP_TIME);
+                pending.putInt(restaurantId).putInt(foodId).putInt(seconds);
+                return end();
+            }
+        }
+
+        long logSetPrice(int restaurantId, int foodId, double price) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(SET_PRICE);
+                pending.putInt(restaurantId).putInt(foodId).putDouble(price);
+                return end();
+            }
+        }
+
+        long logSetKitchenCapacity(int restaurantId, int stations, int maxWaitMinutes) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(SET_KITCHEN_CAPACITY);
+                pending.putInt(restaurantId).putInt(stations).putInt(maxWaitMinutes);
+                return end();
+            }
+        }
+
+        // The discount is logged because replay cannot work it out: the rules are not journaled.
+        // So is the idempotency key's hash (0 = none), so a retry after a restart still finds its order.
+        long logPlaceOrder(int orderId, int customerId, long placedAtMillis, String deliveryAddress, long discountPaise,
+                long keyHash) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(keyHash != 0 ? PLACE_KEYED_ORDER : discountPaise == 0 ? PLACE_ORDER : PLACE_DISCOUNTED_ORDER);
+                pending.putInt(orderId).putInt(customerId).putLong(placedAtMillis);
+                if (keyHash != 0) pending.putLong(discountPaise).putLong(keyHash);
+                else if (discountPaise != 0) pending.putLong(discountPaise);
+                putString(deliveryAddress);
+                return end();
+            }
+        }
+
+        // Grows the buffer to hold a checkout's record before its cart is drained, so the record cannot
+        // fail halfway once the orders exist; throws, with nothing changed, for an address too long to log
+        void reservePlaceOrder(int subOrders, String deliveryAddress) {
+            if (channel == null) return;
+            byte[] address = encode(deliveryAddress);
+            // header and type, the split record's fixed fields, a discount and restaurant per sub-order, the address
+            int bytes = HEADER + 1 + 28 + 12 * subOrders + 2 + (address == null ? 0 : address.length);
+            synchronized (this) {
+                ensure(bytes);
+            }
+        }
+
+        // A checkout split by restaurant: the parent id, then each sub-order's discount and restaurant
+        // (-1 for items on no menu) in id order, so replay splits the cart the same way
+        long logPlaceSplitOrder(int parentId, int customerId, long placedAtMillis, String deliveryAddress, Order[] subOrders,
+                long keyHash) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(PLACE_SPLIT_ORDER);
+                ensure(28 + 12 * subOrders.length);
+                pending.putInt(parentId).putInt(customerId).putLong(placedAtMillis).putLong(keyHash).putInt(subOrders.length);
+                for (Order o : subOrders) {
+                    Restaurant r = o.getRestaurant();
+                    pending.putLong(o.getDiscountPaise()).putInt(r == null ? -1 : r.getId());
+                }
+                putString(deliveryAddress);
+                return end();
+            }
+        }
+
+        long logAddDeliveryPerson(int id, String name, long contactNo) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(ADD_DELIVERY_PERSON);
+                pending.putInt(id).putLong(contactNo);
+                putString(name);
+                return end();
+            }
+        }
+
+        long logAssignDeliveryPerson(int orderId, int deliveryPersonId) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(ASSIGN_DELIVERY_PERSON);
+                pending.putInt(orderId).putInt(deliveryPersonId);
+                return end();
+            }
+        }
+
+        long logUpdateOrderStatus(int orderId, OrderStatus status, long atMillis) {
+            if (channel == null) return 0;
+            synchronized (this) {
+                begin(UPDATE_ORDER_STATUS);
+                pending.putInt(orderId).put((byte) status.ordinal()).putLong(atMillis);
+                return end();
+            }
+        }
+
+        // Called by the services after releasing their locks
+        void commit(long seq) {
+            if (channel == null) return;
+            try {
+                if (durableCommits) sync(seq, true);
+                else if (pendingBytes >= FLUSH_THRESHOLD) sync(seq, false);
+            } catch (IOException e) {
+                throw new UncheckedIOException("journal write failed", e);
+            }
+        }
+
+        // Writes (and optionally fsyncs) every record appended so far
+        void sync() throws IOException {
+            if (channel == null) return;
+            sync(appendedSeq(), true);
+        }
+
+        private static Journal disabled() {
+            try {
+                return new Journal(null);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private void sync(long seq, boolean force) throws IOException {
+            ByteBuffer batch;
+            long upTo;
+            synchronized (this) {
+                while (flushing && (force ? forcedSeq : writtenSeq) < seq) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted waiting for journal flush", e);
+                    }
+                }
+                if ((force ? forcedSeq : writtenSeq) >= seq) return;
+                if (failure != null) throw new IOException("journal stopped after a failed write", failure);
+                flushing = true;
+                batch = pending;
+                pending = spare;
+                spare = null;
+                pendingBytes = 0;
+                upTo = appendedSeq;
+            }
+            boolean ok = false;
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) channel.write(batch);
+                if (force) channel.force(false);
+                ok = true;
+            } catch (IOException e) {
+                stop(e);
+                throw e;
+            } finally {
+                synchronized (this) {
+                    if (ok) goodSize += batch.limit();
+                    else if (failure == null) failure = new IOException("journal write did not complete");
+                    batch.clear();
+                    spare = batch;
+                    flushing = false;
+                    if (ok) {
+                        writtenSeq = upTo;
+                        if (force) forcedSeq = upTo;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        // Keeps the first failure and cuts off whatever part of the failed batch reached the file,
+        // so no torn record sits in front of a later one
+        private void stop(IOException e) {
+            long keep;
+            synchronized (this) {
+                if (failure != null) return;
+                failure = e;
+                keep = goodSize;
+            }
+            System.err.println("Journal stopped, changes since its last good write are only in memory until the next checkpoint: " + e);
+            try {
+                channel.truncate(keep);
+            } catch (IOException | RuntimeException t) {
+                e.addSuppressed(t);
+            }
+        }
+
+        // Closes a stopped journal without writing what it still buffers; a checkpoint's snapshot covers it
+        void abandon() throws IOException {
+            if (channel != null) channel.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel == null) return;
+            try {
+                sync();
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void begin(byte type) {
+            ensure(256);
+            recordStart = pending.position();
+            pending.position(recordStart + HEADER);
+            pending.put(type);
+        }
+
+        private long end() {
+            int payloadStart = recordStart + HEADER;
+            int length = pending.position() - payloadStart;
+            crc.reset();
+            crc.update(pending.array(), payloadStart, length);
+            pending.putInt(recordStart, length);
+            pending.putInt(recordStart + 4, (int) crc.getValue());
+            pendingBytes = pending.position();
+            return ++appendedSeq;
+        }
+
+        private void putString(String s) {
+            byte[] b = encode(s);
+            ensure(2 + (b == null ? 0 : b.length));
+            Snapshot.putString(pending, b);
+        }
+
+        private void ensure(int n) {
+            if (pending.remaining() >= n) return;
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + n));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+
+        static byte[] encode(String s) {
+            if (s == null) return null;
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            if (b.length >= Snapshot.NULL_STRING) throw new IllegalArgumentException("string too long to persist: " + b.length + " bytes");
+            return b;
+        }
+    }
+
+    // Sequential reader over a file through read-only memory-mapped windows
+    static class MappedReader implements Closeable {
+        private static final long WINDOW = 256L << 20;
+
+        private final FileChannel channel;
+        private final long size;
+        private long base;
+        private MappedByteBuffer buf;
+
+        MappedReader(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            size = channel.size();
+            map(0);
+        }
+
+        private void map(long pos) throws IOException {
+            base = pos;
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos));
+        }
+
+        long position() { return base + buf.position(); }
+        long remaining() { return size - position(); }
+
+        void seek(long pos) throws IOException {
+            if (pos < 0 || pos > size) throw new EOFException("seek past the end of the file");
+            map(pos);
+        }
+
+        // Makes the next n bytes addressable in the current window
+        ByteBuffer window(int n) throws IOException {
+            if (buf.remaining() < n) {
+                if (remaining() < n) throw new EOFException("truncated file");
+                map(position());
+            }
+            return buf;
+        }
+
+        byte get() throws IOException { return window(1).get(); }
+        int getInt() throws IOException { return window(4).getInt(); }
+        long getLong() throws IOException { return window(8).getLong(); }
+        double getDouble() throws IOException { return window(8).getDouble(); }
+
+        String getString() throws IOException {
+            int len = window(2).getShort() & 0xFFFF;
+            if (len == Snapshot.NULL_STRING) return null;
+            byte[] b = new byte[len];
+            window(len).get(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException { channel.close(); }
+    }
+
+    // Compact point-in-time image of a DataStore. Restaurants and menus go to a CatalogFile beside it;
+    // the snapshot holds the rest. FoodItems in carts and orders are written once into a table and
+    // referenced by index, so shared items stay shared after loading; an item still on its menu is
+    // written as (restaurant, food id) and resolved against the catalog, any other with its fields
+    // and the restaurant it was made for.
+    // Cart lines carry the portions they hold; holds restart on load.
+    static class Snapshot {
+        static final int MAGIC = 0x4F464453; // "OFDS"
+        static final int VERSION = 11;
+        static final int NULL_STRING = 0xFFFF;
+
+        static void putString(ByteBuffer buf, byte[] b) {
+            if (b == null) {
+                buf.putShort((short) NULL_STRING);
+            } else {
+                buf.putShort((short) b.length);
+                buf.put(b);
+            }
+        }
+
+        // Services must be quiescent while the snapshot is taken
+        static void write(Path file, DataStore db, long journalGeneration) throws IOException {
+            CatalogFile.write(file.resolveSibling(CatalogFile.fileName(journalGeneration)), db, journalGeneration);
+            Map<FoodItem, Integer> foodRefs = new IdentityHashMap<>();
+            List<FoodItem> foodTable = new ArrayList<>();
+            for (Customer c : db.customers.values()) {
+                for (LineItem l : c.getCart().getLines()) intern(l.getItem(), foodRefs, foodTable);
+            }
+            // live and archived orders in id order; archived ones are rebuilt one at a time
+            int endOrderId = db.nextOrderId.get();
+            for (int oid = 1; oid < endOrderId; oid++) {
+                Order o = db.getOrder(oid);
+                if (o == null) continue;
+                for (LineItem l : o.getLines()) intern(l.getItem(), foodRefs, foodTable);
+            }
+
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                Out out = new Out(ch);
+                out.ensure(32).putInt(MAGIC).putInt(VERSION).putLong(journalGeneration).putInt(db.nextOrderId.get());
+
+                out.ensure(4).putInt(foodTable.size());
+                for (FoodItem fi : foodTable) {
+                    Restaurant owner = fi.owner;
+                    boolean onMenu = owner != null && owner.getFoodItem(fi.getId()) == fi;
+                    out.ensure(9).put((byte) (onMenu ? 1 : 0)).putInt(owner == null ? -1 : owner.getId()).putInt(fi.getId());
+                    if (!onMenu) { // replaced or removed since, or never on a menu
+                        out.ensure(12).putDouble(fi.getPrice()).putInt(fi.getPrepSeconds());
+                        out.putString(fi.getName());
+                    }
+                }
+
+                out.ensure(4).putInt(db.customers.size());
+                for (Customer c : db.customers.values()) {
+                    out.ensure(16).putInt(c.getUserId()).putLong(c.getContactNo());
+                    out.putString(c.getUsername());
+                    putLines(out, c.getCart().getLines(), foodRefs);
+                    for (LineItem l : c.getCart().getLines()) out.ensure(4).putInt(l.reserved);
+                }
+
+                out.ensure(4).putInt(db.deliveryPeople.size());
+                for (DeliveryPerson dp : db.deliveryPeople.values()) {
+                    out.ensure(12).putInt(dp.getDeliveryPersonId()).putLong(dp.getContactNo());
+                    out.putString(dp.getName());
+                }
+
+                out.ensure(4).putInt(db.orderCount());
+                for (int oid = 1; oid < endOrderId; oid++) {
+                    Order o = db.getOrder(oid);
+                    if (o == null) continue;
+                    DeliveryPerson dp = o.getDeliveryPerson();
+                    out.ensure(41).putInt(o.getOrderId()).putInt(o.getCustomer().getUserId())
+                            .putInt(dp == null ? -1 : dp.getDeliveryPersonId()).put((byte) o.getStatus().ordinal())
+                            .putLong(o.getPlacedAtMillis()).putLong(o.getCompletedAtMillis()).putLong(o.getDiscountPaise())
+                            .putInt(o.getParentOrderId());
+                    out.putString(o.getDeliveryAddress());
+                    putLines(out, o.getLines(), foodRefs);
+                }
+
+                out.ensure(4).putInt(db.idempotency.size());
+                db.idempotency.forEach((customerId, keyHash, orderId, expiresAt) ->
+                        out.ensure(24).putInt(customerId).putLong(keyHash).putInt(orderId).putLong(expiresAt));
+                out.flush();
+                ch.force(true);
+            }
+        }
+
+        private static void intern(FoodItem fi, Map<FoodItem, Integer> refs, List<FoodItem> table) {
+            if (refs.putIfAbsent(fi, table.size()) == null) table.add(fi);
+        }
+
+        private static void putLines(Out out, Collection<LineItem> lines, Map<FoodItem, Integer> refs) throws IOException {
+            out.ensure(4).putInt(lines.size());
+            for (LineItem l : lines) {
+                out.ensure(16).putInt(refs.get(l.getItem())).putInt(l.getQuantity()).putLong(l.getAmountPaise());
+            }
+        }
+
+        // Loads a snapshot into an empty DataStore and returns the journal generation that follows it.
+        // Menus stay in the catalog until used, except those that carts and orders refer to.
+        static long read(Path file, DataStore db) throws IOException {
+            try (MappedReader in = new MappedReader(file)) {
+                if (in.getInt() != MAGIC || in.getInt() != VERSION) throw new IOException("not a snapshot: " + file);
+                long generation = in.getLong();
+                db.nextOrderId.set(in.getInt());
+                CatalogFile.open(file.resolveSibling(CatalogFile.fileName(generation)), db, generation);
+
+                FoodItem[] foodTable = new FoodItem[in.getInt()];
+                for (int i = 0; i < foodTable.length; i++) {
+                    boolean onMenu = in.get() != 0;
+                    int owner = in.getInt();
+                    int id = in.getInt();
+                    if (onMenu) {
+                        foodTable[i] = db.findFoodItem(owner, id);
+                        if (foodTable[i] == null) throw new IOException("menu item " + owner + "/" + id + " missing from the catalog: " + file);
+                        continue;
+                    }
+                    double price = in.getDouble();
+                    int prepSeconds = in.getInt();
+                    foodTable[i] = new FoodItem(owner < 0 ? null : db.restaurants.get(owner), id, in.getString(), price);
+                    foodTable[i].setPrepSeconds(prepSeconds);
+                }
+
+                for (int n = in.getInt(); n > 0; n--) {
+                    int id = in.getInt();
+                    long contact = in.getLong();
+                    Customer c = new Customer(id, in.getString(), contact);
+                    for (int m = in.getInt(); m > 0; m--) c.getCart().addItem(foodTable[in.getInt()], in.getInt(), in.getLong());
+                    for (LineItem l : c.getCart().getLines()) {
+                        int held = in.getInt();
+                        if (held > 0) db.hold(id, l, held);
+                    }
+                    db.customers.put(id, c);
+                }
+
+                for (int n = in.getInt(); n > 0; n--) {
+                    int id = in.getInt();
+                    long contact = in.getLong();
+                    db.deliveryPeople.put(id, new DeliveryPerson(id, in.getString(), contact));
+                }
+
+                for (int n = in.getInt(); n > 0; n--) {
+                    Order o = new Order(in.getInt(), db.customers.get(in.getInt()));
+                    int dpId = in.getInt();
+                    if (dpId >= 0) o.setDeliveryPerson(db.deliveryPeople.get(dpId));
+                    o.setStatus(OrderStatus.of(in.get()));
+                    o.setPlacedAtMillis(in.getLong());
+                    o.setCompletedAtMillis(in.getLong());
+                    o.setDiscountPaise(in.getLong());
+                    o.setParentOrderId(in.getInt());
+                    o.setDeliveryAddress(in.getString());
+                    for (int m = in.getInt(); m > 0; m--) o.addItem(foodTable[in.getInt()], in.getInt(), in.getLong());
+                    db.addOrder(o);
+                }
+
+                long now = System.currentTimeMillis();
+                for (int n = in.getInt(); n > 0; n--) {
+                    int cid = in.getInt();
+                    long keyHash = in.getLong();
+                    int oid = in.getInt();
+                    db.idempotency.restore(cid, keyHash, oid, in.getLong(), now);
+                }
+                return generation;
+            }
+        }
+
+        // Buffered channel writer; callers reserve space with ensure() before each put
+        static class Out {
+            private final FileChannel ch;
+            private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+            private long flushed;
+
+            Out(FileChannel ch) { this.ch = ch; }
+
+            ByteBuffer ensure(int n) throws IOException {
+                if (buf.remaining() < n) flush();
+                return buf;
+            }
+
+            // File offset the next put lands at
+            long position() { return flushed + buf.position(); }
+
+            // Copies src as it is; anything larger than the buffer goes straight to the channel
+            void put(ByteBuffer src) throws IOException {
+                if (src.remaining() <= buf.remaining()) {
+                    buf.put(src);
+                    return;
+                }
+                flush();
+                if (src.remaining() <= buf.remaining()) buf.put(src);
+                else while (src.hasRemaining()) flushed += ch.write(src);
+            }
+
+            void putString(String s) throws IOException {
+                byte[] b = Journal.encode(s);
+                Snapshot.putString(ensure(2 + (b == null ? 0 : b.length)), b);
+            }
+
+            void flush() throws IOException {
+                buf.flip();
+                while (buf.hasRemaining()) flushed += ch.write(buf);
+                buf.clear();
+            }
+        }
+    }
+
+    // Restaurants and their menus as of a checkpoint, in catalog-<generation>.bin beside the snapshot.
+    // Layout: [int magic][int version][long generation][int restaurants][long indexOffset], then one
+    // record per menu: [int items] and per item [int id][double price][int prepSeconds][long stock, -1 = unlimited][name];
+    // then the index, per restaurant: [int id][long menuOffset][int menuLength][int stations][long maxWaitMillis][name].
+    // Opening reads only the index. A menu is decoded straight from the mapping the first time its
+    // restaurant is used (Restaurant.loadMenu), and a checkpoint copies the records of unread menus byte for byte.
+    static class CatalogFile {
+        static final int MAGIC = 0x4F464443; // "OFDC"
+        static final int VERSION = 1;
+        private static final int HEADER = 28;
+        // Segment k maps [k << 30, k << 30 + 2 GB), so any record under 1 GB lies inside the segment it starts in
+        private static final int SEGMENT_SHIFT = 30;
+
+        private final DataStore db;
+        private final MappedByteBuffer[] segments;
+
+        private CatalogFile(DataStore db, MappedByteBuffer[] segments) {
+            this.db = db;
+            this.segments = segments;
+        }
+
+        static String fileName(long generation) {
+            return "catalog-" + generation + ".bin";
+        }
+
+        private static CatalogFile map(Path file, DataStore db) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = ch.size();
+                MappedByteBuffer[] segments = new MappedByteBuffer[(int) (size >>> SEGMENT_SHIFT) + 1];
+                for (int k = 0; k < segments.length; k++) {
+                    long start = (long) k << SEGMENT_SHIFT;
+                    segments[k] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, Integer.MAX_VALUE));
+                }
+                return new CatalogFile(db, segments);
+            }
+        }
+
+        // Adds every restaurant in the catalog to an empty DataStore with its menu still unread
+        static void open(Path file, DataStore db, long generation) throws IOException {
+            CatalogFile catalog = map(file, db);
+            try (MappedReader in = new MappedReader(file)) {
+                if (in.getInt() != MAGIC || in.getInt() != VERSION || in.getLong() != generation) {
+                    throw new IOException("not the catalog for generation " + generation + ": " + file);
+                }
+                int count = in.getInt();
+                in.seek(in.getLong());
+                for (int n = count; n > 0; n--) {
+                    int id = in.getInt();
+                    long menuOffset = in.getLong();
+                    int menuLength = in.getInt();
+                    int stations = in.getInt();
+                    long maxWait = in.getLong();
+                    Restaurant r = new Restaurant(id, in.getString(), catalog, menuOffset, menuLength);
+                    KitchenSchedule k = r.getKitchen();
+                    if (stations != k.getStations() || maxWait != k.getMaxWaitMillis()) k.configure(stations, maxWait);
+                    db.restaurants.put(id, r);
+                }
+                if (count > 0) db.catalog = catalog;
+            }
+        }
+
+        // Decodes one menu into r and indexes it; called by Restaurant.loadMenu under r's lock
+        void readMenu(Restaurant r, long menuOffset) {
+            ByteBuffer b = segments[(int) (menuOffset >>> SEGMENT_SHIFT)];
+            int p = (int) (menuOffset & ((1L << SEGMENT_SHIFT) - 1));
+            int items = b.getInt(p);
+            p += 4;
+            for (int m = items; m > 0; m--) {
+                int id = b.getInt(p);
+                double price = b.getDouble(p + 4);
+                int prepSeconds = b.getInt(p + 12);
+                long stock = b.getLong(p + 16);
+                int len = b.getShort(p + 24) & 0xFFFF;
+                p += 26;
+                String name = null;
+                if (len != Snapshot.NULL_STRING) {
+                    byte[] bytes = new byte[len];
+                    b.get(p, bytes);
+                    name = new String(bytes, StandardCharsets.UTF_8);
+                    p += len;
+                }
+                FoodItem fi = new FoodItem(r, id, name, price);
+                fi.setPrepSeconds(prepSeconds);
+                if (stock >= 0) {
+                    fi.setStock(new Stock(r.getId(), id));
+                    fi.getStock().reset(stock);
+                }
+                r.putCatalogItem(fi);
+                db.foodItems.put(r.getId(), id, fi);
+                db.search.addFoodItem(r.getId(), fi);
+            }
+            db.search.addRestaurant(r);
+        }
+
+        private ByteBuffer record(long menuOffset, int menuLength) {
+            return segments[(int) (menuOffset >>> SEGMENT_SHIFT)].slice((int) (menuOffset & ((1L << SEGMENT_SHIFT) - 1)), menuLength);
+        }
+
+        // Services must be quiescent. Menus nobody has read are copied from the catalog they are in
+        // and read from the new file from then on, so older catalogs can be deleted.
+        static void write(Path file, DataStore db, long generation) throws IOException {
+            List<Restaurant> restaurants = new ArrayList<>(db.restaurants.values());
+            long[] offsets = new long[restaurants.size()];
+            int[] lengths = new int[restaurants.size()];
+            boolean copied = false;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                Snapshot.Out out = new Snapshot.Out(ch);
+                out.ensure(HEADER).putInt(MAGIC).putInt(VERSION).putLong(generation).putInt(restaurants.size()).putLong(0);
+                for (int i = 0; i < offsets.length; i++) {
+                    Restaurant r = restaurants.get(i);
+                    offsets[i] = out.position();
+                    synchronized (r) {
+                        CatalogFile c = r.catalog();
+                        if (c != null) {
+                            out.put(c.record(r.menuOffset(), r.menuLength()));
+                            copied = true;
+                        } else {
+                            writeMenu(out, r.getMenu());
+                        }
+                    }
+                    lengths[i] = (int) (out.position() - offsets[i]);
+                }
+
+                long indexOffset = out.position();
+                for (int i = 0; i < offsets.length; i++) {
+                    Restaurant r = restaurants.get(i);
+                    KitchenSchedule k = r.getKitchen();
+                    out.ensure(28).putInt(r.getId()).putLong(offsets[i]).putInt(lengths[i]).putInt(k.getStations())
+                            .putLong(k.getMaxWaitMillis());
+                    out.putString(r.getName());
+                }
+                out.flush();
+                ByteBuffer patch = ByteBuffer.allocate(8).putLong(0, indexOffset);
+                while (patch.hasRemaining()) ch.write(patch, HEADER - 8 + patch.position());
+                ch.force(true);
+            }
+            if (!copied) return;
+
+            CatalogFile next = map(file, db);
+            for (int i = 0; i < offsets.length; i++) {
+                Restaurant r = restaurants.get(i);
+                synchronized (r) {
+                    if (r.catalog() != null) r.moveMenu(next, offsets[i]);
+                }
+            }
+            if (db.catalog != null) db.catalog = next;
+        }
+
+        private static void writeMenu(Snapshot.Out out, Collection<FoodItem> menu) throws IOException {
+            out.ensure(4).putInt(menu.size());
+            for (FoodItem fi : menu) {
+                Stock stock = fi.getStock();
+                out.ensure(24).putInt(fi.getId()).putDouble(fi.getPrice()).putInt(fi.getPrepSeconds())
+                        .putLong(stock == null ? -1 : stock.available());
+                out.putString(fi.getName());
+            }
+        }
+    }
+
+    // Owns the data directory: snapshot.bin, the catalog-<generation>.bin it names, and
+    // journal-<generation>.log segments. On open the latest snapshot is loaded and every newer
+    // journal segment is replayed through the services (with journaling detached), then a fresh
+    // segment is started. A lazy open leaves menus in the catalog until they are first used.
+    static class Persistence implements Closeable {
+        private static final String SNAPSHOT = "snapshot.bin";
+        private static final int[] UNSPLIT = {-1}; // a logged single order: the whole cart, whatever it holds
+
+        private final Path dir;
+        private final DataStore db;
+        private Journal journal = Journal.DISABLED;
+        private long generation;
+        long checkpointEvery = 100_000; // journal records between automatic snapshots
+        long recoveredRecords;
+
+        private Persistence(Path dir, DataStore db) {
+            this.dir = dir;
+            this.db = db;
+        }
+
+        static Persistence open(Path dir, DataStore db) throws IOException {
+            return open(dir, db, false);
+        }
+
+        static Persistence open(Path dir, DataStore db, boolean lazyCatalog) throws IOException {
+            Files.createDirectories(dir);
+            Persistence p = new Persistence(dir, db);
+            p.recover();
+            if (!lazyCatalog) db.loadCatalog();
+            return p;
+        }
+
+        Journal journal() { return journal; }
+
+        private void recover() throws IOException {
+            Path snapshot = dir.resolve(SNAPSHOT);
+            long first = Files.exists(snapshot) ? Snapshot.read(snapshot, db) : 0;
+            generation = first;
+            int maxOrderId = db.nextOrderId.get() - 1;
+            db.recovering = true;
+            try {
+                for (long gen : journalGenerations()) {
+                    if (gen < first) continue;
+                    maxOrderId = Math.max(maxOrderId, replay(journalPath(gen)));
+                    generation = gen + 1;
+                }
+            } finally {
+                db.recovering = false;
+            }
+            // concurrent checkouts may have logged their ids out of order
+            db.nextOrderId.set(maxOrderId + 1);
+            startJournal();
+        }
+
+        // Writes a snapshot and drops the journal segments it covers.
+        // Services must be quiescent: nothing may be logged between the rotation and the snapshot.
+        synchronized void checkpoint() throws IOException {
+            if (journal.failure() == null) journal.close();
+            else journal.abandon(); // the changes it could not write are in memory and go into the snapshot
+            generation++;
+            startJournal();
+            Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+            Snapshot.write(tmp, db, generation);
+            Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (long gen : journalGenerations()) {
+                if (gen < generation) Files.deleteIfExists(journalPath(gen));
+            }
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "catalog-*.bin")) {
+                for (Path p : ds) {
+                    String name = p.getFileName().toString();
+                    if (Long.parseLong(name.substring("catalog-".length(), name.length() - ".bin".length())) >= generation) continue;
+                    try {
+                        Files.delete(p);
+                    } catch (IOException e) {
+                        // still mapped on a platform that will not delete mapped files; the next checkpoint retries
+                    }
+                }
+            }
+        }
+
+        synchronized boolean maybeCheckpoint() throws IOException {
+            if (journal.appendedSeq() < checkpointEvery) return false;
+            checkpoint();
+            return true;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            journal.close();
+            db.journal = Journal.DISABLED;
+        }
+
+        private void startJournal() throws IOException {
+            FileChannel ch = FileChannel.open(journalPath(generation), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            boolean durable = journal.durableCommits;
+            journal = new Journal(ch);
+            journal.durableCommits = durable;
+            db.journal = journal;
+        }
+
+        private Path journalPath(long gen) {
+            return dir.resolve("journal-" + gen + ".log");
+        }
+
+        private List<Long> journalGenerations() throws IOException {
+            List<Long> gens = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "journal-*.log")) {
+                for (Path p : ds) {
+                    String name = p.getFileName().toString();
+                    gens.add(Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length())));
+                }
+            }
+            Collections.sort(gens);
+            return gens;
+        }
+
+        // Replays one segment, stopping at a torn or corrupt tail; returns the highest order id seen
+        private int replay(Path file) throws IOException {
+            int maxOrderId = 0;
+            if (Files.size(file) == 0) return maxOrderId;
+            FoodService food = new FoodService(db);
+            CustomerService customers = new CustomerService(db);
+            OrderService orders = new OrderService(db);
+            java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+            try (MappedReader in = new MappedReader(file)) {
+                while (in.remaining() >= Journal.HEADER) {
+                    int length = in.getInt();
+                    int checksum = in.getInt();
+                    if (length <= 0 || length > in.remaining()) break;
+                    ByteBuffer payload = in.window(length);
+                    crc.reset();
+                    crc.update(payload.slice(payload.position(), length));
+                    if ((int) crc.getValue() != checksum) break;
+                    byte type = in.get();
+                    switch (type) {
+                        case Journal.ADD_RESTAURANT -> food.addRestaurant(in.getInt(), in.getString());
+                        case Journal.ADD_FOOD_ITEM -> {
+                            int rid = in.getInt(), fid = in.getInt();
+                            double price = in.getDouble();
+                            food.addFoodItemToRestaurant(rid, fid, in.getString(), price);
+                        }
+                        case Journal.REMOVE_FOOD_ITEM -> food.removeFoodItemFromRestaurant(in.getInt(), in.getInt());
+                        case Journal.ADD_CUSTOMER -> {
+                            int id = in.getInt();
+                            long contact = in.getLong();
+                            customers.addCustomer(id, in.getString(), contact);
+                        }
+                        case Journal.ADD_TO_CART -> {
+                            int cid = in.getInt(), qty = in.getInt(), fid = in.getInt();
+                            double price = in.getDouble();
+                            customers.addFoodToCart(cid, new FoodItem(fid, in.getString(), price), qty);
+                        }
+                        case Journal.ADD_MENU_ITEM_TO_CART -> {
+                            int cid = in.getInt(), qty = in.getInt(), rid = in.getInt(), fid = in.getInt();
+                            double price = in.getDouble();
+                            String name = in.getString();
+                            // the menu item as it was then, or a copy if it has been changed since
+                            FoodItem item = food.findFoodItem(rid, fid);
+                            if (item == null || item.getPrice() != price || !item.getName().equals(name)) {
+                                item = new FoodItem(db.restaurants.get(rid), fid, name, price); // still its restaurant's, for the split
+                            }
+                            customers.addFoodToCart(cid, item, qty);
+                        }
+                        case Journal.RELEASE_HOLD -> {
+                            int cid = in.getInt(), rid = in.getInt(), fid = in.getInt();
+                            customers.releaseHold(cid, food.findFoodItem(rid, fid));
+                        }
+                        case Journal.ADJUST_STOCK -> {
+                            int rid = in.getInt(), fid = in.getInt();
+                            food.adjustStock(rid, fid, in.getLong());
+                        }
+                        case Journal.PLACE_ORDER, Journal.PLACE_DISCOUNTED_ORDER, Journal.PLACE_KEYED_ORDER -> {
+                            int oid = in.getInt(), cid = in.getInt();
+                            long placedAt = in.getLong();
+                            long discount = type == Journal.PLACE_ORDER ? 0 : in.getLong();
+                            long keyHash = type == Journal.PLACE_KEYED_ORDER ? in.getLong() : 0;
+                            db.nextOrderId.set(oid);
+                            orders.placeOrder(cid, in.getString(), placedAt, keyHash, UNSPLIT);
+                            Order o = db.orders.get(oid);
+                            if (o != null) o.setDiscountPaise(discount);
+                            maxOrderId = Math.max(maxOrderId, oid);
+                        }
+                        case Journal.PLACE_SPLIT_ORDER -> {
+                            int parent = in.getInt(), cid = in.getInt();
+                            long placedAt = in.getLong(), keyHash = in.getLong();
+                            long[] discounts = new long[in.getInt()];
+                            int[] split = new int[discounts.length];
+                            for (int i = 0; i < discounts.length; i++) {
+                                discounts[i] = in.getLong();
+                                split[i] = in.getInt();
+                            }
+                            db.nextOrderId.set(parent);
+                            orders.placeOrder(cid, in.getString(), placedAt, keyHash, split);
+                            for (int i = 0; i < discounts.length; i++) {
+                                Order o = db.orders.get(parent + 1 + i);
+                                if (o != null) o.setDiscountPaise(discounts[i]);
+                            }
+                            maxOrderId = Math.max(maxOrderId, parent + discounts.length);
+                        }
+                        case Journal.SET_PREP_TIME -> food.setPrepTime(in.getInt(), in.getInt(), in.getInt());
+                        case Journal.SET_PRICE -> food.setPrice(in.getInt(), in.getInt(), in.getDouble());
+                        case Journal.SET_KITCHEN_CAPACITY -> food.setKitchenCapacity(in.getInt(), in.getInt(), in.getInt());
+                        case Journal.ADD_DELIVERY_PERSON -> {
+                            int id = in.getInt();
+                            long contact = in.getLong();
+                            orders.addDeliveryPerson(id, in.getString(), contact);
+                        }
+                        case Journal.ASSIGN_DELIVERY_PERSON -> orders.assignDeliveryPersonToOrder(in.getInt(), in.getInt());
+                        case Journal.UPDATE_ORDER_STATUS -> {
+                            int oid = in.getInt();
+                            OrderStatus next = OrderStatus.of(in.get());
+                            orders.updateOrderStatus(oid, next, in.getLong());
+                        }
+                        default -> throw new IOException("unknown journal record in " + file);
+                    }
+                    recoveredRecords++;
+                }
+            }
+            return maxOrderId;
+        }
+    }
+
+    // ====== SERVICES ======
+
+    // Food & Restaurant management
+    static class FoodService {
+        private final DataStore db;
+        public FoodService(DataStore db) { this.db = db; }
+
+        public boolean addRestaurant(int id, String name) {
+            db.journal.checkRunning();
+            Restaurant r = new Restaurant(id, name);
+            long seq;
+            // journaled under the restaurant's lock so later menu edits are logged after it
+            synchronized (r) {
+                if (db.restaurants.putIfAbsent(id, r) != null) return false;
+                db.search.addRestaurant(r);
+                seq = db.journal.logAddRestaurant(id, name);
+            }
+            db.journal.commitApplied(seq);
+            return true;
+        }
+
+        public boolean addFoodItemToRestaurant(int restaurantId, int foodId, String name, double price) {
+            db.journal.checkRunning();
+            Restaurant r = db.restaurants.get(restaurantId);
+            if (r == null) return false;
+            FoodItem item = new FoodItem(r, foodId, name, price);
+            long seq;
+            synchronized (r) {
+                FoodItem old = r.getFoodItem(foodId);
+                if (old != null) { // a new price keeps the portions left and the prep time
+                    item.setStock(old.getStock());
+                    item.setPrepSeconds(old.getPrepSeconds());
+                }
+                r.addFoodItem(item);
+                db.foodItems.put(restaurantId, foodId, item);
+                if (old != null) db.search.removeFoodItem(old);
+                db.search.addFoodItem(restaurantId, item);
+                seq = db.journal.logAddFoodItem(restaurantId, foodId, name, price);
+            }
+            db.journal.commitApplied(seq);
+            return true;
+        }
+
+        public boolean removeFoodItemFromRestaurant(int restaurantId, int foodId) {
+            db.journal.checkRunning();
+            Restaurant r = db.restaurants.get(restaurantId);
+            if (r == null) return false;
+            long seq;
+            synchronized (r) {
+                FoodItem old = r.getFoodItem(foodId); // reads the menu first if it is still in the catalog
+                db.foodItems.remove(restaurantId, foodId);
+                if (!r.removeFoodItem(foodId)) return false;
+                db.search.removeFoodItem(old);
+                seq = db.journal.logRemoveFoodItem(restaurantId, foodId);
+            }
+            db.journal.commitApplied(seq);
+            return true;
+        }
+
+        // Caps the portions of an item left to sell (portions already held in carts come on top).
+        // Items start unlimited; false if there is no such item or portions is negative.
+        public boolean setStock(int restaurantId, int foodId, long portions) {
+            db.journal.checkRunning();
+            Restaurant r = db.restaurants.get(restaurantId);
+            if (r == null || portions < 0) return false;
+            long seq;
+            synchronized (r) {
+                FoodItem item = r.getFoodItem(foodId);
+                if (item == null) return false;
+                long delta = stockOf(item, restaurantId, foodId).reset(portions);
+                seq = db.journal.logAdjustStock(restaurantId, foodId, delta);
+            }
+            db.journal.commitApplied(seq);
+            return true;
+        }
+
+        // Journal replay of setStock
+        void adjustStock(int restaurantId, int foodId, long delta) {
+            Restaurant r = db.restaurants.get(restaurantId);
+            if (r == null) return;
+            synchronized (r) {
+                FoodItem item = r.getFoodItem(foodId);
+                if (item == null) return;
+                Stock s = stockOf(item, restaurantId, foodId);
+                if (delta < 0) s.take((int) Math.min(Integer.MAX_VALUE, -delta), true);
+                else s.add(delta);
+            }
+        }
+
+        // Reprices the item in place: carts holding it keep what their lines already cost, later
+        // additions pay the new price. False if there is no such item or the price is negative.
+        public boolean setPrice(int restaurantId, int foodId, double price) {
+            db.journal.checkRunning();
+            Restaurant r = db.restaurants.get(restaurantId);
+            if (r == null || price < 0) return false;
+            long seq;
+            synchronized (r) {
+                FoodItem item = r.getFoodItem(foodId);
+                if (item == null) return false;
+                db.search.removeFoodItem(item); // found under its old price
+                item.setPrice(price);
+                db.search.addFoodItem(restaurantId, item);
+                seq = db.journal.logSetPrice(restaurantId, foodId, price);
+            }
+            db.journal.commitApplied(seq);
+            return true;
+        }
+
+        // How long the kitchen takes to make the item; an order takes as long as its slowest dish.
+        // False if there is no such item or seconds is not positive.
+        public boolean setPrepTime(int restaurantId, int foodId, int seconds) {
+            db.journal.checkRunning();
+            Restaurant r = db.restaurants.get(restaurantId);
+            if (r == null || seconds <= 0) return false;
+            long seq;
+            synchronized (r) {
+                FoodItem item = r.getFoodItem(foodId);
+                if (item == null) return false;
+                item.setPrepSeconds(seconds);
+                seq = db.journal.logSetPrepTime(restaurantId, foodId, seconds);
+            }
+            db.journal.commitApplied(seq);
+            return true;
+        }
+
+        // The number of orders the kitchen cooks at once, and how far ahead its stations may be booked
+        // before the restaurant is hidden from the menu listing. Orders already booked keep their times.
+        public boolean setKitchenCapacity(int restaurantId, int stations, int maxWaitMinutes) {
+            db.journal.checkRunning();
+            Restaurant r = db.restaurants.get(restaurantId);
+            if (r == null || stations <= 0 || maxWaitMinutes < 0) return false;
+            long seq;
+            synchronized (r) {
+                r.getKitchen().configure(stations, maxWaitMinutes * 60_000L);
+                seq = db.journal.logSetKitchenCapacity(restaurantId, stations, maxWaitMinutes);
+            }
+            db.journal.commitApplied(seq);
+            return true;
+        }
+
+        // Caller holds the restaurant's lock
+        private static Stock stockOf(FoodItem item, int restaurantId, int foodId) {
+            Stock s = item.getStock();
+            if (s == null) item.setStock(s = new Stock(restaurantId, foodId));
+            return s;
+        }
+
+        public void printRestaurantsAndMenus() {
+            if (db.restaurants.isEmpty()) {
+                System.out.println("No restaurants available.");
+                return;
+            }
+            try (ReportWriter w = ReportWriter.console()) {
+                int written = writeMenus(w, new MenuReport(ReportFormat.TEXT), 0, Integer.MAX_VALUE, true);
+                int busy = db.restaurants.size() - written;
+                if (busy > 0) {
+                    w.append("(").appendLong(busy).append(busy == 1 ? " restaurant is" : " restaurants are")
+                            .append(" too busy for new orders right now)").newLine();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Streams restaurants [offset, offset + limit) with their menus, leaving out those whose kitchen
+        // is full if hideBusy; returns the number written
+        public int writeMenus(ReportWriter w, MenuReport report, int offset, int limit, boolean hideBusy) throws IOException {
+            report.writeHeader(w);
+            long now = hideBusy ? System.currentTimeMillis() : 0;
+            int skipped = 0, written = 0;
+            for (Restaurant r : db.restaurants.values()) {
+                if (written == limit) break;
+                if (hideBusy && !r.getKitchen().isAccepting(now)) continue;
+                if (skipped++ < offset) continue;
+                if (report.isText()) w.append(db.menuCache.get(r, MenuCache.Form.TEXT));
+                else report.write(w, r);
+                written++;
+            }
+            return written;
+        }
+
+        public FoodItem findFoodItem(int restaurantId, int foodItemId) {
+            return db.findFoodItem(restaurantId, foodItemId);
+        }
+
+        // Search covers every menu, so after a lazy start the first search reads the rest of the catalog.
+        // Cheapest first; pass Double.MAX_VALUE as maxPrice for no upper bound
+        public List<SearchIndex.Hit> searchFood(String query, double minPrice, double maxPrice, int limit) {
+            db.loadCatalog();
+            long max = maxPrice >= Long.MAX_VALUE / 100.0 ? Long.MAX_VALUE : Math.round(maxPrice * 100);
+            return db.search.searchFood(query, Math.round(minPrice * 100), max, limit);
+        }
+
+        public List<Restaurant> searchRestaurants(String query, int limit) {
+            db.loadCatalog();
+            return db.search.searchRestaurants(query, limit);
+        }
+
+        public List<String> suggest(String prefix, int limit) {
+            db.loadCatalog();
+            return db.search.suggest(prefix, limit);
+        }
+    }
+
+    // Customer management
+    static class CustomerService {
+        private final DataStore db;
+        public CustomerService(DataStore db) { this.db = db; }
+
+        public boolean addCustomer(int userId, String username, long contactNo) {
+            db.journal.checkRunning();
+            long seq;
+            synchronized (db.customerLock(userId)) {
+                if (db.customers.putIfAbsent(userId, new Customer(userId, username, contactNo)) != null) return false;
+                seq = db.journal.logAddCustomer(userId, username, contactNo);
+            }
+            db.journal.commitApplied(seq);
+            return true;
+        }
+
+        public Customer getCustomer(int userId) { return db.customers.get(userId); }
+
+        // Items with stock are held for the cart until checkout or until the hold expires;
+        // false if the customer or item is unknown, quantity is not positive or too few portions are left
+        public boolean addFoodToCart(int customerId, FoodItem item, int quantity) {
+            db.journal.checkRunning();
+            Customer c = db.customers.get(customerId);
+            if (c == null || item == null || quantity <= 0) return false;
+            Stock stock = item.getStock();
+            long seq;
+            synchronized (db.customerLock(customerId)) {
+                if (stock != null && !stock.take(quantity, db.recovering)) return false;
+                LineItem line = c.getCart().addItem(item, quantity, item.getPricePaise() * quantity);
+                if (stock != null) db.hold(customerId, line, quantity);
+                db.promotions.priceLine(c.getCart(), line, System.currentTimeMillis());
+                seq = db.journal.logAddToCart(customerId, item, quantity);
+            }
+            db.journal.commitApplied(seq);
+            return true;
+        }
+
+        // False if the customer is unknown or no coupon with this code is active; checkout drops a
+        // coupon that has lapsed by then. Coupons are not journaled, like the rules themselves.
+        public boolean applyCoupon(int customerId, String code) {
+            Customer c = db.customers.get(customerId);
+            if (c == null || code == null) return false;
+            Promotion coupon = db.promotions.coupon(code, System.currentTimeMillis());
+            if (coupon == null) return false;
+            synchronized (db.customerLock(customerId)) {
+                c.getCart().setCoupon(coupon);
+            }
+            return true;
+        }
+
+        // Journal replay of an expired hold
+        void releaseHold(int customerId, FoodItem item) {
+            Customer c = db.customers.get(customerId);
+            if (c == null || item == null) return;
+            synchronized (db.customerLock(customerId)) {
+                LineItem line = c.getCart().getLine(item);
+                if (line != null && line.getItem().getStock() != null) db.releaseHold(line);
+            }
+        }
+
+        public void viewCart(int customerId) {
+            Customer c = db.customers.get(customerId);
+            if (c == null) {
+                System.out.println("Customer not found!");
+                return;
+            }
+            String cart;
+            synchronized (db.customerLock(customerId)) {
+                cart = c.getCart().toString();
+            }
+            System.out.println("Cart:\n" + cart);
+        }
+    }
+
+    // Orders & delivery management
+    static class OrderService {
+        private final DataStore db;
+        public OrderService(DataStore db) { this.db = db; }
+
+        public int placeOrder(int customerId, String deliveryAddress) {
+            return placeOrder(customerId, deliveryAddress, System.currentTimeMillis(), 0);
+        }
+
+        // A cart from one restaurant becomes one order and its id is returned. A cart from several is
+        // split into one sub-order per restaurant and the parent id is returned; see getSubOrders.
+        // Retrying with the same key returns the order the first call placed, for as long as the
+        // key is remembered, instead of checking out whatever the cart holds by then
+        public int placeOrder(int customerId, String deliveryAddress, String idempotencyKey) {
+            return placeOrder(customerId, deliveryAddress, System.currentTimeMillis(), IdempotencyCache.keyHash(idempotencyKey));
+        }
+
+        // Journal replay passes the original placement time
+        int placeOrder(int customerId, String deliveryAddress, long placedAtMillis, long keyHash) {
+            return placeOrder(customerId, deliveryAddress, placedAtMillis, keyHash, null);
+        }
+
+        // split: the restaurant of each order as logged (one entry for a single order), so replay places
+        // the same orders under the same ids; null to split the cart by its own restaurants
+        int placeOrder(int customerId, String deliveryAddress, long placedAtMillis, long keyHash, int[] split) {
+            // a remembered key stays until it expires, so most retries are answered without the lock
+            int prior = keyHash == 0 ? -1 : db.idempotency.get(customerId, keyHash, placedAtMillis);
+            if (prior > 0) {
+                db.journal.commitApplied(db.journal.appendedSeq());
+                return prior;
+            }
+            db.journal.checkRunning();
+            Customer c = db.customers.get(customerId);
+            if (c == null) return -1;
+            int oid;
+            long seq;
+            Order[] placed = null;
+            // cart snapshot, index update and clear happen atomically per customer
+            synchronized (db.customerLock(customerId)) {
+                prior = keyHash == 0 ? -1 : db.idempotency.get(customerId, keyHash, placedAtMillis);
+                if (prior > 0) {
+                    // a retry: the first call may not have committed yet, and the journal's tail covers it
+                    oid = prior;
+                    seq = db.journal.appendedSeq();
+                } else {
+                    Cart cart = c.getCart();
+                    if (cart.isEmpty() || !db.confirmStock(cart)) return -1;
+
+                    // a cart from several restaurants takes an id for the parent and one per sub-order after it
+                    int restaurants = split == null ? DataStore.restaurantCount(cart) : split.length;
+                    db.journal.reservePlaceOrder(restaurants, deliveryAddress);
+                    oid = db.allocateOrderIds(restaurants == 1 ? 1 : restaurants + 1);
+                    // priced afresh for the order; replay takes the discount from the journal instead
+                    long discount = db.recovering ? 0 : db.promotions.priceCart(cart, placedAtMillis);
+                    // the cart's lines move into the orders as-is; the cart is left empty
+                    placed = db.drainCart(c, restaurants, split, oid, discount, deliveryAddress, placedAtMillis);
+                    // logged before the orders become visible, so an assignment can never precede them in the journal
+                    seq = placed.length == 1
+                            ? db.journal.logPlaceOrder(oid, customerId, placedAtMillis, deliveryAddress, discount, keyHash)
+                            : db.journal.logPlaceSplitOrder(oid, customerId, placedAtMillis, deliveryAddress, placed, keyHash);
+                    if (keyHash != 0) db.idempotency.remember(customerId, keyHash, oid, placedAtMillis);
+                    for (Order o : placed) {
+                        db.addOrder(o);
+                        db.events.publish(o.getOrderId(), null, OrderStatus.PLACED);
+                    }
+                }
+            }
+            db.journal.commitApplied(seq);
+            // restaurants only hear about durable orders
+            if (placed != null && !db.recovering) db.kitchens.announce(placed, placed.length).join();
+            return oid;
+        }
+
+        // When the cart would be ready if it were checked out now, from its restaurants' kitchen
+        // queues; -1 if there is no such customer or the cart is empty
+        public long estimateReadyAt(int customerId) {
+            Customer c = db.customers.get(customerId);
+            if (c == null) return -1;
+            long now = System.currentTimeMillis();
+            synchronized (db.customerLock(customerId)) {
+                return c.getCart().isEmpty() ? -1 : KitchenQueues.quote(c.getCart(), now);
+            }
+        }
+
+        // When the order will be ready: the ready time booked at checkout, or for a split checkout's
+        // parent the latest of its sub-orders'; 0 if unknown
+        public long getReadyAtMillis(int orderId) {
+            Order o = db.getOrder(orderId);
+            if (o != null) return o.getReadyAtMillis();
+            long ready = 0;
+            for (Order sub : getSubOrders(orderId)) ready = Math.max(ready, sub.getReadyAtMillis());
+            return ready;
+        }
+
+        // The sub-orders of a split checkout, one per restaurant; empty if parentId is not a parent
+        public List<Order> getSubOrders(int parentId) {
+            List<Order> subs = new ArrayList<>();
+            if (parentId <= 0) return subs;
+            for (int id = parentId + 1; ; id++) {
+                Order o = db.getOrder(id);
+                if (o == null || o.getParentOrderId() != parentId) return subs;
+                subs.add(o);
+            }
+        }
+
+        public boolean addDeliveryPerson(int id, String name, long contactNo) {
+            db.journal.checkRunning();
+            DeliveryPerson dp = new DeliveryPerson(id, name, contactNo);
+            long seq;
+            synchronized (dp) {
+                if (db.deliveryPeople.putIfAbsent(id, dp) != null) return false;
+                seq = db.journal.logAddDeliveryPerson(id, name, contactNo);
+            }
+            db.journal.commitApplied(seq);
+            return true;
+        }
+
+        public boolean assignDeliveryPersonToOrder(int orderId, int deliveryPersonId) {
+            db.journal.checkRunning();
+            Order o = db.orders.get(orderId);
+            DeliveryPerson dp = db.deliveryPeople.get(deliveryPersonId);
+            if (o == null || dp == null) return false;
+            long seq;
+            synchronized (dp) {
+                if (!db.setDeliveryPerson(o, dp)) return false;
+                seq = db.journal.logAssignDeliveryPerson(orderId, deliveryPersonId);
+            }
+            db.journal.commitApplied(seq);
+            return true;
+        }
+
+        // Moves an order along its lifecycle; invalid transitions are rejected.
+        // Delivered and cancelled orders leave the live map for the archive.
+        public boolean updateOrderStatus(int orderId, OrderStatus next) {
+            return updateOrderStatus(orderId, next, System.currentTimeMillis());
+        }
+
+        // Journal replay passes the original transition time
+        boolean updateOrderStatus(int orderId, OrderStatus next, long atMillis) {
+            db.journal.checkRunning();
+            Order o = db.orders.get(orderId);
+            if (o == null || next == null) return false;
+            long seq;
+            synchronized (o) {
+                OrderStatus from = o.getStatus();
+                if (!from.canTransitionTo(next)) return false;
+                if (next.isTerminal()) db.archiveOrder(o, next, atMillis);
+                else db.setStatus(o, next);
+                seq = db.journal.logUpdateOrderStatus(orderId, next, atMillis);
+                db.events.publish(orderId, from, next);
+            }
+            db.journal.commitApplied(seq);
+            return true;
+        }
+
+        // Paged lookup through the customer index, oldest order first; archived orders are rebuilt
+        public List<Order> findOrdersByCustomer(int customerId, int offset, int limit) {
+            synchronized (db.customerLock(customerId)) {
+                IntList ids = db.ordersByCustomer.get(customerId);
+                if (ids == null || offset < 0 || limit <= 0 || offset >= ids.size()) return Collections.emptyList();
+                int end = (int) Math.min((long) offset + limit, ids.size());
+                List<Order> page = new ArrayList<>(end - offset);
+                for (int i = offset; i < end; i++) {
+                    page.add(db.getOrder(ids.get(i)));
+                }
+                return page;
+            }
+        }
+
+        public int countOrdersForCustomer(int customerId) {
+            synchronized (db.customerLock(customerId)) {
+                IntList ids = db.ordersByCustomer.get(customerId);
+                return ids == null ? 0 : ids.size();
+            }
+        }
+
+        // Live orders only; archived orders keep their rider in the archive
+        public Set<Integer> getOrderIdsForDeliveryPerson(int deliveryPersonId) {
+            return Collections.unmodifiableSet(db.ordersByDeliveryPerson.getOrDefault(deliveryPersonId, Collections.emptySet()));
+        }
+
+        // Always empty for DELIVERED and CANCELLED: those orders are archived
+        public Set<Integer> getOrderIdsByStatus(OrderStatus status) {
+            return Collections.unmodifiableSet(db.ordersByStatus.get(status));
+        }
+
+        public void printOrders() {
+            if (db.orderCount() == 0) {
+                System.out.println("No orders found.");
+                return;
+            }
+            System.out.println("Orders:");
+            try (ReportWriter w = ReportWriter.console()) {
+                writeOrders(w, new OrderReport(ReportFormat.TEXT), 0, Integer.MAX_VALUE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Streams orders [offset, offset + limit) in order-id order, live and archived; returns the number written
+        public int writeOrders(ReportWriter w, OrderReport report, int offset, int limit) throws IOException {
+            report.writeHeader(w);
+            int skipped = 0, written = 0;
+            int end = db.nextOrderId.get();
+            for (int oid = 1; oid < end && written < limit; oid++) {
+                if (skipped < offset) {
+                    if (db.hasOrder(oid)) skipped++;
+                    continue;
+                }
+                Order o = db.getOrder(oid);
+                if (o == null) continue;
+                report.write(w, o);
+                written++;
+            }
+            return written;
+        }
+
+        public void printOrdersForCustomer(int customerId) {
+            List<Order> list = findOrdersByCustomer(customerId, 0, Integer.MAX_VALUE);
+            if (list.isEmpty()) {
+                System.out.println("No orders for this customer.");
+                return;
+            }
+            System.out.println("Orders:");
+            OrderReport report = new OrderReport(ReportFormat.TEXT);
+            try (ReportWriter w = ReportWriter.console()) {
+                for (Order o : list) report.write(w, o);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // ====== METRICS ======
+
+    enum MetricsFormat { TEXT, PROMETHEUS }
+
+    // Latency histogram in the style of HdrHistogram: values below 64 ns get a bucket each, above
+    // that every power of two is split into 32 buckets, so a reported value is never more than ~3%
+    // above what was recorded. Recording is one atomic increment plus a LongAdder add, with no lock.
+    static class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        static final long MAX_VALUE = (1L << 40) - 1; // ~18 minutes in ns; longer values are clamped
+
+        private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+        private final LongAdder sum = new LongAdder();
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            else if (value > MAX_VALUE) value = MAX_VALUE;
+            counts.getAndIncrement(index(value));
+            sum.add(value);
+        }
+
+        // bucket e * 32 + (value >>> e) where e keeps the top six bits of the value
+        static int index(long value) {
+            if (value < SUB_COUNT) return (int) value;
+            int e = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (e << SUB_BITS) + (int) (value >>> e);
+        }
+
+        // Largest value that lands in the bucket
+        static long highestEquivalent(int index) {
+            if (index < SUB_COUNT) return index;
+            int e = (index >> SUB_BITS) - 1;
+            long sub = index - ((long) e << SUB_BITS);
+            return ((sub + 1) << e) - 1;
+        }
+
+        // Copies the counts; recording carries on while this runs, so the copy is only approximately a point in time
+        Distribution snapshot() {
+            long[] c = new long[counts.length()];
+            long total = 0;
+            for (int i = 0; i < c.length; i++) total += c[i] = counts.get(i);
+            return new Distribution(c, total, sum.sum());
+        }
+
+        static class Distribution {
+            private final long[] counts;
+            private final long count, sum;
+
+            Distribution(long[] counts, long count, long sum) {
+                this.counts = counts;
+                this.count = count;
+                this.sum = sum;
+            }
+
+            long getCount() { return count; }
+            long getSum() { return sum; }
+            double getMean() { return count == 0 ? 0 : (double) sum / count; }
+            long getMax() { return valueAt(100); }
+
+            // p in [0, 100]; 0 when nothing was recorded
+            long valueAt(double p) {
+                if (count == 0) return 0;
+                long rank = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) return highestEquivalent(i);
+                }
+                return highestEquivalent(counts.length - 1);
+            }
+        }
+    }
+
+    // Calls to one service operation, how many failed (returned false, -1 or null) and their latency.
+    // Two clock reads and the histogram update cost ~100 ns, over the 50 ns a hot call may spend on
+    // being timed, so lookups, cart and order calls are sampled: only a random 1 in sampleEvery calls
+    // is timed, while every call is still counted. Rare admin calls are all timed.
+    static class OperationTimer {
+        final String name;
+        final String operation;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder calls = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        private final int sampleMask; // sampleEvery - 1
+
+        OperationTimer(String name, String operation, int sampleEvery) {
+            if (Integer.bitCount(sampleEvery) != 1) throw new IllegalArgumentException("sampleEvery must be a power of two");
+            this.name = name;
+            this.operation = operation;
+            this.sampleMask = sampleEvery - 1;
+        }
+
+        // The start time when this call is sampled, 0 when it is only counted
+        long start() {
+            return sampleMask == 0 || (ThreadLocalRandom.current().nextInt() & sampleMask) == 0 ? System.nanoTime() : 0;
+        }
+
+        void record(long start) {
+            calls.increment();
+            if (start != 0) latency.record(System.nanoTime() - start);
+        }
+
+        void record(long start, boolean ok) {
+            record(start);
+            if (!ok) failures.increment();
+        }
+    }
+
+    // Timers for the service operations and gauges over the DataStore's sizes. The Metered*
+    // services feed the timers; gauges are only read when the metrics are written, so they cost
+    // nothing in between. Written as a text table (admin menu) or Prometheus exposition format.
+    static class Metrics {
+        private static final double[] QUANTILES = {50, 90, 99, 99.9};
+
+        private final List<OperationTimer> timers = new ArrayList<>();
+        private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+        private final Map<String, String> gaugeHelp = new HashMap<>();
+
+        final OperationTimer addRestaurant = timer("add_restaurant", "FoodService.addRestaurant", 1);
+        final OperationTimer addFoodItem = timer("add_food_item", "FoodService.addFoodItemToRestaurant", 1);
+        final OperationTimer removeFoodItem = timer("remove_food_item", "FoodService.removeFoodItemFromRestaurant", 1);
+        final OperationTimer findFoodItem = timer("find_food_item", "FoodService.findFoodItem", 8);
+        final OperationTimer searchFood = timer("search_food", "FoodService.searchFood", 8);
+        final OperationTimer setStock = timer("set_stock", "FoodService.setStock", 1);
+        final OperationTimer setPrice = timer("set_price", "FoodService.setPrice", 1);
+        final OperationTimer searchRestaurants = timer("search_restaurants", "FoodService.searchRestaurants", 8);
+        final OperationTimer addCustomer = timer("add_customer", "CustomerService.addCustomer", 1);
+        final OperationTimer addFoodToCart = timer("add_food_to_cart", "CustomerService.addFoodToCart", 8);
+        final OperationTimer placeOrder = timer("place_order", "OrderService.placeOrder and CheckoutPipeline.submit", 8);
+        final OperationTimer addDeliveryPerson = timer("add_delivery_person", "OrderService.addDeliveryPerson", 1);
+        final OperationTimer assignDeliveryPerson = timer("assign_delivery_person", "OrderService.assignDeliveryPersonToOrder", 8);
+        final OperationTimer updateOrderStatus = timer("update_order_status", "OrderService.updateOrderStatus", 8);
+        final OperationTimer findOrdersByCustomer = timer("find_orders_by_customer", "OrderService.findOrdersByCustomer", 8);
+
+        Metrics(DataStore db) {
+            gauge("restaurants", "Restaurants", () -> db.restaurants.size());
+            gauge("food_items", "Food items across all menus", () -> db.foodItems.size());
+            gauge("customers", "Registered customers", () -> db.customers.size());
+            gauge("delivery_people", "Registered delivery people", () -> db.deliveryPeople.size());
+            // the status sets rather than db.orders, whose size() walks a skip list in concurrent mode
+            gauge("pending_orders", "Orders placed but not yet picked up",
+                    () -> statusCount(db, OrderStatus.PLACED) + statusCount(db, OrderStatus.ACCEPTED) + statusCount(db, OrderStatus.PREPARING));
+            gauge("orders_in_delivery", "Orders picked up and not yet delivered", () -> statusCount(db, OrderStatus.PICKED_UP));
+            gauge("archived_orders", "Delivered and cancelled orders", () -> db.archive.size());
+            gauge("menu_cache_entries", "Rendered menus held by the menu cache", () -> db.menuCache.size());
+        }
+
+        private OperationTimer timer(String name, String operation, int sampleEvery) {
+            OperationTimer t = new OperationTimer(name, operation, sampleEvery);
+            timers.add(t);
+            return t;
+        }
+
+        private void gauge(String name, String help, LongSupplier value) {
+            gauges.put(name, value);
+            gaugeHelp.put(name, help);
+        }
+
+        private static long statusCount(DataStore db, OrderStatus status) {
+            return db.ordersByStatus.get(status).size();
+        }
+
+        List<OperationTimer> timers() { return Collections.unmodifiableList(timers); }
+
+        void write(ReportWriter w, MetricsFormat format) throws IOException {
+            if (format == MetricsFormat.TEXT) writeText(w);
+            else writePrometheus(w);
+        }
+
+        // Operations that have been called, with latencies in microseconds, then the gauges
+        private void writeText(ReportWriter w) throws IOException {
+            w.append(String.format(Locale.ROOT, "%-26s %10s %8s %9s %9s %9s %9s %9s %9s%n",
+                    "operation", "calls", "failed", "mean", "p50", "p90", "p99", "p99.9", "max"));
+            for (OperationTimer t : timers) {
+                LatencyHistogram.Distribution d = t.latency.snapshot();
+                if (t.calls.sum() == 0) continue;
+                w.append(String.format(Locale.ROOT, "%-26s %10d %8d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+                        t.name, t.calls.sum(), t.failures.sum(), d.getMean() / 1e3, d.valueAt(50) / 1e3, d.valueAt(90) / 1e3,
+                        d.valueAt(99) / 1e3, d.valueAt(99.9) / 1e3, d.getMax() / 1e3));
+            }
+            w.append("(latencies in microseconds; lookups, cart and order calls are timed on a sample of their calls)").newLine().newLine();
+            for (Map.Entry<String, LongSupplier> g : gauges.entrySet()) {
+                w.append(String.format(Locale.ROOT, "%-26s %10d%n", g.getKey(), g.getValue().getAsLong()));
+            }
+        }
+
+        // Each timer as a summary in seconds plus a failures counter, each gauge as a gauge
+        private void writePrometheus(ReportWriter w) throws IOException {
+            for (OperationTimer t : timers) {
+                LatencyHistogram.Distribution d = t.latency.snapshot();
+                String name = "onlinefood_" + t.name + "_seconds";
+                w.append("# HELP ").append(name).append(" Latency of ").append(t.operation).newLine();
+                w.append("# TYPE ").append(name).append(" summary").newLine();
+                for (double q : QUANTILES) {
+                    w.append(name).append("{quantile=\"").append(Double.toString(q / 100)).append("\"} ")
+                            .append(Double.toString(d.valueAt(q) / 1e9)).newLine();
+                }
+                // exact call count; the sum is scaled up from the sampled calls
+                long calls = t.calls.sum();
+                double sum = d.getCount() == 0 ? 0 : d.getMean() * calls / 1e9;
+                w.append(name).append("_sum ").append(Double.toString(sum)).newLine();
+                w.append(name).append("_count ").appendLong(calls).newLine();
+                String failures = "onlinefood_" + t.name + "_failures_total";
+                w.append("# HELP ").append(failures).append(" Failed calls to ").append(t.operation).newLine();
+                w.append("# TYPE ").append(failures).append(" counter").newLine();
+                w.append(failures).append(' ').appendLong(t.failures.sum()).newLine();
+            }
+            for (Map.Entry<String, LongSupplier> g : gauges.entrySet()) {
+                String name = "onlinefood_" + g.getKey();
+                w.append("# HELP ").append(name).append(' ').append(gaugeHelp.get(g.getKey())).newLine();
+                w.append("# TYPE ").append(name).append(" gauge").newLine();
+                w.append(name).append(' ').appendLong(g.getValue().getAsLong()).newLine();
+            }
+        }
+    }
+
+    // Publishes Metrics outside the process; started from main with --metrics-file / --metrics-port
+    interface MetricsExporter extends Closeable {
+        @Override
+        void close();
+    }
+
+    // Rewrites a file every periodMillis: Prometheus format when the name ends in .prom (for the
+    // node exporter's textfile collector), the text table otherwise. Each write goes to a temporary
+    // file that is then renamed over the old one, so readers never see half a file.
+    static class FileMetricsExporter implements MetricsExporter {
+        private final Metrics metrics;
+        private final Path file;
+        private final MetricsFormat format;
+        private final long periodMillis;
+        private final Thread writer = new Thread(this::run, "metrics-file-exporter");
+        private volatile boolean closed;
+
+        FileMetricsExporter(Metrics metrics, Path file, long periodMillis) {
+            this.metrics = metrics;
+            this.file = file.toAbsolutePath();
+            this.format = file.getFileName().toString().endsWith(".prom") ? MetricsFormat.PROMETHEUS : MetricsFormat.TEXT;
+            this.periodMillis = periodMillis;
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        private void run() {
+            while (!closed) {
+                try {
+                    writeNow();
+                } catch (IOException e) {
+                    System.err.println("Metrics export to " + file + " failed: " + e.getMessage());
+                }
+                LockSupport.parkNanos(this, periodMillis * 1_000_000);
+            }
+        }
+
+        void writeNow() throws IOException {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (ReportWriter w = new ReportWriter(Files.newBufferedWriter(tmp))) {
+                metrics.write(w, format);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Stops the writer after one final write
+        @Override
+        public void close() {
+            closed = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+                writeNow();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                System.err.println("Metrics export to " + file + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Serves GET /metrics in Prometheus format (or the text table with ?format=text) for scraping
+    static class HttpMetricsExporter implements MetricsExporter {
+        private final Metrics metrics;
+        private final HttpServer server;
+
+        HttpMetricsExporter(Metrics metrics, int port) throws IOException {
+            this.metrics = metrics;
+            server = HttpServer.create(new InetSocketAddress(port), 16);
+            server.createContext("/metrics", this::handle);
+            server.start();
+        }
+
+        int port() { return server.getAddress().getPort(); }
+
+        private void handle(HttpExchange ex) throws IOException {
+            boolean text = "format=text".equals(ex.getRequestURI().getRawQuery());
+            Utf8Buffer body = new Utf8Buffer(8192);
+            try (ReportWriter w = new ReportWriter(body, false, 8192)) {
+                metrics.write(w, text ? MetricsFormat.TEXT : MetricsFormat.PROMETHEUS);
+            }
+            ex.getResponseHeaders().set("Content-Type", text ? "text/plain; charset=utf-8" : "text/plain; version=0.0.4; charset=utf-8");
+            ex.sendResponseHeaders(200, body.size());
+            try (OutputStream out = ex.getResponseBody()) {
+                body.writeTo(out);
+            }
+        }
+
+        @Override
+        public void close() { server.stop(0); }
+    }
+
+    // The services with every operation timed into Metrics. The CLI and the HTTP API use these;
+    // journal replay and the benchmarks use the plain services, so recovery is not counted.
+    // HTTP checkouts skip OrderService and go through the CheckoutPipeline, which times them into
+    // the same place_order timer from submit until the order is durable.
+    static class MeteredFoodService extends FoodService {
+        private final Metrics metrics;
+
+        MeteredFoodService(DataStore db, Metrics metrics) {
+            super(db);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public boolean addRestaurant(int id, String name) {
+            long t0 = metrics.addRestaurant.start();
+            boolean ok = super.addRestaurant(id, name);
+            metrics.addRestaurant.record(t0, ok);
+            return ok;
+        }
+
+        @Override
+        public boolean addFoodItemToRestaurant(int restaurantId, int foodId, String name, double price) {
+            long t0 = metrics.addFoodItem.start();
+            boolean ok = super.addFoodItemToRestaurant(restaurantId, foodId, name, price);
+            metrics.addFoodItem.record(t0, ok);
+            return ok;
+        }
+
+        @Override
+        public boolean removeFoodItemFromRestaurant(int restaurantId, int foodId) {
+            long t0 = metrics.removeFoodItem.start();
+            boolean ok = super.removeFoodItemFromRestaurant(restaurantId, foodId);
+            metrics.removeFoodItem.record(t0, ok);
+            return ok;
+        }
+
+        @Override
+        public boolean setStock(int restaurantId, int foodId, long portions) {
+            long t0 = metrics.setStock.start();
+            boolean ok = super.setStock(restaurantId, foodId, portions);
+            metrics.setStock.record(t0, ok);
+            return ok;
+        }
+
+        @Override
+        public boolean setPrice(int restaurantId, int foodId, double price) {
+            long t0 = metrics.setPrice.start();
+            boolean ok = super.setPrice(restaurantId, foodId, price);
+            metrics.setPrice.record(t0, ok);
+            return ok;
+        }
+
+        @Override
+        public FoodItem findFoodItem(int restaurantId, int foodItemId) {
+            long t0 = metrics.findFoodItem.start();
+            FoodItem item = super.findFoodItem(restaurantId, foodItemId);
+            metrics.findFoodItem.record(t0, item != null);
+            return item;
+        }
+
+        @Override
+        public List<SearchIndex.Hit> searchFood(String query, double minPrice, double maxPrice, int limit) {
+            long t0 = metrics.searchFood.start();
+            List<SearchIndex.Hit> hits = super.searchFood(query, minPrice, maxPrice, limit);
+            metrics.searchFood.record(t0);
+            return hits;
+        }
+
+        @Override
+        public List<Restaurant> searchRestaurants(String query, int limit) {
+            long t0 = metrics.searchRestaurants.start();
+            List<Restaurant> hits = super.searchRestaurants(query, limit);
+            metrics.searchRestaurants.record(t0);
+            return hits;
+        }
+    }
+
+    static class MeteredCustomerService extends CustomerService {
+        private final Metrics metrics;
+
+        MeteredCustomerService(DataStore db, Metrics metrics) {
+            super(db);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public boolean addCustomer(int userId, String username, long contactNo) {
+            long t0 = metrics.addCustomer.start();
+            boolean ok = super.addCustomer(userId, username, contactNo);
+            metrics.addCustomer.record(t0, ok);
+            return ok;
+        }
+
+        @Override
+        public boolean addFoodToCart(int customerId, FoodItem item, int quantity) {
+            long t0 = metrics.addFoodToCart.start();
+            boolean ok = super.addFoodToCart(customerId, item, quantity);
+            metrics.addFoodToCart.record(t0, ok);
+            return ok;
+        }
+    }
+
+    static class MeteredOrderService extends OrderService {
+        private final Metrics metrics;
+
+        MeteredOrderService(DataStore db, Metrics metrics) {
+            super(db);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int placeOrder(int customerId, String deliveryAddress) {
+            long t0 = metrics.placeOrder.start();
+            int oid = super.placeOrder(customerId, deliveryAddress);
+            metrics.placeOrder.record(t0, oid > 0);
+            return oid;
+        }
+
+        @Override
+        public int placeOrder(int customerId, String deliveryAddress, String idempotencyKey) {
+            long t0 = metrics.placeOrder.start();
+            int oid = super.placeOrder(customerId, deliveryAddress, idempotencyKey);
+            metrics.placeOrder.record(t0, oid > 0);
+            return oid;
+        }
+
+        @Override
+        public boolean addDeliveryPerson(int id, String name, long contactNo) {
+            long t0 = metrics.addDeliveryPerson.start();
+            boolean ok = super.addDeliveryPerson(id, name, contactNo);
+            metrics.addDeliveryPerson.record(t0, ok);
+            return ok;
+        }
+
+        @Override
+        public boolean assignDeliveryPersonToOrder(int orderId, int deliveryPersonId) {
+            long t0 = metrics.assignDeliveryPerson.start();
+            boolean ok = super.assignDeliveryPersonToOrder(orderId, deliveryPersonId);
+            metrics.assignDeliveryPerson.record(t0, ok);
+            return ok;
+        }
+
+        @Override
+        public boolean updateOrderStatus(int orderId, OrderStatus next) {
+            long t0 = metrics.updateOrderStatus.start();
+            boolean ok = super.updateOrderStatus(orderId, next);
+            metrics.updateOrderStatus.record(t0, ok);
+            return ok;
+        }
+
+        @Override
+        public List<Order> findOrdersByCustomer(int customerId, int offset, int limit) {
+            long t0 = metrics.findOrdersByCustomer.start();
+            List<Order> page = super.findOrdersByCustomer(customerId, offset, limit);
+            metrics.findOrdersByCustomer.record(t0);
+            return page;
+        }
+    }
+
+    // ====== CHECKOUT PIPELINE ======
+
+    // Batched placeOrder for peak load, in three stages connected by lock-free queues:
+    //  1. submit() enqueues the request and returns a future straight away;
+    //  2. the assembler thread drains up to maxBatch requests, reserves one id range for all of
+    //     them, turns each cart into an order under that customer's lock (journaling it there, as
+    //     placeOrder does) and then publishes the whole batch to the order map and indexes;
+    //  3. the committer thread makes everything assembled so far durable with one journal commit
+    //     and completes the futures.
+    // No lock is held across stages, so while the committer waits on fsync for one batch the
+    // assembler is already building the next. Futures complete with -1 where placeOrder returns -1.
+    // When a journal commit fails the orders already placed still complete with their ids, since
+    // their carts are drained and their stock is taken; the pipeline then stops: the failure is
+    // kept in durabilityFailure() and every later checkout fails without being placed.
+    static class CheckoutPipeline implements Closeable {
+        private static final class Request {
+            final int customerId;
+            final String address;
+            final long keyHash;
+            final CompletableFuture<Integer> result = new CompletableFuture<>();
+            final long start; // from the pipeline's timer, 0 when there is none
+            int orderId = -1;
+            RuntimeException failure; // thrown while this request alone was checked out
+
+            Request(int customerId, String address, long keyHash, long start) {
+                this.customerId = customerId;
+                this.address = address;
+                this.keyHash = keyHash;
+                this.start = start;
+            }
+        }
+
+        private static final class Batch {
+            final Request[] requests;
+            final long lastSeq; // journal sequence of the batch's last record
+            final Order[] placed; // the first count are the orders placed, sub-orders included
+            final int count;
+
+            Batch(Request[] requests, long lastSeq, Order[] placed, int count) {
+                this.requests = requests;
+                this.lastSeq = lastSeq;
+                this.placed = placed;
+                this.count = count;
+            }
+        }
+
+        private final DataStore db;
+        private final int maxBatch;
+        private final OperationTimer timer; // null when checkouts are not timed
+        private final Queue<Request> intake = new ConcurrentLinkedQueue<>();
+        private final Queue<Batch> assembled = new ConcurrentLinkedQueue<>();
+        private final Thread assembler = new Thread(this::assemble, "checkout-assembler");
+        private final Thread committer = new Thread(this::commit, "checkout-committer");
+        private volatile boolean assemblerIdle, committerIdle; // set just before parking
+        private volatile boolean closed, assemblerDone;
+        private volatile RuntimeException durabilityFailure; // the first failed journal commit
+        private final LongAdder batches = new LongAdder();
+        private final LongAdder requests = new LongAdder();
+
+        CheckoutPipeline(DataStore db, int maxBatch) {
+            this(db, maxBatch, null);
+        }
+
+        // Each checkout is recorded into timer once its future completes, failed when it is not placed
+        CheckoutPipeline(DataStore db, int maxBatch, OperationTimer timer) {
+            if (!db.concurrent) throw new IllegalArgumentException("the checkout pipeline needs a concurrent DataStore");
+            if (maxBatch <= 0) throw new IllegalArgumentException("maxBatch must be positive");
+            this.db = db;
+            this.maxBatch = maxBatch;
+            this.timer = timer;
+            assembler.setDaemon(true);
+            committer.setDaemon(true);
+            assembler.start();
+            committer.start();
+        }
+
+        // Completes with the new order id once it is durable, or -1 if the customer is unknown, the cart
+        // is empty or an item in it has sold out
+        CompletableFuture<Integer> submit(int customerId, String deliveryAddress) {
+            return submit(customerId, deliveryAddress, null);
+        }
+
+        // As OrderService.placeOrder with a key: a retry completes with the order the key already produced
+        CompletableFuture<Integer> submit(int customerId, String deliveryAddress, String idempotencyKey) {
+            Request r = new Request(customerId, deliveryAddress, IdempotencyCache.keyHash(idempotencyKey),
+                    timer == null ? 0 : timer.start());
+            if (closed) {
+                fail(r, new IllegalStateException("checkout pipeline is closed"));
+                return r.result;
+            }
+            if (durabilityFailure != null) {
+                fail(r, stopped());
+                return r.result;
+            }
+            intake.offer(r);
+            if (closed && intake.remove(r)) { // raced with close(); nobody will drain it
+                fail(r, new IllegalStateException("checkout pipeline is closed"));
+            } else if (assemblerIdle) {
+                LockSupport.unpark(assembler);
+            }
+            return r.result;
+        }
+
+        long batches() { return batches.sum(); }
+
+        // The journal commit that stopped the pipeline, null while it is running
+        RuntimeException durabilityFailure() { return durabilityFailure; }
+
+        private IllegalStateException stopped() {
+            return new IllegalStateException("checkout pipeline stopped: journal commit failed", durabilityFailure);
+        }
+
+        // Recorded before completing, so a caller that joins the future sees its checkout counted
+        private void complete(Request r) {
+            if (r.failure != null) {
+                fail(r, r.failure);
+                return;
+            }
+            if (timer != null) timer.record(r.start, r.orderId > 0);
+            r.result.complete(r.orderId);
+        }
+
+        private void fail(Request r, Throwable e) {
+            if (timer != null) timer.record(r.start, false);
+            r.result.completeExceptionally(e);
+        }
+
+        double averageBatch() {
+            long b = batches.sum();
+            return b == 0 ? 0 : (double) requests.sum() / b;
+        }
+
+        private void assemble() {
+            Request[] buf = new Request[maxBatch];
+            while (true) {
+                int n = 0;
+                for (Request r; n < maxBatch && (r = intake.poll()) != null; ) buf[n++] = r;
+                if (n == 0) {
+                    if (closed) break;
+                    assemblerIdle = true;
+                    if (intake.isEmpty() && !closed) LockSupport.park(this);
+                    assemblerIdle = false;
+                    continue;
+                }
+                Request[] batch = Arrays.copyOf(buf, n);
+                IOException journalFailure = db.journal.failure(); // stopped by a write elsewhere
+                if (durabilityFailure == null && journalFailure != null) durabilityFailure = new UncheckedIOException(journalFailure);
+                if (durabilityFailure != null) {
+                    for (Request r : batch) fail(r, stopped());
+                    continue;
+                }
+                try {
+                    assembled.offer(assemble(batch));
+                } catch (RuntimeException e) {
+                    for (Request r : batch) fail(r, e);
+                    continue;
+                }
+                batches.increment();
+                requests.add(n);
+                if (committerIdle) LockSupport.unpark(committer);
+            }
+            assemblerDone = true;
+            LockSupport.unpark(committer);
+        }
+
+        // Rejected requests leave their reserved id unused. A request that throws fails alone: the
+        // orders placed before it in the batch are published and complete as usual.
+        private Batch assemble(Request[] batch) {
+            long now = System.currentTimeMillis();
+            int nextId = db.allocateOrderIds(batch.length);
+            Order[] placed = new Order[batch.length];
+            int count = 0;
+            long lastSeq = 0;
+            for (Request r : batch) {
+                Customer c = db.customers.get(r.customerId);
+                if (c == null) continue;
+                synchronized (db.customerLock(r.customerId)) {
+                    int prior = r.keyHash == 0 ? -1 : db.idempotency.get(r.customerId, r.keyHash, now);
+                    if (prior > 0) {
+                        // completes once the journal's tail, and so the first call's record, is durable
+                        r.orderId = prior;
+                        lastSeq = db.journal.appendedSeq();
+                        continue;
+                    }
+                    Order[] orders;
+                    try {
+                        Cart cart = c.getCart();
+                        if (cart.isEmpty() || !db.confirmStock(cart)) continue;
+                        // a split checkout takes an id range of its own and leaves its reserved id unused
+                        int restaurants = DataStore.restaurantCount(cart);
+                        db.journal.reservePlaceOrder(restaurants, r.address);
+                        int oid = restaurants == 1 ? nextId++ : db.allocateOrderIds(restaurants + 1);
+                        long discount = db.promotions.priceCart(cart, now);
+                        orders = db.drainCart(c, restaurants, null, oid, discount, r.address, now);
+                        // logged before the orders become visible, as in placeOrder
+                        lastSeq = orders.length == 1
+                                ? db.journal.logPlaceOrder(oid, r.customerId, now, r.address, discount, r.keyHash)
+                                : db.journal.logPlaceSplitOrder(oid, r.customerId, now, r.address, orders, r.keyHash);
+                        if (r.keyHash != 0) db.idempotency.remember(r.customerId, r.keyHash, oid, now);
+                        r.orderId = oid;
+                    } catch (RuntimeException e) {
+                        r.failure = e;
+                        continue;
+                    }
+                    if (count + orders.length > placed.length) placed = Arrays.copyOf(placed, Math.max(2 * placed.length, count + orders.length));
+                    System.arraycopy(orders, 0, placed, count, orders.length);
+                    count += orders.length;
+                }
+            }
+            db.addPlacedOrders(placed, count);
+            return new Batch(batch, lastSeq, placed, count);
+        }
+
+        private void commit() {
+            List<Batch> ready = new ArrayList<>();
+            while (true) {
+                for (Batch b; (b = assembled.poll()) != null; ) ready.add(b);
+                if (ready.isEmpty()) {
+                    if (assemblerDone) break;
+                    committerIdle = true;
+                    if (assembled.isEmpty() && !assemblerDone) LockSupport.park(this);
+                    committerIdle = false;
+                    continue;
+                }
+                long seq = 0;
+                for (Batch b : ready) seq = Math.max(seq, b.lastSeq);
+                // batches assembled before the assembler saw a failure are placed all the same
+                if (durabilityFailure == null) {
+                    try {
+                        db.journal.commit(seq);
+                    } catch (RuntimeException e) {
+                        durabilityFailure = e;
+                        System.err.println("Checkout pipeline stopped, placed orders may not survive a restart: " + e);
+                    }
+                }
+                for (Batch b : ready) {
+                    // the requests complete once their restaurants have been told, at once if nobody listens
+                    db.kitchens.announce(b.placed, b.count).whenComplete((v, e) -> {
+                        for (Request r : b.requests) complete(r);
+                    });
+                }
+                ready.clear();
+            }
+        }
+
+        // Finishes everything already submitted, then stops both threads
+        @Override
+        public void close() {
+            closed = true;
+            LockSupport.unpark(assembler);
+            try {
+                assembler.join();
+                committer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Request r; (r = intake.poll()) != null; ) fail(r, new IllegalStateException("checkout pipeline is closed"));
+        }
+    }
+
+    // ====== SHARDING ======
+
+    // Partitioned in-memory mode. Restaurants, with their menus, stock and orders, are spread over
+    // shards by restaurant id; each shard is a plain (non-concurrent) DataStore with its own services,
+    // touched only by the shard's single event-loop thread, so shards share no maps, locks or cache
+    // lines. Every call is routed to its shard's loop and answers with a future:
+    //  - restaurant, menu and cart calls go to the restaurant's shard;
+    //  - order calls go to the shard that owns the id: each shard allocates ids from its own range;
+    //  - customers and delivery people are registered in every shard, so each shard can keep a
+    //    customer's cart for its restaurants and assign any rider;
+    //  - checkout fans out to the shards holding the customer's cart, and order history gathers
+    //    every shard's part and merges it into placement order.
+    static class ShardedStore implements Closeable {
+        static final int MAX_SHARDS = 64; // one bit per shard in a customer's cart mask
+
+        static final class Shard {
+            final int index;
+            final DataStore db = new DataStore(false);
+            final FoodService food = new FoodService(db);
+            final CustomerService customers = new CustomerService(db);
+            final OrderService orders = new OrderService(db);
+            final ScheduledExecutorService loop;
+
+            Shard(int index, int firstOrderId) {
+                this.index = index;
+                db.nextOrderId.set(firstOrderId);
+                loop = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "shard-" + index);
+                    t.setDaemon(true);
+                    return t;
+                });
+                db.reservations.sweepOn(loop); // cart holds expire on the loop, like every other change
+            }
+
+            <T> CompletableFuture<T> call(Supplier<T> task) {
+                return CompletableFuture.supplyAsync(task, loop);
+            }
+        }
+
+        private static final Comparator<Order> PLACEMENT_ORDER =
+                Comparator.comparingLong(Order::getPlacedAtMillis).thenComparingInt(Order::getOrderId);
+
+        private final Shard[] shards;
+        private final int orderIdRange; // shard k hands out ids from k * orderIdRange + 1
+        // customerId -> bit per shard whose cart has items for that customer; cleared by checkout
+        private final Map<Integer, AtomicLong> cartShards = new ConcurrentHashMap<>();
+
+        ShardedStore(int shardCount) {
+            if (shardCount < 1 || shardCount > MAX_SHARDS) throw new IllegalArgumentException("shardCount must be 1.." + MAX_SHARDS);
+            orderIdRange = Integer.MAX_VALUE / shardCount;
+            shards = new Shard[shardCount];
+            for (int k = 0; k < shardCount; k++) shards[k] = new Shard(k, k * orderIdRange + 1);
+        }
+
+        int shardCount() { return shards.length; }
+
+        Shard shardForRestaurant(int restaurantId) {
+            int h = restaurantId * 0x9E3779B9;
+            return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
+        }
+
+        // null for an id no shard hands out
+        Shard shardForOrder(int orderId) {
+            if (orderId <= 0) return null;
+            int k = (orderId - 1) / orderIdRange;
+            return k < shards.length ? shards[k] : null;
+        }
+
+        CompletableFuture<Boolean> addRestaurant(int id, String name) {
+            Shard s = shardForRestaurant(id);
+            return s.call(() -> s.food.addRestaurant(id, name));
+        }
+
+        CompletableFuture<Boolean> addFoodItemToRestaurant(int restaurantId, int foodId, String name, double price) {
+            Shard s = shardForRestaurant(restaurantId);
+            return s.call(() -> s.food.addFoodItemToRestaurant(restaurantId, foodId, name, price));
+        }
+
+        CompletableFuture<Boolean> setStock(int restaurantId, int foodId, long portions) {
+            Shard s = shardForRestaurant(restaurantId);
+            return s.call(() -> s.food.setStock(restaurantId, foodId, portions));
+        }
+
+        CompletableFuture<Boolean> setPrepTime(int restaurantId, int foodId, int seconds) {
+            Shard s = shardForRestaurant(restaurantId);
+            return s.call(() -> s.food.setPrepTime(restaurantId, foodId, seconds));
+        }
+
+        CompletableFuture<Boolean> setKitchenCapacity(int restaurantId, int stations, int maxWaitMinutes) {
+            Shard s = shardForRestaurant(restaurantId);
+            return s.call(() -> s.food.setKitchenCapacity(restaurantId, stations, maxWaitMinutes));
+        }
+
+        // true once every shard has registered the customer, false if it already existed
+        CompletableFuture<Boolean> addCustomer(int id, String name, long contactNo) {
+            return broadcast(s -> s.customers.addCustomer(id, name, contactNo));
+        }
+
+        CompletableFuture<Boolean> addDeliveryPerson(int id, String name, long contactNo) {
+            return broadcast(s -> s.orders.addDeliveryPerson(id, name, contactNo));
+        }
+
+        CompletableFuture<Boolean> addFoodToCart(int customerId, int restaurantId, int foodId, int quantity) {
+            Shard s = shardForRestaurant(restaurantId);
+            // marked once the item is in, so a checkout racing the add cannot clear the mark for good;
+            // at worst a checkout visits a shard whose cart has emptied since
+            return s.call(() -> s.customers.addFoodToCart(customerId, s.food.findFoodItem(restaurantId, foodId), quantity))
+                    .thenApply(added -> {
+                        if (added) cartShards.computeIfAbsent(customerId, k -> new AtomicLong()).getAndUpdate(m -> m | 1L << s.index);
+                        return added;
+                    });
+        }
+
+        // One order per shard the cart had items in, ids in shard order; empty if the cart was empty.
+        // A shard that refuses its part (an expired hold found its item sold out) keeps the lines
+        // in its cart, so its mark goes back for the next checkout.
+        CompletableFuture<int[]> placeOrder(int customerId, String deliveryAddress) {
+            AtomicLong mask = cartShards.get(customerId);
+            long bits = mask == null ? 0 : mask.getAndSet(0);
+            List<CompletableFuture<Integer>> parts = new ArrayList<>(Long.bitCount(bits));
+            for (long b = bits; b != 0; b &= b - 1) {
+                Shard s = shards[Long.numberOfTrailingZeros(b)];
+                parts.add(s.call(() -> {
+                    int oid = s.orders.placeOrder(customerId, deliveryAddress);
+                    Customer c = s.db.customers.get(customerId);
+                    if (oid < 0 && c != null && !c.getCart().isEmpty()) mask.getAndUpdate(m -> m | 1L << s.index);
+                    return oid;
+                }));
+            }
+            return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(v -> parts.stream().mapToInt(CompletableFuture::join).filter(oid -> oid > 0).toArray());
+        }
+
+        CompletableFuture<Boolean> assignDeliveryPersonToOrder(int orderId, int deliveryPersonId) {
+            Shard s = shardForOrder(orderId);
+            if (s == null) return CompletableFuture.completedFuture(false);
+            return s.call(() -> s.orders.assignDeliveryPersonToOrder(orderId, deliveryPersonId));
+        }
+
+        CompletableFuture<Boolean> updateOrderStatus(int orderId, OrderStatus next) {
+            Shard s = shardForOrder(orderId);
+            if (s == null) return CompletableFuture.completedFuture(false);
+            return s.call(() -> s.orders.updateOrderStatus(orderId, next));
+        }
+
+        CompletableFuture<Order> getOrder(int orderId) {
+            Shard s = shardForOrder(orderId);
+            if (s == null) return CompletableFuture.completedFuture(null);
+            return s.call(() -> s.db.getOrder(orderId));
+        }
+
+        // Oldest first across all shards: each shard returns its first offset + limit, which the merge then pages
+        CompletableFuture<List<Order>> findOrdersByCustomer(int customerId, int offset, int limit) {
+            if (offset < 0 || limit <= 0) return CompletableFuture.completedFuture(Collections.emptyList());
+            int perShard = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+            List<CompletableFuture<List<Order>>> parts = new ArrayList<>(shards.length);
+            for (Shard s : shards) parts.add(s.call(() -> s.orders.findOrdersByCustomer(customerId, 0, perShard)));
+            return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                List<Order> merged = new ArrayList<>();
+                for (CompletableFuture<List<Order>> p : parts) merged.addAll(p.join());
+                merged.sort(PLACEMENT_ORDER);
+                if (offset >= merged.size()) return Collections.<Order>emptyList();
+                return merged.subList(offset, Math.min(merged.size(), offset + limit));
+            });
+        }
+
+        CompletableFuture<Integer> orderCount() {
+            List<CompletableFuture<Integer>> parts = new ArrayList<>(shards.length);
+            for (Shard s : shards) parts.add(s.call(s.db::orderCount));
+            return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(v -> parts.stream().mapToInt(CompletableFuture::join).sum());
+        }
+
+        private CompletableFuture<Boolean> broadcast(Function<Shard, Boolean> task) {
+            List<CompletableFuture<Boolean>> parts = new ArrayList<>(shards.length);
+            for (Shard s : shards) parts.add(s.call(() -> task.apply(s)));
+            return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(v -> parts.stream().allMatch(CompletableFuture::join));
+        }
+
+        // Lets queued calls finish, then stops the loops
+        @Override
+        public void close() {
+            for (Shard s : shards) s.loop.shutdown();
+            try {
+                for (Shard s : shards) s.loop.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // ====== DISPATCH ======
+
+    // Automatic rider assignment. Riders with spare capacity sit in a uniform lat/lon grid;
+    // every tick the pending orders are matched oldest-first to the best nearby rider, where
+    // "best" is distance plus a penalty per order the rider is already carrying.
+    // All methods are synchronized: updates and ticks are cheap and rarely contend.
+    static class DispatchEngine {
+        static final double CELL_DEGREES = 0.01;      // ~1.1 km
+        static final double LOAD_PENALTY_KM = 1.5;    // one extra order weighs like 1.5 km of detour
+        static final int MAX_SEARCH_RINGS = 10;
+
+        // One assignment made by a tick
+        static class Assignment {
+            final int orderId;
+            final int deliveryPersonId;
+            final long waitMillis;
+            final double distanceKm;
+
+            Assignment(int orderId, int deliveryPersonId, long waitMillis, double distanceKm) {
+                this.orderId = orderId;
+                this.deliveryPersonId = deliveryPersonId;
+                this.waitMillis = waitMillis;
+                this.distanceKm = distanceKm;
+            }
+        }
+
+        private static class PendingOrder {
+            final int orderId;
+            final double latitude, longitude; // pickup point
+            final long submittedAt;
+
+            PendingOrder(int orderId, double latitude, double longitude, long submittedAt) {
+                this.orderId = orderId;
+                this.latitude = latitude;
+                this.longitude = longitude;
+                this.submittedAt = submittedAt;
+            }
+        }
+
+        private static class RiderSlot {
+            final DeliveryPerson dp;
+            long cell = Long.MIN_VALUE; // grid cell key, MIN_VALUE when not in the grid
+            int index;                  // position inside that cell's list
+
+            RiderSlot(DeliveryPerson dp) { this.dp = dp; }
+        }
+
+        private final DataStore db;
+        private final OrderService orderService;
+        private final Map<Integer, RiderSlot> riders = new HashMap<>();
+        private final Map<Long, ArrayList<RiderSlot>> grid = new HashMap<>();
+        private final ArrayDeque<PendingOrder> pending = new ArrayDeque<>();
+        private final Map<Integer, Integer> riderByOrder = new HashMap<>();
+        private int ridersInGrid;
+        private long positionsSeen; // PositionTable.writes() as of the last refreshLocations
+
+        DispatchEngine(DataStore db, OrderService orderService) {
+            this.db = db;
+            this.orderService = orderService;
+        }
+
+        // Puts a registered delivery person on the map at the given position
+        synchronized boolean updateRiderLocation(int deliveryPersonId, double latitude, double longitude) {
+            RiderSlot slot = riders.get(deliveryPersonId);
+            if (slot == null) {
+                DeliveryPerson dp = db.deliveryPeople.get(deliveryPersonId);
+                if (dp == null) return false;
+                slot = new RiderSlot(dp);
+                riders.put(deliveryPersonId, slot);
+            }
+            slot.dp.setLocation(latitude, longitude);
+            reindex(slot);
+            return true;
+        }
+
+        // Moves riders to the fixes written to the tracking table since the previous call, so a tick
+        // looks at a few changed riders instead of every tracked one; returns how many moved
+        synchronized int refreshLocations(PositionTable positions) {
+            long mark = positions.writes();
+            int[] moved = {0};
+            positions.forEachSince(positionsSeen, (id, lat, lon, at) -> {
+                if (updateRiderLocation(id, lat, lon)) moved[0]++;
+            });
+            positionsSeen = mark;
+            return moved[0];
+        }
+
+        synchronized boolean setRiderAvailable(int deliveryPersonId, boolean available) {
+            RiderSlot slot = riders.get(deliveryPersonId);
+            if (slot == null) return false;
+            slot.dp.setAvailable(available);
+            reindex(slot);
+            return true;
+        }
+
+        // Queues a placed order for automatic assignment
+        synchronized boolean submit(int orderId, double pickupLatitude, double pickupLongitude, long nowMillis) {
+            if (!db.orders.containsKey(orderId) || riderByOrder.containsKey(orderId)) return false;
+            pending.add(new PendingOrder(orderId, pickupLatitude, pickupLongitude, nowMillis));
+            return true;
+        }
+
+        // Frees the rider's capacity once the order has been delivered
+        synchronized boolean completeDelivery(int orderId) {
+            Integer dpId = riderByOrder.remove(orderId);
+            if (dpId == null) return false;
+            RiderSlot slot = riders.get(dpId);
+            slot.dp.setActiveOrders(slot.dp.getActiveOrders() - 1);
+            reindex(slot);
+            return true;
+        }
+
+        synchronized int pendingCount() { return pending.size(); }
+
+        // Assigns as many pending orders as possible, oldest first
+        synchronized List<Assignment> tick(long nowMillis) {
+            List<Assignment> made = new ArrayList<>();
+            int n = pending.size();
+            for (int i = 0; i < n && ridersInGrid > 0; i++) {
+                PendingOrder po = pending.poll();
+                RiderSlot best = nearest(po.latitude, po.longitude);
+                if (best == null) {
+                    pending.add(po); // retried next tick, keeps its place among the unassigned
+                    continue;
+                }
+                DeliveryPerson dp = best.dp;
+                if (!orderService.assignDeliveryPersonToOrder(po.orderId, dp.getDeliveryPersonId())) continue;
+                dp.setActiveOrders(dp.getActiveOrders() + 1);
+                riderByOrder.put(po.orderId, dp.getDeliveryPersonId());
+                reindex(best);
+                made.add(new Assignment(po.orderId, dp.getDeliveryPersonId(), nowMillis - po.submittedAt,
+                        distanceKm(po.latitude, po.longitude, dp.getLatitude(), dp.getLongitude())));
+            }
+            return made;
+        }
+
+        // Expanding ring search; stops once no unvisited ring can beat the best score so far
+        private RiderSlot nearest(double lat, double lon) {
+            long cLat = cellIndex(lat), cLon = cellIndex(lon);
+            double kmPerLonDegree = 111.32 * Math.cos(Math.toRadians(lat)); // hoisted out of the scan
+            double ringKm = CELL_DEGREES * Math.min(110.57, kmPerLonDegree);
+            RiderSlot best = null;
+            double bestScore = Double.MAX_VALUE;
+            for (int r = 0; r <= MAX_SEARCH_RINGS; r++) {
+                for (long dLat = -r; dLat <= r; dLat++) {
+                    for (long dLon = -r; dLon <= r; dLon++) {
+                        if (Math.abs(dLat) != r && Math.abs(dLon) != r) continue; // ring border only
+                        ArrayList<RiderSlot> cell = grid.get(cellKey(cLat + dLat, cLon + dLon));
+                        if (cell == null) continue;
+                        for (RiderSlot slot : cell) {
+                            DeliveryPerson dp = slot.dp;
+                            double x = (dp.getLongitude() - lon) * kmPerLonDegree;
+                            double y = (dp.getLatitude() - lat) * 110.57;
+                            double score = Math.sqrt(x * x + y * y) + LOAD_PENALTY_KM * dp.getActiveOrders();
+                            if (score < bestScore) {
+                                bestScore = score;
+                                best = slot;
+                            }
+                        }
+                    }
+                }
+                if (best != null && bestScore <= r * ringKm) break;
+            }
+            return best;
+        }
+
+        // Keeps the grid holding exactly the riders that can take another order
+        private void reindex(RiderSlot slot) {
+            DeliveryPerson dp = slot.dp;
+            boolean eligible = dp.isAvailable() && dp.getActiveOrders() < dp.getCapacity();
+            long cell = eligible ? cellKey(cellIndex(dp.getLatitude()), cellIndex(dp.getLongitude())) : Long.MIN_VALUE;
+            if (cell == slot.cell) return;
+            if (slot.cell != Long.MIN_VALUE) {
+                ArrayList<RiderSlot> old = grid.get(slot.cell);
+                RiderSlot last = old.remove(old.size() - 1);
+                if (last != slot) {
+                    old.set(slot.index, last);
+                    last.index = slot.index;
+                }
+                if (old.isEmpty()) grid.remove(slot.cell);
+                ridersInGrid--;
+            }
+            slot.cell = cell;
+            if (cell != Long.MIN_VALUE) {
+                ArrayList<RiderSlot> list = grid.computeIfAbsent(cell, k -> new ArrayList<>());
+                slot.index = list.size();
+                list.add(slot);
+                ridersInGrid++;
+            }
+        }
+
+        private static long cellIndex(double degrees) {
+            return (long) Math.floor(degrees / CELL_DEGREES);
+        }
+
+        private static long cellKey(long latIndex, long lonIndex) {
+            return (latIndex << 32) ^ (lonIndex & 0xFFFFFFFFL);
+        }
+
+        // Equirectangular approximation; plenty accurate at city scale
+        static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+            double x = (lon2 - lon1) * 111.32 * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+            double y = (lat2 - lat1) * 110.57;
+            return Math.sqrt(x * x + y * y);
+        }
+    }
+
+    // ====== RIDER TRACKING ======
+
+    // Receives one rider's fix; atMillis is the time the rider's device took it
+    interface PositionVisitor {
+        void visit(int riderId, double latitude, double longitude, long atMillis);
+    }
+
+    // Latest fix of every tracked rider, held in flat primitive arrays with no object per rider or
+    // per update. Slots are found by open addressing on the rider id and never move or go away, so
+    // readers probe safely while the single writer inserts. Each slot is guarded by a sequence lock:
+    // the writer makes its version odd, writes the fields and publishes an even version; a reader
+    // keeps a copy only if it saw the same even version before and after taking it. Versions come
+    // from a table-wide write counter, which lets readers ask for just the slots changed since a mark.
+    static class PositionTable {
+        private final int mask;
+        private final int maxRiders;
+        private final AtomicLongArray versions; // 0 = free slot, odd = being written, else 2 * write number
+        private final int[] riderIds;
+        private final double[] latitudes, longitudes;
+        private final long[] fixMillis;
+        private volatile long writes;
+        private volatile int tracked;
+
+        PositionTable(int maxRiders) {
+            int slots = Integer.highestOneBit(Math.max(2, maxRiders) * 2 - 1) << 1; // load factor <= 0.5
+            this.mask = slots - 1;
+            this.maxRiders = maxRiders;
+            versions = new AtomicLongArray(slots);
+            riderIds = new int[slots];
+            latitudes = new double[slots];
+            longitudes = new double[slots];
+            fixMillis = new long[slots];
+        }
+
+        int size() { return tracked; }
+
+        // Write counter; pass an earlier value to forEachSince to visit only what changed after it
+        long writes() { return writes; }
+
+        // Single writer only. False, leaving the table as it was, for a fix older than the one held
+        // (updates can arrive out of order) or for a new rider once maxRiders are tracked.
+        boolean put(int riderId, double latitude, double longitude, long atMillis) {
+            int i = slot(riderId);
+            if (versions.get(i) == 0) {
+                if (tracked == maxRiders) return false;
+                riderIds[i] = riderId; // published by the release below
+                tracked++;
+            } else if (atMillis < fixMillis[i]) {
+                return false;
+            }
+            long w = writes + 1;
+            versions.setRelease(i, 2 * w - 1);
+            VarHandle.storeStoreFence(); // the odd version lands before any field
+            latitudes[i] = latitude;
+            longitudes[i] = longitude;
+            fixMillis[i] = atMillis;
+            versions.setRelease(i, 2 * w);
+            writes = w;
+            return true;
+        }
+
+        // Copies the rider's latest fix into pos; false if the rider has never reported
+        boolean read(int riderId, Position pos) {
+            int i = slot(riderId);
+            while (true) {
+                long v = versions.get(i);
+                if (v == 0 || riderIds[i] != riderId) return false; // free when probed, or taken by another rider since
+                if ((v & 1) == 0) {
+                    double lat = latitudes[i], lon = longitudes[i];
+                    long at = fixMillis[i];
+                    VarHandle.loadLoadFence();
+                    if (versions.get(i) == v) {
+                        pos.set(riderId, lat, lon, at);
+                        return true;
+                    }
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        Position get(int riderId) {
+            Position pos = new Position();
+            return read(riderId, pos) ? pos : null;
+        }
+
+        // Visits a consistent copy of every fix written after the mark (0 visits all)
+        void forEachSince(long mark, PositionVisitor visitor) {
+            for (int i = 0; i <= mask; i++) {
+                long v = versions.get(i);
+                if (v == 0) continue;
+                while (true) {
+                    if ((v & 1) == 0) {
+                        if (v <= 2 * mark) break;
+                        double lat = latitudes[i], lon = longitudes[i];
+                        long at = fixMillis[i];
+                        VarHandle.loadLoadFence();
+                        if (versions.get(i) == v) {
+                            visitor.visit(riderIds[i], lat, lon, at);
+                            break;
+                        }
+                    }
+                    Thread.onSpinWait();
+                    v = versions.get(i);
+                }
+            }
+        }
+
+        // The rider's slot, or the free slot where it would go; the table is never more than half full
+        private int slot(int riderId) {
+            int h = riderId * 0x9E3779B9;
+            for (int i = (h ^ (h >>> 16)) & mask; ; i = (i + 1) & mask) {
+                if (versions.get(i) == 0 || riderIds[i] == riderId) return i;
+            }
+        }
+    }
 
-        @Override
-        public String toString() {
-            return "DeliveryPerson{" +
-                    "deliveryPersonId=" + deliveryPersonId +
-                    ", name='" + name + '\'' +
-                    ", contactNo=" + contactNo +
-                    '}';
+    // A copy of one fix, reusable across reads
+    static class Position {
+        private int riderId;
+        private double latitude, longitude;
+        private long atMillis;
+
+        public int getRiderId() { return riderId; }
+        public double getLatitude() { return latitude; }
+        public double getLongitude() { return longitude; }
+        public long getAtMillis() { return atMillis; }
+
+        void set(int riderId, double latitude, double longitude, long atMillis) {
+            this.riderId = riderId;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.atMillis = atMillis;
         }
     }
 
-    // 6. Restaurant
-    static class Restaurant {
-        private int id;
-        private String name;
-        private List<FoodItem> menu = new ArrayList<>();
+    // Location updates from any number of threads funnel through a bounded ring of primitive slots
+    // to one writer thread, the only one that writes the PositionTable. A producer claims a slot with
+    // one CAS and never waits: when the writer is a whole ring behind, the update is refused and
+    // counted, which costs little because the rider sends a fresher one a second later.
+    static class LocationIngest implements Closeable {
+        private final PositionTable table;
+        private final int capacity;
+        private final int mask;
+        private final AtomicLong claimed = new AtomicLong();
+        private final AtomicLongArray stamps; // sequence a slot was last published for
+        private final int[] riderIds;
+        private final double[] latitudes, longitudes;
+        private final long[] fixMillis;
+        private final Thread writer = new Thread(this::run, "location-writer");
+        private final LongAdder refused = new LongAdder();
+        private volatile long consumed; // every slot before this sequence may be reused
+        private volatile long applied, rejected; // written by the writer thread only
+        private volatile boolean running = true;
 
-        public Restaurant(int id, String name) {
-            this.id = id;
-            this.name = name;
+        LocationIngest(PositionTable table, int capacity) {
+            if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+            this.table = table;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            stamps = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) stamps.set(i, -1);
+            riderIds = new int[capacity];
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            fixMillis = new long[capacity];
+            writer.setDaemon(true);
+            writer.start();
         }
 
-        public int getId() { return id; }
-        public String getName() { return name; }
-        public List<FoodItem> getMenu() { return menu; }
+        PositionTable table() { return table; }
+
+        // False if the ring is full or the ingest is closed; never blocks
+        boolean offer(int riderId, double latitude, double longitude, long atMillis) {
+            if (!running) return false;
+            long seq;
+            do {
+                seq = claimed.get();
+                if (seq - consumed >= capacity) {
+                    refused.increment();
+                    return false;
+                }
+            } while (!claimed.compareAndSet(seq, seq + 1));
+            int i = (int) seq & mask;
+            riderIds[i] = riderId;
+            latitudes[i] = latitude;
+            longitudes[i] = longitude;
+            fixMillis[i] = atMillis;
+            stamps.setRelease(i, seq); // publishes the fields above
+            return true;
+        }
+
+        long applied() { return applied; }
+        long rejected() { return rejected; } // older than the fix held, or no room for another rider
+        long refused() { return refused.sum(); }
+        long pending() { return claimed.get() - consumed; }
 
-        public void addFoodItem(FoodItem item) {
-            // replace if same id exists
-            menu.removeIf(fi -> fi.getId() == item.getId());
-            menu.add(item);
+        // Waits until every update offered so far is in the table; false on timeout
+        boolean awaitDrained(long timeoutMillis) {
+            long target = claimed.get();
+            long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+            while (consumed < target) {
+                if (System.nanoTime() > deadline) return false;
+                LockSupport.parkNanos(100_000);
+            }
+            return true;
         }
 
-        public void removeFoodItem(int foodItemId) {
-            menu.removeIf(fi -> fi.getId() == foodItemId);
+        private void run() {
+            long seq = 0, ok = 0, stale = 0;
+            int idleSpins = 0;
+            while (running || seq < claimed.get()) {
+                int i = (int) seq & mask;
+                if (stamps.get(i) == seq) {
+                    if (table.put(riderIds[i], latitudes[i], longitudes[i], fixMillis[i])) ok++;
+                    else stale++;
+                    seq++;
+                    if ((seq & 63) == 0) { // hand slots back in batches rather than a volatile write per update
+                        consumed = seq;
+                        applied = ok;
+                        rejected = stale;
+                    }
+                    idleSpins = 0;
+                    continue;
+                }
+                consumed = seq;
+                applied = ok;
+                rejected = stale;
+                if (++idleSpins > 100) LockSupport.parkNanos(100_000);
+                else Thread.onSpinWait();
+            }
+            consumed = seq;
+            applied = ok;
+            rejected = stale;
         }
 
+        // Applies what was already offered, then stops the writer
         @Override
-        public String toString() {
-            return "Restaurant{" +
-                    "id=" + id +
-                    ", name='" + name + '\'' +
-                    ", menuSize=" + menu.size() +
-                    '}';
+        public void close() {
+            running = false;
+            try {
+                writer.join(10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
-    // 7. Order
-    static class Order {
-        private int orderId;
-        private Customer customer;
-        private Map<FoodItem, Integer> items = new LinkedHashMap<>();
-        private String status = "Pending"; // default - Pending
-        private DeliveryPerson deliveryPerson; // can be null
-        private String deliveryAddress;
+    // Feeds a recorded trace into a LocationIngest. One fix per line, fields separated by spaces:
+    //   <epochMillis> <riderId> <latitude> <longitude>
+    // Blank lines and lines starting with '#' are skipped. speed 1 replays in real time, 10 ten times
+    // faster, 0 as fast as the ingest takes it (a refused update is retried until it gets in).
+    static class TraceReplay {
+        private final LocationIngest ingest;
+        private final double speed;
+        long lines, fixes, malformed, retries;
 
-        public Order(int orderId, Customer customer) {
-            this.orderId = orderId;
-            this.customer = customer;
+        TraceReplay(LocationIngest ingest, double speed) {
+            this.ingest = ingest;
+            this.speed = speed;
         }
 
-        public int getOrderId() { return orderId; }
-        public Customer getCustomer() { return customer; }
-        public Map<FoodItem, Integer> getItems() { return items; }
-        public String getStatus() { return status; }
-        public DeliveryPerson getDeliveryPerson() { return deliveryPerson; }
-        public String getDeliveryAddress() { return deliveryAddress; }
-
-        public void setStatus(String status) { this.status = status; }
-        public void setDeliveryPerson(DeliveryPerson deliveryPerson) { this.deliveryPerson = deliveryPerson; }
-        public void setDeliveryAddress(String deliveryAddress) { this.deliveryAddress = deliveryAddress; }
+        String run(Path trace) throws IOException {
+            long t0 = System.nanoTime();
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Files.newInputStream(trace), StandardCharsets.UTF_8), 1 << 16)) {
+                run(in);
+            }
+            ingest.awaitDrained(60_000);
+            return summary(System.nanoTime() - t0);
+        }
 
-        public void addItem(FoodItem item, int qty) {
-            if (item == null || qty <= 0) return;
-            items.merge(item, qty, Integer::sum);
+        void run(BufferedReader in) throws IOException {
+            BatchRunner.Fields f = new BatchRunner.Fields();
+            long firstFix = Long.MIN_VALUE, start = System.nanoTime();
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines++;
+                if (line.isBlank() || line.startsWith("#")) continue;
+                long at;
+                int riderId;
+                double lat, lon;
+                try {
+                    f.reset(line);
+                    at = f.nextLong();
+                    riderId = f.nextInt();
+                    lat = f.nextDouble();
+                    lon = f.nextDouble();
+                } catch (NumberFormatException e) {
+                    malformed++;
+                    continue;
+                }
+                if (speed > 0) {
+                    if (firstFix == Long.MIN_VALUE) firstFix = at;
+                    long due = start + (long) ((at - firstFix) * 1_000_000 / speed);
+                    for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) LockSupport.parkNanos(wait);
+                }
+                while (!ingest.offer(riderId, lat, lon, at)) {
+                    if (speed > 0) break; // in real time a late fix is worth less than keeping pace
+                    retries++;
+                    Thread.onSpinWait();
+                }
+                fixes++;
+            }
         }
 
-        @Override
-        public String toString() {
-            String dp = (deliveryPerson == null) ? "Not Assigned" : deliveryPerson.getName();
-            return "Order{" +
-                    "orderId=" + orderId +
-                    ", customer=" + customer.getUsername() +
-                    ", items=" + items +
-                    ", status='" + status + '\'' +
-                    ", deliveryPerson=" + dp +
-                    '}';
+        private String summary(long elapsedNanos) {
+            double seconds = elapsedNanos / 1e9;
+            return String.format("Trace replay: %d fixes from %d lines in %.2f s (%.0f fixes/s)%n"
+                            + "  applied=%d out-of-order=%d refused=%d malformed=%d riders tracked=%d%n",
+                    fixes, lines, seconds, seconds > 0 ? fixes / seconds : 0,
+                    ingest.applied(), ingest.rejected(), ingest.refused(), malformed, ingest.table().size());
         }
     }
 
-    // ====== DATA STORE (in-memory) ======
-    static class DataStore {
-        Map<Integer, Restaurant> restaurants = new LinkedHashMap<>();
-        Map<Integer, Customer> customers = new LinkedHashMap<>();
-        Map<Integer, DeliveryPerson> deliveryPeople = new LinkedHashMap<>();
-        Map<Integer, Order> orders = new LinkedHashMap<>();
-        int nextOrderId = 1;
-    }
+    // ====== BATCH MODE ======
 
-    // ====== SERVICES ======
+    // Headless command stream: one command per line, fields separated by spaces, the trailing
+    // name/address field may contain spaces. Blank lines and lines starting with '#' are skipped.
+    //   add-restaurant <id> <name>
+    //   add-food <restaurantId> <foodId> <price> <name>
+    //   remove-food <restaurantId> <foodId>
+    //   add-customer <id> <contactNo> <name>
+    //   add-delivery-person <id> <contactNo> <name>
+    //   add-to-cart <customerId> <restaurantId> <foodId> <quantity>
+    //   place-order <customerId> <address>
+    //   assign <orderId> <deliveryPersonId>
+    //   set-stock <restaurantId> <foodId> <portions>
+    // A line that is malformed or fails is reported as rejected and the run goes on with the next one.
+    static class BatchRunner {
+        private static final String[] COMMANDS = {"add-restaurant", "add-food", "remove-food", "add-customer",
+                "add-delivery-person", "add-to-cart", "place-order", "assign", "set-stock"};
+        private static final int MAX_REPORTED_ERRORS = 20;
 
-    // Food & Restaurant management
-    static class FoodService {
-        private final DataStore db;
-        public FoodService(DataStore db) { this.db = db; }
+        private final FoodService foodService;
+        private final CustomerService customerService;
+        private final OrderService orderService;
+        private final Runnable checkpoint; // called every checkpointEvery commands, may be null
+        int checkpointEvery = 100_000;
 
-        public boolean addRestaurant(int id, String name) {
-            if (db.restaurants.containsKey(id)) return false;
-            db.restaurants.put(id, new Restaurant(id, name));
-            return true;
-        }
+        private final long[] ok = new long[COMMANDS.length];
+        private final long[] failed = new long[COMMANDS.length];
+        private final StringBuilder errors = new StringBuilder();
+        private long lines, malformed, errorCount;
 
-        public boolean addFoodItemToRestaurant(int restaurantId, int foodId, String name, double price) {
-            Restaurant r = db.restaurants.get(restaurantId);
-            if (r == null) return false;
-            r.addFoodItem(new FoodItem(foodId, name, price));
-            return true;
+        BatchRunner(FoodService foodService, CustomerService customerService, OrderService orderService, Runnable checkpoint) {
+            this.foodService = foodService;
+            this.customerService = customerService;
+            this.orderService = orderService;
+            this.checkpoint = checkpoint;
         }
 
-        public boolean removeFoodItemFromRestaurant(int restaurantId, int foodId) {
-            Restaurant r = db.restaurants.get(restaurantId);
-            if (r == null) return false;
-            int before = r.getMenu().size();
-            r.removeFoodItem(foodId);
-            return r.getMenu().size() < before;
+        // Runs every command in the file and returns the summary report
+        String run(Path file) throws IOException {
+            long t0 = System.nanoTime();
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+                run(in);
+            }
+            return summary(System.nanoTime() - t0);
         }
 
-        public void printRestaurantsAndMenus() {
-            if (db.restaurants.isEmpty()) {
-                System.out.println("No restaurants available.");
-                return;
+        void run(BufferedReader in) throws IOException {
+            Fields f = new Fields();
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines++;
+                f.reset(line);
+                String cmd = f.next();
+                if (cmd == null || cmd.startsWith("#")) continue;
+                int idx = commandIndex(cmd);
+                if (idx < 0) {
+                    error("unknown command '" + cmd + "'");
+                    continue;
+                }
+                boolean success;
+                try {
+                    success = execute(idx, f);
+                } catch (NumberFormatException e) {
+                    malformed++;
+                    error("bad number in '" + line + "'");
+                    continue;
+                } catch (RuntimeException e) {
+                    error(e + " in '" + line + "'");
+                    continue;
+                }
+                if (success) ok[idx]++;
+                else failed[idx]++;
+                if (checkpoint != null && lines % checkpointEvery == 0) checkpoint.run();
             }
-            System.out.println("Restaurants and Menus:");
-            for (Restaurant r : db.restaurants.values()) {
-                System.out.println("Restaurant ID: " + r.getId() + ", Name: " + r.getName());
-                for (FoodItem fi : r.getMenu()) {
-                    System.out.println("- Food Item ID: " + fi.getId() + ", Name: " + fi.getName() + ", Price: Rs. " + fi.getPrice());
+        }
+
+        private boolean execute(int idx, Fields f) {
+            switch (idx) {
+                case 0: return foodService.addRestaurant(f.nextInt(), f.rest());
+                case 1: {
+                    int rid = f.nextInt(), fid = f.nextInt();
+                    double price = f.nextDouble();
+                    return foodService.addFoodItemToRestaurant(rid, fid, f.rest(), price);
+                }
+                case 2: return foodService.removeFoodItemFromRestaurant(f.nextInt(), f.nextInt());
+                case 3: {
+                    int id = f.nextInt();
+                    long contact = f.nextLong();
+                    return customerService.addCustomer(id, f.rest(), contact);
+                }
+                case 4: {
+                    int id = f.nextInt();
+                    long contact = f.nextLong();
+                    return orderService.addDeliveryPerson(id, f.rest(), contact);
+                }
+                case 5: {
+                    int cid = f.nextInt(), rid = f.nextInt(), fid = f.nextInt(), qty = f.nextInt();
+                    FoodItem item = foodService.findFoodItem(rid, fid);
+                    return customerService.addFoodToCart(cid, item, qty);
                 }
+                case 6: return orderService.placeOrder(f.nextInt(), f.rest()) > 0;
+                case 7: return orderService.assignDeliveryPersonToOrder(f.nextInt(), f.nextInt());
+                default: return foodService.setStock(f.nextInt(), f.nextInt(), f.nextLong());
             }
         }
 
-        public FoodItem findFoodItem(int restaurantId, int foodItemId) {
-            Restaurant r = db.restaurants.get(restaurantId);
-            if (r == null) return null;
-            return r.getMenu().stream().filter(fi -> fi.getId() == foodItemId).findFirst().orElse(null);
+        private static int commandIndex(String cmd) {
+            for (int i = 0; i < COMMANDS.length; i++) {
+                if (COMMANDS[i].equals(cmd)) return i;
+            }
+            return -1;
         }
-    }
 
-    // Customer management
-    static class CustomerService {
-        private final DataStore db;
-        public CustomerService(DataStore db) { this.db = db; }
+        private void error(String message) {
+            errorCount++;
+            if (errorCount <= MAX_REPORTED_ERRORS) errors.append("  line ").append(lines).append(": ").append(message).append('\n');
+        }
 
-        public boolean addCustomer(int userId, String username, long contactNo) {
-            if (db.customers.containsKey(userId)) return false;
-            db.customers.put(userId, new Customer(userId, username, contactNo));
-            return true;
+        private String summary(long elapsedNanos) {
+            long commands = 0;
+            StringBuilder sb = new StringBuilder();
+            sb.append("Batch summary:\n");
+            for (int i = 0; i < COMMANDS.length; i++) {
+                if (ok[i] + failed[i] == 0) continue;
+                commands += ok[i] + failed[i];
+                sb.append(String.format("  %-20s ok=%d failed=%d%n", COMMANDS[i], ok[i], failed[i]));
+            }
+            if (errorCount > 0) {
+                sb.append("Rejected lines: ").append(errorCount).append(" (malformed: ").append(malformed).append(")\n");
+                sb.append(errors);
+                if (errorCount > MAX_REPORTED_ERRORS) sb.append("  ...\n");
+            }
+            double seconds = elapsedNanos / 1e9;
+            sb.append(String.format("%d commands from %d lines in %.2f s (%.0f commands/s)%n",
+                    commands, lines, seconds, seconds > 0 ? commands / seconds : 0));
+            return sb.toString();
         }
 
-        public Customer getCustomer(int userId) { return db.customers.get(userId); }
+        // Space-separated field cursor over one line, parsing numbers in place
+        static class Fields {
+            private String line;
+            private int pos;
 
-        public void addFoodToCart(int customerId, FoodItem item, int quantity) {
-            Customer c = db.customers.get(customerId);
-            if (c != null && item != null && quantity > 0) {
-                c.getCart().addItem(item, quantity);
+            void reset(String line) {
+                this.line = line;
+                this.pos = 0;
             }
-        }
 
-        public void viewCart(int customerId) {
-            Customer c = db.customers.get(customerId);
-            if (c == null) {
-                System.out.println("Customer not found!");
-                return;
+            private void skipSpaces() {
+                while (pos < line.length() && line.charAt(pos) == ' ') pos++;
             }
-            System.out.println("Cart:\n" + c.getCart().toString());
-        }
-    }
 
-    // Orders & delivery management
-    static class OrderService {
-        private final DataStore db;
-        public OrderService(DataStore db) { this.db = db; }
+            String next() {
+                skipSpaces();
+                if (pos >= line.length()) return null;
+                int start = pos;
+                while (pos < line.length() && line.charAt(pos) != ' ') pos++;
+                return line.substring(start, pos);
+            }
 
-        public int placeOrder(int customerId, String deliveryAddress) {
-            Customer c = db.customers.get(customerId);
-            if (c == null) return -1;
-            if (c.getCart().getItems().isEmpty()) return -1;
+            long nextLong() {
+                skipSpaces();
+                int start = pos;
+                boolean negative = pos < line.length() && line.charAt(pos) == '-';
+                if (negative) pos++;
+                long v = 0;
+                while (pos < line.length() && line.charAt(pos) != ' ') {
+                    int d = line.charAt(pos) - '0';
+                    if (d < 0 || d > 9 || v > (Long.MAX_VALUE - d) / 10) throw new NumberFormatException(line.substring(start));
+                    v = v * 10 + d;
+                    pos++;
+                }
+                if (pos == start || (negative && pos == start + 1)) throw new NumberFormatException("missing number");
+                return negative ? -v : v;
+            }
 
-            int oid = db.nextOrderId++;
-            Order o = new Order(oid, c);
-            for (Map.Entry<FoodItem, Integer> e : c.getCart().getItems().entrySet()) {
-                o.addItem(e.getKey(), e.getValue());
+            int nextInt() {
+                long v = nextLong();
+                if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) throw new NumberFormatException(Long.toString(v));
+                return (int) v;
             }
-            o.setDeliveryAddress(deliveryAddress);
-            db.orders.put(oid, o);
-            // clear cart after placing order
-            c.getCart().getItems().clear();
-            return oid;
-        }
 
-        public boolean addDeliveryPerson(int id, String name, long contactNo) {
-            if (db.deliveryPeople.containsKey(id)) return false;
-            db.deliveryPeople.put(id, new DeliveryPerson(id, name, contactNo));
-            return true;
+            double nextDouble() {
+                String s = next();
+                if (s == null) throw new NumberFormatException("missing number");
+                return Double.parseDouble(s);
+            }
+
+            String rest() {
+                skipSpaces();
+                String r = line.substring(pos).trim();
+                pos = line.length();
+                return r;
+            }
         }
+    }
 
-        public boolean assignDeliveryPersonToOrder(int orderId, int deliveryPersonId) {
-            Order o = db.orders.get(orderId);
-            DeliveryPerson dp = db.deliveryPeople.get(deliveryPersonId);
-            if (o == null || dp == null) return false;
-            o.setDeliveryPerson(dp);
-            return true;
+    // ====== CLI (Menus) ======
+
+    private static final int SEARCH_RESULTS = 20;
+    private static final int ANALYTICS_TOP = 10;
+    private static final long METRICS_FILE_PERIOD_MILLIS = 10_000;
+    private static final int TRACKED_RIDERS = 65_536;
+    private static final int LOCATION_QUEUE = 1 << 16;
+
+    private final DataStore db;
+    private final Metrics metrics;
+    private final FoodService foodService;
+    private final CustomerService customerService;
+    private final OrderService orderService;
+
+    private final Scanner sc = new Scanner(System.in);
+    private Persistence persistence; // null unless started with --data-dir
+
+    public OnlineFoodDeliverySystem() { this(false); }
+
+    // concurrent = true when the services are also reached from other threads (the HTTP API)
+    OnlineFoodDeliverySystem(boolean concurrent) {
+        db = new DataStore(concurrent);
+        metrics = new Metrics(db);
+        foodService = new MeteredFoodService(db, metrics);
+        customerService = new MeteredCustomerService(db, metrics);
+        orderService = new MeteredOrderService(db, metrics);
+    }
+
+    // Startup: with --data-dir, --catalog lazy reads only the restaurant index at start and each menu
+    // the first time it is used (the first search reads them all); the default, eager, reads every menu.
+    // --create-cds-archive app.jsa records the classes a start loads into an AppCDS archive; starting
+    // with java -XX:SharedArchiveFile=app.jsa ... then maps them instead of loading them one by one.
+    public static void main(String[] args) throws IOException {
+        String cdsArchive = argValue(args, "--create-cds-archive");
+        if (cdsArchive != null) {
+            createCdsArchive(Paths.get(cdsArchive));
+            return;
+        }
+        String trainingDir = argValue(args, "--cds-training");
+        if (trainingDir != null) {
+            trainForCds(Paths.get(trainingDir));
+            return;
+        }
+        String httpPort = argValue(args, "--http");
+        OnlineFoodDeliverySystem app = new OnlineFoodDeliverySystem(httpPort != null);
+        String dataDir = argValue(args, "--data-dir");
+        if (dataDir != null) {
+            long t0 = System.nanoTime();
+            boolean lazy = "lazy".equals(argValue(args, "--catalog"));
+            app.persistence = Persistence.open(Paths.get(dataDir), app.db, lazy);
+            System.out.println("Recovered " + app.db.orderCount() + " orders (" + app.persistence.recoveredRecords
+                    + " journal records replayed) in " + (System.nanoTime() - t0) / 1_000_000 + " ms\n");
+        }
+        List<MetricsExporter> exporters = new ArrayList<>();
+        String metricsFile = argValue(args, "--metrics-file");
+        if (metricsFile != null) exporters.add(new FileMetricsExporter(app.metrics, Paths.get(metricsFile), METRICS_FILE_PERIOD_MILLIS));
+        String metricsPort = argValue(args, "--metrics-port");
+        if (metricsPort != null) {
+            HttpMetricsExporter exporter = new HttpMetricsExporter(app.metrics, Integer.parseInt(metricsPort));
+            exporters.add(exporter);
+            System.out.println("Metrics at http://localhost:" + exporter.port() + "/metrics");
+        }
+        try {
+            String batchFile = argValue(args, "--batch");
+            String traceFile = argValue(args, "--replay-trace");
+            if (batchFile != null) app.runBatch(Paths.get(batchFile));
+            else if (traceFile != null) replayTrace(Paths.get(traceFile), argValue(args, "--replay-speed"));
+            else if (httpPort != null) app.serveHttp(Integer.parseInt(httpPort));
+            else app.start();
+        } finally {
+            for (MetricsExporter e : exporters) e.close();
+            if (app.persistence != null) app.persistence.close();
         }
+    }
 
-        public void printOrders() {
-            if (db.orders.isEmpty()) {
-                System.out.println("No orders found.");
-                return;
+    // Runs a training start in a child JVM that dumps every class it loaded to archive on exit.
+    // CDS only archives classes that come from JARs, so the class path must not hold class directories.
+    private static void createCdsArchive(Path archive) throws IOException {
+        String classPath = System.getProperty("java.class.path");
+        for (String entry : classPath.split(java.io.File.pathSeparator)) {
+            if (Files.isDirectory(Paths.get(entry))) {
+                throw new IOException("CDS archives classes from JARs only; package " + entry + " first (jar cf ofd.jar -C " + entry + " .)");
             }
-            System.out.println("Orders:");
-            for (Order o : db.orders.values()) {
-                System.out.println(o);
+        }
+        Path dir = Files.createTempDirectory("ofd-cds");
+        try {
+            String java = ProcessHandle.current().info().command().orElse("java");
+            Process child = new ProcessBuilder(java, "-XX:ArchiveClassesAtExit=" + archive.toAbsolutePath(),
+                    "-cp", classPath, OnlineFoodDeliverySystem.class.getName(),
+                    "--cds-training", dir.toString()).inheritIO().start();
+            int exit = child.waitFor();
+            if (exit != 0) throw new IOException("CDS training run exited with " + exit);
+            System.out.println("CDS archive written; start with -XX:SharedArchiveFile=" + archive);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException("interrupted while creating the CDS archive");
+        } finally {
+            try (var files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
             }
         }
+    }
 
-        public void printOrdersForCustomer(int customerId) {
-            boolean any = false;
-            for (Order o : db.orders.values()) {
-                if (o.getCustomer().getUserId() == customerId) {
-                    if (!any) {
-                        System.out.println("Orders:");
-                        any = true;
-                    }
-                    System.out.println(o);
+    // Goes through what a start does (checkpoint, lazy recovery, the first HTTP requests) so the
+    // classes on that path are loaded by the time the JVM exits and writes the archive
+    private static void trainForCds(Path dir) throws IOException {
+        OnlineFoodDeliverySystem seed = new OnlineFoodDeliverySystem(true);
+        try (Persistence p = Persistence.open(dir, seed.db)) {
+            seed.foodService.addRestaurant(1, "Training Kitchen");
+            seed.foodService.addFoodItemToRestaurant(1, 1, "Paneer Tikka", 180);
+            seed.customerService.addCustomer(1, "trainee", 9_000_000_000L);
+            p.checkpoint();
+        }
+        OnlineFoodDeliverySystem app = new OnlineFoodDeliverySystem(true);
+        app.persistence = Persistence.open(dir, app.db, true);
+        try (HttpApi api = new HttpApi(app.db, app.foodService, app.customerService, app.orderService, app.metrics, 0)) {
+            api.start();
+            for (String path : List.of("/restaurants/1/menu", "/restaurants?limit=10", "/search?q=paneer", "/customers/1/cart")) {
+                try (var in = java.net.URI.create("http://localhost:" + api.port() + path).toURL().openStream()) {
+                    in.readAllBytes();
                 }
             }
-            if (!any) System.out.println("No orders for this customer.");
+        } finally {
+            app.persistence.close();
         }
     }
 
-    // ====== CLI (Menus) ======
+    private static String argValue(String[] args, String name) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) return args[i + 1];
+        }
+        return null;
+    }
 
-    private final DataStore db = new DataStore();
-    private final FoodService foodService = new FoodService(db);
-    private final CustomerService customerService = new CustomerService(db);
-    private final OrderService orderService = new OrderService(db);
+    private void runBatch(Path file) throws IOException {
+        BatchRunner runner = new BatchRunner(foodService, customerService, orderService, this::checkpointIfDue);
+        if (persistence == null) {
+            System.out.print(runner.run(file));
+            return;
+        }
+        // one fsync at the end instead of one per command
+        db.journal.durableCommits = false;
+        String summary;
+        try {
+            summary = runner.run(file);
+            db.journal.sync();
+        } finally {
+            db.journal.durableCommits = true;
+        }
+        System.out.print(summary);
+    }
 
-    private final Scanner sc = new Scanner(System.in);
+    // Plays a recorded location trace through a fresh ingest and reports how it kept up
+    private static void replayTrace(Path file, String speed) throws IOException {
+        try (LocationIngest ingest = new LocationIngest(new PositionTable(TRACKED_RIDERS), LOCATION_QUEUE)) {
+            System.out.print(new TraceReplay(ingest, speed == null ? 0 : Double.parseDouble(speed)).run(file));
+        }
+    }
+
+    // Serves the HTTP API instead of the menus until the process is stopped (Ctrl+C).
+    // No snapshots are taken while serving: requests never pause, so the journal alone
+    // carries the changes until the next start.
+    private void serveHttp(int port) throws IOException {
+        HttpApi api = new HttpApi(db, foodService, customerService, orderService, metrics, port);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            api.close();
+            stopped.countDown();
+            try {
+                main.join(10_000); // let main() close the journal before the JVM exits
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        api.start();
+        System.out.println("HTTP API listening on port " + api.port());
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-    public static void main(String[] args) {
-        new OnlineFoodDeliverySystem().start();
+    // Snapshots only between menu actions, when no service call is in flight
+    private void checkpointIfDue() {
+        if (persistence == null) return;
+        try {
+            // a stopped journal refuses every change until a checkpoint starts a new one
+            if (persistence.journal().failure() != null) persistence.checkpoint();
+            else persistence.maybeCheckpoint();
+        } catch (IOException e) {
+            System.out.println("Snapshot failed: " + e.getMessage());
+        }
     }
 
     private void start() {
@@ -422,7 +7261,14 @@ public class OnlineFoodDeliverySystem {
             System.out.println("5. View Orders");
             System.out.println("6. Add Delivery Person");
             System.out.println("7. Assign Delivery Person to Order");
-            System.out.println("8. Exit");
+            System.out.println("8. Update Order Status");
+            System.out.println("9. Export Report");
+            System.out.println("10. View Analytics");
+            System.out.println("11. View Metrics");
+            System.out.println("12. Set Food Item Stock");
+            System.out.println("13. Set Food Item Prep Time");
+            System.out.println("14. Set Kitchen Capacity");
+            System.out.println("15. Exit");
             System.out.print("Choose an option: ");
             int choice = readInt();
             switch (choice) {
@@ -433,12 +7279,20 @@ public class OnlineFoodDeliverySystem {
                 case 5 -> orderService.printOrders();
                 case 6 -> addDeliveryPersonFlow();
                 case 7 -> assignDeliveryPersonFlow();
-                case 8 -> {
+                case 8 -> updateOrderStatusFlow();
+                case 9 -> exportReportFlow();
+                case 10 -> viewAnalyticsFlow();
+                case 11 -> viewMetrics();
+                case 12 -> setStockFlow();
+                case 13 -> setPrepTimeFlow();
+                case 14 -> setKitchenCapacityFlow();
+                case 15 -> {
                     System.out.println("Exiting Admin Module\n");
                     return;
                 }
                 default -> System.out.println("Invalid choice!\n");
             }
+            checkpointIfDue();
         }
     }
 
@@ -476,6 +7330,42 @@ public class OnlineFoodDeliverySystem {
         else System.out.println("Restaurant or Food Item not found!\n");
     }
 
+    private void setStockFlow() {
+        System.out.print("Enter Restaurant ID: ");
+        int rid = readInt();
+        System.out.print("Enter Food Item ID: ");
+        int fid = readInt();
+        System.out.print("Enter Portions Left: ");
+        long portions = readLong();
+        boolean ok = foodService.setStock(rid, fid, portions);
+        if (ok) System.out.println("Stock set to " + portions + " portions!\n");
+        else System.out.println("Restaurant or Food Item not found, or negative portions!\n");
+    }
+
+    private void setPrepTimeFlow() {
+        System.out.print("Enter Restaurant ID: ");
+        int rid = readInt();
+        System.out.print("Enter Food Item ID: ");
+        int fid = readInt();
+        System.out.print("Enter Prep Time (minutes): ");
+        int minutes = readInt();
+        boolean ok = foodService.setPrepTime(rid, fid, minutes * 60);
+        if (ok) System.out.println("Prep time set to " + minutes + " minutes!\n");
+        else System.out.println("Restaurant or Food Item not found, or prep time not positive!\n");
+    }
+
+    private void setKitchenCapacityFlow() {
+        System.out.print("Enter Restaurant ID: ");
+        int rid = readInt();
+        System.out.print("Enter Stations (orders cooked at once): ");
+        int stations = readInt();
+        System.out.print("Enter Max Wait before hiding the restaurant (minutes): ");
+        int maxWait = readInt();
+        boolean ok = foodService.setKitchenCapacity(rid, stations, maxWait);
+        if (ok) System.out.println("Kitchen set to " + stations + " stations!\n");
+        else System.out.println("Restaurant not found, or stations not positive!\n");
+    }
+
     private void addDeliveryPersonFlow() {
         System.out.print("Enter Delivery Person ID: ");
         int id = readInt();
@@ -498,6 +7388,86 @@ public class OnlineFoodDeliverySystem {
         else System.out.println("Order or Delivery Person not found!\n");
     }
 
+    private void updateOrderStatusFlow() {
+        System.out.print("Enter Order ID: ");
+        int oid = readInt();
+        System.out.print("Enter New Status " + Arrays.toString(OrderStatus.values()) + ": ");
+        OrderStatus next;
+        try {
+            next = OrderStatus.valueOf(readLine().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown status!\n");
+            return;
+        }
+        boolean ok = orderService.updateOrderStatus(oid, next);
+        if (ok) System.out.println("Order status updated to " + next + "!\n");
+        else System.out.println("Order not found or status change not allowed!\n");
+    }
+
+    private void exportReportFlow() {
+        System.out.print("Report (1 = Orders, 2 = Menus): ");
+        int kind = readInt();
+        System.out.print("Format " + Arrays.toString(ReportFormat.values()) + ": ");
+        String fmt = readLine();
+        System.out.print("Fields (comma separated, blank for all): ");
+        String fields = readLine();
+        System.out.print("Skip first N rows: ");
+        int offset = readInt();
+        System.out.print("Max rows (0 for all): ");
+        int limit = readInt();
+        System.out.print("Output file (blank for console): ");
+        String file = readLine();
+        if (kind != 1 && kind != 2) {
+            System.out.println("Invalid choice!\n");
+            return;
+        }
+        ReportFormat format;
+        try {
+            format = ReportFormat.valueOf(fmt.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown format!\n");
+            return;
+        }
+        try {
+            if (limit <= 0) limit = Integer.MAX_VALUE;
+            ReportWriter w = file.isEmpty() ? ReportWriter.console()
+                    : new ReportWriter(new OutputStreamWriter(Files.newOutputStream(Paths.get(file)), StandardCharsets.UTF_8));
+            int rows;
+            try (w) {
+                rows = kind == 1
+                        ? orderService.writeOrders(w, new OrderReport(format, OrderReport.parseFields(fields)), offset, limit)
+                        : foodService.writeMenus(w, new MenuReport(format, MenuReport.parseFields(fields)), offset, limit, false);
+            }
+            System.out.println("Exported " + rows + (kind == 1 ? " orders" : " restaurants")
+                    + (file.isEmpty() ? "" : " to " + file) + "\n");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid field list: " + e.getMessage() + "\n");
+        } catch (IOException e) {
+            System.out.println("Export failed: " + e.getMessage() + "\n");
+        }
+    }
+
+    private void viewAnalyticsFlow() {
+        System.out.print("Recompute from order history? (y/n, n = live counters): ");
+        boolean recompute = readLine().trim().equalsIgnoreCase("y");
+        AnalyticsSummary s = recompute ? Analytics.scan(db, true, ANALYTICS_TOP) : db.analytics.summary(db, ANALYTICS_TOP);
+        try (ReportWriter w = ReportWriter.console()) {
+            s.write(w, ANALYTICS_TOP);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.println();
+    }
+
+    private void viewMetrics() {
+        try (ReportWriter w = ReportWriter.console()) {
+            metrics.write(w, MetricsFormat.TEXT);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.println();
+    }
+
     // ====== Customer Menu ======
     private void customerMenu() {
         while (true) {
@@ -509,7 +7479,9 @@ public class OnlineFoodDeliverySystem {
             System.out.println("4. View Cart");
             System.out.println("5. Place Order");
             System.out.println("6. View Orders");
-            System.out.println("7. Exit");
+            System.out.println("7. Search Food");
+            System.out.println("8. Apply Coupon");
+            System.out.println("9. Exit");
             System.out.print("Choose an option: ");
             int choice = readInt();
             switch (choice) {
@@ -519,12 +7491,15 @@ public class OnlineFoodDeliverySystem {
                 case 4 -> viewCartFlow();
                 case 5 -> placeOrderFlow();
                 case 6 -> viewOrdersFlow();
-                case 7 -> {
+                case 7 -> searchFoodFlow();
+                case 8 -> applyCouponFlow();
+                case 9 -> {
                     System.out.println("Exiting Customer Module\n");
                     return;
                 }
                 default -> System.out.println("Invalid choice!\n");
             }
+            checkpointIfDue();
         }
     }
 
@@ -558,8 +7533,22 @@ public class OnlineFoodDeliverySystem {
             System.out.println("Restaurant or Food Item not found!\n");
             return;
         }
-        customerService.addFoodToCart(cid, item, qty);
-        System.out.println("Food item added to cart!\n");
+        if (customerService.addFoodToCart(cid, item, qty)) {
+            System.out.println("Food item added to cart!\n");
+        } else if (qty <= 0) {
+            System.out.println("Quantity must be positive!\n");
+        } else {
+            System.out.println("Sorry, only " + item.getStock().available() + " portions of " + item.getName() + " left!\n");
+        }
+    }
+
+    private void applyCouponFlow() {
+        System.out.print("Enter Customer ID: ");
+        int cid = readInt();
+        System.out.print("Enter Coupon Code: ");
+        String code = readLine();
+        if (customerService.applyCoupon(cid, code)) System.out.println("Coupon applied!\n");
+        else System.out.println("Customer not found or coupon not valid!\n");
     }
 
     private void viewCartFlow() {
@@ -572,11 +7561,26 @@ public class OnlineFoodDeliverySystem {
     private void placeOrderFlow() {
         System.out.print("Enter Customer ID: ");
         int cid = readInt();
+        long quote = orderService.estimateReadyAt(cid);
+        if (quote > 0) System.out.println("Ready in about " + minutesFromNow(quote) + " minutes if you order now.");
         System.out.print("Enter Delivery Address: ");
         String addr = readLine();
         int oid = orderService.placeOrder(cid, addr);
-        if (oid > 0) System.out.println("Order placed successfully! Your order ID is: " + oid + "\n");
-        else System.out.println("Unable to place order. Ensure customer exists and cart is not empty.\n");
+        if (oid > 0) {
+            System.out.println("Order placed successfully! Your order ID is: " + oid);
+            long ready = orderService.getReadyAtMillis(oid);
+            if (ready > 0) System.out.println("The kitchen expects it ready in about " + minutesFromNow(ready) + " minutes.");
+            for (Order sub : orderService.getSubOrders(oid)) {
+                Restaurant r = sub.getRestaurant();
+                System.out.println("  Order " + sub.getOrderId() + " from " + (r == null ? "other items" : r.getName())
+                        + ": Rs. " + Cart.formatRupees(sub.getPayablePaise()));
+            }
+            System.out.println();
+        } else System.out.println("Unable to place order. Ensure customer exists, cart is not empty and nothing in it has sold out.\n");
+    }
+
+    private static long minutesFromNow(long atMillis) {
+        return Math.max(0, (atMillis - System.currentTimeMillis() + 59_999) / 60_000);
     }
 
     private void viewOrdersFlow() {
@@ -586,6 +7590,38 @@ public class OnlineFoodDeliverySystem {
         System.out.println();
     }
 
+    private void searchFoodFlow() {
+        System.out.print("Enter search text: ");
+        String query = readLine();
+        System.out.print("Enter max price (blank for any): ");
+        String max = readLine();
+        double maxPrice = Double.MAX_VALUE;
+        if (!max.isEmpty()) {
+            try {
+                maxPrice = Double.parseDouble(max);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid price, showing all prices.");
+            }
+        }
+        List<Restaurant> restaurants = foodService.searchRestaurants(query, SEARCH_RESULTS);
+        List<SearchIndex.Hit> hits = foodService.searchFood(query, 0, maxPrice, SEARCH_RESULTS);
+        if (restaurants.isEmpty() && hits.isEmpty()) {
+            List<String> suggestions = foodService.suggest(query, 5);
+            if (suggestions.isEmpty()) System.out.println("No matches found.\n");
+            else System.out.println("No matches found. Did you mean: " + String.join(", ", suggestions) + "?\n");
+            return;
+        }
+        for (Restaurant r : restaurants) {
+            System.out.println("Restaurant ID: " + r.getId() + ", Name: " + r.getName());
+        }
+        for (SearchIndex.Hit h : hits) {
+            FoodItem fi = h.getItem();
+            System.out.println("- Restaurant ID: " + h.getRestaurantId() + ", Food Item ID: " + fi.getId()
+                    + ", Name: " + fi.getName() + ", Price: Rs. " + fi.getPrice());
+        }
+        System.out.println();
+    }
+
     // ====== Input helpers ======
     private int readInt() {
         while (true) {